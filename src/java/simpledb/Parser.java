@@ -5,6 +5,8 @@ import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -24,6 +26,7 @@ import simpledb.transaction.TransactionId;
 
 public class Parser {
     static boolean explain = false;
+    static boolean asyncCommit = false;
 
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
@@ -48,6 +51,12 @@ public class Parser {
         throw new simpledb.ParsingException("Unknown predicate " + s);
     }
 
+    /** @return true if e is a "?" placeholder of a prepared statement */
+    private static boolean isPlaceholder(ZExp e) {
+        return e instanceof ZExpression && ((ZExpression) e).getOperator().equals("?")
+                && ((ZExpression) e).nbOperands() == 0;
+    }
+
     void processExpression(TransactionId tid, ZExpression wx, LogicalPlan lp)
             throws simpledb.ParsingException, IOException, ParseException {
         if (wx.getOperator().equals("AND")) {
@@ -75,6 +84,16 @@ public class Parser {
             boolean isJoin = false;
             Predicate.Op op = getOp(wx.getOperator());
 
+            // 预编译语句的参数：column op ?（ZQL不接受?出现在比较左侧）
+            if (isPlaceholder(ops.get(1))) {
+                if (!(ops.get(0) instanceof ZConstant) || ((ZConstant) ops.get(0)).getType() != ZConstant.COLUMNNAME) {
+                    throw new simpledb.ParsingException(
+                            "Parameters can only be compared with a field: " + wx);
+                }
+                lp.addParameterFilter(((ZConstant) ops.get(0)).getValue(), op);
+                return;
+            }
+
             boolean op1const = ops.get(0) instanceof ZConstant; // otherwise
                                                                       // is a
                                                                       // Query
@@ -107,11 +126,10 @@ public class Parser {
                 }
 
                 if (!op2const) { // right op is a nested query
+                    // 子查询与外层查询一起生成物理计划，以便下推过滤条件
                     LogicalPlan sublp = parseQueryLogicalPlan(tid,
-                            (ZQuery) ops.get(1));
-                    OpIterator pp = sublp.physicalPlan(tid,
-                            TableStats.getStatsMap(), explain);
-                    lp.addJoin(tab1field, pp, op);
+                            (ZQuery) ops.get(1), lp);
+                    lp.addJoin(tab1field, sublp, op);
                 } else {
                     tab2field = ((ZConstant) ops.get(1)).getValue();
                     lp.addJoin(tab1field, tab2field, op);
@@ -137,12 +155,63 @@ public class Parser {
 
     }
 
+    /**
+     * Return the text of a query with every literal replaced by "?", so that
+     * queries differing only in their constants share a key in the
+     * {@link simpledb.optimizer.QueryPlanCache}.
+     */
+    static String normalizeQuery(ZQuery q) {
+        StringBuilder sb = new StringBuilder("select ");
+        if (q.isDistinct()) {
+            sb.append("distinct ");
+        }
+        sb.append(q.getSelect()).append(" from ").append(q.getFrom());
+        if (q.getWhere() != null) {
+            sb.append(" where ").append(normalizeExpression(q.getWhere()));
+        }
+        if (q.getGroupBy() != null) {
+            sb.append(" group by ").append(q.getGroupBy().getGroupBy());
+            if (q.getGroupBy().getHaving() != null) {
+                sb.append(" having ").append(normalizeExpression(q.getGroupBy().getHaving()));
+            }
+        }
+        if (q.getOrderBy() != null) {
+            sb.append(" order by ").append(q.getOrderBy());
+        }
+        return sb.toString();
+    }
+
+    private static String normalizeExpression(ZExp e) {
+        if (e instanceof ZConstant) {
+            ZConstant c = (ZConstant) e;
+            return c.getType() == ZConstant.COLUMNNAME ? c.getValue() : "?";
+        } else if (isPlaceholder(e)) {
+            return "?";
+        } else if (e instanceof ZQuery) {
+            return "(" + normalizeQuery((ZQuery) e) + ")";
+        } else if (e instanceof ZExpression) {
+            ZExpression x = (ZExpression) e;
+            StringBuilder sb = new StringBuilder(x.getOperator()).append("(");
+            for (int i = 0; i < x.nbOperands(); i++) {
+                sb.append(i == 0 ? "" : ", ").append(normalizeExpression(x.getOperand(i)));
+            }
+            return sb.append(")").toString();
+        }
+        return e.toString();
+    }
+
     public LogicalPlan parseQueryLogicalPlan(TransactionId tid, ZQuery q)
             throws IOException, Zql.ParseException, simpledb.ParsingException {
+        return parseQueryLogicalPlan(tid, q, null);
+    }
+
+    private LogicalPlan parseQueryLogicalPlan(TransactionId tid, ZQuery q, LogicalPlan outer)
+            throws IOException, Zql.ParseException, simpledb.ParsingException {
         @SuppressWarnings("unchecked")
         List<ZFromItem> from = q.getFrom();
-        LogicalPlan lp = new LogicalPlan();
+        LogicalPlan lp = new LogicalPlan(outer);
         lp.setQuery(q.toString());
+        lp.setPlanKey(normalizeQuery(q));
         // walk through tables in the FROM clause
         for (int i = 0; i < from.size(); i++) {
             ZFromItem fromIt = from.get(i);
@@ -187,23 +256,19 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        List<String> groupByFields = new ArrayList<>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             List<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.get(0);
+            for (ZExp gbe : gbs) {
                 if (!(gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException(
                             "Complex grouping expressions (" + gbe
                                     + ") not supported.");
                 }
-                groupByField = ((ZConstant) gbe).getValue();
+                String groupByField = ((ZConstant) gbe).getValue();
                 System.out.println("GROUP BY FIELD : " + groupByField);
+                groupByFields.add(groupByField);
             }
 
         }
@@ -212,8 +277,8 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         List<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        List<String> aggFields = new ArrayList<>();
+        List<String> aggFuns = new ArrayList<>();
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.get(i);
@@ -223,20 +288,18 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggFun = si.getAggregate();
                 System.out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
                 lp.addProjectField(aggField, aggFun);
+                aggFields.add(aggField);
+                aggFuns.add(aggFun);
             } else {
-                if (groupByField != null
-                        && !(groupByField.equals(si.getTable() + "."
-                                + si.getColumn()) || groupByField.equals(si
+                if (!groupByFields.isEmpty()
+                        && !(groupByFields.contains(si.getTable() + "."
+                                + si.getColumn()) || groupByFields.contains(si
                                 .getColumn()))) {
                     throw new simpledb.ParsingException("Non-aggregate field "
                             + si.getColumn()
@@ -246,12 +309,16 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (!groupByFields.isEmpty() && aggFuns.isEmpty()) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
 
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
+        // 所有聚合在一次扫描中计算
+        for (int i = 0; i < aggFuns.size(); i++) {
+            lp.addAggregate(aggFuns.get(i), aggFields.get(i), null);
+        }
+        for (String groupByField : groupByFields) {
+            lp.addGroupBy(groupByField);
         }
         // sort the data
 
@@ -281,9 +348,24 @@ public class Parser {
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws IOException,
             simpledb.ParsingException, Zql.ParseException {
+        return handleQueryStatement(s, -1, tId);
+    }
+
+    /**
+     * Plan a SELECT statement with a LIMIT clause, which Zql does not parse
+     * (see {@link #limitOf}).
+     *
+     * @param limit the number of tuples of the LIMIT clause, or -1 for none
+     */
+    public Query handleQueryStatement(ZQuery s, int limit, TransactionId tId)
+            throws IOException,
+            simpledb.ParsingException, Zql.ParseException {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        if (limit >= 0) {
+            lp.addLimit(limit);
+        }
         OpIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -453,6 +535,7 @@ public class Parser {
                     throw new ParsingException(
                             "Can't start new transactions until current transaction has been committed or rolledback.");
                 curtrans = new Transaction();
+                curtrans.setAsyncCommit(asyncCommit);
                 curtrans.start();
                 inUserTrans = true;
                 System.out.println("Started a new transaction tid = "
@@ -463,14 +546,46 @@ public class Parser {
         }
     }
 
+    // Zql不支持LIMIT：解析前去掉语句末尾的LIMIT n，再把它加到逻辑计划上
+    private static final Pattern LIMIT = Pattern.compile("(.*?)\\s+LIMIT\\s+(\\d+)\\s*(;?)\\s*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    /**
+     * @return the number of tuples of the "LIMIT n" clause at the end of a
+     *         statement, or -1 if it has none
+     * @throws ParsingException if n is too large
+     */
+    static int limitOf(String sql) throws simpledb.ParsingException {
+        Matcher m = LIMIT.matcher(sql);
+        if (!m.matches()) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(m.group(2));
+        } catch (NumberFormatException e) {
+            throw new simpledb.ParsingException("LIMIT out of range: " + m.group(2));
+        }
+    }
+
+    /** @return the statement without the LIMIT clause at its end, for Zql to parse */
+    static String withoutLimit(String sql) {
+        Matcher m = LIMIT.matcher(sql);
+        return m.matches() ? m.group(1) + m.group(3) : sql;
+    }
+
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException, IOException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        int limit = limitOf(s);
+        ByteArrayInputStream bis = new ByteArrayInputStream(withoutLimit(s).getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
-                return parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                if (limit >= 0) {
+                    lp.addLimit(limit);
+                }
+                return lp;
             }
         } catch (Zql.ParseException e) {
             throw new simpledb.ParsingException(
@@ -481,6 +596,20 @@ public class Parser {
                 "Cannot generate logical plan for expression : " + s);
     }
 
+    /**
+     * Parse and plan a SELECT statement once, for repeated execution with
+     * different values of its "?" placeholders; see {@link PreparedStatement}.
+     *
+     * @param s the text of the query
+     * @throws ParsingException if s is not a valid SELECT statement
+     */
+    public PreparedStatement prepare(String s) throws simpledb.ParsingException, IOException {
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = generateLogicalPlan(tid, s);
+        OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), explain);
+        return new PreparedStatement(s, lp, plan);
+    }
+
     public void setTransaction(Transaction t) {
         curtrans = t;
     }
@@ -493,10 +622,114 @@ public class Parser {
         processNextStatement(new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8)));
     }
 
+    // PREPARE name AS query; EXECUTE name(value, ...); DEALLOCATE name;
+    private static final Pattern PREPARE = Pattern.compile("\\s*PREPARE\\s+(\\w+)\\s+AS\\s+(.*)",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern EXECUTE = Pattern.compile("\\s*EXECUTE\\s+(\\w+)\\s*(?:\\((.*)\\))?\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern DEALLOCATE = Pattern.compile("\\s*DEALLOCATE\\s+(\\w+)\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private final Map<String, PreparedStatement> preparedStatements = new HashMap<>();
+
+    private void handlePrepareStatement(String name, String query) throws simpledb.ParsingException, IOException {
+        preparedStatements.put(name.toLowerCase(), prepare(query));
+        System.out.println("Prepared statement " + name + ".");
+    }
+
+    private Query handleExecuteStatement(String name, String arguments, TransactionId tId)
+            throws simpledb.ParsingException, DbException {
+        PreparedStatement ps = preparedStatements.get(name.toLowerCase());
+        if (ps == null) {
+            throw new simpledb.ParsingException("Unknown prepared statement " + name);
+        }
+        List<String> values = splitArguments(arguments == null ? "" : arguments);
+        if (values.size() != ps.getParameterCount()) {
+            throw new simpledb.ParsingException("Prepared statement " + name + " expects "
+                    + ps.getParameterCount() + " parameters, got " + values.size());
+        }
+        for (int i = 0; i < values.size(); i++) {
+            ps.setParameter(i + 1, values.get(i));
+        }
+        return ps.execute(tId);
+    }
+
+    /** Split a comma-separated list of integers and 'quoted strings' */
+    static List<String> splitArguments(String arguments) throws simpledb.ParsingException {
+        List<String> values = new ArrayList<>();
+        int i = 0;
+        while (i < arguments.length()) {
+            char c = arguments.charAt(i);
+            if (Character.isWhitespace(c) || c == ',') {
+                i++;
+            } else if (c == '\'') {
+                // 引号内的''表示一个单引号
+                StringBuilder sb = new StringBuilder();
+                i++;
+                while (true) {
+                    if (i >= arguments.length()) {
+                        throw new simpledb.ParsingException("Unterminated string in " + arguments);
+                    }
+                    if (arguments.charAt(i) == '\'') {
+                        if (i + 1 < arguments.length() && arguments.charAt(i + 1) == '\'') {
+                            sb.append('\'');
+                            i += 2;
+                            continue;
+                        }
+                        i++;
+                        break;
+                    }
+                    sb.append(arguments.charAt(i++));
+                }
+                values.add(sb.toString());
+            } else {
+                int end = arguments.indexOf(',', i);
+                end = end < 0 ? arguments.length() : end;
+                values.add(arguments.substring(i, end).trim());
+                i = end;
+            }
+        }
+        return values;
+    }
+
+    private static String readStatement(InputStream is) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = is.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
-            ZStatement s = p.readStatement();
+            String text = readStatement(is);
+            Matcher prepare = PREPARE.matcher(text);
+            if (prepare.matches()) {
+                handlePrepareStatement(prepare.group(1), prepare.group(2));
+                return;
+            }
+            Matcher deallocate = DEALLOCATE.matcher(text);
+            if (deallocate.matches()) {
+                if (preparedStatements.remove(deallocate.group(1).toLowerCase()) == null) {
+                    throw new simpledb.ParsingException("Unknown prepared statement " + deallocate.group(1));
+                }
+                System.out.println("Deallocated statement " + deallocate.group(1) + ".");
+                return;
+            }
+            Matcher execute = EXECUTE.matcher(text);
+            ZStatement s = null;
+            int limit = -1;
+            if (!execute.matches()) {
+                limit = limitOf(text);
+                ZqlParser p = new ZqlParser(new ByteArrayInputStream(
+                        withoutLimit(text).getBytes(StandardCharsets.UTF_8)));
+                s = p.readStatement();
+                if (limit >= 0 && !(s instanceof ZQuery)) {
+                    throw new simpledb.ParsingException("LIMIT is only supported in SELECT statements");
+                }
+            }
 
             Query query = null;
             if (s instanceof ZTransactStmt)
@@ -504,19 +737,23 @@ public class Parser {
             else {
                 if (!this.inUserTrans) {
                     curtrans = new Transaction();
+                    curtrans.setAsyncCommit(asyncCommit);
                     curtrans.start();
                     System.out.println("Started a new transaction tid = "
                             + curtrans.getId().getId());
                 }
                 try {
-                    if (s instanceof ZInsert)
+                    if (s == null)
+                        query = handleExecuteStatement(execute.group(1),
+                                execute.group(2), curtrans.getId());
+                    else if (s instanceof ZInsert)
                         query = handleInsertStatement((ZInsert) s,
                                 curtrans.getId());
                     else if (s instanceof ZDelete)
                         query = handleDeleteStatement((ZDelete) s,
                                 curtrans.getId());
                     else if (s instanceof ZQuery)
-                        query = handleQueryStatement((ZQuery) s,
+                        query = handleQueryStatement((ZQuery) s, limit,
                                 curtrans.getId());
                     else {
                         System.out
@@ -567,11 +804,12 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "prepare", "execute", "deallocate",
+            "order by", "limit" };
 
     public static void main(String[] argv) throws IOException {
 
-        if (argv.length < 1 || argv.length > 4) {
+        if (argv.length < 1 || argv.length > 9) {
             System.out.println("Invalid number of arguments.\n" + usage);
             System.exit(0);
         }
@@ -581,7 +819,7 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-asynccommit] [-statsample tuples] [-parallel threads] [-f queryFile]";
     static final int SLEEP_TIME = 1000;
 
     protected void shutdown() {
@@ -593,15 +831,33 @@ public class Parser {
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
-        TableStats.computeStatistics();
 
         String queryFile = null;
+        int statsSample = TableStats.FULL_SCAN;
 
         if (argv.length > 1) {
             for (int i = 1; i < argv.length; i++) {
                 if (argv[i].equals("-explain")) {
                     explain = true;
                     System.out.println("Explain mode enabled.");
+                } else if (argv[i].equals("-asynccommit")) {
+                    asyncCommit = true;
+                    System.out.println("Asynchronous commit enabled.");
+                } else if (argv[i].equals("-statsample")) {
+                    if (++i == argv.length) {
+                        System.out.println("Expected sample size after -statsample\n"
+                                + usage);
+                        System.exit(0);
+                    }
+                    statsSample = Integer.parseInt(argv[i]);
+                } else if (argv[i].equals("-parallel")) {
+                    if (++i == argv.length) {
+                        System.out.println("Expected number of threads after -parallel\n"
+                                + usage);
+                        System.exit(0);
+                    }
+                    LogicalPlan.setParallelism(Integer.parseInt(argv[i]));
+                    System.out.println("Parallel execution with " + argv[i] + " threads.");
                 } else if (argv[i].equals("-f")) {
                     interactive = false;
                     if (i++ == argv.length) {
@@ -617,6 +873,10 @@ public class Parser {
                 }
             }
         }
+
+        // 统计信息保存在catalog旁的文件中，查询用到时才加载或计算
+        TableStats.setStatsFile(new File(argv[0] + ".stats"), statsSample);
+
         if (!interactive) {
             try {
                 // curtrans = new Transaction();
@@ -0,0 +1,153 @@
+package simpledb;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.Predicate;
+import simpledb.execution.Query;
+import simpledb.execution.SeqScan;
+import simpledb.index.BTreeScan;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.transaction.TransactionId;
+
+import java.util.Arrays;
+
+/**
+ * A query that has been parsed and planned once, with "?" placeholders in
+ * place of some of the constants of its WHERE clause. Each execution binds
+ * new values into the predicates of the same physical plan and runs it
+ * without parsing or optimizing the query again. Create one with
+ * {@link Parser#prepare}.
+ * <p>
+ * Parameters are numbered from 1, in the order they appear in the query.
+ * The plan is shared by all executions, so a PreparedStatement must not be
+ * executed by two threads at the same time.
+ */
+public class PreparedStatement {
+
+    private final String sql;
+    private final LogicalPlan logicalPlan;
+    private final OpIterator plan;
+    private final Field[] values;
+
+    PreparedStatement(String sql, LogicalPlan logicalPlan, OpIterator plan) {
+        this.sql = sql;
+        this.logicalPlan = logicalPlan;
+        this.plan = plan;
+        this.values = new Field[logicalPlan.getParameterCount()];
+    }
+
+    /** @return the text of the prepared query */
+    public String getSql() {
+        return sql;
+    }
+
+    /** @return the number of "?" placeholders in the query */
+    public int getParameterCount() {
+        return values.length;
+    }
+
+    /** @return the type of the values parameter index (counting from 1) must be bound to */
+    public Type getParameterType(int index) {
+        checkIndex(index);
+        return logicalPlan.getParameterType(index - 1);
+    }
+
+    /**
+     * Bind a value to a parameter; it is used by every following execution
+     * until it is bound again.
+     *
+     * @param index the parameter, counting from 1
+     * @param value the value, of the type of the field it is compared with
+     * @throws ParsingException if the value has the wrong type
+     */
+    public void setParameter(int index, Field value) throws ParsingException {
+        checkIndex(index);
+        if (value == null || value.getType() != getParameterType(index)) {
+            throw new ParsingException("Parameter " + index + " must be of type " + getParameterType(index));
+        }
+        values[index - 1] = value;
+        for (Predicate p : logicalPlan.getParameterPredicates(index - 1)) {
+            p.setOperand(value);
+        }
+        for (IndexPredicate p : logicalPlan.getParameterIndexPredicates(index - 1)) {
+            p.setField(value);
+        }
+    }
+
+    /**
+     * Bind a value given as text to a parameter, converting it to the type
+     * of the field it is compared with.
+     *
+     * @throws ParsingException if the text is not a valid value of that type
+     */
+    public void setParameter(int index, String value) throws ParsingException {
+        if (getParameterType(index) == Type.INT_TYPE) {
+            try {
+                setParameter(index, new IntField(Integer.parseInt(value.trim())));
+            } catch (NumberFormatException e) {
+                throw new ParsingException("Parameter " + index + " must be an integer: " + value);
+            }
+        } else {
+            setParameter(index, new StringField(value, Type.STRING_LEN));
+        }
+    }
+
+    public void setInt(int index, int value) throws ParsingException {
+        setParameter(index, new IntField(value));
+    }
+
+    public void setString(int index, String value) throws ParsingException {
+        setParameter(index, new StringField(value, Type.STRING_LEN));
+    }
+
+    /**
+     * Return a query running the prepared plan with the parameters bound so
+     * far, as part of the specified transaction. The query has to be closed
+     * before the statement is executed again.
+     *
+     * @throws DbException if some parameter has not been bound
+     */
+    public Query execute(TransactionId tid) throws DbException {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == null) {
+                throw new DbException("Parameter " + (i + 1) + " of prepared statement is not bound");
+            }
+        }
+        setTransactionId(plan, tid);
+        Query query = new Query(plan, tid);
+        query.setLogicalPlan(logicalPlan);
+        return query;
+    }
+
+    // 把计划中所有扫描切换到本次执行的事务
+    private static void setTransactionId(OpIterator it, TransactionId tid) {
+        if (it instanceof SeqScan) {
+            ((SeqScan) it).setTransactionId(tid);
+        } else if (it instanceof BTreeScan) {
+            ((BTreeScan) it).setTransactionId(tid);
+        } else if (it instanceof Operator) {
+            for (OpIterator child : ((Operator) it).getChildren()) {
+                if (child != null) {
+                    setTransactionId(child, tid);
+                }
+            }
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 1 || index > values.length) {
+            throw new IndexOutOfBoundsException("Parameter " + index + " not in 1.." + values.length);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return sql + " " + Arrays.toString(values);
+    }
+}
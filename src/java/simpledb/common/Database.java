@@ -1,5 +1,6 @@
 package simpledb.common;
 
+import simpledb.optimizer.QueryPlanCache;
 import simpledb.storage.BufferPool;
 import simpledb.storage.LogFile;
 
@@ -23,6 +24,7 @@ public class Database {
 
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
+    private final QueryPlanCache _planCache;
 
     private Database() {
         _catalog = new Catalog();
@@ -35,6 +37,7 @@ public class Database {
             System.exit(1);
         }
         _logfile = tmp;
+        _planCache = new QueryPlanCache();
         // startControllerThread();
     }
 
@@ -48,6 +51,11 @@ public class Database {
         return _instance.get()._bufferpool;
     }
 
+    /** Return the cache of join orders of the static Database instance */
+    public static QueryPlanCache getQueryPlanCache() {
+        return _instance.get()._planCache;
+    }
+
     /** Return the catalog of the static Database instance */
     public static Catalog getCatalog() {
         return _instance.get()._catalog;
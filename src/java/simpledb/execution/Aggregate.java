@@ -1,32 +1,95 @@
 package simpledb.execution;
 
+import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
+import simpledb.storage.DbFile;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleIterator;
+import simpledb.storage.TupleSpillFile;
 import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
 
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min), grouped by any number of columns. A single aggregate grouped by at
+ * most one column is computed by an {@link IntegerAggregator} or
+ * {@link StringAggregator}; several aggregates, or several group-by
+ * columns, by a {@link MultiAggregator}, still in one pass over the child
+ * with one hash table.
+ * <p>
+ * Groups are aggregated in a hash table of at most {@link #MAP_SIZE} groups
+ * (or the memory budget given to the constructor). Whenever a grouping
+ * has more groups, the partial aggregates of the groups in memory are
+ * hashed on the group into {@link HashEquiJoin#FANOUT} partitions of
+ * {@link TupleSpillFile}s and the table is emptied. AVG and SC_AVG are
+ * written as sum and count ({@link Aggregator.Op#SUM_COUNT}), the other
+ * operators as their value. At the end each partition is aggregated on its
+ * own, combining the partial aggregates of a group (SC_AVG for AVG and
+ * SC_AVG, SUM for COUNT and for both fields of SUM_COUNT); partitions that
+ * still have too many groups are partitioned again with a different hash
+ * function.
+ * <p>
+ * With a parallelism above one (see {@link #setParallelism}) and a
+ * {@link SeqScan} of a {@link HeapFile} as child, the pages of the file are
+ * scanned by a {@link ForkJoinPool} in ranges of {@link MorselScan#MORSEL_PAGES}
+ * pages. Each worker thread aggregates into its own table, with its share
+ * of the memory budget, and the partial aggregates of all the tables are
+ * combined as above. The scan reads the pages through the
+ * {@link simpledb.storage.BufferPool} as the transaction of the SeqScan.
  */
 public class Aggregate extends Operator {
 
     private static final long serialVersionUID = 1L;
 
     private OpIterator child;
-    private int aFieldIndex;
-    private int gFieldIndex;
-    private Aggregator.Op op;
+    private final int[] aFieldIndexes;
+    private final int[] gFieldIndexes;
+    private final Aggregator.Op[] ops;
     private TupleDesc td;
     private TupleDesc childTd;
+    private final int memoryGroups;
+    private int parallelism = 1;
     private Aggregator aggregator;
     private OpIterator iterator;
 
+    /** The default number of groups held in memory */
+    public final static int MAP_SIZE = 20000;
+
+    /** The deepest repartitioning of a partition with too many groups */
+    private final static int MAX_LEVEL = 4;
+
+    // 还未聚合的分区
+    private final Deque<Partition> pending = new ArrayDeque<>();
+    transient private long spilledTuples;
+    // 并行聚合时各工作线程共用的第0层分区
+    transient private Partition[] sharedParts;
+
+    /** Partial aggregates of the groups hashed to one partition */
+    private static class Partition {
+        final TupleSpillFile file;
+        final int level;
+
+        Partition(TupleDesc td, int level) throws DbException {
+            this.file = new TupleSpillFile(td);
+            this.level = level;
+        }
+    }
+
     /**
      * Constructor.
      * <p>
@@ -41,94 +104,489 @@ public class Aggregate extends Operator {
      * @param op    The aggregation operator to use
      */
     public Aggregate(OpIterator child, int aFieldIndex, int gFieldIndex, Aggregator.Op op) {
+        this(child, aFieldIndex, gFieldIndex, op, MAP_SIZE);
+    }
+
+    /**
+     * Constructor with a memory budget.
+     *
+     * @param memoryGroups
+     *            The largest number of groups held in memory; the partial
+     *            aggregates of more groups are partitioned to disk
+     */
+    public Aggregate(OpIterator child, int aFieldIndex, int gFieldIndex, Aggregator.Op op, int memoryGroups) {
+        this(child, new int[]{aFieldIndex},
+                gFieldIndex == Aggregator.NO_GROUPING ? new int[0] : new int[]{gFieldIndex},
+                new Aggregator.Op[]{op}, memoryGroups);
+    }
+
+    /**
+     * Constructor for several aggregates and group-by columns.
+     *
+     * @param child  The OpIterator that is feeding us tuples.
+     * @param aFieldIndexes The column of each aggregate.
+     * @param gFieldIndexes The columns over which we are grouping the result;
+     *               empty if there is no grouping
+     * @param ops   The aggregation operator of each aggregate
+     */
+    public Aggregate(OpIterator child, int[] aFieldIndexes, int[] gFieldIndexes, Aggregator.Op[] ops) {
+        this(child, aFieldIndexes, gFieldIndexes, ops, MAP_SIZE);
+    }
+
+    /**
+     * Constructor for several aggregates and group-by columns with a
+     * memory budget.
+     *
+     * @param memoryGroups
+     *            The largest number of groups held in memory; the partial
+     *            aggregates of more groups are partitioned to disk
+     */
+    public Aggregate(OpIterator child, int[] aFieldIndexes, int[] gFieldIndexes, Aggregator.Op[] ops,
+                     int memoryGroups) {
         // some code goes here
+        if (memoryGroups < 1) {
+            throw new IllegalArgumentException("memoryGroups must be positive");
+        }
+        if (aFieldIndexes.length != ops.length || ops.length == 0) {
+            throw new IllegalArgumentException("need one operator for each of at least one aggregate field");
+        }
+        this.memoryGroups = memoryGroups;
         this.child = child;
-        this.aFieldIndex = aFieldIndex;
-        this.gFieldIndex = gFieldIndex;
-        this.op = op;
+        this.aFieldIndexes = aFieldIndexes.clone();
+        this.gFieldIndexes = gFieldIndexes.clone();
+        this.ops = ops.clone();
         this.childTd = child.getTupleDesc();
 
-        if (gFieldIndex == Aggregator.NO_GROUPING) {
-            this.td = new TupleDesc(new Type[] {childTd.getFieldType(aFieldIndex)}, new String[] {childTd.getFieldName(aFieldIndex)});
-        } else {
-            this.td = new TupleDesc(new Type[] {childTd.getFieldType(gFieldIndex), childTd.getFieldType(aFieldIndex)}, new String[] {childTd.getFieldName(gFieldIndex), childTd.getFieldName(aFieldIndex)});
+        // 输出分组字段，再按顺序输出各聚合值
+        int n = gFieldIndexes.length + aFieldIndexes.length;
+        Type[] types = new Type[n];
+        String[] names = new String[n];
+        for (int i = 0; i < gFieldIndexes.length; i++) {
+            types[i] = childTd.getFieldType(gFieldIndexes[i]);
+            names[i] = childTd.getFieldName(gFieldIndexes[i]);
         }
+        for (int i = 0; i < aFieldIndexes.length; i++) {
+            types[gFieldIndexes.length + i] = Type.INT_TYPE;
+            names[gFieldIndexes.length + i] = childTd.getFieldName(aFieldIndexes[i]);
+        }
+        this.td = new TupleDesc(types, names);
     }
 
     /**
-     * @return If this aggregate is accompanied by a groupby, return the groupby
-     * field index in the <b>INPUT</b> tuples. If not, return
+     * @return If this aggregate is accompanied by a groupby, return the
+     * (first) groupby field index in the <b>INPUT</b> tuples. If not, return
      * {@link Aggregator#NO_GROUPING}
      */
     public int groupField() {
         // some code goes here
-        return this.gFieldIndex;
+        return gFieldIndexes.length == 0 ? Aggregator.NO_GROUPING : gFieldIndexes[0];
+    }
+
+    /** @return the indexes of the groupby fields in the <b>INPUT</b> tuples */
+    public int[] groupFields() {
+        return gFieldIndexes.clone();
     }
 
     /**
      * @return If this aggregate is accompanied by a group by, return the name
-     * of the groupby field in the <b>OUTPUT</b> tuples. If not, return
+     * of the (first) groupby field in the <b>OUTPUT</b> tuples. If not, return
      * null;
      */
     public String groupFieldName() {
         // some code goes here
-        return td.getFieldName(gFieldIndex);
+        return gFieldIndexes.length == 0 ? null : td.getFieldName(0);
     }
 
     /**
-     * @return the aggregate field
+     * @return the (first) aggregate field
      */
     public int aggregateField() {
         // some code goes here
-        return this.aFieldIndex;
+        return aFieldIndexes[0];
+    }
+
+    /** @return the index of the field of each aggregate in the <b>INPUT</b> tuples */
+    public int[] aggregateFields() {
+        return aFieldIndexes.clone();
     }
 
     /**
-     * @return return the name of the aggregate field in the <b>OUTPUT</b>
-     * tuples
+     * @return return the name of the (first) aggregate field in the
+     * <b>OUTPUT</b> tuples
      */
     public String aggregateFieldName() {
         // some code goes here
-        return td.getFieldName(aFieldIndex);
+        return td.getFieldName(gFieldIndexes.length);
     }
 
     /**
-     * @return return the aggregate operator
+     * @return return the (first) aggregate operator
      */
     public Aggregator.Op aggregateOp() {
         // some code goes here
-        return this.op;
+        return ops[0];
+    }
+
+    /** @return the operator of each aggregate */
+    public Aggregator.Op[] aggregateOps() {
+        return ops.clone();
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op op) {
         return op.toString();
     }
 
+    /**
+     * Set the number of threads that aggregate the child in parallel from
+     * the next call to {@link #open()}. Only a SeqScan of a HeapFile is
+     * scanned in parallel; other children are always read on the calling
+     * thread.
+     */
+    public void setParallelism(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        this.parallelism = threads;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /** @return the largest number of groups held in memory */
+    public int getMemoryGroups() {
+        return memoryGroups;
+    }
+
+    /** @return the number of partial aggregates written to spill files since the aggregate was opened */
+    public long getSpilledTuples() {
+        return spilledTuples;
+    }
+
+    // 确定aggregator类型
+    private static Aggregator newAggregator(TupleDesc td, int[] gFieldIndexes, int[] aFieldIndexes,
+                                            Aggregator.Op[] ops) {
+        if (ops.length > 1 || gFieldIndexes.length > 1) {
+            return new MultiAggregator(td, gFieldIndexes, aFieldIndexes, ops);
+        }
+        int gFieldIndex = gFieldIndexes.length == 0 ? Aggregator.NO_GROUPING : gFieldIndexes[0];
+        Type gFieldType = gFieldIndex == Aggregator.NO_GROUPING ? null : td.getFieldType(gFieldIndex);
+        Type aFieldType = td.getFieldType(aFieldIndexes[0]);
+        if (aFieldType == Type.INT_TYPE) {
+            return new IntegerAggregator(gFieldIndex, gFieldType, aFieldIndexes[0], ops[0]);
+        } else {
+            return new StringAggregator(gFieldIndex, gFieldType, aFieldIndexes[0], ops[0]);
+        }
+    }
+
+    /**
+     * @return the aggregator combining the partial aggregates of this
+     *         aggregate, which are the group-by fields followed by the
+     *         partial aggregate of each aggregate (two fields for AVG,
+     *         SUM_COUNT and SC_AVG)
+     */
+    private Aggregator newMergeAggregator(TupleDesc partialTd) {
+        int k = gFieldIndexes.length;
+        int[] groups = new int[k];
+        for (int i = 0; i < k; i++) {
+            groups[i] = i;
+        }
+        int[] fields = new int[partialTd.numFields() - k];
+        Aggregator.Op[] merge = new Aggregator.Op[fields.length];
+        int f = k;
+        int m = 0;
+        for (Aggregator.Op op : ops) {
+            fields[m] = f;
+            merge[m++] = mergeOp(op);
+            if (op == Aggregator.Op.SUM_COUNT) {
+                // 和与计数分别求和，输出仍是SUM_COUNT的两个字段
+                fields[m] = f + 1;
+                merge[m++] = Aggregator.Op.SUM;
+            }
+            f += op == Aggregator.Op.AVG || op == Aggregator.Op.SUM_COUNT || op == Aggregator.Op.SC_AVG ? 2 : 1;
+        }
+        return newAggregator(partialTd, groups, Arrays.copyOf(fields, m), Arrays.copyOf(merge, m));
+    }
+
+    // 可以分区时每个聚合都要能合并部分结果
+    private boolean canSpill() {
+        if (gFieldIndexes.length == 0) {
+            return false;
+        }
+        for (Aggregator.Op op : ops) {
+            if (mergeOp(op) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the operator combining partial aggregates of op (of the sums
+     *         of SUM_COUNT; the counts are summed too), or null if op cannot
+     *         be partitioned
+     */
+    private static Aggregator.Op mergeOp(Aggregator.Op op) {
+        switch (op) {
+            case MIN:
+            case MAX:
+            case SUM:
+                return op;
+            case COUNT:
+            case SUM_COUNT:
+                return Aggregator.Op.SUM;
+            case AVG:
+            case SC_AVG:
+                return Aggregator.Op.SC_AVG;
+            default:
+                return null;
+        }
+    }
+
     public void open() throws NoSuchElementException, DbException,
             TransactionAbortedException {
         // some code goes here
         super.open();
-        child.open();
-
-        // 确定aggregator类型
-        Type gFieldType = this.gFieldIndex == Aggregator.NO_GROUPING ? null : this.childTd.getFieldType(this.gFieldIndex);
-        Type aFieldType = this.childTd.getFieldType(this.aFieldIndex);
-        if (aFieldType == Type.INT_TYPE) {
-            this.aggregator = new IntegerAggregator(gFieldIndex, gFieldType, aFieldIndex, op);
-        } else {
-            this.aggregator = new StringAggregator(gFieldIndex, gFieldType, aFieldIndex, op);
+        spilledTuples = 0;
+        HeapFile file = parallelFile();
+        if (file != null) {
+            openParallel(file, ((SeqScan) child).getTransactionId());
+            return;
         }
+        child.open();
+        boolean canSpill = canSpill();
+        this.aggregator = newAggregator(childTd, gFieldIndexes, aFieldIndexes, ops);
+        Partition[] parts = null;
 
         // 遍历数据流
         while (child.hasNext()) {
             aggregator.mergeTupleIntoGroup(child.next());
+            if (canSpill && aggregator.numGroups() > memoryGroups) {
+                // 分组超出预算：把内存中的部分聚合结果写入分区，清空哈希表
+                OpIterator partials = aggregator.partialIterator();
+                if (parts == null) {
+                    parts = newPartitions(partials.getTupleDesc(), 0);
+                }
+                spill(partials, parts);
+                this.aggregator = newAggregator(childTd, gFieldIndexes, aFieldIndexes, ops);
+            }
         }
         child.close();
-        // 聚合结果的iterator
-        this.iterator = aggregator.iterator();
+        if (parts == null) {
+            // 聚合结果的iterator
+            this.iterator = aggregator.iterator();
+            iterator.open();
+            return;
+        }
+        spill(aggregator.partialIterator(), parts);
+        this.aggregator = null;
+        addPending(parts);
+        this.iterator = null;
+    }
+
+    // 只有直接扫描HeapFile时才能按page范围并行
+    private HeapFile parallelFile() {
+        if (parallelism < 2 || !(child instanceof SeqScan)) {
+            return null;
+        }
+        DbFile file = Database.getCatalog().getDatabaseFile(((SeqScan) child).getTableId());
+        return file instanceof HeapFile ? (HeapFile) file : null;
+    }
+
+    /**
+     * Aggregate the pages of file on a fork-join pool of parallelism
+     * threads, each with its own table, and combine the tables.
+     */
+    private void openParallel(HeapFile file, TransactionId tid) throws DbException, TransactionAbortedException {
+        Map<Thread, Aggregator> tables = new ConcurrentHashMap<>();
+        // 每个线程的哈希表分到内存预算的一份
+        int budget = Math.max(1, memoryGroups / parallelism);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new ScanTask(file, tid, 0, file.numPages(), tables, budget));
+        } catch (RuntimeException e) {
+            if (sharedParts != null) {
+                // 由close删除
+                addPending(sharedParts);
+                sharedParts = null;
+            }
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof TransactionAbortedException) {
+                    throw (TransactionAbortedException) cause;
+                }
+                if (cause instanceof DbException) {
+                    throw (DbException) cause;
+                }
+            }
+            throw e;
+        } finally {
+            pool.shutdown();
+        }
+
+        if (sharedParts != null) {
+            for (Aggregator table : tables.values()) {
+                spill(table.partialIterator(), sharedParts);
+            }
+            addPending(sharedParts);
+            sharedParts = null;
+            return;
+        }
+        // 各线程的分组合计不超过内存预算，在内存中合并
+        Aggregator merged = null;
+        for (Aggregator table : tables.values()) {
+            OpIterator partials = table.partialIterator();
+            if (merged == null) {
+                merged = newMergeAggregator(partials.getTupleDesc());
+            }
+            partials.open();
+            while (partials.hasNext()) {
+                merged.mergeTupleIntoGroup(partials.next());
+            }
+            partials.close();
+        }
+        this.iterator = merged != null ? merged.iterator()
+                : new TupleIterator(td, Collections.emptyList());
         iterator.open();
     }
 
+    // 工作线程共用第0层分区，一次写入一整个哈希表
+    private synchronized void spillShared(OpIterator partials) throws DbException, TransactionAbortedException {
+        if (sharedParts == null) {
+            sharedParts = newPartitions(partials.getTupleDesc(), 0);
+        }
+        spill(partials, sharedParts);
+    }
+
+    /** Aggregates a range of pages, splitting it until a worker can take it */
+    private class ScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final HeapFile file;
+        private final TransactionId tid;
+        private final int from;
+        private final int to;
+        private final Map<Thread, Aggregator> tables;
+        private final int budget;
+
+        ScanTask(HeapFile file, TransactionId tid, int from, int to, Map<Thread, Aggregator> tables, int budget) {
+            this.file = file;
+            this.tid = tid;
+            this.from = from;
+            this.to = to;
+            this.tables = tables;
+            this.budget = budget;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > MorselScan.MORSEL_PAGES) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new ScanTask(file, tid, from, mid, tables, budget),
+                        new ScanTask(file, tid, mid, to, tables, budget));
+                return;
+            }
+            // 每个工作线程只写自己的哈希表
+            Thread worker = Thread.currentThread();
+            Aggregator table = tables.computeIfAbsent(worker,
+                    w -> newAggregator(childTd, gFieldIndexes, aFieldIndexes, ops));
+            boolean canSpill = canSpill();
+            DbFileIterator it = file.iterator(tid, from, to);
+            try {
+                it.open();
+                while (it.hasNext()) {
+                    table.mergeTupleIntoGroup(it.next());
+                    if (canSpill && table.numGroups() > budget) {
+                        spillShared(table.partialIterator());
+                        table = newAggregator(childTd, gFieldIndexes, aFieldIndexes, ops);
+                        tables.put(worker, table);
+                    }
+                }
+            } catch (DbException | TransactionAbortedException e) {
+                throw new RuntimeException(e);
+            } finally {
+                it.close();
+            }
+        }
+    }
+
+    private Partition[] newPartitions(TupleDesc td, int level) throws DbException {
+        Partition[] parts = new Partition[HashEquiJoin.FANOUT];
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = new Partition(td, level);
+        }
+        return parts;
+    }
+
+    private void addPending(Partition[] parts) {
+        for (Partition part : parts) {
+            if (part.file.size() > 0) {
+                pending.add(part);
+            } else {
+                part.file.delete();
+            }
+        }
+    }
+
+    // 部分聚合结果以分组字段开头
+    private void spill(OpIterator partials, Partition[] parts) throws DbException, TransactionAbortedException {
+        partials.open();
+        while (partials.hasNext()) {
+            spill(partials.next(), parts);
+        }
+        partials.close();
+    }
+
+    private void spill(Tuple t, Partition[] parts) throws DbException {
+        int hash = 1;
+        for (int i = 0; i < gFieldIndexes.length; i++) {
+            hash = 31 * hash + t.getField(i).hashCode();
+        }
+        parts[HashEquiJoin.partitionOf(hash, parts[0].level)].file.add(t);
+        spilledTuples++;
+    }
+
+    /**
+     * Aggregate the next partition, or partition it again if it has too
+     * many groups.
+     *
+     * @return false if all partitions have been aggregated
+     */
+    private boolean nextPartition() throws DbException, TransactionAbortedException {
+        Partition part = pending.poll();
+        if (part == null) {
+            return false;
+        }
+        TupleDesc td = part.file.getTupleDesc();
+        Aggregator merged = newMergeAggregator(td);
+        boolean overflow = false;
+        try (TupleSpillFile.Reader r = part.file.reader()) {
+            while (r.hasNext()) {
+                merged.mergeTupleIntoGroup(r.next());
+                if (merged.numGroups() > memoryGroups && part.level < MAX_LEVEL) {
+                    overflow = true;
+                    break;
+                }
+            }
+        }
+        if (overflow) {
+            // 不合并，把部分聚合结果原样分到下一层
+            Partition[] parts = newPartitions(td, part.level + 1);
+            try (TupleSpillFile.Reader r = part.file.reader()) {
+                while (r.hasNext()) {
+                    spill(r.next(), parts);
+                }
+            }
+            addPending(parts);
+            merged = null;
+        }
+        part.file.delete();
+        if (merged != null) {
+            this.iterator = merged.iterator();
+            iterator.open();
+        }
+        return true;
+    }
+
     /**
      * Returns the next tuple. If there is a group by field, then the first
      * field is the field by which we are grouping, and the second field is the
@@ -138,10 +596,14 @@ public class Aggregate extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        if (iterator.hasNext()) {
-            return iterator.next();
+        while (true) {
+            if (iterator != null && iterator.hasNext()) {
+                return iterator.next();
+            }
+            if (!nextPartition()) {
+                return null;
+            }
         }
-        return null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
@@ -170,7 +632,14 @@ public class Aggregate extends Operator {
         // some code goes here
         super.close();
         child.close();
-        iterator.close();
+        if (iterator != null) {
+            iterator.close();
+            iterator = null;
+        }
+        for (Partition part : pending) {
+            part.file.delete();
+        }
+        pending.clear();
     }
 
     @Override
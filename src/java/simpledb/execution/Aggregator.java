@@ -84,5 +84,21 @@ public interface Aggregator extends Serializable {
      * @see TupleIterator for a possible helper
      */
     OpIterator iterator();
+
+    /**
+     * @return the number of distinct groups merged so far
+     */
+    int numGroups();
+
+    /**
+     * Create a OpIterator over partial aggregates of the groups, which can
+     * be combined with the partial aggregates of the same groups from other
+     * aggregators: for AVG and SC_AVG, SUM_COUNT tuples to be combined with
+     * SC_AVG; for the other operators, the same tuples as
+     * {@link #iterator()}.
+     */
+    default OpIterator partialIterator() {
+        return iterator();
+    }
     
 }
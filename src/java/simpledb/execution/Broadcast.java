@@ -0,0 +1,45 @@
+package simpledb.execution;
+
+/**
+ * Broadcast runs copies of a producer plan on several threads and passes
+ * every tuple they produce to each of its consumers. It replicates a small
+ * input to the copies of an operator whose other input is split among
+ * them, such as the build side of a {@link HashEquiJoin} whose probe side
+ * is scanned by morsels on each thread of an enclosing {@link Gather}.
+ *
+ * @see Exchange
+ */
+public class Broadcast extends Exchange {
+
+    private static final long serialVersionUID = 1L;
+
+    private Broadcast(Channels channels, int channel) {
+        super(channels, channel);
+    }
+
+    /**
+     * Creates the consumers of a broadcast.
+     *
+     * @param producer
+     *            the plan to run on each producer thread
+     * @param copies
+     *            the number of producer threads
+     * @param consumers
+     *            the number of consumers
+     * @return the consumers, each of which reads every tuple
+     * @throws IllegalArgumentException if several copies of the producer
+     *             would not produce its result between them
+     */
+    public static Broadcast[] create(OpIterator producer, int copies, int consumers) {
+        Channels channels = new Channels(producer, copies, consumers, new int[0], true);
+        Broadcast[] result = new Broadcast[consumers];
+        for (int i = 0; i < consumers; i++) {
+            result[i] = new Broadcast(channels, i);
+        }
+        return result;
+    }
+
+    public String getName() {
+        return "broadcast(" + getCopies() + "->" + getConsumers() + ")";
+    }
+}
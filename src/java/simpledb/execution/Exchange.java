@@ -0,0 +1,573 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.DbFile;
+import simpledb.storage.HeapFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Exchange is the base class of the operators that pass tuples between
+ * threads (Volcano-style exchange operators), so that parts of a plan run
+ * in parallel without the operators in them knowing about it.
+ * <p>
+ * An exchange runs several copies of a producer plan, each on a thread of
+ * its own. The copies are made from the plan each time the exchange starts:
+ * a {@link SeqScan} of a HeapFile becomes a {@link MorselScan}, the copies
+ * sharing the morsels of each scan so that they read every page once
+ * between them, and a consumer of another exchange becomes the consumer of
+ * the same index as the copy (see below). Each copy puts the tuples it
+ * produces, in batches of {@link #BATCH_TUPLES}, into one or more channels:
+ * bounded queues from which the consumers of the exchange read them. A copy
+ * waits while the queue it puts into is full. The subclasses decide which
+ * channels a tuple goes to:
+ * <ul>
+ * <li>{@link Gather} has a single channel, which merges the copies;</li>
+ * <li>{@link HashRepartition} hashes each tuple on key fields into one of
+ * its channels;</li>
+ * <li>{@link Broadcast} puts every tuple into every channel.</li>
+ * </ul>
+ * There is one consumer operator for each channel. The i-th copy of a
+ * producer plan reads the i-th consumer of each exchange in it, so a
+ * {@link Gather} of copies of a {@link HashEquiJoin} of two HashRepartitions
+ * on the join keys joins one pair of partitions on each thread. The
+ * consumers of an exchange with several channels must therefore be read
+ * concurrently, as the copies of an enclosing exchange do: a consumer that
+ * is read alone waits for ever once the queue of another one is full.
+ * <p>
+ * The producers start when the first consumer is opened and stop when the
+ * last one is closed; a consumer that is closed early just has its channel
+ * dropped. Stopping ends the copies after their current morsel and waits
+ * for them, so no page is read once the exchange is closed. The copies read
+ * the pages through the BufferPool as the transaction of the SeqScans in
+ * the producer plan. Tuples come out of an exchange in no particular order.
+ */
+public abstract class Exchange extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of tuples a producer passes on at a time */
+    public static final int BATCH_TUPLES = 256;
+
+    // 每个生产者线程在每个通道中最多积压的批次数
+    private static final int QUEUE_BATCHES_PER_THREAD = 4;
+    // 生产者结束的标记，生产者不会放入空的批次
+    private static final List<Tuple> END = new ArrayList<>(0);
+    // 所有交换中还没有结束的生产者线程数
+    private static final AtomicInteger LIVE_PRODUCERS = new AtomicInteger();
+
+    /**
+     * The producer threads and the channels of an exchange, shared by its
+     * consumers.
+     */
+    protected static final class Channels implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private OpIterator producer;
+        private final int copies;
+        private final Exchange[] consumers;
+        // 按这些字段哈希分到通道；为空时都放入通道0
+        private final int[] keys;
+        private final boolean broadcast;
+
+        transient private ExecutorService executor;
+        // 线程池创建的线程，停止时等待它们真正退出
+        transient private List<Thread> threads;
+        transient private List<BlockingQueue<List<Tuple>>> queues;
+        transient private OpIterator[] pipelines;
+        transient private Map<SeqScan, MorselScan.Morsels> morsels;
+        transient private volatile boolean closed;
+        // 消费者已关闭的通道，生产者不再向其中放入元组
+        transient private AtomicIntegerArray dropped;
+        transient private AtomicReference<Exception> failure;
+        transient private boolean[] read;
+        transient private int opened;
+
+        /**
+         * Constructor.
+         *
+         * @param producer
+         *            the plan to run on each producer thread
+         * @param copies
+         *            the number of producer threads
+         * @param channels
+         *            the number of channels, one for each consumer
+         * @param keys
+         *            the fields to hash the tuples on into the channels
+         * @param broadcast
+         *            whether every tuple goes into every channel
+         * @throws IllegalArgumentException if several copies of the producer
+         *             would not produce its result between them
+         */
+        Channels(OpIterator producer, int copies, int channels, int[] keys, boolean broadcast) {
+            if (copies < 1 || channels < 1) {
+                throw new IllegalArgumentException("copies and channels must be positive");
+            }
+            if (copies > 1) {
+                Split split = splitOf(producer, copies);
+                if (split.all) {
+                    throw new IllegalArgumentException("every copy of the producer would produce all of its tuples");
+                }
+            }
+            this.producer = producer;
+            this.copies = copies;
+            this.consumers = new Exchange[channels];
+            this.keys = keys.clone();
+            this.broadcast = broadcast;
+        }
+
+        /** @return the channel of t, or -1 if it goes into every channel */
+        private int channelOf(Tuple t) {
+            if (broadcast) {
+                return -1;
+            }
+            if (keys.length == 0 || consumers.length == 1) {
+                return 0;
+            }
+            int h = 0;
+            for (int key : keys) {
+                h = 31 * h + t.getField(key).hashCode();
+            }
+            // 与HashEquiJoin、Aggregate分区用的哈希不同，各通道内的分区仍然均匀
+            h *= 0x9E3779B9;
+            h ^= h >>> 16;
+            return Math.floorMod(h, consumers.length);
+        }
+
+        synchronized void open(int channel) throws DbException {
+            if (executor == null) {
+                start();
+            } else if (read[channel]) {
+                throw new DbException("channel " + channel + " of the exchange was already read;"
+                        + " it restarts once every consumer is closed");
+            }
+            read[channel] = true;
+            opened++;
+        }
+
+        synchronized void close(int channel, boolean reading) {
+            if (executor == null) {
+                return;
+            }
+            dropped.set(channel, 1);
+            queues.get(channel).clear();
+            read[channel] = true;
+            if (reading && --opened == 0) {
+                stop();
+            }
+        }
+
+        private void start() {
+            int channels = consumers.length;
+            queues = new ArrayList<>(channels);
+            for (int c = 0; c < channels; c++) {
+                queues.add(new ArrayBlockingQueue<>(QUEUE_BATCHES_PER_THREAD * copies));
+            }
+            closed = false;
+            dropped = new AtomicIntegerArray(channels);
+            failure = new AtomicReference<>();
+            read = new boolean[channels];
+            opened = 0;
+            morsels = new IdentityHashMap<>();
+            pipelines = new OpIterator[copies];
+            for (int i = 0; i < copies; i++) {
+                pipelines[i] = copies == 1 ? producer : instantiate(producer, i, morsels);
+            }
+            String name = consumers[0].getClass().getSimpleName() + "-worker";
+            threads = new ArrayList<>(copies);
+            executor = Executors.newFixedThreadPool(copies, r -> {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                threads.add(thread);
+                return thread;
+            });
+            LIVE_PRODUCERS.addAndGet(copies);
+            for (OpIterator pipeline : pipelines) {
+                executor.execute(() -> {
+                    try {
+                        run(pipeline);
+                    } finally {
+                        LIVE_PRODUCERS.decrementAndGet();
+                    }
+                });
+            }
+            executor.shutdown();
+        }
+
+        // 生产者线程：运行自己的副本，按批次放入各通道
+        private void run(OpIterator pipeline) {
+            // 每个通道正在攒的批次，还没有元组时为null
+            int channels = queues.size();
+            List<List<Tuple>> out = new ArrayList<>(channels);
+            for (int i = 0; i < channels; i++) {
+                out.add(null);
+            }
+            try {
+                pipeline.open();
+                while (!closed && pipeline.hasNext()) {
+                    Tuple t = pipeline.next();
+                    int c = channelOf(t);
+                    for (int i = c < 0 ? 0 : c; i < (c < 0 ? channels : c + 1); i++) {
+                        List<Tuple> batch = out.get(i);
+                        if (batch == null) {
+                            batch = new ArrayList<>(BATCH_TUPLES);
+                            out.set(i, batch);
+                        }
+                        batch.add(t);
+                        if (batch.size() == BATCH_TUPLES) {
+                            put(i, batch);
+                            out.set(i, null);
+                        }
+                    }
+                }
+                for (int i = 0; i < channels; i++) {
+                    if (out.get(i) != null) {
+                        put(i, out.get(i));
+                    }
+                }
+            } catch (Exception e) {
+                failure.compareAndSet(null, e);
+                // 出错时其他线程也不必再取morsel
+                for (MorselScan.Morsels m : morsels.values()) {
+                    m.cancel();
+                }
+            } finally {
+                pipeline.close();
+                for (int i = 0; i < channels; i++) {
+                    put(i, END);
+                }
+            }
+        }
+
+        // 队列满时等待，交换关闭或该通道的消费者关闭后直接丢弃
+        private void put(int channel, List<Tuple> tuples) {
+            try {
+                while (!closed && dropped.get(channel) == 0
+                        && !queues.get(channel).offer(tuples, 10, TimeUnit.MILLISECONDS)) {
+                    // 等待取走
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /** @return the next batch of the channel, or null if none came within a while */
+        private List<Tuple> poll(int channel) throws InterruptedException {
+            return queues.get(channel).poll(10, TimeUnit.MILLISECONDS);
+        }
+
+        private void rethrowFailure() throws DbException, TransactionAbortedException {
+            Exception e = failure.get();
+            if (e == null) {
+                return;
+            }
+            if (e instanceof TransactionAbortedException) {
+                throw (TransactionAbortedException) e;
+            }
+            if (e instanceof DbException) {
+                throw (DbException) e;
+            }
+            if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            }
+            DbException db = new DbException("exchange producer failed: " + e);
+            db.initCause(e);
+            throw db;
+        }
+
+        // 停止生产者线程并等待它们结束；副本中等待其他交换的消费者也不再等待
+        private void stop() {
+            closed = true;
+            for (MorselScan.Morsels m : morsels.values()) {
+                m.cancel();
+            }
+            for (OpIterator pipeline : pipelines) {
+                cancelConsumers(pipeline);
+            }
+            for (BlockingQueue<List<Tuple>> queue : queues) {
+                queue.clear();
+            }
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                // 任务结束时线程可能还没有退出
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            executor = null;
+            threads = null;
+            queues = null;
+            pipelines = null;
+            morsels = null;
+        }
+    }
+
+    // 副本只看到输入的一部分时各部分的分布：all为每个副本都得到全部元组，
+    // keys非空为按这些字段哈希分区，否则为任意划分
+    private static final class Split {
+        final boolean all;
+        final int[] keys;
+
+        Split(boolean all, int[] keys) {
+            this.all = all;
+            this.keys = keys;
+        }
+    }
+
+    private static final Split ANY = new Split(false, new int[0]);
+    private static final Split ALL = new Split(true, new int[0]);
+
+    /**
+     * Checks that copies of plan produce its result between them: scans are
+     * split by morsels, the inputs of a join must be partitioned the same
+     * way on the join keys or one of them broadcast, and the input of an
+     * aggregate must be partitioned on the group by fields.
+     *
+     * @return how the tuples of plan are split among the copies
+     * @throws IllegalArgumentException if they would not produce its result
+     */
+    private static Split splitOf(OpIterator plan, int copies) {
+        if (plan instanceof SeqScan) {
+            DbFile file = Database.getCatalog().getDatabaseFile(((SeqScan) plan).getTableId());
+            if (file instanceof HeapFile) {
+                return ANY;
+            }
+        } else if (plan instanceof Exchange) {
+            Exchange e = (Exchange) plan;
+            if (e.channels.consumers.length != copies) {
+                throw new IllegalArgumentException(e.getName() + " has " + e.channels.consumers.length
+                        + " consumers for " + copies + " copies");
+            }
+            if (e.channels.broadcast) {
+                return ALL;
+            }
+            return e.channels.consumers.length == 1 ? ALL : new Split(false, e.channels.keys);
+        } else if (plan instanceof Filter) {
+            return splitOf(((Filter) plan).getChildren()[0], copies);
+        } else if (plan instanceof Project) {
+            Split s = splitOf(((Project) plan).getChildren()[0], copies);
+            // 投影后字段位置改变，不再记录分区字段
+            return s.all ? ALL : ANY;
+        } else if (plan instanceof HashEquiJoin) {
+            HashEquiJoin j = (HashEquiJoin) plan;
+            JoinPredicate p = j.getJoinPredicate();
+            Split left = splitOf(j.getChildren()[0], copies);
+            Split right = splitOf(j.getChildren()[1], copies);
+            if (right.all) {
+                return left;
+            }
+            if (left.all) {
+                return ANY;
+            }
+            if (p.getOperator() == Predicate.Op.EQUALS
+                    && Arrays.equals(left.keys, new int[]{p.getField1()})
+                    && Arrays.equals(right.keys, new int[]{p.getField2()})) {
+                return left;
+            }
+            throw new IllegalArgumentException("the inputs of a join copied to several threads"
+                    + " must be partitioned on the join keys, or one of them broadcast");
+        } else if (plan instanceof Aggregate) {
+            Aggregate a = (Aggregate) plan;
+            Split s = splitOf(a.getChildren()[0], copies);
+            if (!s.all && s.keys.length > 0 && Arrays.equals(s.keys, a.groupFields())) {
+                return ANY;
+            }
+            throw new IllegalArgumentException("the input of an aggregate copied to several threads"
+                    + " must be partitioned on the group by fields");
+        }
+        throw new IllegalArgumentException(plan.getClass().getSimpleName() + " cannot be copied to several threads");
+    }
+
+    /**
+     * @return the copy of a producer plan run by the producer thread copy,
+     *         reading the morsels of its scans and the consumers of the copy
+     */
+    private static OpIterator instantiate(OpIterator plan, int copy, Map<SeqScan, MorselScan.Morsels> morsels) {
+        if (plan instanceof SeqScan) {
+            SeqScan scan = (SeqScan) plan;
+            MorselScan.Morsels m = morsels.computeIfAbsent(scan, s -> new MorselScan.Morsels(
+                    ((HeapFile) Database.getCatalog().getDatabaseFile(s.getTableId())).numPages()));
+            return new MorselScan(scan, m);
+        }
+        if (plan instanceof Exchange) {
+            return ((Exchange) plan).channels.consumers[copy];
+        }
+        OpIterator[] children = ((Operator) plan).getChildren();
+        OpIterator child = instantiate(children[0], copy, morsels);
+        if (plan instanceof Filter) {
+            return new Filter(((Filter) plan).getPredicate(), child);
+        }
+        if (plan instanceof Project) {
+            Project p = (Project) plan;
+            TupleDesc td = p.getTupleDesc();
+            Type[] types = new Type[td.numFields()];
+            for (int i = 0; i < types.length; i++) {
+                types[i] = td.getFieldType(i);
+            }
+            return new Project(p.getFieldList(), types, child);
+        }
+        if (plan instanceof HashEquiJoin) {
+            HashEquiJoin j = (HashEquiJoin) plan;
+            return new HashEquiJoin(j.getJoinPredicate(), child, instantiate(children[1], copy, morsels),
+                    j.getMemoryTuples());
+        }
+        Aggregate a = (Aggregate) plan;
+        return new Aggregate(child, a.aggregateFields(), a.groupFields(), a.aggregateOps(), a.getMemoryGroups());
+    }
+
+    // 让副本中读其他交换的消费者不再等待
+    private static void cancelConsumers(OpIterator plan) {
+        if (plan instanceof Exchange) {
+            ((Exchange) plan).cancelled = true;
+        } else if (plan instanceof Operator) {
+            for (OpIterator child : ((Operator) plan).getChildren()) {
+                cancelConsumers(child);
+            }
+        }
+    }
+
+    protected final Channels channels;
+    private final int channel;
+
+    transient private Iterator<Tuple> batch;
+    transient private int running;
+    transient private boolean reading;
+    transient private volatile boolean cancelled;
+
+    /**
+     * Constructor.
+     *
+     * @param channels
+     *            the producers and channels of the exchange
+     * @param channel
+     *            the channel this consumer reads
+     */
+    protected Exchange(Channels channels, int channel) {
+        this.channels = channels;
+        this.channel = channel;
+        channels.consumers[channel] = this;
+    }
+
+    /** @return the name of the exchange in query plans */
+    public abstract String getName();
+
+    /**
+     * @return the number of producer threads of all exchanges that have not
+     *         ended yet; once an exchange is closed, its threads have exited
+     */
+    public static int liveProducers() {
+        return LIVE_PRODUCERS.get();
+    }
+
+    /** @return the number of producer threads */
+    public int getCopies() {
+        return channels.copies;
+    }
+
+    /** @return the number of consumers */
+    public int getConsumers() {
+        return channels.consumers.length;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return channels.producer.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        channels.open(channel);
+        reading = true;
+        cancelled = false;
+        running = channels.copies;
+        batch = null;
+        super.open();
+    }
+
+    /**
+     * Returns the next tuple put into the channel of this consumer by any
+     * producer, waiting for one if the channel is empty.
+     *
+     * @return the next tuple, or null once every producer is done
+     * @throws DbException or TransactionAbortedException if a producer failed
+     */
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (batch == null || !batch.hasNext()) {
+            if (running == 0) {
+                return null;
+            }
+            List<Tuple> tuples = null;
+            try {
+                while (tuples == null) {
+                    if (cancelled) {
+                        return null;
+                    }
+                    tuples = channels.poll(channel);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DbException("interrupted while waiting for the exchange producers");
+            }
+            if (tuples == END) {
+                running--;
+                channels.rethrowFailure();
+            } else {
+                batch = tuples.iterator();
+            }
+        }
+        return batch.next();
+    }
+
+    /**
+     * Restarts the producers. Only an exchange with a single consumer can be
+     * rewound; the consumers of other exchanges restart together once all of
+     * them are closed.
+     *
+     * @throws DbException if the exchange has several consumers
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (channels.consumers.length > 1) {
+            throw new DbException(getName() + " has several consumers and cannot be rewound alone");
+        }
+        close();
+        open();
+    }
+
+    public void close() {
+        super.close();
+        channels.close(channel, reading);
+        reading = false;
+        batch = null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{channels.producer};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        channels.producer = children[0];
+    }
+}
@@ -0,0 +1,269 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleSpillFile;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.*;
+
+/**
+ * Sorts tuples that may not fit in memory. Tuples are collected with
+ * {@link #add} into a buffer of at most memoryTuples tuples; whenever a
+ * tuple is added to a full buffer, the buffer is sorted and written to a
+ * {@link TupleSpillFile} as a sorted run. {@link #sort} then merges the
+ * runs, up to
+ * {@link #MERGE_FANIN} at a time, until few enough are left, and
+ * {@link #iterator} returns the sorted tuples: from memory if no run was
+ * written, and otherwise by merging the remaining runs as they are read.
+ * The sort is stable. {@link #close} deletes the runs.
+ */
+public class ExternalSort {
+
+    /** The largest number of runs merged together */
+    public static final int MERGE_FANIN = 64;
+
+    private final TupleDesc td;
+    private final Comparator<Tuple> comparator;
+    private final int memoryTuples;
+    private final List<Tuple> buffer = new ArrayList<>();
+    private List<TupleSpillFile> runs = new ArrayList<>();
+    private long spilled;
+    private boolean sorted;
+
+    /**
+     * @param td
+     *            The type of the tuples to sort
+     * @param comparator
+     *            The order to sort the tuples in
+     * @param memoryTuples
+     *            The largest number of tuples kept in memory
+     */
+    public ExternalSort(TupleDesc td, Comparator<Tuple> comparator, int memoryTuples) {
+        if (memoryTuples < 1) {
+            throw new IllegalArgumentException("memoryTuples must be positive");
+        }
+        this.td = td;
+        this.comparator = comparator;
+        this.memoryTuples = memoryTuples;
+    }
+
+    /** Add a tuple to sort; must not be called after {@link #sort} */
+    public void add(Tuple t) throws DbException {
+        if (sorted) {
+            throw new IllegalStateException("tuples cannot be added after sort()");
+        }
+        if (buffer.size() >= memoryTuples) {
+            runs.add(writeRun(buffer));
+            buffer.clear();
+        }
+        buffer.add(t);
+    }
+
+    /** Add all tuples of an open iterator */
+    public void addAll(OpIterator it) throws DbException, TransactionAbortedException {
+        while (it.hasNext()) {
+            add(it.next());
+        }
+    }
+
+    private TupleSpillFile writeRun(List<Tuple> tuples) throws DbException {
+        tuples.sort(comparator);
+        TupleSpillFile run = new TupleSpillFile(td);
+        for (Tuple t : tuples) {
+            run.add(t);
+        }
+        spilled += tuples.size();
+        return run;
+    }
+
+    /**
+     * Finish adding tuples and sort them, merging the sorted runs written
+     * to disk until at most maxRuns are left. The fewer runs are left, the
+     * fewer files {@link #iterator} reads at once, at the cost of writing
+     * and reading every tuple again in each merge pass.
+     */
+    public void sort(int maxRuns) throws DbException {
+        if (maxRuns < 1) {
+            throw new IllegalArgumentException("maxRuns must be positive");
+        }
+        if (sorted) {
+            return;
+        }
+        sorted = true;
+        if (runs.isEmpty()) {
+            buffer.sort(comparator);
+            return;
+        }
+        if (!buffer.isEmpty()) {
+            runs.add(writeRun(buffer));
+            buffer.clear();
+        }
+        while (runs.size() > maxRuns) {
+            // 每一趟把每MERGE_FANIN个有序段归并成一个
+            List<TupleSpillFile> merged = new ArrayList<>();
+            for (int i = 0; i < runs.size(); i += MERGE_FANIN) {
+                List<TupleSpillFile> group = runs.subList(i, Math.min(i + MERGE_FANIN, runs.size()));
+                if (group.size() == 1) {
+                    merged.add(group.get(0));
+                    continue;
+                }
+                TupleSpillFile out = new TupleSpillFile(td);
+                Merger merger = new Merger(group);
+                try {
+                    while (merger.hasNext()) {
+                        out.add(merger.next());
+                    }
+                } finally {
+                    merger.close();
+                }
+                spilled += out.size();
+                for (TupleSpillFile run : group) {
+                    run.delete();
+                }
+                merged.add(out);
+            }
+            runs = merged;
+        }
+    }
+
+    /**
+     * Return the sorted tuples; calls {@link #sort} with
+     * {@link #MERGE_FANIN} runs first if it was not called. The iterator
+     * can be opened and rewound any number of times until this sort is
+     * closed.
+     */
+    public OpIterator iterator() throws DbException {
+        sort(MERGE_FANIN);
+        return new SortedIterator();
+    }
+
+    /** @return the number of tuples written to disk, counting every merge pass */
+    public long getSpilledTuples() {
+        return spilled;
+    }
+
+    /** @return the number of sorted runs on disk, or 0 if the tuples fit in memory */
+    public int getRuns() {
+        return runs.size();
+    }
+
+    /** Delete the sorted runs and drop the buffered tuples */
+    public void close() {
+        for (TupleSpillFile run : runs) {
+            run.delete();
+        }
+        runs.clear();
+        buffer.clear();
+    }
+
+    /**
+     * Merges sorted runs with a priority queue holding the next tuple of
+     * each run. Equal tuples are returned in the order of their runs, which
+     * keeps the sort stable.
+     */
+    private class Merger {
+        private final List<TupleSpillFile.Reader> readers = new ArrayList<>();
+        private final PriorityQueue<Head> heads;
+
+        Merger(List<TupleSpillFile> runs) throws DbException {
+            heads = new PriorityQueue<>(Math.max(1, runs.size()), (a, b) -> {
+                int c = comparator.compare(a.tuple, b.tuple);
+                return c != 0 ? c : Integer.compare(a.run, b.run);
+            });
+            for (TupleSpillFile run : runs) {
+                TupleSpillFile.Reader reader = run.reader();
+                readers.add(reader);
+                if (reader.hasNext()) {
+                    heads.add(new Head(reader.next(), readers.size() - 1));
+                }
+            }
+        }
+
+        boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        Tuple next() throws DbException {
+            Head head = heads.poll();
+            if (head == null) {
+                throw new NoSuchElementException();
+            }
+            Tuple t = head.tuple;
+            TupleSpillFile.Reader reader = readers.get(head.run);
+            if (reader.hasNext()) {
+                // 复用出队的结点
+                head.tuple = reader.next();
+                heads.add(head);
+            }
+            return t;
+        }
+
+        void close() {
+            for (TupleSpillFile.Reader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    private static class Head {
+        Tuple tuple;
+        final int run;
+
+        Head(Tuple tuple, int run) {
+            this.tuple = tuple;
+            this.run = run;
+        }
+    }
+
+    /** Iterator over the sorted tuples, in memory or merged from the runs */
+    private class SortedIterator implements OpIterator {
+        private static final long serialVersionUID = 1L;
+
+        private transient Iterator<Tuple> memory;
+        private transient Merger merger;
+
+        public void open() throws DbException {
+            if (runs.isEmpty()) {
+                memory = buffer.iterator();
+            } else {
+                merger = new Merger(runs);
+            }
+        }
+
+        public boolean hasNext() {
+            if (memory != null) {
+                return memory.hasNext();
+            }
+            return merger != null && merger.hasNext();
+        }
+
+        public Tuple next() throws DbException, NoSuchElementException {
+            if (memory != null) {
+                return memory.next();
+            }
+            if (merger == null) {
+                throw new NoSuchElementException();
+            }
+            return merger.next();
+        }
+
+        public void rewind() throws DbException {
+            close();
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            memory = null;
+            if (merger != null) {
+                merger.close();
+                merger = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package simpledb.execution;
+
+/**
+ * Gather runs copies of a producer plan on several threads and returns the
+ * tuples of all of them, in no particular order. It is the exchange at the
+ * top of a parallel part of a plan: a Gather of a filtered scan scans the
+ * file by morsels on every thread, and a Gather of a join or an aggregate
+ * over {@link HashRepartition}s or {@link Broadcast}s runs one instance of
+ * the join or aggregate on each thread.
+ *
+ * @see Exchange
+ */
+public class Gather extends Exchange {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructor.
+     *
+     * @param producer
+     *            the plan to run on each thread
+     * @param copies
+     *            the number of threads
+     * @throws IllegalArgumentException if several copies of the producer
+     *             would not produce its result between them
+     */
+    public Gather(OpIterator producer, int copies) {
+        super(new Channels(producer, copies, 1, new int[0], false), 0);
+    }
+
+    public String getName() {
+        return "gather(" + getCopies() + ")";
+    }
+}
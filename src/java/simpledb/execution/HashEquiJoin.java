@@ -2,13 +2,30 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleSpillFile;
 
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The HashEquiJoin operator implements an equi-join by building a hash table
+ * on the outer (left) input and probing it with the inner (right) input.
+ * <p>
+ * When the outer input has at most {@link #MAP_SIZE} tuples (or the memory
+ * budget given to the constructor), both inputs are read once and nothing
+ * is written to disk. Otherwise it is a Grace hash join: both inputs are
+ * hashed on the join key into {@link #FANOUT} partitions of
+ * {@link TupleSpillFile}s, and each pair of partitions is joined in memory.
+ * Outer partitions that are still too large are partitioned again with a
+ * different hash function; when that does not help (many tuples with the
+ * same key), the partition is joined in chunks of the memory budget.
+ * <p>
+ * Joins on two {@link Type#INT_TYPE} fields use an {@link IntTupleMultiMap}
+ * as the hash table, which does not box the keys.
  */
 public class HashEquiJoin extends Operator {
 
@@ -16,8 +33,7 @@ public class HashEquiJoin extends Operator {
     private final JoinPredicate pred;
     private OpIterator child1, child2;
     private final TupleDesc comboTD;
-    transient private Tuple t1 = null;
-    transient private Tuple t2 = null;
+    private final int memoryTuples;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -31,12 +47,32 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, MAP_SIZE);
+    }
+
+    /**
+     * Constructor with a memory budget.
+     *
+     * @param memoryTuples
+     *            The largest number of outer tuples held in the hash table;
+     *            larger outer inputs are partitioned to disk
+     */
+    public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int memoryTuples) {
+        if (memoryTuples < 1) {
+            throw new IllegalArgumentException("memoryTuples must be positive");
+        }
         this.pred = p;
         this.child1 = child1;
         this.child2 = child2;
+        this.memoryTuples = memoryTuples;
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
+    /** @return the largest number of outer tuples held in the hash table */
+    public int getMemoryTuples() {
+        return memoryTuples;
+    }
+
     public JoinPredicate getJoinPredicate() {
         return pred;
     }
@@ -55,69 +91,301 @@ public class HashEquiJoin extends Operator {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
     
-    final Map<Object, List<Tuple>> map = new HashMap<>();
+    /** The default number of outer tuples held in the hash table */
     public final static int MAP_SIZE = 20000;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
+    /** The number of partitions each input is split into when spilling */
+    public final static int FANOUT = 16;
+
+    /** The deepest repartitioning of an oversized partition */
+    private final static int MAX_LEVEL = 4;
+
+    private final Map<Field, List<Tuple>> map = new HashMap<>();
+    // 两侧连接字段都是整数时代替map
+    transient private IntTupleMultiMap intMap = null;
+    transient private int intRow = -1;
+
+    // 探测侧：内存中直接读child2，溢出时读分区文件
+    transient private Source probe = null;
+    transient private Tuple t2 = null;
+    transient private Iterator<Tuple> listIt = null;
+    // 还未处理的分区对
+    private final Deque<Partition> pending = new ArrayDeque<>();
+    // 当前分区对；分块处理时还要保留构建侧的读取位置
+    transient private Partition current = null;
+    transient private TupleSpillFile.Reader chunkBuild = null;
+    // 当前探测分区的读取器，每遍重扫前和分区结束时关闭
+    transient private TupleSpillFile.Reader probeReader = null;
+    transient private long spilledTuples;
+
+    /** A source of tuples: a child operator or a spill file */
+    private interface Source {
+        boolean hasNext() throws DbException, TransactionAbortedException;
+
+        Tuple next() throws DbException, TransactionAbortedException;
+    }
+
+    private static Source source(final OpIterator it) {
+        return new Source() {
+            public boolean hasNext() throws DbException, TransactionAbortedException {
+                return it.hasNext();
+            }
+
+            public Tuple next() throws DbException, TransactionAbortedException {
+                return it.next();
+            }
+        };
+    }
+
+    private static Source source(final TupleSpillFile.Reader reader) {
+        return new Source() {
+            public boolean hasNext() {
+                return reader.hasNext();
+            }
+
+            public Tuple next() throws DbException {
+                return reader.next();
+            }
+        };
+    }
+
+    /** A pair of spilled partitions with the same hash values */
+    private static class Partition {
+        final TupleSpillFile build;
+        final TupleSpillFile probe;
+        final int level;
+
+        Partition(TupleDesc buildTd, TupleDesc probeTd, int level) throws DbException {
+            this.build = new TupleSpillFile(buildTd);
+            this.probe = new TupleSpillFile(probeTd);
+            this.level = level;
+        }
+
+        void delete() {
+            build.delete();
+            probe.delete();
+        }
+    }
+
+    /** @return the partition of a join key; each level uses a different hash function */
+    static int partitionOf(Field key, int level) {
+        return partitionOf(key.hashCode(), level);
+    }
+
+    /** @return the partition of a key with the hash code; each level uses a different hash function */
+    static int partitionOf(int hash, int level) {
+        int h = hash ^ (level * 0x9E3779B9);
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return Math.floorMod(h, FANOUT);
+    }
+
+    private Partition[] newPartitions(int level) throws DbException {
+        Partition[] parts = new Partition[FANOUT];
+        for (int i = 0; i < FANOUT; i++) {
+            parts[i] = new Partition(child1.getTupleDesc(), child2.getTupleDesc(), level);
+        }
+        return parts;
+    }
+
+    private void addToMap(Tuple t) {
+        if (intMap != null) {
+            intMap.put(((IntField) t.getField(pred.getField1())).getValue(), t);
+        } else {
+            map.computeIfAbsent(t.getField(pred.getField1()), k -> new ArrayList<>()).add(t);
+        }
+    }
+
+    private void clearMap() {
         map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            List<Tuple> list = map.computeIfAbsent(t1.getField(pred.getField1()), k -> new ArrayList<>());
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+        if (intMap != null) {
+            intMap.clear();
+        }
+        listIt = null;
+        intRow = -1;
+    }
+
+    /** Find the outer tuples matching key, to be returned by {@link #nextMatch} */
+    private void probeMap(Field key) {
+        if (intMap != null) {
+            intRow = intMap.first(((IntField) key).getValue());
+        } else {
+            List<Tuple> l = map.get(key);
+            listIt = l == null ? null : l.iterator();
+        }
+    }
+
+    /** @return the next outer tuple matching the last probe, or null */
+    private Tuple nextMatch() {
+        if (intMap != null) {
+            if (intRow < 0) {
+                return null;
+            }
+            Tuple t1 = intMap.row(intRow);
+            intRow = intMap.next(intRow);
+            return t1;
         }
-        return cnt > 0;
+        return listIt != null && listIt.hasNext() ? listIt.next() : null;
+    }
 
+    /** @return the number of tuples written to spill files since the join was opened */
+    public long getSpilledTuples() {
+        return spilledTuples;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
         super.open();
+        boolean intKeys = child1.getTupleDesc().getFieldType(pred.getField1()) == Type.INT_TYPE
+                && child2.getTupleDesc().getFieldType(pred.getField2()) == Type.INT_TYPE;
+        intMap = intKeys ? new IntTupleMultiMap() : null;
+
+        // 外侧能放进内存时只读一遍两侧，不写磁盘
+        int loaded = 0;
+        while (child1.hasNext() && loaded < memoryTuples) {
+            addToMap(child1.next());
+            loaded++;
+        }
+        if (!child1.hasNext()) {
+            probe = source(child2);
+            return;
+        }
+
+        // 否则两侧都按连接键哈希分区写到磁盘
+        Partition[] parts = newPartitions(0);
+        if (intMap != null) {
+            for (int i = 0; i < intMap.size(); i++) {
+                spill(parts, intMap.row(i), pred.getField1(), true);
+            }
+        } else {
+            for (List<Tuple> list : map.values()) {
+                for (Tuple t : list) {
+                    spill(parts, t, pred.getField1(), true);
+                }
+            }
+        }
+        clearMap();
+        while (child1.hasNext()) {
+            spill(parts, child1.next(), pred.getField1(), true);
+        }
+        while (child2.hasNext()) {
+            spill(parts, child2.next(), pred.getField2(), false);
+        }
+        pending.addAll(Arrays.asList(parts));
+    }
+
+    private void spill(Partition[] parts, Tuple t, int field, boolean build) throws DbException {
+        Partition part = parts[partitionOf(t.getField(field), parts[0].level)];
+        (build ? part.build : part.probe).add(t);
+        spilledTuples++;
     }
 
     public void close() {
         super.close();
         child2.close();
         child1.close();
-        this.t1=null;
-        this.t2=null;
-        this.listIt=null;
-        this.map.clear();
+        this.t2 = null;
+        this.probe = null;
+        clearMap();
+        this.intMap = null;
+        finishPartition();
+        for (Partition part : pending) {
+            part.delete();
+        }
+        pending.clear();
+        spilledTuples = 0;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        child1.rewind();
-        child2.rewind();
+        // 哈希表和迭代状态都要重建，否则作为内侧被重扫时会从上次的位置继续
+        close();
+        open();
     }
 
-    transient Iterator<Tuple> listIt = null;
+    private void finishPartition() {
+        closeProbeReader();
+        if (chunkBuild != null) {
+            chunkBuild.close();
+            chunkBuild = null;
+        }
+        if (current != null) {
+            current.delete();
+            current = null;
+        }
+    }
 
     /**
-     * Returns the next tuple generated by the join, or null if there are no
-     * more tuples. Logically, this is the next tuple in r1 cross r2 that
-     * satisfies the join predicate. There are many possible implementations;
-     * the simplest is a nested loops join.
-     * <p>
-     * Note that the tuples returned from this particular implementation of Join
-     * are simply the concatenation of joining tuples from the left and right
-     * relation. Therefore, there will be two copies of the join attribute in
-     * the results. (Removing such duplicate columns can be done with an
-     * additional projection operator if needed.)
-     * <p>
-     * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
-     * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
-     * 
-     * @return The next matching tuple.
-     * @see JoinPredicate#filter
+     * Load the hash table for the next pass over a probe partition.
+     *
+     * @return false if all partitions have been joined
      */
-    private Tuple processList() {
-        t1 = listIt.next();
+    private boolean nextPass() throws DbException {
+        clearMap();
+        if (chunkBuild != null && chunkBuild.hasNext()) {
+            loadChunk();
+            return true;
+        }
+        finishPartition();
+        while (!pending.isEmpty()) {
+            Partition part = pending.poll();
+            if (part.build.size() == 0 || part.probe.size() == 0) {
+                part.delete();
+                continue;
+            }
+            if (part.build.size() > memoryTuples && part.level < MAX_LEVEL) {
+                repartition(part);
+                continue;
+            }
+            // 分区能放进内存时一次读完；否则是大量相同的键，分块读入，每块重扫探测侧
+            current = part;
+            chunkBuild = part.build.reader();
+            loadChunk();
+            return true;
+        }
+        return false;
+    }
 
+    private void closeProbeReader() {
+        if (probeReader != null) {
+            probeReader.close();
+            probeReader = null;
+        }
+    }
+
+    private void loadChunk() throws DbException {
+        closeProbeReader();
+        int loaded = 0;
+        while (chunkBuild.hasNext() && loaded < memoryTuples) {
+            addToMap(chunkBuild.next());
+            loaded++;
+        }
+        probeReader = current.probe.reader();
+        probe = source(probeReader);
+    }
+
+    private void repartition(Partition part) throws DbException {
+        Partition[] parts = newPartitions(part.level + 1);
+        try (TupleSpillFile.Reader r = part.build.reader()) {
+            while (r.hasNext()) {
+                spill(parts, r.next(), pred.getField1(), true);
+            }
+        }
+        try (TupleSpillFile.Reader r = part.probe.reader()) {
+            while (r.hasNext()) {
+                spill(parts, r.next(), pred.getField2(), false);
+            }
+        }
+        part.delete();
+        for (int i = parts.length - 1; i >= 0; i--) {
+            pending.addFirst(parts[i]);
+        }
+    }
+
+    private Tuple merge(Tuple t1) {
         int td1n = t1.getTupleDesc().numFields();
         int td2n = t2.getTupleDesc().numFields();
 
@@ -131,33 +399,39 @@ public class HashEquiJoin extends Operator {
 
     }
 
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples: the concatenation of an outer tuple and an inner tuple
+     * with the same join key.
+     * <p>
+     * Note that the tuples returned from this particular implementation of Join
+     * are simply the concatenation of joining tuples from the left and right
+     * relation. Therefore, there will be two copies of the join attribute in
+     * the results. (Removing such duplicate columns can be done with an
+     * additional projection operator if needed.)
+     * <p>
+     * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
+     * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
+     * 
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
-        }
-
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
-
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            List<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
+        while (true) {
+            Tuple t1 = nextMatch();
+            if (t1 != null) {
+                return merge(t1);
+            }
+            if (probe != null && probe.hasNext()) {
+                t2 = probe.next();
+                probeMap(t2.getField(pred.getField2()));
                 continue;
-            listIt = l.iterator();
-
-            return processList();
-
+            }
+            probe = null;
+            if (!nextPass()) {
+                return null;
+            }
         }
-
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
-        }
-
-        return null;
     }
 
     @Override
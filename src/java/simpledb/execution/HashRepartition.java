@@ -0,0 +1,67 @@
+package simpledb.execution;
+
+import simpledb.storage.TupleDesc;
+
+/**
+ * HashRepartition runs copies of a producer plan on several threads and
+ * hashes the tuples they produce on key fields into one channel for each
+ * consumer, so that tuples with equal keys go to the same consumer. The
+ * consumers are the copies of an operator that needs its input partitioned,
+ * such as a {@link HashEquiJoin} of two repartitions on the join keys or an
+ * {@link Aggregate} of a repartition on the group by fields, each run on a
+ * thread of an enclosing {@link Gather}.
+ *
+ * @see Exchange
+ */
+public class HashRepartition extends Exchange {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int[] keys;
+
+    private HashRepartition(Channels channels, int channel, int[] keys) {
+        super(channels, channel);
+        this.keys = keys;
+    }
+
+    /**
+     * Creates the consumers of a repartition.
+     *
+     * @param producer
+     *            the plan to run on each producer thread
+     * @param copies
+     *            the number of producer threads
+     * @param keys
+     *            the fields of the producer's tuples to hash on
+     * @param consumers
+     *            the number of consumers
+     * @return the consumer of each partition
+     * @throws IllegalArgumentException if several copies of the producer
+     *             would not produce its result between them
+     */
+    public static HashRepartition[] create(OpIterator producer, int copies, int[] keys, int consumers) {
+        if (keys.length == 0) {
+            throw new IllegalArgumentException("need at least one key field");
+        }
+        Channels channels = new Channels(producer, copies, consumers, keys, false);
+        HashRepartition[] result = new HashRepartition[consumers];
+        for (int i = 0; i < consumers; i++) {
+            result[i] = new HashRepartition(channels, i, keys.clone());
+        }
+        return result;
+    }
+
+    /** @return the fields the tuples are hashed on */
+    public int[] getKeys() {
+        return keys.clone();
+    }
+
+    public String getName() {
+        TupleDesc td = getTupleDesc();
+        StringBuilder s = new StringBuilder("repartition(");
+        for (int key : keys) {
+            s.append(td.getFieldName(key)).append(',');
+        }
+        return s.append(getCopies()).append("->").append(getConsumers()).append(')').toString();
+    }
+}
@@ -0,0 +1,202 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.*;
+
+/**
+ * The IndexNestedLoopJoin operator evaluates an equi-join by looking up the
+ * join key of every outer tuple in an index on the inner relation, instead
+ * of scanning the inner relation.
+ * <p>
+ * The inner child is an index scan (such as a
+ * {@link simpledb.index.BTreeScan}), possibly below filters, whose
+ * {@link IndexPredicate} is an EQUALS predicate on the inner join field.
+ * For each probe the operator sets the value of that predicate and rewinds
+ * the inner child, which descends the index again. Outer tuples are read
+ * {@link #BATCH_SIZE} at a time and sorted by their join key, so each
+ * distinct key is probed once per batch and the probes visit the leaf pages
+ * of the index in order.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of outer tuples sorted and probed together */
+    public static final int BATCH_SIZE = 1024;
+
+    private final JoinPredicate pred;
+    private final IndexPredicate probe;
+    private OpIterator child1, child2;
+    private final TupleDesc comboTD;
+
+    // 当前这批外侧元组（按连接键排序），以及正在输出的一组相同键
+    private final List<Tuple> batch = new ArrayList<>();
+    transient private int groupEnd;
+    transient private int outerPos;
+    private final List<Tuple> matches = new ArrayList<>();
+    transient private int matchPos;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to join the children on; must be EQUALS
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation, reading the tuples
+     *            that satisfy probe
+     * @param probe
+     *            The EQUALS index predicate read by child2; its value is set
+     *            to each join key in turn
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1, OpIterator child2, IndexPredicate probe) {
+        if (p.getOperator() != Predicate.Op.EQUALS || probe.getOp() != Predicate.Op.EQUALS) {
+            throw new IllegalArgumentException("index nested-loop join requires an equality predicate");
+        }
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.probe = probe;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        super.open();
+        clearBatch();
+    }
+
+    public void close() {
+        super.close();
+        child2.close();
+        child1.close();
+        clearBatch();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    private void clearBatch() {
+        batch.clear();
+        matches.clear();
+        groupEnd = 0;
+        outerPos = 0;
+        matchPos = 0;
+    }
+
+    /**
+     * Read the next batch of outer tuples and sort it by join key.
+     *
+     * @return false if the outer relation is exhausted
+     */
+    private boolean readBatch() throws DbException, TransactionAbortedException {
+        clearBatch();
+        while (batch.size() < BATCH_SIZE && child1.hasNext()) {
+            batch.add(child1.next());
+        }
+        batch.sort(new TupleComparator(pred.getField1(), true));
+        return !batch.isEmpty();
+    }
+
+    /**
+     * Advance to the next group of outer tuples with the same join key and
+     * look the key up in the index.
+     */
+    private void probeNextGroup() throws DbException, TransactionAbortedException {
+        int field = pred.getField1();
+        outerPos = groupEnd;
+        Field key = batch.get(outerPos).getField(field);
+        groupEnd = outerPos + 1;
+        while (groupEnd < batch.size() && batch.get(groupEnd).getField(field).equals(key)) {
+            groupEnd++;
+        }
+
+        // 重新从根结点查找该键，内侧的过滤条件仍然生效
+        matches.clear();
+        matchPos = 0;
+        probe.setField(key);
+        child2.rewind();
+        while (child2.hasNext()) {
+            Tuple t2 = child2.next();
+            if (pred.filter(batch.get(outerPos), t2)) {
+                matches.add(t2);
+            }
+        }
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples: the concatenation of an outer tuple and an inner tuple
+     * with the same join key. Within a batch, the output is ordered by the
+     * join key.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (outerPos < groupEnd && matchPos < matches.size()) {
+                Tuple t1 = batch.get(outerPos);
+                Tuple t2 = matches.get(matchPos++);
+                if (matchPos == matches.size()) {
+                    outerPos++;
+                    matchPos = 0;
+                }
+                return merge(t1, t2);
+            }
+            if (groupEnd < batch.size()) {
+                probeNextGroup();
+            } else if (!readBatch()) {
+                return null;
+            }
+        }
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+
+}
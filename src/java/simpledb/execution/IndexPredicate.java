@@ -13,7 +13,7 @@ public class IndexPredicate implements Serializable {
     private static final long serialVersionUID = 1L;
 	
     private final Predicate.Op op;
-    private final Field fieldvalue;
+    private Field fieldvalue;
 
     /**
      * Constructor.
@@ -33,6 +33,15 @@ public class IndexPredicate implements Serializable {
         return fieldvalue;
     }
 
+    /**
+     * Change the value the predicate compares against; used to bind the
+     * parameters of a prepared statement. Takes effect the next time an
+     * index iterator using the predicate is opened.
+     */
+    public void setField(Field fvalue) {
+        this.fieldvalue = fvalue;
+    }
+
     public Predicate.Op getOp() {
         return op;
     }
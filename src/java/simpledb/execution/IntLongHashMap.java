@@ -0,0 +1,146 @@
+package simpledb.execution;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash table from int keys to a fixed number of long
+ * values, used to accumulate aggregates on {@link simpledb.common.Type#INT_TYPE}
+ * group keys without boxing. Keys are placed by linear probing in arrays
+ * whose capacity is a power of two, and the values of a key are stored in
+ * consecutive entries of one long array.
+ * <p>
+ * Entries are addressed by slot: {@link #find} or {@link #insert} a key to
+ * get its slot, then read and update its values with {@link #get} and
+ * {@link #set}. Slots change when the table grows, so they are only valid
+ * until the next insert.
+ */
+public class IntLongHashMap {
+
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private final int width;
+    private int[] keys;
+    private boolean[] used;
+    private long[] values;
+    private int mask;
+    private int size;
+
+    /**
+     * @param width the number of long values stored with each key
+     */
+    public IntLongHashMap(int width) {
+        this(width, 16);
+    }
+
+    /**
+     * @param width the number of long values stored with each key
+     * @param expectedKeys the number of keys to size the table for
+     */
+    public IntLongHashMap(int width, int expectedKeys) {
+        if (width < 1) {
+            throw new IllegalArgumentException("width must be positive");
+        }
+        this.width = width;
+        allocate(tableSizeFor(expectedKeys));
+    }
+
+    private static int tableSizeFor(int keys) {
+        int capacity = 16;
+        while (capacity * LOAD_FACTOR < keys) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        used = new boolean[capacity];
+        values = new long[capacity * width];
+        mask = capacity - 1;
+    }
+
+    static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /** @return the slot of key, or -1 if it is not in the table */
+    public int find(int key) {
+        for (int slot = hash(key) & mask; used[slot]; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Add a key that is not in the table, with all its values 0.
+     *
+     * @return the slot of the key
+     */
+    public int insert(int key) {
+        if (size + 1 > keys.length * LOAD_FACTOR) {
+            grow();
+        }
+        int slot = hash(key) & mask;
+        while (used[slot]) {
+            slot = (slot + 1) & mask;
+        }
+        used[slot] = true;
+        keys[slot] = key;
+        size++;
+        return slot;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        boolean[] oldUsed = used;
+        long[] oldValues = values;
+        allocate(oldKeys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (used[slot]) {
+                    slot = (slot + 1) & mask;
+                }
+                used[slot] = true;
+                keys[slot] = oldKeys[i];
+                System.arraycopy(oldValues, i * width, values, slot * width, width);
+            }
+        }
+    }
+
+    public long get(int slot, int i) {
+        return values[slot * width + i];
+    }
+
+    public void set(int slot, int i, long value) {
+        values[slot * width + i] = value;
+    }
+
+    /** @return the number of keys in the table */
+    public int size() {
+        return size;
+    }
+
+    /** @return the number of slots; slots from 0 to capacity() - 1 may be iterated with {@link #isUsed} */
+    public int capacity() {
+        return keys.length;
+    }
+
+    public boolean isUsed(int slot) {
+        return used[slot];
+    }
+
+    public int key(int slot) {
+        return keys[slot];
+    }
+
+    /** Remove all keys, keeping the allocated arrays */
+    public void clear() {
+        Arrays.fill(used, false);
+        Arrays.fill(values, 0);
+        size = 0;
+    }
+}
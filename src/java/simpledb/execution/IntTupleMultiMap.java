@@ -0,0 +1,154 @@
+package simpledb.execution;
+
+import simpledb.storage.Tuple;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash table from int keys to the tuples with that key,
+ * used as the build side of a hash join on
+ * {@link simpledb.common.Type#INT_TYPE} fields without boxing the keys or
+ * allocating a list per key.
+ * <p>
+ * The table maps each key, by linear probing, to the number of a tuple
+ * with that key, and an array links every tuple to the next one with the
+ * same key. Probe with {@link #first} and follow the chain with
+ * {@link #next}. Tuples are chained as they are added; the first probe
+ * after adding tuples renumbers them so that the tuples of each key are
+ * consecutive, in the order they were added, and probes read memory
+ * sequentially.
+ */
+public class IntTupleMultiMap {
+
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private int[] keys;
+    // 每个槽位上的键的第一个元组编号，-1表示空槽
+    private int[] heads;
+    private int mask;
+    private int numKeys;
+
+    private Tuple[] rows = new Tuple[16];
+    // 同一个键的下一个元组编号，-1表示没有
+    private int[] next = new int[16];
+    private int numRows;
+    // 是否已按键重排，使同一个键的元组相邻
+    private boolean grouped = true;
+
+    public IntTupleMultiMap() {
+        allocate(16);
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        heads = new int[capacity];
+        Arrays.fill(heads, -1);
+        mask = capacity - 1;
+    }
+
+    /** Add a tuple with the given key */
+    public void put(int key, Tuple t) {
+        if (numRows == rows.length) {
+            rows = Arrays.copyOf(rows, numRows * 2);
+            next = Arrays.copyOf(next, numRows * 2);
+        }
+        int slot = IntLongHashMap.hash(key) & mask;
+        while (heads[slot] != -1 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        if (heads[slot] == -1) {
+            keys[slot] = key;
+            numKeys++;
+        }
+        rows[numRows] = t;
+        next[numRows] = heads[slot];
+        heads[slot] = numRows++;
+        grouped = false;
+        if (numKeys > keys.length * LOAD_FACTOR) {
+            grow();
+        }
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldHeads = heads;
+        allocate(oldKeys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldHeads[i] != -1) {
+                int slot = IntLongHashMap.hash(oldKeys[i]) & mask;
+                while (heads[slot] != -1) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                heads[slot] = oldHeads[i];
+            }
+        }
+    }
+
+    /**
+     * Renumber the tuples so that those of each key are consecutive. The
+     * chains run from the last tuple added to the first; reversing them
+     * restores the order the tuples were added in.
+     */
+    private void group() {
+        Tuple[] newRows = new Tuple[rows.length];
+        int[] newNext = new int[next.length];
+        int pos = 0;
+        for (int slot = 0; slot < heads.length; slot++) {
+            if (heads[slot] == -1) {
+                continue;
+            }
+            int end = pos;
+            for (int row = heads[slot]; row >= 0; row = next[row]) {
+                end++;
+            }
+            int i = end - 1;
+            for (int row = heads[slot]; row >= 0; row = next[row]) {
+                newRows[i] = rows[row];
+                newNext[i] = i + 1 < end ? i + 1 : -1;
+                i--;
+            }
+            heads[slot] = pos;
+            pos = end;
+        }
+        rows = newRows;
+        next = newNext;
+        grouped = true;
+    }
+
+    /** @return the number of a tuple with the key, or -1 if there is none */
+    public int first(int key) {
+        if (!grouped) {
+            group();
+        }
+        for (int slot = IntLongHashMap.hash(key) & mask; heads[slot] != -1; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return heads[slot];
+            }
+        }
+        return -1;
+    }
+
+    /** @return the number of the next tuple with the same key as tuple row, or -1 */
+    public int next(int row) {
+        return next[row];
+    }
+
+    public Tuple row(int row) {
+        return rows[row];
+    }
+
+    /** @return the number of tuples in the table */
+    public int size() {
+        return numRows;
+    }
+
+    /** Remove all tuples, keeping the allocated arrays */
+    public void clear() {
+        Arrays.fill(heads, -1);
+        Arrays.fill(rows, 0, numRows, null);
+        numKeys = 0;
+        numRows = 0;
+        grouped = true;
+    }
+}
@@ -7,6 +7,16 @@ import java.util.*;
 
 /**
  * Knows how to compute some aggregate over a set of IntFields.
+ * <p>
+ * When the group-by field is an {@link Type#INT_TYPE} (or there is no
+ * grouping), the aggregates are accumulated in an {@link IntLongHashMap}
+ * without boxing the keys or values.
+ * <p>
+ * SUM_COUNT returns the sum and the count of each group as two fields;
+ * SC_AVG takes such tuples, with the sum in the aggregate field and the
+ * count in the field after it, and returns the average of the combined
+ * sums and counts. Sums are ints, as for SUM, so an average computed this
+ * way is only exact while the sum of the group fits in an int.
  */
 public class IntegerAggregator implements Aggregator {
 
@@ -23,6 +33,8 @@ public class IntegerAggregator implements Aggregator {
     private final Op what;
     // aggregator according to operator
     private AbstractIntegerAggregator aggregator;
+    // 分组字段是整数或不分组时代替aggregator；AVG存和与计数，其余只存一个值
+    private final IntLongHashMap intGroups;
 
     /**
      * Aggregate constructor
@@ -46,6 +58,13 @@ public class IntegerAggregator implements Aggregator {
         this.aFieldIndex = aFieldIndex;
         this.what = what;
         getAggregator();
+        this.intGroups = gbFieldIndex == NO_GROUPING || gbFieldType == Type.INT_TYPE
+                ? new IntLongHashMap(isSumCount() ? 2 : 1) : null;
+    }
+
+    // AVG、SUM_COUNT与SC_AVG都要存和与计数
+    private boolean isSumCount() {
+        return what == Op.AVG || what == Op.SUM_COUNT || what == Op.SC_AVG;
     }
 
     private void getAggregator() {
@@ -57,6 +76,8 @@ public class IntegerAggregator implements Aggregator {
                 this.aggregator = new IntegerSumAggregator();
                 break;
             case AVG:
+            case SUM_COUNT:
+            case SC_AVG:
                 this.aggregator = new IntegerAvgAggregator();
                 break;
             case MIN:
@@ -79,6 +100,10 @@ public class IntegerAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
+        if (this.intGroups != null) {
+            mergeIntoIntGroup(tup);
+            return;
+        }
         Field gbField;
         if (this.gbFieldIndex == NO_GROUPING) {
             gbField = DEFAULT_FIELD;
@@ -86,7 +111,68 @@ public class IntegerAggregator implements Aggregator {
             gbField = tup.getField(this.gbFieldIndex);
         }
         IntField aField = (IntField) tup.getField(aFieldIndex);
-        this.aggregator.apply(gbField, aField.getValue());
+        if (what == Op.SC_AVG) {
+            int count = ((IntField) tup.getField(aFieldIndex + 1)).getValue();
+            ((IntegerAvgAggregator) this.aggregator).apply(gbField, aField.getValue(), count);
+        } else {
+            this.aggregator.apply(gbField, aField.getValue());
+        }
+    }
+
+    private void mergeIntoIntGroup(Tuple tup) {
+        int group = this.gbFieldIndex == NO_GROUPING ? 0 : ((IntField) tup.getField(this.gbFieldIndex)).getValue();
+        int value = ((IntField) tup.getField(aFieldIndex)).getValue();
+        int slot = intGroups.find(group);
+        if (slot < 0) {
+            slot = intGroups.insert(group);
+            if (what == Op.MIN) {
+                intGroups.set(slot, 0, Integer.MAX_VALUE);
+            } else if (what == Op.MAX) {
+                intGroups.set(slot, 0, Integer.MIN_VALUE);
+            }
+        }
+        switch (what) {
+            case COUNT:
+                intGroups.set(slot, 0, intGroups.get(slot, 0) + 1);
+                break;
+            case SUM:
+                intGroups.set(slot, 0, intGroups.get(slot, 0) + value);
+                break;
+            case AVG:
+            case SUM_COUNT:
+                intGroups.set(slot, 0, intGroups.get(slot, 0) + value);
+                intGroups.set(slot, 1, intGroups.get(slot, 1) + 1);
+                break;
+            case SC_AVG:
+                intGroups.set(slot, 0, intGroups.get(slot, 0) + value);
+                intGroups.set(slot, 1, intGroups.get(slot, 1)
+                        + ((IntField) tup.getField(aFieldIndex + 1)).getValue());
+                break;
+            case MIN:
+                intGroups.set(slot, 0, Math.min(intGroups.get(slot, 0), value));
+                break;
+            case MAX:
+                intGroups.set(slot, 0, Math.max(intGroups.get(slot, 0), value));
+                break;
+            default:
+                throw new UnsupportedOperationException();
+        }
+    }
+
+    /** @return the aggregate value of the group in slot of intGroups */
+    private int intGroupResult(int slot) {
+        if (what == Op.AVG) {
+            return (int) (intGroups.get(slot, 0) / intGroups.get(slot, 1));
+        }
+        if (what == Op.SC_AVG) {
+            // 部分和是int，溢出时只有回绕后的和是对的
+            return (int) ((int) intGroups.get(slot, 0) / intGroups.get(slot, 1));
+        }
+        return (int) intGroups.get(slot, 0);
+    }
+
+    public int numGroups() {
+        return intGroups != null ? intGroups.size() : aggregator.size();
     }
 
     /**
@@ -99,6 +185,12 @@ public class IntegerAggregator implements Aggregator {
      */
     public OpIterator iterator() {
         // some code goes here
+        if (this.intGroups != null) {
+            return intGroupsIterator(what == Op.SUM_COUNT);
+        }
+        if (what == Op.SUM_COUNT) {
+            return sumCountIterator();
+        }
         Map<Field, Integer> result = this.aggregator.result();
         List<Tuple> tuples = new ArrayList<>();
         TupleDesc td;
@@ -121,6 +213,73 @@ public class IntegerAggregator implements Aggregator {
         return new TupleIterator(td, tuples);
     }
 
+    /**
+     * For AVG and SC_AVG, return the tuples (groupVal, sum, count) that
+     * SUM_COUNT would return, so that they can be combined with SC_AVG;
+     * otherwise the same tuples as {@link #iterator()}.
+     */
+    @Override
+    public OpIterator partialIterator() {
+        if (what != Op.AVG && what != Op.SC_AVG) {
+            return iterator();
+        }
+        return this.intGroups != null ? intGroupsIterator(true) : sumCountIterator();
+    }
+
+    /** @return the type of the result tuples: the group, then one or (for sum and count) two ints */
+    private TupleDesc resultDesc(boolean sumCount) {
+        List<Type> types = new ArrayList<>();
+        if (this.gbFieldIndex != NO_GROUPING) {
+            types.add(gbFieldType);
+        }
+        types.add(Type.INT_TYPE);
+        if (sumCount) {
+            types.add(Type.INT_TYPE);
+        }
+        return new TupleDesc(types.toArray(new Type[0]));
+    }
+
+    private OpIterator intGroupsIterator(boolean sumCount) {
+        boolean grouping = this.gbFieldIndex != NO_GROUPING;
+        TupleDesc td = resultDesc(sumCount);
+        List<Tuple> tuples = new ArrayList<>(intGroups.size());
+        for (int slot = 0; slot < intGroups.capacity(); slot++) {
+            if (!intGroups.isUsed(slot)) {
+                continue;
+            }
+            Tuple tuple = new Tuple(td);
+            int i = 0;
+            if (grouping) {
+                tuple.setField(i++, new IntField(intGroups.key(slot)));
+            }
+            if (sumCount) {
+                tuple.setField(i++, new IntField((int) intGroups.get(slot, 0)));
+                tuple.setField(i, new IntField((int) intGroups.get(slot, 1)));
+            } else {
+                tuple.setField(i, new IntField(intGroupResult(slot)));
+            }
+            tuples.add(tuple);
+        }
+        return new TupleIterator(td, tuples);
+    }
+
+    private OpIterator sumCountIterator() {
+        IntegerAvgAggregator avg = (IntegerAvgAggregator) this.aggregator;
+        TupleDesc td = resultDesc(true);
+        List<Tuple> tuples = new ArrayList<>();
+        avg.sums().forEach((k, sum) -> {
+            Tuple tuple = new Tuple(td);
+            int i = 0;
+            if (this.gbFieldIndex != NO_GROUPING) {
+                tuple.setField(i++, k);
+            }
+            tuple.setField(i++, new IntField(sum));
+            tuple.setField(i, new IntField(avg.counts().get(k)));
+            tuples.add(tuple);
+        });
+        return new TupleIterator(td, tuples);
+    }
+
 }
 
 abstract class AbstractIntegerAggregator {
@@ -132,6 +291,10 @@ abstract class AbstractIntegerAggregator {
     public Map<Field, Integer> result() {
         return groups;
     }
+
+    public int size() {
+        return groups.size();
+    }
 }
 
 class IntegerCountAggregator extends AbstractIntegerAggregator {
@@ -162,12 +325,30 @@ class IntegerSumAggregator extends AbstractIntegerAggregator {
 
 class IntegerAvgAggregator extends AbstractIntegerAggregator {
     private final IntegerSumAggregator sumAggregator = new IntegerSumAggregator();
-    private final IntegerCountAggregator countAggregator = new IntegerCountAggregator();
+    private final IntegerSumAggregator countAggregator = new IntegerSumAggregator();
 
     @Override
     public void apply(Field group, Integer value) {
-        sumAggregator.apply(group, value);
-        countAggregator.apply(group, value);
+        apply(group, value, 1);
+    }
+
+    // SC_AVG：合并另一个聚合器算出的和与计数
+    public void apply(Field group, Integer sum, Integer count) {
+        sumAggregator.apply(group, sum);
+        countAggregator.apply(group, count);
+    }
+
+    public Map<Field, Integer> sums() {
+        return sumAggregator.result();
+    }
+
+    public Map<Field, Integer> counts() {
+        return countAggregator.result();
+    }
+
+    @Override
+    public int size() {
+        return sumAggregator.size();
     }
 
     @Override
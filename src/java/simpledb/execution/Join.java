@@ -1,6 +1,6 @@
 package simpledb.execution;
 
-import simpledb.storage.TupleIterator;
+import simpledb.storage.BufferPool;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
 import simpledb.storage.Tuple;
@@ -10,6 +10,13 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * It is a block nested-loops join that produces its result incrementally:
+ * the outer child is read one block of {@link #blockSize} tuples (a page's
+ * worth) at a time, and the inner child is scanned once per block,
+ * comparing each inner tuple with every tuple of the block. The inner child
+ * is therefore rescanned about |outer| / blockSize times, and only one block
+ * is held in memory.
  */
 public class Join extends Operator {
 
@@ -19,7 +26,12 @@ public class Join extends Operator {
     private OpIterator child1;
     private OpIterator child2;
     private TupleDesc td;
-    private TupleIterator iterator;
+
+    // 当前块中的外侧元组，以及正在与之比较的内侧元组
+    private final List<Tuple> block = new ArrayList<>();
+    private transient Tuple innerTuple;
+    private transient int blockPos;
+    private transient boolean innerFresh;
 
     /**
      * Constructor. Accepts two children to join and the predicate to join them
@@ -76,40 +88,31 @@ public class Join extends Operator {
         return this.td;
     }
 
+    /**
+     * @return the number of outer tuples of the given type that fill a page,
+     *         the size of the blocks the join reads from its outer child
+     */
+    public static int blockSize(TupleDesc outer) {
+        return Math.max(1, BufferPool.getPageSize() / outer.getSize());
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
         this.child1.open();
         this.child2.open();
         super.open();
-
-        // nested loops join
-        List<Tuple> tuples = new ArrayList<>();
-        try {
-            child1.rewind();
-            while (child1.hasNext()) {
-                Tuple leftTuple = child1.next();
-                child2.rewind();
-                while (child2.hasNext()) {
-                    Tuple rightTuple = child2.next();
-                    if (this.p.filter(leftTuple, rightTuple)) {
-                        tuples.add(Tuple.merge(this.td, leftTuple, rightTuple));
-                    }
-                }
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-            System.out.println("Error happen when nested loop join");
-        }
-        this.iterator = new TupleIterator(this.td, tuples);
-        this.iterator.open();
+        this.block.clear();
+        this.innerTuple = null;
+        this.innerFresh = true;
     }
 
     public void close() {
         // some code goes here
         this.child1.close();
         this.child2.close();
-        this.iterator.close();
+        this.block.clear();
+        this.innerTuple = null;
         super.close();
     }
 
@@ -119,6 +122,29 @@ public class Join extends Operator {
         open();
     }
 
+    /**
+     * Read the next block of outer tuples, and rewind the inner child to
+     * compare them with.
+     *
+     * @return false if the outer child is exhausted
+     */
+    private boolean readBlock() throws DbException, TransactionAbortedException {
+        this.block.clear();
+        int size = blockSize(this.child1.getTupleDesc());
+        while (this.block.size() < size && this.child1.hasNext()) {
+            this.block.add(this.child1.next());
+        }
+        if (this.block.isEmpty()) {
+            return false;
+        }
+        // 刚打开的内侧不必重扫
+        if (!this.innerFresh) {
+            this.child2.rewind();
+        }
+        this.innerFresh = false;
+        return true;
+    }
+
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
@@ -133,16 +159,31 @@ public class Join extends Operator {
      * <p>
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
+     * <p>
+     * Within a block, the results are ordered by the inner tuple.
      * 
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        if (this.iterator.hasNext()) {
-            return this.iterator.next();
+        while (true) {
+            if (this.innerTuple != null) {
+                while (this.blockPos < this.block.size()) {
+                    Tuple outerTuple = this.block.get(this.blockPos++);
+                    if (this.p.filter(outerTuple, this.innerTuple)) {
+                        return Tuple.merge(this.td, outerTuple, this.innerTuple);
+                    }
+                }
+                this.innerTuple = null;
+            }
+            if (!this.block.isEmpty() && this.child2.hasNext()) {
+                this.innerTuple = this.child2.next();
+                this.blockPos = 0;
+            } else if (!readBlock()) {
+                return null;
+            }
         }
-        return null;
     }
 
     @Override
@@ -154,8 +195,8 @@ public class Join extends Operator {
     @Override
     public void setChildren(OpIterator[] children) {
         // some code goes here
-        children[0] = this.child1;
-        children[1] = this.child2;
+        this.child1 = children[0];
+        this.child2 = children[1];
     }
 
 }
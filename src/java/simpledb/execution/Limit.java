@@ -0,0 +1,87 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Limit is an operator that implements a relational LIMIT: it returns the
+ * first n tuples of its child. Tuples are pulled from the child one at a
+ * time, so the child (such as a scan) is not read beyond the n-th tuple.
+ */
+public class Limit extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private OpIterator child;
+    private final int limit;
+    private int returned;
+
+    /**
+     * Constructor.
+     *
+     * @param limit
+     *            The largest number of tuples to return
+     * @param child
+     *            The child operator
+     */
+    public Limit(int limit, OpIterator child) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative");
+        }
+        this.limit = limit;
+        this.child = child;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        returned = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        super.close();
+        child.rewind();
+        returned = 0;
+        super.open();
+    }
+
+    /**
+     * Returns the next tuple of the child, or null once limit tuples have
+     * been returned or the child has no more tuples.
+     */
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (returned >= limit || !child.hasNext()) {
+            return null;
+        }
+        returned++;
+        return child.next();
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
@@ -0,0 +1,145 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.Serializable;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * MorselScan reads the tuples of a HeapFile one range of pages (a
+ * "morsel") at a time, taking the next range from {@link Morsels} shared
+ * with the other scans of the same file whenever it has read the previous
+ * one. Several MorselScans on different threads thus read every page of
+ * the file exactly once between them, a thread that is done with its
+ * morsel early simply taking more of them.
+ * <p>
+ * The scan has the tuple descriptor of the {@link SeqScan} it is created
+ * from and reads the pages as its transaction.
+ */
+public class MorselScan implements OpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of pages of a morsel */
+    public static final int MORSEL_PAGES = 16;
+
+    /**
+     * Hands out consecutive ranges of {@link #MORSEL_PAGES} pages of a file,
+     * each range to one caller.
+     *
+     * @Threadsafe
+     */
+    public static class Morsels implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final int pages;
+        private final AtomicInteger next = new AtomicInteger();
+        private volatile boolean cancelled;
+
+        /** @param pages the number of pages of the file */
+        public Morsels(int pages) {
+            this.pages = pages;
+        }
+
+        /**
+         * @return the first page of the next morsel, or -1 if every page has
+         *         been handed out or the scan was cancelled
+         */
+        public int claim() {
+            if (cancelled) {
+                return -1;
+            }
+            int start = next.getAndAdd(MORSEL_PAGES);
+            return start < pages ? start : -1;
+        }
+
+        /** Hand out no more morsels, so that the scans end after their current one */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /** @return the page after the last page of the morsel starting at start */
+        public int end(int start) {
+            return Math.min(start + MORSEL_PAGES, pages);
+        }
+    }
+
+    private final SeqScan scan;
+    private final Morsels morsels;
+    private DbFileIterator iterator;
+    private boolean open;
+
+    /**
+     * Constructor.
+     *
+     * @param scan
+     *            the scan of the HeapFile whose table, alias and transaction
+     *            this scan uses
+     * @param morsels
+     *            the morsels of the file, shared with the other scans
+     */
+    public MorselScan(SeqScan scan, Morsels morsels) {
+        this.scan = scan;
+        this.morsels = morsels;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        open = true;
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        if (!open) {
+            throw new IllegalStateException("Operator not yet open");
+        }
+        while (iterator == null || !iterator.hasNext()) {
+            if (iterator != null) {
+                iterator.close();
+                iterator = null;
+            }
+            // 取下一个morsel，没有了就结束
+            int start = morsels.claim();
+            if (start < 0) {
+                return false;
+            }
+            HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(scan.getTableId());
+            iterator = file.iterator(scan.getTransactionId(), start, morsels.end(start));
+            iterator.open();
+        }
+        return true;
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return iterator.next();
+    }
+
+    /**
+     * Morsels are handed out once, so a morsel scan cannot be read again.
+     *
+     * @throws DbException always
+     */
+    public void rewind() throws DbException {
+        throw new DbException("a morsel scan cannot be rewound");
+    }
+
+    public TupleDesc getTupleDesc() {
+        return scan.getTupleDesc();
+    }
+
+    public void close() {
+        if (iterator != null) {
+            iterator.close();
+            iterator = null;
+        }
+        open = false;
+    }
+}
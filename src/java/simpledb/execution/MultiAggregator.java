@@ -0,0 +1,269 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleIterator;
+
+import java.util.*;
+
+/**
+ * Computes several aggregates over groups of any number of fields in one
+ * pass, with one hash table. Each group has one row of long values holding
+ * the state of every aggregate: the sum and the count for AVG, SUM_COUNT
+ * and SC_AVG, and one value for the other operators.
+ * <p>
+ * When there is no grouping or a single {@link Type#INT_TYPE} group field,
+ * the rows are kept in an {@link IntLongHashMap} without boxing the keys;
+ * other group keys are lists of their fields in a {@link HashMap}.
+ * <p>
+ * Aggregate fields of type INT_TYPE support every operator; other fields
+ * only COUNT. As in {@link IntegerAggregator}, SC_AVG takes the sum from
+ * its aggregate field and the count from the field after it.
+ */
+public class MultiAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int[] gbFieldIndexes;
+    private final Type[] gbFieldTypes;
+    private final int[] aFieldIndexes;
+    private final Op[] ops;
+    // 每个聚合在一行中的起始位置，以及一行的长度
+    private final int[] offsets;
+    private final int width;
+
+    // 不分组或按一个整数字段分组时使用
+    private final IntLongHashMap intGroups;
+    // 其余情况：分组键到行号，以及按行号存放的键与聚合状态
+    private final Map<List<Field>, Integer> rowOf;
+    private final List<List<Field>> keys;
+    private long[] rows;
+
+    /**
+     * Aggregate constructor
+     *
+     * @param td
+     *            the type of the tuples to aggregate
+     * @param gbFieldIndexes
+     *            the 0-based indexes of the group-by fields in the tuple;
+     *            empty if there is no grouping
+     * @param aFieldIndexes
+     *            the 0-based index of the field of each aggregate
+     * @param ops
+     *            the aggregation operator of each aggregate
+     * @throws IllegalArgumentException if an aggregate other than COUNT is
+     *             over a field that is not an INT_TYPE
+     */
+    public MultiAggregator(TupleDesc td, int[] gbFieldIndexes, int[] aFieldIndexes, Op[] ops) {
+        if (aFieldIndexes.length != ops.length || ops.length == 0) {
+            throw new IllegalArgumentException("need one operator for each of at least one aggregate field");
+        }
+        this.gbFieldIndexes = gbFieldIndexes.clone();
+        this.gbFieldTypes = new Type[gbFieldIndexes.length];
+        for (int i = 0; i < gbFieldIndexes.length; i++) {
+            gbFieldTypes[i] = td.getFieldType(gbFieldIndexes[i]);
+        }
+        this.aFieldIndexes = aFieldIndexes.clone();
+        this.ops = ops.clone();
+        this.offsets = new int[ops.length];
+        int w = 0;
+        for (int i = 0; i < ops.length; i++) {
+            if (ops[i] != Op.COUNT && td.getFieldType(aFieldIndexes[i]) != Type.INT_TYPE) {
+                throw new IllegalArgumentException("only supports COUNT over " + td.getFieldType(aFieldIndexes[i]));
+            }
+            offsets[i] = w;
+            w += isSumCount(ops[i]) ? 2 : 1;
+        }
+        this.width = w;
+        if (gbFieldIndexes.length == 0
+                || (gbFieldIndexes.length == 1 && gbFieldTypes[0] == Type.INT_TYPE)) {
+            this.intGroups = new IntLongHashMap(width);
+            this.rowOf = null;
+            this.keys = null;
+        } else {
+            this.intGroups = null;
+            this.rowOf = new HashMap<>();
+            this.keys = new ArrayList<>();
+            this.rows = new long[16 * width];
+        }
+    }
+
+    private static boolean isSumCount(Op op) {
+        return op == Op.AVG || op == Op.SUM_COUNT || op == Op.SC_AVG;
+    }
+
+    private static boolean isAverage(Op op) {
+        return op == Op.AVG || op == Op.SC_AVG;
+    }
+
+    private long get(int row, int i) {
+        return intGroups != null ? intGroups.get(row, i) : rows[row * width + i];
+    }
+
+    private void set(int row, int i, long value) {
+        if (intGroups != null) {
+            intGroups.set(row, i, value);
+        } else {
+            rows[row * width + i] = value;
+        }
+    }
+
+    /** @return the row of the group of tup, adding the group if it is new */
+    private int rowOf(Tuple tup) {
+        if (intGroups != null) {
+            int group = gbFieldIndexes.length == 0 ? 0 : ((IntField) tup.getField(gbFieldIndexes[0])).getValue();
+            int slot = intGroups.find(group);
+            if (slot < 0) {
+                slot = intGroups.insert(group);
+                initRow(slot);
+            }
+            return slot;
+        }
+        Field[] key = new Field[gbFieldIndexes.length];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = tup.getField(gbFieldIndexes[i]);
+        }
+        List<Field> group = Arrays.asList(key);
+        Integer row = rowOf.get(group);
+        if (row == null) {
+            row = keys.size();
+            rowOf.put(group, row);
+            keys.add(group);
+            if ((row + 1) * width > rows.length) {
+                rows = Arrays.copyOf(rows, rows.length * 2);
+            }
+            initRow(row);
+        }
+        return row;
+    }
+
+    private void initRow(int row) {
+        for (int i = 0; i < ops.length; i++) {
+            if (ops[i] == Op.MIN) {
+                set(row, offsets[i], Integer.MAX_VALUE);
+            } else if (ops[i] == Op.MAX) {
+                set(row, offsets[i], Integer.MIN_VALUE);
+            }
+        }
+    }
+
+    /**
+     * Merge a new tuple into every aggregate of its group, adding the group
+     * if it has not yet been encountered
+     *
+     * @param tup
+     *            the Tuple containing the aggregate fields and the group-by
+     *            fields
+     */
+    public void mergeTupleIntoGroup(Tuple tup) {
+        int row = rowOf(tup);
+        for (int i = 0; i < ops.length; i++) {
+            int o = offsets[i];
+            if (ops[i] == Op.COUNT) {
+                set(row, o, get(row, o) + 1);
+                continue;
+            }
+            int value = ((IntField) tup.getField(aFieldIndexes[i])).getValue();
+            switch (ops[i]) {
+                case SUM:
+                    set(row, o, get(row, o) + value);
+                    break;
+                case AVG:
+                case SUM_COUNT:
+                    set(row, o, get(row, o) + value);
+                    set(row, o + 1, get(row, o + 1) + 1);
+                    break;
+                case SC_AVG:
+                    set(row, o, get(row, o) + value);
+                    set(row, o + 1, get(row, o + 1)
+                            + ((IntField) tup.getField(aFieldIndexes[i] + 1)).getValue());
+                    break;
+                case MIN:
+                    set(row, o, Math.min(get(row, o), value));
+                    break;
+                case MAX:
+                    set(row, o, Math.max(get(row, o), value));
+                    break;
+                default:
+                    throw new UnsupportedOperationException();
+            }
+        }
+    }
+
+    public int numGroups() {
+        return intGroups != null ? intGroups.size() : keys.size();
+    }
+
+    /**
+     * Create a OpIterator over group aggregate results.
+     *
+     * @return a OpIterator whose tuples are the group-by fields followed by
+     *         the value of each aggregate (two values, sum and count, for
+     *         SUM_COUNT)
+     */
+    public OpIterator iterator() {
+        return iterator(false);
+    }
+
+    /** Like {@link #iterator()}, but with each AVG and SC_AVG as the sum and count of SUM_COUNT */
+    @Override
+    public OpIterator partialIterator() {
+        return iterator(true);
+    }
+
+    private OpIterator iterator(boolean partial) {
+        List<Type> types = new ArrayList<>(Arrays.asList(gbFieldTypes));
+        for (Op op : ops) {
+            types.add(Type.INT_TYPE);
+            if (op == Op.SUM_COUNT || (partial && isAverage(op))) {
+                types.add(Type.INT_TYPE);
+            }
+        }
+        TupleDesc td = new TupleDesc(types.toArray(new Type[0]));
+        List<Tuple> tuples = new ArrayList<>(numGroups());
+        if (intGroups != null) {
+            for (int slot = 0; slot < intGroups.capacity(); slot++) {
+                if (intGroups.isUsed(slot)) {
+                    Tuple tuple = new Tuple(td);
+                    if (gbFieldIndexes.length == 1) {
+                        tuple.setField(0, new IntField(intGroups.key(slot)));
+                    }
+                    setResults(tuple, slot, partial);
+                    tuples.add(tuple);
+                }
+            }
+        } else {
+            for (int row = 0; row < keys.size(); row++) {
+                Tuple tuple = new Tuple(td);
+                List<Field> key = keys.get(row);
+                for (int i = 0; i < key.size(); i++) {
+                    tuple.setField(i, key.get(i));
+                }
+                setResults(tuple, row, partial);
+                tuples.add(tuple);
+            }
+        }
+        return new TupleIterator(td, tuples);
+    }
+
+    private void setResults(Tuple tuple, int row, boolean partial) {
+        int f = gbFieldIndexes.length;
+        for (int i = 0; i < ops.length; i++) {
+            int o = offsets[i];
+            if (ops[i] == Op.SUM_COUNT || (partial && isAverage(ops[i]))) {
+                tuple.setField(f++, new IntField((int) get(row, o)));
+                tuple.setField(f++, new IntField((int) get(row, o + 1)));
+            } else if (ops[i] == Op.AVG) {
+                tuple.setField(f++, new IntField((int) (get(row, o) / get(row, o + 1))));
+            } else if (ops[i] == Op.SC_AVG) {
+                // 部分和是int，溢出时只有回绕后的和是对的
+                tuple.setField(f++, new IntField((int) ((int) get(row, o) / get(row, o + 1))));
+            } else {
+                tuple.setField(f++, new IntField((int) get(row, o)));
+            }
+        }
+    }
+}
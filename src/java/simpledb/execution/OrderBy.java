@@ -2,25 +2,34 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
-import simpledb.storage.Field;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
-import java.util.*;
+import java.util.NoSuchElementException;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * The tuples of the child are sorted with an {@link ExternalSort}: at most
+ * memoryTuples of them are held in memory, and larger inputs are written
+ * to disk in sorted runs that are merged as the sorted tuples are
+ * returned.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** The default number of tuples sorted in memory */
+    public static final int SORT_SIZE = 20000;
+
     private OpIterator child;
     private final TupleDesc td;
-    private final List<Tuple> childTups = new ArrayList<>();
     private final int orderByField;
     private final String orderByFieldName;
-    private Iterator<Tuple> it;
     private final boolean asc;
+    private final int memoryTuples;
+    transient private ExternalSort sort;
+    transient private OpIterator it;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -33,11 +42,25 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(orderbyField, asc, child, SORT_SIZE);
+    }
+
+    /**
+     * Creates a new OrderBy node with a memory budget.
+     *
+     * @param memoryTuples
+     *            the largest number of tuples kept in memory while sorting
+     */
+    public OrderBy(int orderbyField, boolean asc, OpIterator child, int memoryTuples) {
+        if (memoryTuples < 1) {
+            throw new IllegalArgumentException("memoryTuples must be positive");
+        }
         this.child = child;
         td = child.getTupleDesc();
         this.orderByField = orderbyField;
         this.orderByFieldName = td.getFieldName(orderbyField);
         this.asc = asc;
+        this.memoryTuples = memoryTuples;
     }
     
     public boolean isASC()
@@ -59,24 +82,40 @@ public class OrderBy extends Operator {
         return td;
     }
 
+    /** @return the number of tuples written to disk while sorting */
+    public long getSpilledTuples() {
+        return sort == null ? 0 : sort.getSpilledTuples();
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add(child.next());
-        childTups.sort(new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        // 超出内存预算的部分排好序写到临时文件，输出时再归并
+        sort = new ExternalSort(td, new TupleComparator(orderByField, asc), memoryTuples);
+        sort.addAll(child);
+        it = sort.iterator();
+        it.open();
         super.open();
     }
 
     public void close() {
         super.close();
-        it = null;
+        if (it != null) {
+            it.close();
+            it = null;
+        }
+        if (sort != null) {
+            sort.close();
+            sort = null;
+        }
+        child.close();
     }
 
-    public void rewind() {
-        it = childTups.iterator();
+    /** Return the sorted tuples again, without sorting the child again */
+    public void rewind() throws DbException, TransactionAbortedException {
+        super.close();
+        it.rewind();
+        super.open();
     }
 
     /**
@@ -86,7 +125,7 @@ public class OrderBy extends Operator {
      * @return The next tuple in the ordering, or null if there are no more
      *         tuples
      */
-    protected Tuple fetchNext() throws NoSuchElementException {
+    protected Tuple fetchNext() throws NoSuchElementException, DbException, TransactionAbortedException {
         if (it != null && it.hasNext()) {
             return it.next();
         } else
@@ -104,25 +143,3 @@ public class OrderBy extends Operator {
     }
 
 }
-
-class TupleComparator implements Comparator<Tuple> {
-    final int field;
-    final boolean asc;
-
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
-
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
-    }
-    
-}
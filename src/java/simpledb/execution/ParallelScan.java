@@ -0,0 +1,66 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.storage.HeapFile;
+
+/**
+ * ParallelScan runs a pipeline of {@link Filter} and {@link Project}
+ * operators over a {@link SeqScan} of a HeapFile on several threads. It is
+ * a {@link Gather} whose worker threads each run their own copy of the
+ * pipeline over a {@link MorselScan}, so the workers take morsels of the
+ * file on demand, and pass the tuples that come out of their pipelines in
+ * batches of {@link #BATCH_TUPLES} through a bounded queue. Tuples are
+ * returned in no particular order.
+ * <p>
+ * The workers read the pages through the BufferPool as the transaction of
+ * the SeqScan, which thus holds a read lock on every page it read, as with
+ * a serial scan. Closing the operator stops the workers after their
+ * current morsel and waits for them, so no page is read once it is closed.
+ */
+public class ParallelScan extends Gather {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            the pipeline to run on each thread: a SeqScan of a HeapFile,
+     *            possibly below Filter and Project operators
+     * @param threads
+     *            the number of worker threads
+     * @throws IllegalArgumentException if the pipeline cannot be run in
+     *             parallel
+     * @see #isParallelizable(OpIterator)
+     */
+    public ParallelScan(OpIterator child, int threads) {
+        super(checkParallelizable(child), threads);
+    }
+
+    private static OpIterator checkParallelizable(OpIterator child) {
+        if (!isParallelizable(child)) {
+            throw new IllegalArgumentException("only Filter and Project over a SeqScan of a HeapFile can be scanned in parallel");
+        }
+        return child;
+    }
+
+    /**
+     * @return true if plan is a SeqScan of a HeapFile, possibly below Filter
+     *         and Project operators
+     */
+    public static boolean isParallelizable(OpIterator plan) {
+        while (plan instanceof Filter || plan instanceof Project) {
+            plan = ((Operator) plan).getChildren()[0];
+        }
+        return plan instanceof SeqScan
+                && Database.getCatalog().getDatabaseFile(((SeqScan) plan).getTableId()) instanceof HeapFile;
+    }
+
+    public int getThreads() {
+        return getCopies();
+    }
+
+    public String getName() {
+        return "parallel(" + getCopies() + ")";
+    }
+}
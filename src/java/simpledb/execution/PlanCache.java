@@ -1,53 +1,169 @@
 package simpledb.execution;
 import simpledb.optimizer.LogicalJoinNode;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.NoSuchElementException;
 
 /** A PlanCache is a helper class that can be used to store the best
- * way to order a given set of joins */
+ * way to join a given set of relations. Sets of relations are represented
+ * as long bitmasks (bit i set if relation i of the join graph is in the
+ * set); the plans are kept in an open-addressing hash table keyed by the
+ * bitmask, so a lookup does not hash or allocate any objects.
+ * <p>
+ * A plan for a set of two or more relations is stored as the split of the
+ * set into the relations of its outer (left) and inner (right) input and
+ * the join that connects them; the full join order is rebuilt by following
+ * the splits recursively.
+ */
 public class PlanCache {
-    final Map<Set<LogicalJoinNode>,List<LogicalJoinNode>> bestOrders= new HashMap<>();
-    final Map<Set<LogicalJoinNode>,Double> bestCosts= new HashMap<>();
-    final Map<Set<LogicalJoinNode>,Integer> bestCardinalities = new HashMap<>();
-    
-    /** Add a new cost, cardinality and ordering for a particular join set.  Does not verify that the
+    private static final int INITIAL_CAPACITY = 64;
+
+    // key为0表示空槽位（空集合不会被存入）
+    private long[] sets;
+    private long[] leftSets;
+    private double[] costs;
+    private int[] cardinalities;
+    private LogicalJoinNode[] joins;
+    private LogicalJoinNode.Algorithm[] algorithms;
+    private String[] orders;
+    private int size;
+
+    public PlanCache() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        sets = new long[capacity];
+        leftSets = new long[capacity];
+        costs = new double[capacity];
+        cardinalities = new int[capacity];
+        joins = new LogicalJoinNode[capacity];
+        algorithms = new LogicalJoinNode.Algorithm[capacity];
+        orders = new String[capacity];
+    }
+
+    /** Add a new cost, cardinality and plan for a particular set of relations.  Does not verify that the
         new cost is less than any previously added cost -- simply adds or replaces an existing plan for the
-        specified join set
-        @param s the set of joins for which a new ordering (plan) is being added
+        specified set
+        @param s the set of relations for which a new plan is being added
         @param cost the estimated cost of the specified plan
         @param card the estimatied cardinality of the specified plan
-        @param order the ordering of the joins in the plan
+        @param left the relations of the outer input of the last join of the plan (0 for a single relation)
+        @param join the last join of the plan, oriented so that its first table is in left (null for a single relation)
+        @param algorithm the physical operator of the last join of the plan (null for a single relation)
+        @param order the qualified name (alias.field) of the field the output of the plan is sorted on
+               in ascending order, or null if it is in no known order
     */
-    public void addPlan(Set<LogicalJoinNode> s, double cost, int card, List<LogicalJoinNode> order) {
-        bestOrders.put(s,order);                        
-        bestCosts.put(s,cost);
-        bestCardinalities.put(s,card);
-    }
-    
-    /** Find the best join order in the cache for the specified plan 
-        @param s the set of joins to look up the best order for
-        @return the best order for s in the cache
-    */
-    public List<LogicalJoinNode> getOrder(Set<LogicalJoinNode> s) {
-        return bestOrders.get(s);
+    public void addPlan(long s, double cost, int card, long left, LogicalJoinNode join,
+                        LogicalJoinNode.Algorithm algorithm, String order) {
+        if (s == 0) {
+            throw new IllegalArgumentException("Cannot add a plan for the empty set");
+        }
+        int slot = slot(s);
+        if (sets[slot] == 0) {
+            if ((size + 1) * 4 > sets.length * 3) {
+                grow();
+                slot = slot(s);
+            }
+            size++;
+        }
+        sets[slot] = s;
+        leftSets[slot] = left;
+        costs[slot] = cost;
+        cardinalities[slot] = card;
+        joins[slot] = join;
+        algorithms[slot] = algorithm;
+        orders[slot] = order;
     }
-    
-    /** Find the cost of the best join order in the cache for the specified plan 
-        @param s the set of joins to look up the best cost for
-        @return the cost of the best order for s in the cache
+
+    /** @return true if the cache has a plan for the set of relations s */
+    public boolean contains(long s) {
+        return s != 0 && sets[slot(s)] == s;
+    }
+
+    /** Find the cost of the best plan in the cache for the specified set
+        @param s the set of relations to look up the best cost for
+        @return the cost of the best plan for s in the cache
     */
-    public double getCost(Set<LogicalJoinNode> s) {
-        return bestCosts.get(s);
+    public double getCost(long s) {
+        return costs[find(s)];
     }
-    
-    /** Find the cardinality of the best join order in the cache for the specified plan 
-        @param s the set of joins to look up the best cardinality for
-        @return the cardinality of the best order for s in the cache
+
+    /** Find the cardinality of the best plan in the cache for the specified set
+        @param s the set of relations to look up the best cardinality for
+        @return the cardinality of the best plan for s in the cache
     */
-    public int getCard(Set<LogicalJoinNode> s) {
-        return bestCardinalities.get(s);
+    public int getCard(long s) {
+        return cardinalities[find(s)];
+    }
+
+    /** @return the relations of the outer input of the best plan for s, or 0 if s is a single relation */
+    public long getLeft(long s) {
+        return leftSets[find(s)];
+    }
+
+    /** @return the last join of the best plan for s, or null if s is a single relation */
+    public LogicalJoinNode getJoin(long s) {
+        return joins[find(s)];
+    }
+
+    /** @return the physical operator of the last join of the best plan for s, or null if s is a single relation */
+    public LogicalJoinNode.Algorithm getAlgorithm(long s) {
+        return algorithms[find(s)];
+    }
+
+    /** @return the field the output of the best plan for s is sorted on, or null if it is in no known order */
+    public String getOrder(long s) {
+        return orders[find(s)];
+    }
+
+    /** @return the number of sets of relations with a plan in the cache */
+    public int size() {
+        return size;
+    }
+
+    private int find(long s) {
+        int slot = slot(s);
+        if (s == 0 || sets[slot] != s) {
+            throw new NoSuchElementException("No plan for relation set " + Long.toBinaryString(s));
+        }
+        return slot;
+    }
+
+    // 线性探测，返回s所在的槽位或应插入的空槽位
+    private int slot(long s) {
+        int mask = sets.length - 1;
+        int slot = hash(s) & mask;
+        while (sets[slot] != 0 && sets[slot] != s) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int hash(long s) {
+        s *= 0x9E3779B97F4A7C15L;
+        return (int) (s ^ (s >>> 32));
+    }
+
+    private void grow() {
+        long[] oldSets = sets;
+        long[] oldLeftSets = leftSets;
+        double[] oldCosts = costs;
+        int[] oldCardinalities = cardinalities;
+        LogicalJoinNode[] oldJoins = joins;
+        LogicalJoinNode.Algorithm[] oldAlgorithms = algorithms;
+        String[] oldOrders = orders;
+        allocate(oldSets.length * 2);
+        for (int i = 0; i < oldSets.length; i++) {
+            if (oldSets[i] != 0) {
+                int slot = slot(oldSets[i]);
+                sets[slot] = oldSets[i];
+                leftSets[slot] = oldLeftSets[i];
+                costs[slot] = oldCosts[i];
+                cardinalities[slot] = oldCardinalities[i];
+                joins[slot] = oldJoins[i];
+                algorithms[slot] = oldAlgorithms[i];
+                orders[slot] = oldOrders[i];
+            }
+        }
     }
 }
@@ -14,7 +14,7 @@ public class Predicate implements Serializable {
 
     private final int field;
     private final Op op;
-    private final Field operand;
+    private Field operand;
 
     /** Constants used for return codes in Field.compare */
     public enum Op implements Serializable {
@@ -94,6 +94,17 @@ public class Predicate implements Serializable {
         // some code goes here
         return this.operand;
     }
+
+    /**
+     * Replace the constant tuples are compared against, e.g. to bind a new
+     * parameter value into the plan of a prepared statement.
+     *
+     * @param operand
+     *            the new value; must have the type of the field
+     */
+    public void setOperand(Field operand) {
+        this.operand = operand;
+    }
     
     /**
      * Compares the field number of t specified in the constructor to the
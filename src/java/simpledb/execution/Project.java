@@ -48,6 +48,11 @@ public class Project extends Operator {
         return td;
     }
 
+    /** @return the ids of the fields of the child's tupleDesc that are projected out */
+    public List<Integer> getFieldList() {
+        return outFieldIds;
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
@@ -21,7 +21,7 @@ public class SeqScan implements OpIterator {
 
     private static final long serialVersionUID = 1L;
 
-    private final TransactionId tid;
+    private TransactionId tid;
     private int tableId;
     private String tableAlias;
     private DbFileIterator dbFileIterator;
@@ -58,6 +58,16 @@ public class SeqScan implements OpIterator {
         return Database.getCatalog().getTableName(tableId);
     }
 
+    /** @return the id of the table this operator scans */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /** @return the transaction this scan is running as a part of */
+    public TransactionId getTransactionId() {
+        return tid;
+    }
+
     /**
      * @return Return the alias of the table this operator scans.
      * */
@@ -85,6 +95,17 @@ public class SeqScan implements OpIterator {
         this.tableAlias = tableAlias;
     }
 
+    /**
+     * Make the scan run as part of another transaction from the next call to
+     * {@link #open()}, e.g. to execute a prepared plan again.
+     *
+     * @param tid
+     *            The transaction the scan runs as a part of.
+     */
+    public void setTransactionId(TransactionId tid) {
+        this.tid = tid;
+    }
+
     public SeqScan(TransactionId tid, int tableId) {
         this(tid, tableId, Database.getCatalog().getTableName(tableId));
     }
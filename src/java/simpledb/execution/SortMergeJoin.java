@@ -0,0 +1,404 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleSpillFile;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.*;
+
+/**
+ * The SortMergeJoin operator joins two inputs sorted on their join fields.
+ * An input that is not already sorted in ascending order of its join field
+ * is sorted with an {@link ExternalSort}, which keeps at most memoryTuples
+ * tuples in memory and writes sorted runs to disk beyond that.
+ * <p>
+ * An EQUALS join advances both inputs in step. The inner tuples with the
+ * key of the current outer tuple (a run of duplicates) are buffered, and
+ * joined with every outer tuple with that key; a run longer than
+ * memoryTuples is written to disk.
+ * <p>
+ * A range join (LESS_THAN, LESS_THAN_OR_EQ, GREATER_THAN,
+ * GREATER_THAN_OR_EQ) sorts only one input, the one whose join field is
+ * on the smaller side of the predicate, and reads the other input once.
+ * The tuples of the sorted input that match a tuple of the other input are
+ * a prefix of it, so for each tuple of the other input the sorted input is
+ * read from the start until the predicate first fails. A sorted input that
+ * is an already ordered child is read from it once and buffered like a run
+ * of duplicates, rather than rewinding the child for every tuple.
+ * <p>
+ * Output tuples are always the concatenation of a tuple of child1 and a
+ * tuple of child2. The output of an EQUALS join is ordered by the join
+ * key; the output of a range join keeps the order of the input that is
+ * read once.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The default number of tuples of each input kept in memory */
+    public static final int SORT_SIZE = 20000;
+
+    private final JoinPredicate pred;
+    private OpIterator child1, child2;
+    private final boolean child1Sorted, child2Sorted;
+    private final int memoryTuples;
+    private final TupleDesc comboTD;
+
+    // 两侧按连接字段升序的输入：子结点本身，或其外部排序的结果
+    transient private ExternalSort sort1, sort2;
+    transient private OpIterator in1, in2;
+
+    // 等值连接：当前外侧元组，内侧下一个未处理的元组，以及与当前键相同的一段内侧元组
+    transient private Tuple outer;
+    transient private Tuple innerNext;
+    transient private Field runKey;
+    private final List<Tuple> run = new ArrayList<>();
+    transient private int runPos;
+    transient private TupleSpillFile runSpill;
+    transient private TupleSpillFile.Reader runReader;
+    transient private long runSpilled;
+
+    // 范围连接：只读一遍的一侧的当前元组；有序的一侧是否缓存在run中
+    transient private Tuple driver;
+    transient private boolean rangeBuffered;
+
+    /**
+     * Constructor for inputs in any order.
+     *
+     * @param p
+     *            The predicate to join the children on; one of EQUALS,
+     *            LESS_THAN, LESS_THAN_OR_EQ, GREATER_THAN and
+     *            GREATER_THAN_OR_EQ
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, false, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param child1Sorted
+     *            true if child1 returns its tuples in ascending order of its
+     *            join field, and need not be sorted
+     * @param child2Sorted
+     *            true if child2 returns its tuples in ascending order of its
+     *            join field, and need not be sorted
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2,
+                         boolean child1Sorted, boolean child2Sorted) {
+        this(p, child1, child2, child1Sorted, child2Sorted, SORT_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param memoryTuples
+     *            The largest number of tuples of each input kept in memory
+     *            while sorting, and of a run of duplicate inner keys
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2,
+                         boolean child1Sorted, boolean child2Sorted, int memoryTuples) {
+        switch (p.getOperator()) {
+            case EQUALS:
+            case LESS_THAN:
+            case LESS_THAN_OR_EQ:
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQ:
+                break;
+            default:
+                throw new IllegalArgumentException("sort-merge join does not support " + p.getOperator());
+        }
+        if (memoryTuples < 1) {
+            throw new IllegalArgumentException("memoryTuples must be positive");
+        }
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.child1Sorted = child1Sorted;
+        this.child2Sorted = child2Sorted;
+        this.memoryTuples = memoryTuples;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    /** @return the number of tuples written to disk while sorting the inputs and buffering runs of duplicates */
+    public long getSpilledTuples() {
+        return (sort1 == null ? 0 : sort1.getSpilledTuples())
+                + (sort2 == null ? 0 : sort2.getSpilledTuples()) + runSpilled;
+    }
+
+    private boolean isEquiJoin() {
+        return pred.getOperator() == Predicate.Op.EQUALS;
+    }
+
+    // 范围连接时只读一遍的是否为child1：t1 > t2时排序child2，t1 < t2时排序child1
+    private boolean drivenByChild1() {
+        return pred.getOperator() == Predicate.Op.GREATER_THAN
+                || pred.getOperator() == Predicate.Op.GREATER_THAN_OR_EQ;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        boolean sortChild1 = !child1Sorted && (isEquiJoin() || !drivenByChild1());
+        boolean sortChild2 = !child2Sorted && (isEquiJoin() || drivenByChild1());
+        // 范围连接每个外侧元组都要从头读一遍有序的一侧，把它归并成一个文件
+        int maxRuns = isEquiJoin() ? ExternalSort.MERGE_FANIN : 1;
+        in1 = child1;
+        in2 = child2;
+        if (sortChild1) {
+            sort1 = sort(child1, pred.getField1(), maxRuns);
+            in1 = sort1.iterator();
+            in1.open();
+        }
+        if (sortChild2) {
+            sort2 = sort(child2, pred.getField2(), maxRuns);
+            in2 = sort2.iterator();
+            in2.open();
+        }
+        if (!isEquiJoin() && (drivenByChild1() ? child2Sorted : child1Sorted)) {
+            bufferSorted(drivenByChild1() ? in2 : in1);
+        }
+        super.open();
+        start();
+    }
+
+    private ExternalSort sort(OpIterator child, int field, int maxRuns)
+            throws DbException, TransactionAbortedException {
+        ExternalSort sort = new ExternalSort(child.getTupleDesc(), new TupleComparator(field, true), memoryTuples);
+        sort.addAll(child);
+        sort.sort(maxRuns);
+        return sort;
+    }
+
+    /** Read the sorted input of a range join once into the run buffer */
+    private void bufferSorted(OpIterator sorted) throws DbException, TransactionAbortedException {
+        clearRun();
+        while (sorted.hasNext()) {
+            addToRun(sorted.next());
+        }
+        rangeBuffered = true;
+    }
+
+    private void start() throws DbException, TransactionAbortedException {
+        if (!rangeBuffered) {
+            clearRun();
+        }
+        outer = null;
+        runKey = null;
+        driver = null;
+        innerNext = isEquiJoin() ? nextInner() : null;
+    }
+
+    public void close() {
+        super.close();
+        clearRun();
+        rangeBuffered = false;
+        if (sort1 != null) {
+            in1.close();
+            sort1.close();
+            sort1 = null;
+        }
+        if (sort2 != null) {
+            in2.close();
+            sort2.close();
+            sort2 = null;
+        }
+        in1 = null;
+        in2 = null;
+        child2.close();
+        child1.close();
+    }
+
+    /** Restart the join without sorting or buffering the inputs again */
+    public void rewind() throws DbException, TransactionAbortedException {
+        super.close();
+        // 缓存了的有序一侧不必再读
+        if (!rangeBuffered || drivenByChild1()) {
+            in1.rewind();
+        }
+        if (!rangeBuffered || !drivenByChild1()) {
+            in2.rewind();
+        }
+        super.open();
+        start();
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        return isEquiJoin() ? fetchNextEqual() : fetchNextRange();
+    }
+
+    private Tuple fetchNextEqual() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (outer != null) {
+                Tuple t2 = nextInRun();
+                if (t2 != null) {
+                    return merge(outer, t2);
+                }
+            }
+            if (!in1.hasNext()) {
+                return null;
+            }
+            outer = in1.next();
+            Field key = outer.getField(pred.getField1());
+            if (runKey == null || TupleComparator.compareFields(key, runKey) != 0) {
+                readRun(key);
+                if (run.isEmpty() && runSpill == null && innerNext == null) {
+                    // 内侧已读完，后面的外侧元组都不会再匹配
+                    return null;
+                }
+            }
+            startRun();
+        }
+    }
+
+    private Tuple nextInner() throws DbException, TransactionAbortedException {
+        return in2.hasNext() ? in2.next() : null;
+    }
+
+    /** Skip the inner tuples with keys below key, and buffer those equal to it */
+    private void readRun(Field key) throws DbException, TransactionAbortedException {
+        clearRun();
+        runKey = key;
+        int field2 = pred.getField2();
+        while (innerNext != null && TupleComparator.compareFields(innerNext.getField(field2), key) < 0) {
+            innerNext = nextInner();
+        }
+        while (innerNext != null && TupleComparator.compareFields(innerNext.getField(field2), key) == 0) {
+            addToRun(innerNext);
+            innerNext = nextInner();
+        }
+    }
+
+    private void addToRun(Tuple t) throws DbException {
+        if (runSpill == null && run.size() >= memoryTuples) {
+            runSpill = new TupleSpillFile(t.getTupleDesc());
+            for (Tuple r : run) {
+                runSpill.add(r);
+            }
+            runSpilled += run.size();
+            run.clear();
+        }
+        if (runSpill != null) {
+            runSpill.add(t);
+            runSpilled++;
+        } else {
+            run.add(t);
+        }
+    }
+
+    private void startRun() throws DbException {
+        runPos = 0;
+        if (runSpill != null) {
+            if (runReader != null) {
+                runReader.close();
+            }
+            runReader = runSpill.reader();
+        }
+    }
+
+    private Tuple nextInRun() throws DbException {
+        if (runSpill != null) {
+            return runReader != null && runReader.hasNext() ? runReader.next() : null;
+        }
+        return runPos < run.size() ? run.get(runPos++) : null;
+    }
+
+    private void clearRun() {
+        run.clear();
+        runPos = 0;
+        if (runReader != null) {
+            runReader.close();
+            runReader = null;
+        }
+        if (runSpill != null) {
+            runSpill.delete();
+            runSpill = null;
+        }
+    }
+
+    private Tuple fetchNextRange() throws TransactionAbortedException, DbException {
+        boolean byChild1 = drivenByChild1();
+        OpIterator drivingInput = byChild1 ? in1 : in2;
+        OpIterator sortedInput = byChild1 ? in2 : in1;
+        while (true) {
+            Tuple s = driver == null ? null : nextSorted(sortedInput);
+            if (s != null) {
+                Tuple t1 = byChild1 ? driver : s;
+                Tuple t2 = byChild1 ? s : driver;
+                if (pred.filter(t1, t2)) {
+                    return merge(t1, t2);
+                }
+                // 有序的一侧后面的元组都不满足谓词
+            }
+            if (!drivingInput.hasNext()) {
+                return null;
+            }
+            driver = drivingInput.next();
+            if (rangeBuffered) {
+                startRun();
+            } else {
+                sortedInput.rewind();
+            }
+        }
+    }
+
+    private Tuple nextSorted(OpIterator sortedInput) throws DbException, TransactionAbortedException {
+        if (rangeBuffered) {
+            return nextInRun();
+        }
+        return sortedInput.hasNext() ? sortedInput.next() : null;
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+
+}
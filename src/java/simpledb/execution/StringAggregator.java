@@ -64,6 +64,10 @@ public class StringAggregator implements Aggregator {
         });
     }
 
+    public int numGroups() {
+        return groups.size();
+    }
+
     /**
      * Create a OpIterator over group aggregate results.
      *
@@ -0,0 +1,141 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.*;
+
+/**
+ * TopN is an operator that returns the first n tuples of its child in the
+ * order of one field: an {@link OrderBy} followed by a {@link Limit},
+ * evaluated together. The child is read once, keeping only the n best
+ * tuples seen so far in a heap whose root is the worst of them, so the
+ * operator holds n tuples instead of the whole input and each tuple costs
+ * O(log n) comparisons. Tuples with equal values are returned in the order
+ * they were read, as a stable sort followed by a limit would return them.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private OpIterator child;
+    private final int orderByField;
+    private final boolean asc;
+    private final int limit;
+
+    // 按(字段值, 读入序号)比较；堆顶是已保留元组中最靠后的一个
+    private final List<Tuple> result = new ArrayList<>();
+    transient private int pos;
+
+    /**
+     * Constructor.
+     *
+     * @param orderByField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param limit
+     *            the number of tuples to return
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int orderByField, boolean asc, int limit, OpIterator child) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative");
+        }
+        this.child = child;
+        this.orderByField = orderByField;
+        this.asc = asc;
+        this.limit = limit;
+    }
+
+    public boolean isASC() {
+        return asc;
+    }
+
+    public int getOrderByField() {
+        return orderByField;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    /** A tuple of the child and its position in the input */
+    private static class Entry {
+        final Tuple tuple;
+        final long seq;
+
+        Entry(Tuple tuple, long seq) {
+            this.tuple = tuple;
+            this.seq = seq;
+        }
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        Comparator<Tuple> byField = new TupleComparator(orderByField, asc);
+        Comparator<Entry> order = (a, b) -> {
+            int c = byField.compare(a.tuple, b.tuple);
+            return c != 0 ? c : Long.compare(a.seq, b.seq);
+        };
+        result.clear();
+        if (limit > 0) {
+            PriorityQueue<Entry> heap = new PriorityQueue<>(Math.min(limit, 1024), order.reversed());
+            long seq = 0;
+            while (child.hasNext()) {
+                Tuple t = child.next();
+                if (heap.size() < limit) {
+                    heap.add(new Entry(t, seq++));
+                } else if (byField.compare(t, heap.peek().tuple) < 0) {
+                    // 值相等时后读入的元组排在后面，不替换
+                    heap.poll();
+                    heap.add(new Entry(t, seq++));
+                } else {
+                    seq++;
+                }
+            }
+            List<Entry> entries = new ArrayList<>(heap);
+            entries.sort(order);
+            for (Entry e : entries) {
+                result.add(e.tuple);
+            }
+        }
+        pos = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        result.clear();
+        child.close();
+    }
+
+    /** Return the same tuples again, without reading the child again */
+    public void rewind() throws DbException, TransactionAbortedException {
+        super.close();
+        pos = 0;
+        super.open();
+    }
+
+    protected Tuple fetchNext() {
+        return pos < result.size() ? result.get(pos++) : null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
@@ -0,0 +1,33 @@
+package simpledb.execution;
+
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+
+import java.util.Comparator;
+
+/**
+ * Orders tuples by the value of one of their fields, ascending or
+ * descending.
+ */
+public class TupleComparator implements Comparator<Tuple> {
+    final int field;
+    final boolean asc;
+
+    public TupleComparator(int field, boolean asc) {
+        this.field = field;
+        this.asc = asc;
+    }
+
+    public int compare(Tuple o1, Tuple o2) {
+        int c = compareFields(o1.getField(field), o2.getField(field));
+        return asc ? c : -c;
+    }
+
+    /** @return a negative number, zero or a positive number as a is less than, equal to or greater than b */
+    public static int compareFields(Field a, Field b) {
+        if (a.compare(Predicate.Op.EQUALS, b))
+            return 0;
+        return a.compare(Predicate.Op.GREATER_THAN, b) ? 1 : -1;
+    }
+
+}
@@ -168,6 +168,27 @@ public class BTreeFile implements DbFile {
 		return keyField;
 	}
 
+	/**
+	 * Returns the maximum number of tuples a leaf page of this file can hold
+	 * @see BTreeLeafPage#getMaxTuples()
+	 */
+	public int maxTuplesPerLeaf() {
+		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
+		int extraBits = 3 * BTreePage.INDEX_SIZE * 8;
+		return (BufferPool.getPageSize() * 8 - extraBits) / bitsPerTupleIncludingHeader;
+	}
+
+	/**
+	 * Returns the maximum number of children of an internal page of this file
+	 * @see BTreeInternalPage#getMaxEntries()
+	 */
+	public int maxFanout() {
+		int keySize = td.getFieldType(keyField).getLen();
+		int bitsPerEntryIncludingHeader = keySize * 8 + BTreePage.INDEX_SIZE * 8 + 1;
+		int extraBits = 2 * BTreePage.INDEX_SIZE * 8 + 8 + 1;
+		return (BufferPool.getPageSize() * 8 - extraBits) / bitsPerEntryIncludingHeader + 1;
+	}
+
 	/**
 	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
 	 * the left-most page possibly containing the key field f. It locks all internal
@@ -22,10 +22,11 @@ public class BTreeScan implements OpIterator {
 	private static final long serialVersionUID = 1L;
 
 	private boolean isOpen = false;
-	private final TransactionId tid;
+	private TransactionId tid;
 	private TupleDesc myTd;
 	private IndexPredicate ipred = null;
 	private transient DbFileIterator it;
+	private int tableid;
 	private String tablename;
 	private String alias;
 
@@ -71,6 +72,22 @@ public class BTreeScan implements OpIterator {
 		return this.alias;
 	}
 
+	/**
+	 * @return the index predicate the scan matches, or null if it returns all tuples
+	 */
+	public IndexPredicate getIndexPredicate() {
+		return ipred;
+	}
+
+	/**
+	 * Run the following scans as part of another transaction. The scan
+	 * must be closed.
+	 */
+	public void setTransactionId(TransactionId tid) {
+		this.tid = tid;
+		reset(tableid, alias);
+	}
+
 	/**
 	 * Reset the tableid, and tableAlias of this operator.
 	 * @param tableid
@@ -85,6 +102,7 @@ public class BTreeScan implements OpIterator {
 	 */
 	public void reset(int tableid, String tableAlias) {
 		this.isOpen=false;
+		this.tableid = tableid;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
 		if(ipred == null) {
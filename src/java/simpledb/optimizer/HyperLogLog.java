@@ -0,0 +1,122 @@
+package simpledb.optimizer;
+
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A HyperLogLog sketch estimating the number of distinct values of a column
+ * in constant space. With the default precision it uses 4096 one-byte
+ * registers and has a standard error of about 1.6%; small cardinalities are
+ * estimated with linear counting.
+ */
+public class HyperLogLog {
+
+    public static final int DEFAULT_PRECISION = 12;
+
+    private final int precision;
+    private final byte[] registers;
+
+    public HyperLogLog() {
+        this(DEFAULT_PRECISION);
+    }
+
+    /**
+     * @param precision the number of hash bits used to pick a register; the
+     *                  sketch has 2^precision registers
+     */
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 16) {
+            throw new IllegalArgumentException("precision must be between 4 and 16");
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    /** Add a value to the sketch. */
+    public void add(Field field) {
+        addHash(hash(field));
+    }
+
+    void addHash(long hash) {
+        int index = (int) (hash >>> (64 - precision));
+        // 末尾补1保证rank不超过剩余的位数
+        long rest = (hash << precision) | (1L << (precision - 1));
+        byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+        if (rank > registers[index]) {
+            registers[index] = rank;
+        }
+    }
+
+    /** @return the estimated number of distinct values added */
+    public long estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += Math.scalb(1.0, -register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double alpha = 0.7213 / (1 + 1.079 / m);
+        double estimate = alpha * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            // 小基数时用linear counting
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    /** Add all values of another sketch with the same precision to this one. */
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("Cannot merge sketches of different precision");
+        }
+        for (int i = 0; i < registers.length; i++) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeByte(precision);
+        out.write(registers);
+    }
+
+    static HyperLogLog readFrom(DataInputStream in) throws IOException {
+        HyperLogLog sketch = new HyperLogLog(in.readByte());
+        in.readFully(sketch.registers);
+        return sketch;
+    }
+
+    private static long hash(Field field) {
+        if (field instanceof IntField) {
+            return mix(((IntField) field).getValue());
+        } else if (field instanceof StringField) {
+            // FNV-1a
+            long h = 0xcbf29ce484222325L;
+            String value = ((StringField) field).getValue();
+            for (int i = 0; i < value.length(); i++) {
+                h = (h ^ value.charAt(i)) * 0x100000001b3L;
+            }
+            return mix(h);
+        }
+        return mix(field.hashCode());
+    }
+
+    // MurmurHash3的fmix64，使各个位充分混合
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
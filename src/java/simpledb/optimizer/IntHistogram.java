@@ -2,7 +2,11 @@ package simpledb.optimizer;
 
 import simpledb.execution.Predicate;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.function.IntConsumer;
 
 import static java.lang.Math.max;
 import static java.lang.Math.min;
@@ -18,6 +22,13 @@ public class IntHistogram {
     private int totalTuples;
     private int width;
     private int lastBucketWidth;
+    // 超出[min, max]范围的值的个数及其范围，在重新平衡时并入直方图
+    private int belowMin;
+    private int aboveMax;
+    private int observedMin;
+    private int observedMax;
+    private int belowMinMax;
+    private int aboveMaxMin;
 
     /**
      * Create a new IntHistogram.
@@ -44,6 +55,48 @@ public class IntHistogram {
         this.totalTuples = 0;
         this.width = max((max-min+1) / buckets, 1);
         this.lastBucketWidth = (max-min+1) - width*(buckets-1);
+        this.observedMin = min;
+        this.observedMax = max;
+        this.belowMinMax = min;
+        this.aboveMaxMin = max;
+    }
+
+    /**
+     * Write this histogram to out, in the format read by {@link #readFrom}.
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(buckets);
+        out.writeInt(min);
+        out.writeInt(max);
+        out.writeInt(totalTuples);
+        for (int height : heights) {
+            out.writeInt(height);
+        }
+        out.writeInt(belowMin);
+        out.writeInt(aboveMax);
+        out.writeInt(observedMin);
+        out.writeInt(observedMax);
+        out.writeInt(belowMinMax);
+        out.writeInt(aboveMaxMin);
+    }
+
+    /**
+     * Read a histogram written by {@link #writeTo}.
+     */
+    static IntHistogram readFrom(DataInputStream in) throws IOException {
+        int buckets = in.readInt();
+        IntHistogram histogram = new IntHistogram(buckets, in.readInt(), in.readInt());
+        histogram.totalTuples = in.readInt();
+        for (int i = 0; i < buckets; i++) {
+            histogram.heights[i] = in.readInt();
+        }
+        histogram.belowMin = in.readInt();
+        histogram.aboveMax = in.readInt();
+        histogram.observedMin = in.readInt();
+        histogram.observedMax = in.readInt();
+        histogram.belowMinMax = in.readInt();
+        histogram.aboveMaxMin = in.readInt();
+        return histogram;
     }
 
     /**
@@ -52,7 +105,15 @@ public class IntHistogram {
      */
     public void addValue(int v) {
     	// some code goes here
-        if (v < min || v > max) {
+        if (v < min) {
+            belowMinMax = belowMin == 0 ? v : max(belowMinMax, v);
+            belowMin++;
+            observedMin = min(observedMin, v);
+            return;
+        } else if (v > max) {
+            aboveMaxMin = aboveMax == 0 ? v : min(aboveMaxMin, v);
+            aboveMax++;
+            observedMax = max(observedMax, v);
             return;
         }
         // 计算v所在的bucket下标
@@ -65,6 +126,179 @@ public class IntHistogram {
         heights[bucketIndex]++;
     }
 
+    /**
+     * Remove a value previously added to the histogram.
+     * @param v Value to remove from the histogram
+     */
+    public void removeValue(int v) {
+        if (v < min) {
+            belowMin = max(belowMin - 1, 0);
+            return;
+        } else if (v > max) {
+            aboveMax = max(aboveMax - 1, 0);
+            return;
+        }
+        int bucketIndex = min((v - min) / width, buckets-1);
+        if (heights[bucketIndex] > 0) {
+            heights[bucketIndex]--;
+            totalTuples--;
+        }
+    }
+
+    /**
+     * @return an empty histogram with the buckets and range of this one, to
+     *     count changes that are later applied with {@link #merge}
+     */
+    IntHistogram emptyCopy() {
+        return new IntHistogram(buckets, min, max);
+    }
+
+    /**
+     * Count a value removed from a histogram of which this is an
+     * {@link #emptyCopy}, in the bucket that {@link #removeValue} takes it
+     * from.
+     */
+    void countRemoved(int v) {
+        if (v < min) {
+            belowMinMax = belowMin == 0 ? v : max(belowMinMax, v);
+            belowMin++;
+            observedMin = min(observedMin, v);
+        } else if (v > max) {
+            aboveMaxMin = aboveMax == 0 ? v : min(aboveMaxMin, v);
+            aboveMax++;
+            observedMax = max(observedMax, v);
+        } else {
+            heights[min((v - min) / width, buckets-1)]++;
+            totalTuples++;
+        }
+    }
+
+    /**
+     * Remove the values counted by removed and add the values added to
+     * added, both empty copies of a histogram with the buckets and range of
+     * this one.
+     *
+     * @return false, changing nothing, if they have other buckets or range
+     *     (this histogram has been rebuilt since they were made)
+     */
+    boolean merge(IntHistogram added, IntHistogram removed) {
+        if (!sameBuckets(added) || !sameBuckets(removed)) {
+            return false;
+        }
+        for (int i = 0; i < buckets; i++) {
+            int taken = min(heights[i], removed.heights[i]);
+            heights[i] += added.heights[i] - taken;
+            totalTuples += added.heights[i] - taken;
+        }
+        belowMin = max(belowMin - removed.belowMin, 0);
+        aboveMax = max(aboveMax - removed.aboveMax, 0);
+        if (added.belowMin > 0) {
+            belowMinMax = belowMin == 0 ? added.belowMinMax : max(belowMinMax, added.belowMinMax);
+            belowMin += added.belowMin;
+            observedMin = min(observedMin, added.observedMin);
+        }
+        if (added.aboveMax > 0) {
+            aboveMaxMin = aboveMax == 0 ? added.aboveMaxMin : min(aboveMaxMin, added.aboveMaxMin);
+            aboveMax += added.aboveMax;
+            observedMax = max(observedMax, added.observedMax);
+        }
+        return true;
+    }
+
+    /**
+     * Remove the values counted by removed and add the values added to
+     * added, when this histogram has been rebuilt with other buckets or
+     * range since they were made. The values of a bucket of theirs are
+     * taken to be its middle value, and values below or above their range
+     * the middle of those seen there.
+     */
+    void reapply(IntHistogram added, IntHistogram removed) {
+        removed.forEachValue(this::removeValue);
+        added.forEachValue(this::addValue);
+    }
+
+    /** Pass the counted values to action, as described in {@link #reapply} */
+    private void forEachValue(IntConsumer action) {
+        for (int i = 0; i < buckets; i++) {
+            long left = (long) min + (long) i * width;
+            long right = i == buckets-1 ? max : left + width - 1;
+            int middle = (int) ((left + right) / 2);
+            for (int n = 0; n < heights[i]; n++) {
+                action.accept(middle);
+            }
+        }
+        int below = (int) (((long) observedMin + belowMinMax) / 2);
+        for (int n = 0; n < belowMin; n++) {
+            action.accept(below);
+        }
+        int above = (int) (((long) aboveMaxMin + observedMax) / 2);
+        for (int n = 0; n < aboveMax; n++) {
+            action.accept(above);
+        }
+    }
+
+    private boolean sameBuckets(IntHistogram other) {
+        return other.buckets == buckets && other.min == min && other.max == max;
+    }
+
+    /**
+     * @return the fraction of the values added since this histogram was
+     *     built that fell outside its range and are not reflected in its
+     *     estimates
+     */
+    public double outOfRangeFraction() {
+        int outOfRange = belowMin + aboveMax;
+        return outOfRange == 0 ? 0.0 : (double) outOfRange / (totalTuples + outOfRange);
+    }
+
+    /**
+     * Build a histogram with the same number of buckets whose range also
+     * covers the values added outside the range of this one. The tuples of
+     * each old bucket, and the out-of-range values on each side (between the
+     * smallest and largest of them), are assumed to be spread uniformly and
+     * are redistributed over the new buckets.
+     *
+     * @return the rebalanced histogram; this histogram is not modified
+     */
+    public IntHistogram rebalance() {
+        int newMin = belowMin > 0 ? observedMin : min;
+        int newMax = aboveMax > 0 ? observedMax : max;
+        IntHistogram histogram = new IntHistogram(buckets, newMin, newMax);
+        for (int i = 0; i < buckets; i++) {
+            int left = min + i * width;
+            int right = i == buckets-1 ? max : left + width - 1;
+            histogram.addUniform(left, right, heights[i]);
+        }
+        if (belowMin > 0) {
+            histogram.addUniform(newMin, belowMinMax, belowMin);
+        }
+        if (aboveMax > 0) {
+            histogram.addUniform(aboveMaxMin, newMax, aboveMax);
+        }
+        return histogram;
+    }
+
+    // 把count个值均匀分布到[lo, hi]覆盖的bucket中，按累计比例取整保证总数不变
+    private void addUniform(int lo, int hi, int count) {
+        if (count <= 0 || hi < lo) {
+            return;
+        }
+        long span = (long) hi - lo + 1;
+        long covered = 0;
+        int assigned = 0;
+        int first = min((int) (((long) lo - min) / width), buckets-1);
+        int last = min((int) (((long) hi - min) / width), buckets-1);
+        for (int i = first; i <= last; i++) {
+            long left = max((long) min + (long) i * width, lo);
+            long right = i == buckets-1 ? hi : min((long) min + (long) (i+1) * width - 1, hi);
+            covered += right - left + 1;
+            int upTo = (int) Math.round((double) count * covered / span);
+            heights[i] += upTo - assigned;
+            assigned = upTo;
+        }
+        totalTuples += count;
+    }
+
     /**
      * Estimate the selectivity of a particular predicate and operand on this table.
      * 
@@ -108,6 +342,55 @@ public class IntHistogram {
         return res;
     }
 
+    /**
+     * Estimate the selectivity of the join predicate <tt>x op y</tt>, where x
+     * is drawn from the values of this histogram and y from those of other.
+     * The tuples of each bucket of this histogram are treated as if they all
+     * had the bucket's middle value.
+     *
+     * @param op Operator
+     * @param other histogram of the right-hand side of the predicate
+     * @return Predicted selectivity over the cross product of the two inputs
+     */
+    public double estimateJoinSelectivity(Predicate.Op op, IntHistogram other) {
+        if (totalTuples == 0 || other.totalTuples == 0) {
+            return 0;
+        }
+        Predicate.Op flipped;
+        switch (op) {
+            case EQUALS:
+            case NOT_EQUALS:
+                flipped = op;
+                break;
+            case LESS_THAN:
+                flipped = Predicate.Op.GREATER_THAN;
+                break;
+            case LESS_THAN_OR_EQ:
+                flipped = Predicate.Op.GREATER_THAN_OR_EQ;
+                break;
+            case GREATER_THAN:
+                flipped = Predicate.Op.LESS_THAN;
+                break;
+            case GREATER_THAN_OR_EQ:
+                flipped = Predicate.Op.LESS_THAN_OR_EQ;
+                break;
+            default:
+                return -1;
+        }
+        // x op y 等价于 y flipped x，对每个bucket用中点估算另一侧满足条件的比例
+        double selectivity = 0;
+        for (int i = 0; i < buckets; i++) {
+            if (heights[i] == 0) {
+                continue;
+            }
+            long left = (long) min + (long) i * width;
+            long right = i == buckets-1 ? max : left + width - 1;
+            int middle = (int) ((left + right) / 2);
+            selectivity += (double) heights[i] / totalTuples * other.estimateSelectivity(flipped, middle);
+        }
+        return max(0.0, min(1.0, selectivity));
+    }
+
     private double estimateEqual(int v, int bucketIndex, int bucketWidth) {
         if (v < min || v > max) {
             return 0;
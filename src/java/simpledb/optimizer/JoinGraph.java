@@ -0,0 +1,192 @@
+package simpledb.optimizer;
+
+import simpledb.ParsingException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The join graph of a query: one vertex per table alias (and one per
+ * subquery), one edge per join. Sets of vertices are long bitmasks, so a
+ * query may join at most {@link #MAX_RELATIONS} relations.
+ * <p>
+ * Vertices are numbered in breadth-first order of each connected
+ * component, which DPccp requires to enumerate connected subgraphs before
+ * the larger subgraphs containing them.
+ */
+class JoinGraph {
+    static final int MAX_RELATIONS = 64;
+
+    private final List<LogicalJoinNode> joins;
+    // 每个join两端的顶点（bitmask）
+    private final long[] joinLeft;
+    private final long[] joinRight;
+    // 顶点对应的表别名，子查询为null
+    private final String[] aliases;
+    private final long[] neighbors;
+    private final Map<String, Integer> vertexOfAlias = new HashMap<>();
+
+    JoinGraph(List<LogicalJoinNode> joins) throws ParsingException {
+        this.joins = joins;
+
+        // 先按出现顺序给表和子查询编号
+        List<String> firstAliases = new ArrayList<>();
+        int[] t1 = new int[joins.size()];
+        int[] t2 = new int[joins.size()];
+        Map<String, Integer> firstNumbers = new HashMap<>();
+        for (int i = 0; i < joins.size(); i++) {
+            LogicalJoinNode j = joins.get(i);
+            t1[i] = firstNumbers.computeIfAbsent(j.t1Alias, a -> addVertex(firstAliases, a));
+            if (j instanceof LogicalSubplanJoinNode) {
+                t2[i] = addVertex(firstAliases, null);
+            } else {
+                t2[i] = firstNumbers.computeIfAbsent(j.t2Alias, a -> addVertex(firstAliases, a));
+            }
+        }
+        int n = firstAliases.size();
+        if (n > MAX_RELATIONS) {
+            throw new ParsingException("Cannot optimize a join of more than " + MAX_RELATIONS + " relations");
+        }
+        List<List<Integer>> adjacency = new ArrayList<>(n);
+        for (int v = 0; v < n; v++) {
+            adjacency.add(new ArrayList<>());
+        }
+        for (int i = 0; i < joins.size(); i++) {
+            adjacency.get(t1[i]).add(t2[i]);
+            adjacency.get(t2[i]).add(t1[i]);
+        }
+
+        // 按连通分量广度优先重新编号
+        int[] number = new int[n];
+        Arrays.fill(number, -1);
+        int next = 0;
+        for (int start = 0; start < n; start++) {
+            if (number[start] >= 0) {
+                continue;
+            }
+            Deque<Integer> queue = new ArrayDeque<>();
+            number[start] = next++;
+            queue.add(start);
+            while (!queue.isEmpty()) {
+                int v = queue.poll();
+                for (int w : adjacency.get(v)) {
+                    if (number[w] < 0) {
+                        number[w] = next++;
+                        queue.add(w);
+                    }
+                }
+            }
+        }
+
+        this.aliases = new String[n];
+        this.neighbors = new long[n];
+        this.joinLeft = new long[joins.size()];
+        this.joinRight = new long[joins.size()];
+        for (int v = 0; v < n; v++) {
+            aliases[number[v]] = firstAliases.get(v);
+            if (firstAliases.get(v) != null) {
+                vertexOfAlias.put(firstAliases.get(v), number[v]);
+            }
+        }
+        for (int i = 0; i < joins.size(); i++) {
+            joinLeft[i] = 1L << number[t1[i]];
+            joinRight[i] = 1L << number[t2[i]];
+            neighbors[number[t1[i]]] |= joinRight[i];
+            neighbors[number[t2[i]]] |= joinLeft[i];
+        }
+    }
+
+    private static int addVertex(List<String> aliases, String alias) {
+        aliases.add(alias);
+        return aliases.size() - 1;
+    }
+
+    /** @return the number of vertices */
+    int numRelations() {
+        return aliases.length;
+    }
+
+    /** @return the set of all vertices */
+    long allRelations() {
+        return aliases.length == 64 ? -1L : (1L << aliases.length) - 1;
+    }
+
+    /** @return the table alias of vertex v, or null if v is a subquery */
+    String alias(int v) {
+        return aliases[v];
+    }
+
+    /** @return the vertex of a table alias, as a single-bit set */
+    long relation(String alias) {
+        Integer v = vertexOfAlias.get(alias);
+        return v == null ? 0 : 1L << v;
+    }
+
+    /** @return the vertices adjacent to some vertex of s (which may include vertices of s) */
+    long neighbors(long s) {
+        long result = 0;
+        for (long rest = s; rest != 0; rest &= rest - 1) {
+            result |= neighbors[Long.numberOfTrailingZeros(rest)];
+        }
+        return result;
+    }
+
+    /** @return the indices of the joins with one end in s1 and the other in s2 */
+    List<Integer> joinsBetween(long s1, long s2) {
+        List<Integer> result = new ArrayList<>(1);
+        for (int i = 0; i < joinLeft.length; i++) {
+            if ((joinLeft[i] & s1) != 0 && (joinRight[i] & s2) != 0
+                    || (joinLeft[i] & s2) != 0 && (joinRight[i] & s1) != 0) {
+                result.add(i);
+            }
+        }
+        return result;
+    }
+
+    /** @return the index of the first join with one end in s1 and the other in s2, or -1 if there is none */
+    int firstJoinBetween(long s1, long s2) {
+        for (int i = 0; i < joinLeft.length; i++) {
+            if ((joinLeft[i] & s1) != 0 && (joinRight[i] & s2) != 0
+                    || (joinLeft[i] & s2) != 0 && (joinRight[i] & s1) != 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** @return the number of joins */
+    int numJoins() {
+        return joinLeft.length;
+    }
+
+    LogicalJoinNode join(int i) {
+        return joins.get(i);
+    }
+
+    /** @return the vertex of the first table of join i, as a single-bit set */
+    long joinLeft(int i) {
+        return joinLeft[i];
+    }
+
+    /** @return the connected components of the graph, as sets of vertices */
+    List<Long> components() {
+        List<Long> result = new ArrayList<>();
+        long remaining = allRelations();
+        while (remaining != 0) {
+            long component = remaining & -remaining;
+            long previous = 0;
+            while (component != previous) {
+                previous = component;
+                component |= neighbors(component);
+            }
+            result.add(component);
+            remaining &= ~component;
+        }
+        return result;
+    }
+}
@@ -3,10 +3,15 @@ package simpledb.optimizer;
 import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.storage.DbFile;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
 
+import java.awt.GraphicsEnvironment;
+
 import javax.swing.*;
 import javax.swing.tree.*;
 
@@ -16,6 +21,11 @@ import javax.swing.tree.*;
  * logical plan.
  */
 public class JoinOptimizer {
+    /** Default for {@link #setGreedyThreshold}. */
+    public static final int DEFAULT_GREEDY_THRESHOLD = 14;
+
+    private static volatile int greedyThreshold = DEFAULT_GREEDY_THRESHOLD;
+
     final LogicalPlan p;
     final List<LogicalJoinNode> joins;
 
@@ -32,6 +42,22 @@ public class JoinOptimizer {
         this.joins = joins;
     }
 
+    /**
+     * Set the largest number of joins that {@link #orderJoins} orders by
+     * exhaustive dynamic programming; queries with more joins are ordered
+     * greedily.
+     */
+    public static void setGreedyThreshold(int joins) {
+        if (joins < 0) {
+            throw new IllegalArgumentException("joins must not be negative");
+        }
+        greedyThreshold = joins;
+    }
+
+    public static int getGreedyThreshold() {
+        return greedyThreshold;
+    }
+
     /**
      * Return best iterator for computing a given logical join, given the
      * specified statistics, and the provided left and right subplans. Note that
@@ -73,34 +99,116 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        if (lj.p == Predicate.Op.EQUALS) {
+        LogicalJoinNode.Algorithm algorithm = lj.algorithm != null ? lj.algorithm : defaultAlgorithm(lj);
+        switch (algorithm) {
+            case HASH:
+                if (lj.p != Predicate.Op.EQUALS) {
+                    throw new ParsingException("Hash join requires an equality predicate: " + lj);
+                }
+                return new HashEquiJoin(p, plan1, plan2);
+            case INDEX_NESTED_LOOPS:
+                IndexPredicate probe = findIndexProbe(plan2);
+                if (lj.p != Predicate.Op.EQUALS || probe == null) {
+                    throw new ParsingException("Index nested-loop join requires an equality predicate and "
+                            + "an EQUALS index scan as inner input: " + lj);
+                }
+                return new IndexNestedLoopJoin(p, plan1, plan2, probe);
+            case SORT_MERGE:
+                if (!isApplicable(lj, algorithm)) {
+                    throw new ParsingException("Sort-merge join requires an equality or range predicate: " + lj);
+                }
+                return new SortMergeJoin(p, plan1, plan2, isSortedOn(plan1, t1id), isSortedOn(plan2, t2id));
+            default:
+                return new Join(p, plan1, plan2);
+        }
+    }
 
-            try {
-                // dynamically load HashEquiJoin -- if it doesn't exist, just
-                // fall back on regular join
-                Class<?> c = Class.forName("simpledb.execution.HashEquiJoin");
-                java.lang.reflect.Constructor<?> ct = c.getConstructors()[0];
-                j = (OpIterator) ct
-                        .newInstance(new Object[] { p, plan1, plan2 });
-            } catch (Exception e) {
-                j = new Join(p, plan1, plan2);
+    /** @return the EQUALS predicate of the index scan below the filters of plan, or null if there is none */
+    private static IndexPredicate findIndexProbe(OpIterator plan) {
+        while (plan instanceof Filter) {
+            plan = ((Filter) plan).getChildren()[0];
+        }
+        if (plan instanceof BTreeScan) {
+            IndexPredicate ipred = ((BTreeScan) plan).getIndexPredicate();
+            if (ipred != null && ipred.getOp() == Predicate.Op.EQUALS) {
+                return ipred;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if plan returns its tuples in ascending order of the
+     *         field: a scan of a B+ tree keyed on the field (B+ tree files
+     *         are scanned in key order), an ascending ORDER BY or top-n of
+     *         the field, or a sort-merge join whose output is ordered by it,
+     *         possibly below filters and limits
+     */
+    static boolean isSortedOn(OpIterator plan, int field) {
+        while (plan instanceof Filter || plan instanceof Limit) {
+            plan = ((Operator) plan).getChildren()[0];
+        }
+        if (plan instanceof SeqScan || plan instanceof BTreeScan) {
+            String table = plan instanceof SeqScan ? ((SeqScan) plan).getTableName() : ((BTreeScan) plan).getTableName();
+            DbFile file = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId(table));
+            return file instanceof BTreeFile && ((BTreeFile) file).keyField() == field;
+        }
+        if (plan instanceof OrderBy) {
+            return ((OrderBy) plan).isASC() && ((OrderBy) plan).getOrderByField() == field;
+        }
+        if (plan instanceof TopN) {
+            return ((TopN) plan).isASC() && ((TopN) plan).getOrderByField() == field;
+        }
+        if (plan instanceof SortMergeJoin) {
+            JoinPredicate jp = ((SortMergeJoin) plan).getJoinPredicate();
+            OpIterator[] children = ((SortMergeJoin) plan).getChildren();
+            int n1 = children[0].getTupleDesc().numFields();
+            switch (jp.getOperator()) {
+                case EQUALS:
+                    return field == jp.getField1() || field == n1 + jp.getField2();
+                case GREATER_THAN:
+                case GREATER_THAN_OR_EQ:
+                    // 输出保持只读一遍的一侧的顺序
+                    return field < n1 && isSortedOn(children[0], field);
+                default:
+                    return field >= n1 && isSortedOn(children[1], field - n1);
             }
-        } else {
-            j = new Join(p, plan1, plan2);
         }
+        return false;
+    }
 
-        return j;
+    /** @return the physical join used when the optimizer did not choose one */
+    private static LogicalJoinNode.Algorithm defaultAlgorithm(LogicalJoinNode j) {
+        return j.p == Predicate.Op.EQUALS ? LogicalJoinNode.Algorithm.HASH : LogicalJoinNode.Algorithm.NESTED_LOOPS;
+    }
 
+    /**
+     * @return true if algorithm can evaluate the predicate of j on any
+     *         inputs. An index nested-loop join also depends on its inner
+     *         input, and is considered separately (see
+     *         {@link #estimateIndexJoinCost}).
+     */
+    private static boolean isApplicable(LogicalJoinNode j, LogicalJoinNode.Algorithm algorithm) {
+        switch (algorithm) {
+            case HASH:
+                return j.p == Predicate.Op.EQUALS;
+            case INDEX_NESTED_LOOPS:
+                return false;
+            case SORT_MERGE:
+                return j.p != Predicate.Op.NOT_EQUALS && j.p != Predicate.Op.LIKE;
+            default:
+                return true;
+        }
     }
 
     /**
-     * Estimate the cost of a join.
+     * Estimate the cost of a join, evaluated with the cheapest physical join
+     * that applies to its predicate (see {@link #chooseJoinAlgorithm}).
      * 
-     * The cost of the join should be calculated based on the join algorithm (or
-     * algorithms) that you implemented for Lab 2. It should be a function of
-     * the amount of data that must be read over the course of the query, as
-     * well as the number of CPU opertions performed by your join. Assume that
-     * the cost of a single predicate application is roughly 1.
+     * The cost of the join is a function of the amount of data that must be
+     * read over the course of the query, as well as the number of CPU
+     * opertions performed by the join. Assume that the cost of a single
+     * predicate application is roughly 1.
      * 
      * 
      * @param j
@@ -121,21 +229,250 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
+        Map<String, TableStats> stats = TableStats.getStatsMap();
+        return estimateJoinCost(j, chooseJoinAlgorithm(j, card1, card2, cost1, cost2, stats),
+                card1, card2, cost1, cost2, stats);
+    }
+
+    /**
+     * Return the physical join with the lowest estimated cost for j, given
+     * the cardinalities and costs of its inputs. See
+     * {@link #estimateJoinCost(LogicalJoinNode, int, int, double, double)}.
+     *
+     * @param stats
+     *            The statistics of the tables in the query
+     */
+    public LogicalJoinNode.Algorithm chooseJoinAlgorithm(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, Map<String, TableStats> stats) {
+        if (j instanceof LogicalSubplanJoinNode) {
+            // 子查询的代价和基数未知，按谓词选
+            return defaultAlgorithm(j);
+        }
+        LogicalJoinNode.Algorithm best = null;
+        double bestCost = Double.MAX_VALUE;
+        for (LogicalJoinNode.Algorithm algorithm : LogicalJoinNode.Algorithm.values()) {
+            if (!isApplicable(j, algorithm)) {
+                continue;
+            }
+            double cost = estimateJoinCost(j, algorithm, card1, card2, cost1, cost2, stats);
+            if (best == null || cost < bestCost) {
+                best = algorithm;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Estimate the cost of evaluating j with a particular physical join.
+     * Costs are in the units of {@link TableStats#estimateScanCost()}, with
+     * one unit of CPU work per tuple read from a hash table or compared.
+     * <ul>
+     * <li>Block nested loops rescan the inner input once per block of
+     * {@link Join#blockSize} outer tuples and compare every pair:
+     * cost1 + blocks * cost2 + card1 * card2. The block size is estimated
+     * from the tuple width of the outer join table.</li>
+     * <li>A hash join reads both inputs once and hashes every tuple:
+     * cost1 + cost2 + card1 + card2. When the outer (build) input has more
+     * than {@link HashEquiJoin#MAP_SIZE} tuples, both inputs are also
+     * written to partition files and read back, which costs the I/O of
+     * two scans of pages of {@link Join#blockSize} tuples each.</li>
+     * <li>An index nested-loop join is costed by
+     * {@link #estimateIndexJoinCost}, with the statistics of the inner
+     * table taken from stats.</li>
+     * <li>A sort-merge join is costed by {@link #estimateSortMergeJoinCost}
+     * as if neither input were already sorted.</li>
+     * </ul>
+     *
+     * @param j
+     *            A LogicalJoinNode representing the join operation being
+     *            performed.
+     * @param algorithm
+     *            The physical join; must be applicable to the predicate of j
+     * @param card1
+     *            Estimated cardinality of the left-hand side of the query
+     * @param card2
+     *            Estimated cardinality of the right-hand side of the query
+     * @param cost1
+     *            Estimated cost of one full scan of the left-hand side
+     * @param cost2
+     *            Estimated cost of one full scan of the right-hand side
+     * @param stats
+     *            The statistics of the tables in the query
+     * @return An estimate of the cost of this query, in terms of cost1 and
+     *         cost2
+     */
+    public double estimateJoinCost(LogicalJoinNode j, LogicalJoinNode.Algorithm algorithm,
+            int card1, int card2, double cost1, double cost2, Map<String, TableStats> stats) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
             return card1 + cost1 + cost2;
-        } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            double IOCost = cost1 + card1 * cost2;
-            double CPUCost = card1 * card2;
-            return IOCost + CPUCost;
+        }
+        switch (algorithm) {
+            case HASH:
+                double hashCost = cost1 + cost2 + card1 + card2;
+                if (card1 > HashEquiJoin.MAP_SIZE) {
+                    // 外侧放不进内存，两侧都要写出分区再读回
+                    double pages = Math.ceil(((double) card1 + card2) / outerBlockSize(j));
+                    hashCost += 2 * pages * TableStats.IOCOSTPERPAGE;
+                }
+                return hashCost;
+            case INDEX_NESTED_LOOPS:
+                return estimateIndexJoinCost(j, card1, cost1,
+                        statsOf(j.t2Alias, stats, p.getTableAliasToIdMapping()));
+            case SORT_MERGE:
+                return estimateSortMergeJoinCost(j, card1, card2, cost1, cost2, false, false, stats);
+            default:
+                double blocks = Math.max(1, Math.ceil((double) card1 / outerBlockSize(j)));
+                double IOCost = cost1 + blocks * cost2;
+                double CPUCost = (double) card1 * card2;
+                return IOCost + CPUCost;
         }
     }
 
+    /**
+     * Estimate the cost of evaluating j with an index nested-loop join, whose
+     * inner input is the base table t2 read through its B+ tree on the join
+     * field. The outer input is read once; every distinct join key of a
+     * batch of {@link IndexNestedLoopJoin#BATCH_SIZE} outer tuples costs one
+     * index lookup ({@link TableStats#estimateIndexScanCost} of the fraction
+     * of t2 with one key), and every outer tuple is compared with the inner
+     * tuples of its key:
+     * cost1 + probes * lookup + card1 * card2 / ndv2.
+     * The cost does not depend on the size of t2 beyond the height of its
+     * tree, so the join is chosen when the outer input is small.
+     *
+     * @param innerStats
+     *            The statistics of the base table of t2
+     * @return the estimated cost, or infinity if t2 has no B+ tree on the
+     *         join field
+     */
+    public double estimateIndexJoinCost(LogicalJoinNode j, int card1, double cost1, TableStats innerStats) {
+        int field2 = fieldIndex(j.t2Alias, j.f2PureName, p.getTableAliasToIdMapping());
+        if (innerStats == null || field2 < 0 || j.p != Predicate.Op.EQUALS || !isIndexed(j.t2Alias, j.f2PureName)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double ndv = Math.max(1, innerStats.numDistinctValues(field2));
+        double batches = Math.max(1, Math.ceil((double) card1 / IndexNestedLoopJoin.BATCH_SIZE));
+        // 同一批内相同的键只查找一次
+        double probes = Math.min(card1, batches * ndv);
+        double lookup = innerStats.estimateIndexScanCost(1.0 / ndv);
+        return cost1 + probes * lookup + card1 * (innerStats.totalTuples() / ndv);
+    }
+
+    /**
+     * Estimate the cost of evaluating j with a sort-merge join. Both inputs
+     * are read once, and every input that is not already sorted on its join
+     * field is sorted first, at the cost of card * log2(card) comparisons;
+     * an input of more than {@link SortMergeJoin#SORT_SIZE} tuples is
+     * also written to disk in sorted runs and read back to merge them.
+     * <ul>
+     * <li>An equi-join then merges the sorted inputs:
+     * cost1 + cost2 + sorts + card1 + card2.</li>
+     * <li>A range join sorts only the input on the smaller side of the
+     * predicate, and reads it from the start up to the last match for
+     * every tuple of the other input, so it also costs one unit per output
+     * tuple: cost1 + cost2 + sort + card1 + card2 + output, plus the I/O
+     * of reading the matches again when the sorted input does not fit in
+     * memory. An input that is already sorted is buffered the same way,
+     * so only its sort is saved.</li>
+     * </ul>
+     * Sorted inputs are what make the join cheaper than a hash join for
+     * equality predicates; for range predicates it replaces the cross
+     * product of a nested-loops join.
+     *
+     * @param sorted1
+     *            true if the left-hand side is already sorted on f1
+     * @param sorted2
+     *            true if the right-hand side is already sorted on f2
+     * @param stats
+     *            The statistics of the tables in the query, to estimate the
+     *            output of a range join
+     * @return the estimated cost, or infinity if the predicate of j is
+     *         not supported
+     */
+    public double estimateSortMergeJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean sorted1, boolean sorted2, Map<String, TableStats> stats) {
+        if (!isApplicable(j, LogicalJoinNode.Algorithm.SORT_MERGE) || j instanceof LogicalSubplanJoinNode) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double cost = cost1 + cost2 + card1 + card2;
+        if (j.p == Predicate.Op.EQUALS) {
+            return cost + (sorted1 ? 0 : sortCost(card1, blockSize(j.t1Alias)))
+                    + (sorted2 ? 0 : sortCost(card2, blockSize(j.t2Alias)));
+        }
+        // t1 > t2时排序t2，t1 < t2时排序t1
+        boolean sortSecond = j.p == Predicate.Op.GREATER_THAN || j.p == Predicate.Op.GREATER_THAN_OR_EQ;
+        int sortedCard = sortSecond ? card2 : card1;
+        int sortedBlock = blockSize(sortSecond ? j.t2Alias : j.t1Alias);
+        if (!(sortSecond ? sorted2 : sorted1)) {
+            cost += sortCost(sortedCard, sortedBlock);
+        }
+        double output = estimateTableJoinCardinality(j.p, j.t1Alias, j.t2Alias, j.f1PureName, j.f2PureName,
+                card1, card2, false, false, stats, p.getTableAliasToIdMapping());
+        cost += output;
+        if (sortedCard > SortMergeJoin.SORT_SIZE) {
+            cost += Math.ceil(output / sortedBlock) * TableStats.IOCOSTPERPAGE;
+        }
+        return cost;
+    }
+
+    private static double sortCost(int card, int tuplesPerPage) {
+        double cost = card * (Math.log(Math.max(2, card)) / Math.log(2));
+        if (card > SortMergeJoin.SORT_SIZE) {
+            // 写出有序段再读回归并
+            cost += 2 * Math.ceil((double) card / tuplesPerPage) * TableStats.IOCOSTPERPAGE;
+        }
+        return cost;
+    }
+
+    /** @return the block size of a nested-loops join whose outer tuples are those of table t1 */
+    private int outerBlockSize(LogicalJoinNode j) {
+        return blockSize(j.t1Alias);
+    }
+
+    /** @return the number of tuples of the table of tableAlias that fit in a page, or 1 if it is unknown */
+    private int blockSize(String tableAlias) {
+        Integer tableId = tableAlias == null ? null : p.getTableId(tableAlias);
+        if (tableId == null) {
+            return 1;
+        }
+        try {
+            return Join.blockSize(Database.getCatalog().getTupleDesc(tableId));
+        } catch (NoSuchElementException e) {
+            return 1;
+        }
+    }
+
+    /**
+     * @return the qualified name of the field the table of tableAlias is
+     *         read in ascending order of (the key of a B+ tree file), or
+     *         null if it is in no known order
+     */
+    private String baseOrder(String tableAlias) {
+        Integer tableId = tableAlias == null ? null : p.getTableId(tableAlias);
+        if (tableId == null) {
+            return null;
+        }
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(file instanceof BTreeFile)) {
+            return null;
+        }
+        return tableAlias + "." + file.getTupleDesc().getFieldName(((BTreeFile) file).keyField());
+    }
+
+    /** @return true if the table of tableAlias is a B+ tree keyed on the field */
+    private boolean isIndexed(String tableAlias, String field) {
+        Integer tableId = tableAlias == null ? null : p.getTableId(tableAlias);
+        if (tableId == null) {
+            return false;
+        }
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        return file instanceof BTreeFile
+                && file.getTupleDesc().getFieldName(((BTreeFile) file).keyField()).equals(field);
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -170,6 +507,13 @@ public class JoinOptimizer {
 
     /**
      * Estimate the join cardinality of two tables.
+     * <p>
+     * Equi-joins use |R||S| / max(ndv(R.a), ndv(S.b)), with the distinct
+     * counts of the join columns taken from the table statistics (capped by
+     * the input cardinalities, and equal to them on primary keys). Other
+     * joins apply the selectivity estimated from the histograms of the two
+     * columns to the cross product. Without statistics for both columns the
+     * estimate falls back to primary-key heuristics.
      * */
     public static int estimateTableJoinCardinality(Predicate.Op joinOp,
                                                    String table1Alias, String table2Alias, String field1PureName,
@@ -177,7 +521,18 @@ public class JoinOptimizer {
                                                    boolean t2pkey, Map<String, TableStats> stats,
                                                    Map<String, Integer> tableAliasToId) {
         // some code goes here
+        TableStats stats1 = statsOf(table1Alias, stats, tableAliasToId);
+        TableStats stats2 = statsOf(table2Alias, stats, tableAliasToId);
+        int field1 = fieldIndex(table1Alias, field1PureName, tableAliasToId);
+        int field2 = fieldIndex(table2Alias, field2PureName, tableAliasToId);
+        boolean haveStats = stats1 != null && stats2 != null && field1 >= 0 && field2 >= 0;
+
         if (joinOp == Predicate.Op.EQUALS) {
+            if (haveStats) {
+                double ndv1 = t1pkey ? card1 : Math.min(stats1.numDistinctValues(field1), card1);
+                double ndv2 = t2pkey ? card2 : Math.min(stats2.numDistinctValues(field2), card2);
+                return clampCardinality((double) card1 * card2 / Math.max(1.0, Math.max(ndv1, ndv2)));
+            }
             if (t1pkey && t2pkey) {
                 // 都是主键，join的结果不会超过两者中更小的
                 return Math.min(card1, card2);
@@ -189,48 +544,65 @@ public class JoinOptimizer {
                 return Math.max(card1, card2);
             }
         } else {
+            if (haveStats) {
+                double selectivity = stats1.estimateJoinSelectivity(field1, joinOp, stats2, field2);
+                if (selectivity >= 0) {
+                    return clampCardinality(selectivity * card1 * card2);
+                }
+            }
             // For range scans, it is similarly hard to say anything accurate about sizes.
             // The size of the output should be proportional to the sizes of the inputs.
             // It is fine to assume that a fixed fraction of the cross-product is emitted by range scans (say, 30%)
-            return (int) (0.3 * card1 * card2);
+            return clampCardinality(0.3 * card1 * card2);
         }
     }
 
-    /**
-     * Helper method to enumerate all of the subsets of a given size of a
-     * specified vector.
-     * 
-     * @param v
-     *            The vector whose subsets are desired
-     * @param size
-     *            The size of the subsets of interest
-     * @return a set of all subsets of the specified size
-     */
-    public <T> Set<Set<T>> enumerateSubsets(List<T> v, int size) {
-        Set<Set<T>> els = new HashSet<>();
-        els.add(new HashSet<>());
-        // Iterator<Set> it;
-        // long start = System.currentTimeMillis();
-
-        for (int i = 0; i < size; i++) {
-            Set<Set<T>> newels = new HashSet<>();
-            for (Set<T> s : els) {
-                for (T t : v) {
-                    Set<T> news = new HashSet<>(s);
-                    if (news.add(t))
-                        newels.add(news);
-                }
-            }
-            els = newels;
+    private static TableStats statsOf(String tableAlias, Map<String, TableStats> stats,
+                                      Map<String, Integer> tableAliasToId) {
+        Integer tableId = tableAlias == null ? null : tableAliasToId.get(tableAlias);
+        if (tableId == null) {
+            return null;
+        }
+        try {
+            return stats.get(Database.getCatalog().getTableName(tableId));
+        } catch (NoSuchElementException e) {
+            return null;
         }
+    }
 
-        return els;
+    private static int fieldIndex(String tableAlias, String fieldPureName, Map<String, Integer> tableAliasToId) {
+        Integer tableId = tableAlias == null ? null : tableAliasToId.get(tableAlias);
+        if (tableId == null) {
+            return -1;
+        }
+        try {
+            return Database.getCatalog().getTupleDesc(tableId).fieldNameToIndex(fieldPureName);
+        } catch (NoSuchElementException e) {
+            return -1;
+        }
+    }
 
+    private static int clampCardinality(double card) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(card, 0));
     }
 
     /**
-     * Compute a logical, reasonably efficient join on the specified tables. See
-     * PS4 for hints on how this should be implemented.
+     * Compute a logical, reasonably efficient join on the specified tables.
+     * <p>
+     * Plans are built bottom-up by dynamic programming over the connected
+     * subgraphs of the join graph (DPccp): every pair of disjoint connected
+     * sets of relations linked by a join predicate is visited exactly once,
+     * and the best plan for each set is kept in a {@link PlanCache} keyed by
+     * the set's bitmask. Both inputs of a join may themselves be joins
+     * (bushy plans), and each join is costed with every physical operator
+     * that applies to it; the cheapest is recorded in
+     * {@link LogicalJoinNode#algorithm} of the returned joins.
+     * <p>
+     * The number of connected subgraphs grows exponentially with the number
+     * of joins, so queries with more than {@link #getGreedyThreshold()}
+     * joins are instead ordered greedily, which builds the plan in
+     * polynomial time by repeatedly joining in the table that gives the
+     * cheapest plan.
      * 
      * @param stats
      *            Statistics for each table involved in the join, referenced by
@@ -242,8 +614,8 @@ public class JoinOptimizer {
      * @param explain
      *            Indicates whether your code should explain its query plan or
      *            simply execute it
-     * @return A List<LogicalJoinNode> that stores joins in the left-deep
-     *         order in which they should be executed.
+     * @return A List<LogicalJoinNode> that stores joins in the order in which
+     *         they should be executed.
      * @throws ParsingException
      *             when stats or filter selectivities is missing a table in the
      *             join, or or when another internal error occurs
@@ -252,30 +624,59 @@ public class JoinOptimizer {
             Map<String, TableStats> stats,
             Map<String, Double> filterSelectivities, boolean explain)
             throws ParsingException {
+        return orderJoins(stats, filterSelectivities, Collections.emptyMap(), explain);
+    }
+
+    /**
+     * Order the joins as {@link #orderJoins(Map, Map, boolean)} does, with
+     * the cost of reading each table taken from scanCosts.
+     *
+     * @param scanCosts
+     *            The estimated cost of reading each table through the access
+     *            path chosen for it (such as an index scan), referenced by
+     *            table alias; tables missing from it cost a full scan
+     */
+    public List<LogicalJoinNode> orderJoins(
+            Map<String, TableStats> stats,
+            Map<String, Double> filterSelectivities,
+            Map<String, Double> scanCosts, boolean explain)
+            throws ParsingException {
         // some code goes here
-        //Replace the following
-        // 记录不同join set的最佳组合方式
+        for (LogicalJoinNode j : joins) {
+            if (this.p.getTableId(j.t1Alias) == null)
+                throw new ParsingException("Unknown table " + j.t1Alias);
+            if (!(j instanceof LogicalSubplanJoinNode) && this.p.getTableId(j.t2Alias) == null)
+                throw new ParsingException("Unknown table " + j.t2Alias);
+        }
+
+        JoinGraph graph = new JoinGraph(joins);
         PlanCache planCache = new PlanCache();
-        // 先从1个连接结点开始计算，在此基础上计算2个、3个...
-        for (int len = 1; len <= joins.size(); len++) {
-            // 生成不同大小的子集
-            Set<Set<LogicalJoinNode>> nodeSubSets = enumerateSubsets(joins, len);
-            for (Set<LogicalJoinNode> nodes : nodeSubSets) {
-                CostCard bestPlan = new CostCard();
-                bestPlan.cost = Double.MAX_VALUE;
-                for (LogicalJoinNode node : nodes) {
-                    CostCard costCard = computeCostAndCardOfSubplan(stats, filterSelectivities, node, nodes, bestPlan.cost, planCache);
-                    if (costCard != null && costCard.cost < bestPlan.cost) {
-                        bestPlan = costCard;
-                    }
-                }
-                planCache.addPlan(nodes, bestPlan.cost, bestPlan.card, bestPlan.plan);
+        // 单个关系的代价和基数，子查询的代价和基数按0计
+        for (int v = 0; v < graph.numRelations(); v++) {
+            String alias = graph.alias(v);
+            if (alias == null) {
+                planCache.addPlan(1L << v, 0, 0, 0, null, null, null);
+            } else {
+                TableStats s = stats.get(Database.getCatalog().getTableName(this.p.getTableId(alias)));
+                Double scanCost = scanCosts.get(alias);
+                planCache.addPlan(1L << v, scanCost != null ? scanCost : s.estimateScanCost(),
+                        s.estimateTableCardinality(filterSelectivities.get(alias)), 0, null, null,
+                        baseOrder(alias));
             }
         }
-        // 拿到joins的最佳组合方式
-        List<LogicalJoinNode> plan = planCache.getOrder(new HashSet<>(joins));
+        if (joins.size() > greedyThreshold) {
+            new GreedyOrdering(graph, planCache, stats).run();
+        } else {
+            new DPccp(graph, planCache, stats).run();
+        }
+
+        // 拿到joins的最佳组合方式；不连通的部分各自排好后依次拼接
+        List<LogicalJoinNode> plan = new ArrayList<>(joins.size());
+        for (long component : graph.components()) {
+            appendJoins(graph, planCache, component, plan);
+        }
         if (explain) {
-            printJoins(plan, planCache, stats, filterSelectivities);
+            printJoins(plan, graph, planCache, stats, filterSelectivities);
         }
         return plan;
     }
@@ -283,168 +684,239 @@ public class JoinOptimizer {
     // ===================== Private Methods =================================
 
     /**
-     * This is a helper method that computes the cost and cardinality of joining
-     * joinToRemove to joinSet (joinSet should contain joinToRemove), given that
-     * all of the subsets of size joinSet.size() - 1 have already been computed
-     * and stored in PlanCache pc.
-     * 
-     * @param stats
-     *            table stats for all of the tables, referenced by table names
-     *            rather than alias (see {@link #orderJoins})
-     * @param filterSelectivities
-     *            the selectivities of the filters over each of the tables
-     *            (where tables are indentified by their alias or name if no
-     *            alias is given)
-     * @param joinToRemove
-     *            the join to remove from joinSet
-     * @param joinSet
-     *            the set of joins being considered
-     * @param bestCostSoFar
-     *            the best way to join joinSet so far (minimum of previous
-     *            invocations of computeCostAndCardOfSubplan for this joinSet,
-     *            from returned CostCard)
-     * @param pc
-     *            the PlanCache for this join; should have subplans for all
-     *            plans of size joinSet.size()-1
-     * @return A {@link CostCard} objects desribing the cost, cardinality,
-     *         optimal subplan
-     * @throws ParsingException
-     *             when stats, filterSelectivities, or pc object is missing
-     *             tables involved in join
+     * Shared state of the join enumerators: the join graph, the plans found
+     * so far, and the orientation-dependent inputs of the cost model for
+     * every join.
      */
-    @SuppressWarnings("unchecked")
-    private CostCard computeCostAndCardOfSubplan(
-            Map<String, TableStats> stats,
-            Map<String, Double> filterSelectivities,
-            LogicalJoinNode joinToRemove, Set<LogicalJoinNode> joinSet,
-            double bestCostSoFar, PlanCache pc) throws ParsingException {
-
-        LogicalJoinNode j = joinToRemove;
-
-        List<LogicalJoinNode> prevBest;
-
-        if (this.p.getTableId(j.t1Alias) == null)
-            throw new ParsingException("Unknown table " + j.t1Alias);
-        if (this.p.getTableId(j.t2Alias) == null)
-            throw new ParsingException("Unknown table " + j.t2Alias);
-
-        String table1Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t1Alias));
-        String table2Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t2Alias));
-        String table1Alias = j.t1Alias;
-        String table2Alias = j.t2Alias;
-
-        Set<LogicalJoinNode> news = new HashSet<>(joinSet);
-        news.remove(j);
-
-        double t1cost, t2cost;
-        int t1card, t2card;
-        boolean leftPkey, rightPkey;
-
-        if (news.isEmpty()) { // base case -- both are base relations
-            // 如果news为空，说明之前还没有进行过计算，只需要计算removeNode的代价就可以
-            prevBest = new ArrayList<>();
-            t1cost = stats.get(table1Name).estimateScanCost();
-            t1card = stats.get(table1Name).estimateTableCardinality(
-                    filterSelectivities.get(j.t1Alias));
-            leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            t2cost = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateScanCost();
-            t2card = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateTableCardinality(
-                            filterSelectivities.get(j.t2Alias));
-            rightPkey = table2Alias != null && isPkey(table2Alias,
-                    j.f2PureName);
-        } else {
-            // news is not empty -- figure best way to join j to news
-            prevBest = pc.getOrder(news);
+    private abstract class JoinEnumerator {
+        final JoinGraph graph;
+        final PlanCache pc;
+        final Map<String, TableStats> stats;
+        // 每个join交换内外侧后的结点，以及两侧的连接字段是否为主键
+        private final LogicalJoinNode[] swapped;
+        private final boolean[] pkey1;
+        private final boolean[] pkey2;
+
+        JoinEnumerator(JoinGraph graph, PlanCache pc, Map<String, TableStats> stats) {
+            this.graph = graph;
+            this.pc = pc;
+            this.stats = stats;
+            int n = graph.numJoins();
+            this.swapped = new LogicalJoinNode[n];
+            this.pkey1 = new boolean[n];
+            this.pkey2 = new boolean[n];
+            for (int i = 0; i < n; i++) {
+                LogicalJoinNode j = graph.join(i);
+                swapped[i] = j.swapInnerOuter();
+                pkey1[i] = isPkey(j.t1Alias, j.f1PureName);
+                pkey2[i] = j.t2Alias != null && isPkey(j.t2Alias, j.f2PureName);
+            }
+        }
 
-            // possible that we have not cached an answer, if subset
-            // includes a cross product
-            if (prevBest == null) {
-                return null;
+        abstract void run();
+
+        /**
+         * Consider joining the best plans for the disjoint, connected sets
+         * of relations s1 and s2 in both orders, and keep the cheaper plan
+         * for their union if it beats the one in the cache.
+         */
+        void joinPair(long s1, long s2) {
+            int joinIndex = graph.firstJoinBetween(s1, s2);
+            LogicalJoinNode j = graph.join(joinIndex);
+            long outer = (graph.joinLeft(joinIndex) & s1) != 0 ? s1 : s2;
+            long inner = outer == s1 ? s2 : s1;
+            considerPlan(outer, inner, j, pkey1[joinIndex], pkey2[joinIndex]);
+            // 子查询只能作为内侧
+            if (!(j instanceof LogicalSubplanJoinNode)) {
+                considerPlan(inner, outer, swapped[joinIndex], pkey2[joinIndex], pkey1[joinIndex]);
             }
+        }
 
-            double prevBestCost = pc.getCost(news);
-            int bestCard = pc.getCard(news);
-
-            // estimate cost of right subtree
-            if (doesJoin(prevBest, table1Alias)) { // j.t1 is in prevBest
-                // 如果removeNode的左表在prevBest中，则说明这个removeNode要接在右边
-                t1cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t1card = bestCard;
-                leftPkey = hasPkey(prevBest);
-
-                t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateScanCost();
-                t2card = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateTableCardinality(
-                                filterSelectivities.get(j.t2Alias));
-                rightPkey = j.t2Alias != null && isPkey(j.t2Alias,
-                        j.f2PureName);
-            } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
-                                                        // (both
-                // shouldn't be)
-                // 如果removeNode的右表在prevBest中，则说明这个removeNode要接在左边
-                t2cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t2card = bestCard;
-                rightPkey = hasPkey(prevBest);
-                t1cost = stats.get(table1Name).estimateScanCost();
-                t1card = stats.get(table1Name).estimateTableCardinality(
-                        filterSelectivities.get(j.t1Alias));
-                leftPkey = isPkey(j.t1Alias, j.f1PureName);
+        private void considerPlan(long outer, long inner, LogicalJoinNode j, boolean pkey1, boolean pkey2) {
+            long s = outer | inner;
+            int card1 = pc.getCard(outer);
+            int card2 = pc.getCard(inner);
+            double cost1 = pc.getCost(outer);
+            double cost2 = pc.getCost(inner);
+            LogicalJoinNode.Algorithm algorithm = chooseJoinAlgorithm(j, card1, card2, cost1, cost2, stats);
+            double cost = estimateJoinCost(j, algorithm, card1, card2, cost1, cost2, stats);
+            // 内侧是单个基本表时，还可以用它的索引逐个查找外侧的键
+            if (Long.bitCount(inner) == 1 && !(j instanceof LogicalSubplanJoinNode)) {
+                double indexCost = estimateIndexJoinCost(j, card1, cost1,
+                        statsOf(j.t2Alias, stats, p.getTableAliasToIdMapping()));
+                if (indexCost < cost) {
+                    algorithm = LogicalJoinNode.Algorithm.INDEX_NESTED_LOOPS;
+                    cost = indexCost;
+                }
+            }
+            // 输入已按连接字段有序时，归并连接省去排序
+            boolean sorted1 = j.f1QuantifiedName.equals(pc.getOrder(outer));
+            boolean sorted2 = j.t2Alias != null && j.f2QuantifiedName.equals(pc.getOrder(inner));
+            if ((sorted1 || sorted2) && !(j instanceof LogicalSubplanJoinNode)) {
+                double mergeCost = estimateSortMergeJoinCost(j, card1, card2, cost1, cost2, sorted1, sorted2, stats);
+                if (mergeCost < cost) {
+                    algorithm = LogicalJoinNode.Algorithm.SORT_MERGE;
+                    cost = mergeCost;
+                }
+            }
+            if (pc.contains(s) && pc.getCost(s) <= cost) {
+                return;
+            }
+            int card = estimateJoinCardinality(j, card1, card2, pkey1, pkey2, stats);
+            pc.addPlan(s, cost, card, outer, j, algorithm, outputOrder(j, algorithm, outer, inner));
+        }
 
-            } else {
-                // don't consider this plan if one of j.t1 or j.t2
-                // isn't a table joined in prevBest (cross product)
+        /** @return the field the output of joining outer and inner with the algorithm is sorted on, or null */
+        private String outputOrder(LogicalJoinNode j, LogicalJoinNode.Algorithm algorithm, long outer, long inner) {
+            if (algorithm != LogicalJoinNode.Algorithm.SORT_MERGE) {
                 return null;
             }
+            switch (j.p) {
+                case EQUALS:
+                    return j.f1QuantifiedName;
+                case GREATER_THAN:
+                case GREATER_THAN_OR_EQ:
+                    return pc.getOrder(outer);
+                default:
+                    return pc.getOrder(inner);
+            }
         }
+    }
 
-        // 计算总的join cost，removeNode要分两种情况，一种是初始节点顺序，一种是交换后的节点顺序
-        // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+    /**
+     * DPccp (Moerkotte and Neumann, "Analysis of Two Existing and One New
+     * Dynamic Programming Algorithm for the Generation of Optimal Bushy Join
+     * Trees without Cross Products"): enumerates the connected subgraphs
+     * (csg) of the join graph and, for each, the connected complements (cmp)
+     * adjacent to it, in an order where the plans of both halves of a pair
+     * are final before the pair is visited.
+     */
+    private class DPccp extends JoinEnumerator {
+        DPccp(JoinGraph graph, PlanCache pc, Map<String, TableStats> stats) {
+            super(graph, pc, stats);
+        }
 
-        LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
-        if (cost2 < cost1) {
-            boolean tmp;
-            j = j2;
-            cost1 = cost2;
-            tmp = rightPkey;
-            rightPkey = leftPkey;
-            leftPkey = tmp;
+        @Override
+        void run() {
+            for (int i = graph.numRelations() - 1; i >= 0; i--) {
+                long v = 1L << i;
+                emitCsg(v);
+                enumerateCsgRec(v, upTo(i));
+            }
+        }
+
+        // 编号不大于i的顶点
+        private long upTo(int i) {
+            return i >= 63 ? -1L : (1L << (i + 1)) - 1;
         }
-        if (cost1 >= bestCostSoFar)
-            return null;
 
-        CostCard cc = new CostCard();
+        private void enumerateCsgRec(long s, long excluded) {
+            long n = graph.neighbors(s) & ~excluded & ~s;
+            if (n == 0) {
+                return;
+            }
+            // 按数值递增枚举n的所有非空子集
+            for (long sub = n & -n; sub != 0; sub = (sub - n) & n) {
+                emitCsg(s | sub);
+            }
+            for (long sub = n & -n; sub != 0; sub = (sub - n) & n) {
+                enumerateCsgRec(s | sub, excluded | n);
+            }
+        }
+
+        private void emitCsg(long s1) {
+            long excluded = s1 | upTo(Long.numberOfTrailingZeros(s1));
+            long n = graph.neighbors(s1) & ~excluded;
+            // 按编号从大到小取邻居作为补集的起点
+            for (long rest = n; rest != 0; ) {
+                long v = Long.highestOneBit(rest);
+                rest &= ~v;
+                emitCsgCmp(s1, v);
+                enumerateCmpRec(s1, v, excluded | (n & upTo(Long.numberOfTrailingZeros(v))));
+            }
+        }
 
-        cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
-                rightPkey, stats);
-        cc.cost = cost1;
-        cc.plan = new ArrayList<>(prevBest);
-        cc.plan.add(j); // prevbest is left -- add new join to end
-        return cc;
+        private void enumerateCmpRec(long s1, long s2, long excluded) {
+            long n = graph.neighbors(s2) & ~excluded & ~s2;
+            if (n == 0) {
+                return;
+            }
+            for (long sub = n & -n; sub != 0; sub = (sub - n) & n) {
+                emitCsgCmp(s1, s2 | sub);
+            }
+            for (long sub = n & -n; sub != 0; sub = (sub - n) & n) {
+                enumerateCmpRec(s1, s2 | sub, excluded | n);
+            }
+        }
+
+        private void emitCsgCmp(long s1, long s2) {
+            if (!pc.contains(s1) || !pc.contains(s2)) {
+                return;
+            }
+            joinPair(s1, s2);
+        }
     }
 
     /**
-     * Return true if the specified table is in the list of joins, false
-     * otherwise
+     * Greedy join ordering: starting from each relation in turn, repeatedly
+     * joins in the adjacent relation that gives the cheapest plan, until
+     * the whole connected component is joined. Plans found for a set of
+     * relations are shared between the starting points through the plan
+     * cache, so a later start extends the best plan any earlier start found
+     * for the same set. Takes O(n^3) join estimates for n relations.
      */
-    private boolean doesJoin(List<LogicalJoinNode> joinlist, String table) {
-        for (LogicalJoinNode j : joinlist) {
-            if (j.t1Alias.equals(table)
-                    || (j.t2Alias != null && j.t2Alias.equals(table)))
-                return true;
+    private class GreedyOrdering extends JoinEnumerator {
+        GreedyOrdering(JoinGraph graph, PlanCache pc, Map<String, TableStats> stats) {
+            super(graph, pc, stats);
+        }
+
+        @Override
+        void run() {
+            for (long component : graph.components()) {
+                for (long rest = component; rest != 0; rest &= rest - 1) {
+                    extend(rest & -rest, component);
+                }
+            }
+        }
+
+        private void extend(long s, long component) {
+            while (s != component) {
+                long best = 0;
+                double bestCost = Double.MAX_VALUE;
+                long candidates = graph.neighbors(s) & ~s;
+                for (long rest = candidates; rest != 0; rest &= rest - 1) {
+                    long v = rest & -rest;
+                    joinPair(s, v);
+                    if (pc.getCost(s | v) < bestCost) {
+                        best = v;
+                        bestCost = pc.getCost(s | v);
+                    }
+                }
+                s |= best;
+            }
+        }
+    }
+
+    /**
+     * Append the joins of the best plan for the relations s to order, inputs
+     * first. Joins between the two inputs other than the one chosen by the
+     * plan follow it.
+     */
+    private void appendJoins(JoinGraph graph, PlanCache pc, long s, List<LogicalJoinNode> order) {
+        if (Long.bitCount(s) < 2) {
+            return;
+        }
+        long left = pc.getLeft(s);
+        long right = s & ~left;
+        appendJoins(graph, pc, left, order);
+        appendJoins(graph, pc, right, order);
+        LogicalJoinNode join = pc.getJoin(s);
+        join.algorithm = pc.getAlgorithm(s);
+        order.add(join);
+        List<Integer> between = graph.joinsBetween(left, right);
+        for (int i = 1; i < between.size(); i++) {
+            order.add(graph.join(between.get(i)));
         }
-        return false;
     }
 
     /**
@@ -463,20 +935,6 @@ public class JoinOptimizer {
         return pkey1.equals(field);
     }
 
-    /**
-     * Return true if a primary key field is joined by one of the joins in
-     * joinlist
-     */
-    private boolean hasPkey(List<LogicalJoinNode> joinlist) {
-        for (LogicalJoinNode j : joinlist) {
-            if (isPkey(j.t1Alias, j.f1PureName)
-                    || (j.t2Alias != null && isPkey(j.t2Alias, j.f2PureName)))
-                return true;
-        }
-        return false;
-
-    }
-
     /**
      * Helper function to display a Swing window with a tree representation of
      * the specified list of joins. See {@link #orderJoins}, which may want to
@@ -484,6 +942,8 @@ public class JoinOptimizer {
      * 
      * @param js
      *            the join plan to visualize
+     * @param graph
+     *            the join graph the relation sets in pc refer to
      * @param pc
      *            the PlanCache accumulated whild building the optimal plan
      * @param stats
@@ -493,10 +953,16 @@ public class JoinOptimizer {
      *            (where tables are indentified by their alias or name if no
      *            alias is given)
      */
-    private void printJoins(List<LogicalJoinNode> js, PlanCache pc,
+    private void printJoins(List<LogicalJoinNode> js, JoinGraph graph, PlanCache pc,
             Map<String, TableStats> stats,
             Map<String, Double> selectivities) {
 
+        if (GraphicsEnvironment.isHeadless()) {
+            // 没有图形界面时只打印join顺序
+            System.out.println(js);
+            return;
+        }
+
         JFrame f = new JFrame("Join Plan for " + p.getQuery());
 
         // Set the default close operation for the window,
@@ -513,13 +979,20 @@ public class JoinOptimizer {
 
         // int k;
         DefaultMutableTreeNode root = null, treetop = null;
-        HashSet<LogicalJoinNode> pathSoFar = new HashSet<>();
+        // 每个表当前所在子计划包含的关系
+        Map<String, Long> pathSoFar = new HashMap<>();
         boolean neither;
 
         System.out.println(js);
         for (LogicalJoinNode j : js) {
-            pathSoFar.add(j);
-            System.out.println("PATH SO FAR = " + pathSoFar);
+            long joined = pathSoFar.getOrDefault(j.t1Alias, graph.relation(j.t1Alias))
+                    | pathSoFar.getOrDefault(j.t2Alias, graph.relation(j.t2Alias));
+            for (int v = 0; v < graph.numRelations(); v++) {
+                if ((joined & (1L << v)) != 0 && graph.alias(v) != null) {
+                    pathSoFar.put(graph.alias(v), joined);
+                }
+            }
+            System.out.println("PATH SO FAR = " + pathSoFar.keySet());
 
             String table1Name = Database.getCatalog().getTableName(
                     this.p.getTableId(j.t1Alias));
@@ -529,14 +1002,14 @@ public class JoinOptimizer {
             // Double c = pc.getCost(pathSoFar);
             neither = true;
 
-            root = new DefaultMutableTreeNode("Join " + j + " (Cost ="
-                    + pc.getCost(pathSoFar) + ", card = "
-                    + pc.getCard(pathSoFar) + ")");
+            root = new DefaultMutableTreeNode("Join " + j
+                    + (j.algorithm != null ? " [" + j.algorithm + "]" : "") + (pc.contains(joined)
+                    ? " (Cost =" + pc.getCost(joined) + ", card = " + pc.getCard(joined) + ")" : ""));
             DefaultMutableTreeNode n = m.get(j.t1Alias);
             if (n == null) { // never seen this table before
                 n = new DefaultMutableTreeNode(j.t1Alias
                         + " (Cost = "
-                        + stats.get(table1Name).estimateScanCost()
+                        + pc.getCost(graph.relation(j.t1Alias))
                         + ", card = "
                         + stats.get(table1Name).estimateTableCardinality(
                                 selectivities.get(j.t1Alias)) + ")");
@@ -555,8 +1028,7 @@ public class JoinOptimizer {
                         j.t2Alias == null ? "Subplan"
                                 : (j.t2Alias
                                         + " (Cost = "
-                                        + stats.get(table2Name)
-                                                .estimateScanCost()
+                                        + pc.getCost(graph.relation(j.t2Alias))
                                         + ", card = "
                                         + stats.get(table2Name)
                                                 .estimateTableCardinality(
@@ -570,11 +1042,12 @@ public class JoinOptimizer {
             }
             m.put(j.t2Alias, root);
 
-            // unless this table doesn't join with other tables,
-            // all tables are accessed from root
+            // 两个输入包含的表都挂到新的join结点下
             if (!neither) {
                 for (String key : m.keySet()) {
-                    m.put(key, root);
+                    if ((joined & graph.relation(key)) != 0) {
+                        m.put(key, root);
+                    }
                 }
             }
 
@@ -22,11 +22,24 @@ public class LogicalFilterNode {
     public final String fieldPureName;
     
     public final String fieldQuantifiedName;
+
+    /** The index of the statement parameter compared against, or -1 if the filter compares against c */
+    public final int parameter;
     
     public LogicalFilterNode(String table, String field, Predicate.Op pred, String constant) {
+        this(table, field, pred, constant, -1);
+    }
+
+    /** Create a filter comparing a field against a parameter of a prepared statement */
+    public LogicalFilterNode(String table, String field, Predicate.Op pred, int parameter) {
+        this(table, field, pred, null, parameter);
+    }
+
+    private LogicalFilterNode(String table, String field, Predicate.Op pred, String constant, int parameter) {
         tableAlias = table;
         p = pred;
         c = constant;
+        this.parameter = parameter;
         String[] tmps = field.split("[.]");
         if (tmps.length>1)
             fieldPureName = tmps[tmps.length-1];
@@ -34,4 +47,13 @@ public class LogicalFilterNode {
             fieldPureName=field;
         this.fieldQuantifiedName = tableAlias+"."+fieldPureName;
     }
+
+    /** Return a filter applying the same comparison, against the same constant or parameter, to another field */
+    public LogicalFilterNode onField(String table, String field) {
+        return new LogicalFilterNode(table, field, p, c, parameter);
+    }
+
+    @Override public String toString() {
+        return fieldQuantifiedName + " " + p + " " + (parameter >= 0 ? "?" + (parameter + 1) : c);
+    }
 }
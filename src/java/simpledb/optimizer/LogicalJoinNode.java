@@ -25,6 +25,36 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** The physical join operators the optimizer can choose between */
+    public enum Algorithm {
+        /** {@link simpledb.execution.Join}: rescans the inner input for every block of outer tuples */
+        NESTED_LOOPS,
+        /**
+         * {@link simpledb.execution.HashEquiJoin}: builds a hash table on the
+         * outer input and probes it with the inner input, partitioning both
+         * to disk when the outer input exceeds
+         * {@link simpledb.execution.HashEquiJoin#MAP_SIZE} tuples. Equality
+         * predicates only.
+         */
+        HASH,
+        /**
+         * {@link simpledb.execution.IndexNestedLoopJoin}: looks up the join
+         * key of every outer tuple in the B+ tree of the inner table.
+         * Equality predicates only, with a base table indexed on the join
+         * field as the inner input.
+         */
+        INDEX_NESTED_LOOPS,
+        /**
+         * {@link simpledb.execution.SortMergeJoin}: merges the inputs in
+         * order of their join fields, sorting those that are not already
+         * ordered. Equality and range (&lt;, &lt;=, &gt;, &gt;=) predicates.
+         */
+        SORT_MERGE
+    }
+
+    /** The physical join chosen by the optimizer, or null to pick one by the predicate when the plan is built */
+    public Algorithm algorithm;
+
     public LogicalJoinNode() {
     }
 
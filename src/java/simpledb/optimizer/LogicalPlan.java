@@ -4,6 +4,8 @@ import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.common.Type;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionId;
 
@@ -15,9 +17,9 @@ import java.io.File;
  * the parser and is ready to be processed by the optimizer.
  * <p>
  * A LogicalPlan consits of a collection of table scan nodes, join
- * nodes, filter nodes, a select list, and a group by field.
- * LogicalPlans can only represent queries with one aggregation field
- * and one group by field.
+ * nodes, filter nodes, a select list, and a list of group by fields.
+ * All aggregates of the select list are computed by one
+ * {@link Aggregate} operator.
  * <p>
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
@@ -25,6 +27,11 @@ import java.io.File;
  * best implementations for joins.
  */
 public class LogicalPlan {
+    // 物理计划中并行算子使用的线程数，1表示不并行
+    private static volatile int parallelism = 1;
+    // 估计不超过这么多元组的join输入广播给各线程，而不是两侧都重新分区
+    private static final int BROADCAST_TUPLES = 1000;
+
     private List<LogicalJoinNode> joins;
     private final List<LogicalScanNode> tables;
     private final List<LogicalFilterNode> filters;
@@ -32,17 +39,59 @@ public class LogicalPlan {
     private final Map<String,Integer> tableMap;
 
     private final List<LogicalSelectListNode> selectList;
-    private String groupByField = null;
-    private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
+    private final List<String> groupByFields = new ArrayList<>();
+    // 每个聚合的运算与字段，按加入的顺序
+    private final List<String> aggOps = new ArrayList<>();
+    private final List<String> aggFields = new ArrayList<>();
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
+    private boolean hasLimit = false;
+    private int limit;
     private String query;
+    private String planKey;
+    // 预编译语句各参数的类型，以及最近一次physicalPlan中比较该参数的谓词；子查询与外层查询共用
+    private final List<Type> parameterTypes;
+    private final List<List<Predicate>> parameterPredicates;
+    private final List<List<IndexPredicate>> parameterIndexPredicates;
 //    private Query owner;
 
+    /**
+     * Set the number of threads that operators of physical plans built from
+     * now on may use; 1 (the default) runs every query on the calling
+     * thread. Filtered scans of heap files are run by a {@link ParallelScan},
+     * and aggregates over a scan of a heap file are computed in parallel
+     * (see {@link Aggregate#setParallelism}). Hash joins run one copy on each
+     * thread below a {@link Gather}, over {@link HashRepartition}s of both
+     * inputs on the join keys, or a {@link Broadcast} of a small input when
+     * the other one is scanned in parallel; grouped aggregates over such a
+     * parallel input do the same over a repartition on the group by fields.
+     */
+    public static void setParallelism(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        parallelism = threads;
+    }
+
+    public static int getParallelism() {
+        return parallelism;
+    }
+
     /** Constructor -- generate an empty logical plan */
     public LogicalPlan() {
+        this(null);
+    }
+
+    /** Constructor -- generate an empty logical plan for a subquery of
+        outer, which shares the parameters of outer: parameters added to
+        either plan are numbered together, in the order they are added.
+
+        @param outer the plan of the enclosing query, or null
+    */
+    public LogicalPlan(LogicalPlan outer) {
+        parameterTypes = outer == null ? new ArrayList<>() : outer.parameterTypes;
+        parameterPredicates = outer == null ? new ArrayList<>() : outer.parameterPredicates;
+        parameterIndexPredicates = outer == null ? new ArrayList<>() : outer.parameterIndexPredicates;
         joins = new ArrayList<>();
         filters = new ArrayList<>();
         tables = new ArrayList<>();
@@ -69,6 +118,22 @@ public class LogicalPlan {
         return query;
     }
 
+    /** Set the key under which the join order of this plan is shared through
+        the {@link QueryPlanCache} with other plans of the same shape: the
+        query text with its literals replaced by placeholders.  Plans without
+        a key (the default) are always optimized from scratch.
+
+        @param planKey the normalized query text, or null
+    */
+    public void setPlanKey(String planKey) {
+        this.planKey = planKey;
+    }
+
+    /** Get the key set via {@link #setPlanKey}. */
+    public String getPlanKey() {
+        return planKey;
+    }
+
     /** Given a table alias, return id of the table object (this id can be supplied to {@link Catalog#getDatabaseFile(int)}).
         Aliases are added as base tables are added via {@link #addScan}.
 
@@ -108,6 +173,53 @@ public class LogicalPlan {
         filters.add(lf);
     }
 
+    /** Add a new filter to the logical plan that compares a field
+     *   against a parameter of a prepared statement; the value is bound
+     *   into the predicates returned by {@link #getParameterPredicates}
+     *   before the physical plan is executed.
+     *   @param field The name of the over which the filter applies, as
+     *   in {@link #addFilter}
+     *   @param p The predicate for the filter
+     *   @return the index of the new parameter, counting from 0
+     *   @throws ParsingException if field is not in one of the tables
+     *   added via {@link #addScan} or if field is ambiguous
+     */
+    public int addParameterFilter(String field, Predicate.Op p) throws ParsingException {
+        field = disambiguateName(field);
+        String table = field.split("[.]")[0];
+        String pureName = field.split("[.]")[1];
+        TupleDesc td = Database.getCatalog().getTupleDesc(getTableId(table));
+
+        int parameter = parameterTypes.size();
+        parameterTypes.add(td.getFieldType(td.fieldNameToIndex(pureName)));
+        parameterPredicates.add(new ArrayList<>());
+        parameterIndexPredicates.add(new ArrayList<>());
+        filters.add(new LogicalFilterNode(table, pureName, p, parameter));
+        return parameter;
+    }
+
+    /** @return the number of parameters added via {@link #addParameterFilter} */
+    public int getParameterCount() {
+        return parameterTypes.size();
+    }
+
+    /** @return the type of the values the parameter must be bound to */
+    public Type getParameterType(int parameter) {
+        return parameterTypes.get(parameter);
+    }
+
+    /** @return the predicates of the last physical plan built by {@link #physicalPlan}
+     *   that compare against the parameter; their operands are null until bound */
+    public List<Predicate> getParameterPredicates(int parameter) {
+        return parameterPredicates.get(parameter);
+    }
+
+    /** @return the index predicates of the last physical plan built by {@link #physicalPlan}
+     *   that compare against the parameter; their fields are null until bound */
+    public List<IndexPredicate> getParameterIndexPredicates(int parameter) {
+        return parameterIndexPredicates.get(parameter);
+    }
+
     /** Add a join between two fields of two different tables.  
      *  @param joinField1 The name of the first join field; this can
      *  be a fully qualified name (e.g., tableName.field or
@@ -159,6 +271,27 @@ public class LogicalPlan {
         joins.add(lj);
     }
 
+    /** Add a join between a field and a subquery that is planned as part
+     *  of this plan by {@link #physicalPlan}, so that filters on the join
+     *  field can be pushed into it.
+     *  @param joinField1 The name of the first join field, as in
+     *  {@link #addJoin(String, OpIterator, Predicate.Op)}
+     *  @param subquery the logical plan of the subquery -- the join field
+     *    of the subquery is the first field in its select list
+     *  @param pred The join predicate.
+     *  @throws ParsingException if the field is ambiguous, or is not in
+     *      one of the tables added via {@link #addScan}
+     */
+    public void addJoin(String joinField1, LogicalPlan subquery, Predicate.Op pred) throws ParsingException {
+        joinField1 = disambiguateName(joinField1);
+
+        String table1 = joinField1.split("[.]")[0];
+        String pureField = joinField1.split("[.]")[1];
+
+        LogicalSubplanJoinNode lj = new LogicalSubplanJoinNode(table1, pureField, subquery, pred);
+        joins.add(lj);
+    }
+
     /** Add a scan to the plan. One scan node needs to be added for each alias of a table
         accessed by the plan.
         @param table the id of the table accessed by the plan (can be resolved to a DbFile using {@link Catalog#getDatabaseFile}
@@ -189,21 +322,33 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.  May be called once for each aggregate of the select
+        list; all of them are computed in one pass.
         @param op the aggregation operator
-        @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param afield the field to aggregate over, or * for COUNT(*)
+        @param gfield a field to group by (see {@link #addGroupBy}), or null
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
         afield=disambiguateName(afield);
+        if (afield.equals("*"))
+            afield="null.*";
+        getAggOp(op);
+        aggOps.add(op);
+        aggFields.add(afield);
         if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
-        hasAgg = true;
+            addGroupBy(gfield);
+    }
+
+    /** Add a field to the GROUP BY list of the query; the query must also
+        have an aggregate (see {@link #addAggregate}).
+        @param gfield the field to group by
+     * @throws ParsingException if the field is not in one of the tables
+    */
+    public void addGroupBy(String gfield) throws ParsingException {
+        gfield=disambiguateName(gfield);
+        if (!groupByFields.contains(gfield))
+            groupByFields.add(gfield);
     }
 
     /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
@@ -219,6 +364,19 @@ public class LogicalPlan {
         hasOrderBy = true;
     }
 
+    /** Return at most n result tuples (a LIMIT clause).  Together with an ORDER BY,
+        the first n tuples of the order are found without sorting the whole result
+        (see {@link TopN}).
+        @param n the largest number of tuples to return
+    */
+    public void addLimit(int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("LIMIT must not be negative");
+        }
+        limit = n;
+        hasLimit = true;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -274,6 +432,294 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** Return the filters of this plan and those pushed into it, followed by
+     *  the filters they imply through equality joins: a.x = b.y AND a.x &lt; 10
+     *  implies b.y &lt; 10, which can then be applied when b is scanned,
+     *  before the join.
+     *  <p>
+     *  A subquery joined on equality is treated as one more field of the
+     *  equivalence class of its join field: filters of the subquery on its
+     *  output field are implied on the join field, and filters implied on
+     *  the join field are added to subqueryFilters, to be pushed into the
+     *  subquery when it is planned. This is only done when the output field
+     *  of the subquery is a plain field (or its GROUP BY field).
+     */
+    private List<LogicalFilterNode> inferFilters(List<LogicalFilterNode> pushed,
+                                                 Map<LogicalPlan, List<LogicalFilterNode>> subqueryFilters) {
+        List<LogicalFilterNode> result = new ArrayList<>(filters);
+        Set<String> seen = new HashSet<>();
+        for (LogicalFilterNode lf : filters) {
+            seen.add(lf.toString());
+        }
+        for (LogicalFilterNode lf : pushed) {
+            if (seen.add(lf.toString())) {
+                result.add(lf);
+            }
+        }
+
+        // 等值join的两个字段属于同一等价类
+        Map<String, String> parent = new HashMap<>();
+        for (LogicalJoinNode lj : joins) {
+            if (lj.p == Predicate.Op.EQUALS && !(lj instanceof LogicalSubplanJoinNode)) {
+                parent.put(findClass(parent, lj.f1QuantifiedName), findClass(parent, lj.f2QuantifiedName));
+            }
+        }
+        Map<String, List<String>> classes = new HashMap<>();
+        for (String field : new ArrayList<>(parent.keySet())) {
+            classes.computeIfAbsent(findClass(parent, field), k -> new ArrayList<>()).add(field);
+        }
+
+        // 子查询输出字段上的过滤条件同样约束与之join的字段
+        for (LogicalJoinNode lj : joins) {
+            LogicalPlan sub = subqueryOf(lj);
+            if (sub != null) {
+                String out = sub.getOutputField();
+                for (LogicalFilterNode lf : sub.inferFilters(Collections.emptyList(), new IdentityHashMap<>())) {
+                    if (lf.fieldQuantifiedName.equals(out)) {
+                        addInferred(result, seen, lf.onField(lj.t1Alias, lj.f1PureName), sub.getFieldType(out));
+                    }
+                }
+            }
+        }
+
+        // 把每个过滤条件复制到等价类中的其他字段上
+        int n = result.size();
+        for (int i = 0; i < n; i++) {
+            LogicalFilterNode lf = result.get(i);
+            List<String> members = classes.get(findClass(parent, lf.fieldQuantifiedName));
+            if (members == null) {
+                continue;
+            }
+            Type type = getFieldType(lf.fieldQuantifiedName);
+            for (String member : members) {
+                String[] parts = member.split("[.]");
+                addInferred(result, seen, lf.onField(parts[0], parts[1]), type);
+            }
+        }
+
+        // 再把join字段上的过滤条件下推到子查询中
+        for (LogicalJoinNode lj : joins) {
+            LogicalPlan sub = subqueryOf(lj);
+            if (sub == null) {
+                continue;
+            }
+            String out = sub.getOutputField();
+            String[] parts = out.split("[.]");
+            Type type = getFieldType(lj.f1QuantifiedName);
+            for (LogicalFilterNode lf : result) {
+                if (lf.fieldQuantifiedName.equals(lj.f1QuantifiedName) && type != null
+                        && type == sub.getFieldType(out)) {
+                    subqueryFilters.computeIfAbsent(sub, k -> new ArrayList<>()).add(lf.onField(parts[0], parts[1]));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static String findClass(Map<String, String> parent, String field) {
+        String p = parent.get(field);
+        if (p == null) {
+            parent.put(field, field);
+            return field;
+        }
+        if (p.equals(field)) {
+            return field;
+        }
+        String root = findClass(parent, p);
+        parent.put(field, root);
+        return root;
+    }
+
+    // 只有类型一致的字段之间才能传递过滤条件
+    private void addInferred(List<LogicalFilterNode> result, Set<String> seen, LogicalFilterNode lf, Type type) {
+        if (type != null && type == getFieldType(lf.fieldQuantifiedName) && seen.add(lf.toString())) {
+            result.add(lf);
+        }
+    }
+
+    /** @return the index of the aggregate of op over the qualified field, or -1 */
+    private int indexOfAggregate(String op, String field) {
+        for (int i = 0; i < aggOps.size(); i++) {
+            if (aggOps.get(i).equalsIgnoreCase(op) && aggFields.get(i).equals(field)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** @return the subquery joined by lj on equality into which filters can be pushed, or null */
+    private static LogicalPlan subqueryOf(LogicalJoinNode lj) {
+        if (!(lj instanceof LogicalSubplanJoinNode) || lj.p != Predicate.Op.EQUALS) {
+            return null;
+        }
+        LogicalPlan sub = ((LogicalSubplanJoinNode) lj).subLogicalPlan;
+        // 带LIMIT的子查询先过滤再取前n个，结果会变
+        return sub != null && !sub.hasLimit && sub.getOutputField() != null ? sub : null;
+    }
+
+    /** @return the qualified name of the field this plan outputs first if it
+     *  is a field of one of its tables (not an aggregate or *), or null */
+    private String getOutputField() {
+        if (selectList.isEmpty()) {
+            return null;
+        }
+        LogicalSelectListNode first = selectList.get(0);
+        if (first.aggOp != null || first.fname.equals("null.*")) {
+            return null;
+        }
+        return first.fname;
+    }
+
+    /** @return the type of a qualified field of one of the tables of this plan, or null if there is no such field */
+    private Type getFieldType(String field) {
+        String[] parts = field.split("[.]");
+        Integer tableId = parts.length == 2 ? getTableId(parts[0]) : null;
+        if (tableId == null) {
+            return null;
+        }
+        try {
+            TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+            return td.getFieldType(td.fieldNameToIndex(parts[1]));
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    /** @return the constant lf compares against, as a field of type, or null if lf compares against a parameter */
+    private static Field filterConstant(LogicalFilterNode lf, Type type) {
+        if (lf.parameter >= 0)
+            return null;
+        else if (type == Type.INT_TYPE)
+            return new IntField(new Integer(lf.c));
+        else
+            return new StringField(lf.c, Type.STRING_LEN);
+    }
+
+    private static double filterSelectivity(LogicalFilterNode lf, TableStats s, int field, Field constant) {
+        if (lf.parameter >= 0) {
+            // 参数值未知，按该字段上的平均选择率估计
+            return s.avgSelectivity(field, lf.p);
+        }
+        return s.estimateSelectivity(field, lf.p, constant);
+    }
+
+    /** Choose how to read a table: in full, or through its B+ tree with
+     *  one of the filters on the key field as the {@link IndexPredicate},
+     *  whichever {@link TableStats} estimates to be cheaper. An index scan
+     *  replaces the table's entry in subplanMap with a {@link BTreeScan}.
+     *  @param filters all the filters of the plan
+     *  @param scanCosts receives the estimated cost of reading the table
+     *    through the chosen access path, by alias
+     *  @return the filter answered by the index scan, or null if the table is
+     *    scanned in full
+     */
+    private LogicalFilterNode chooseAccessPath(TransactionId t, LogicalScanNode table, List<LogicalFilterNode> filters,
+                                               TableStats stats, Map<String, Double> scanCosts, boolean explain) {
+        double scanCost = stats.estimateScanCost();
+        scanCosts.put(table.alias, scanCost);
+        DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+        if (!(file instanceof BTreeFile)) {
+            return null;
+        }
+        int keyField = ((BTreeFile) file).keyField();
+        String keyName = file.getTupleDesc().getFieldName(keyField);
+        Type keyType = file.getTupleDesc().getFieldType(keyField);
+
+        LogicalFilterNode best = null;
+        double bestCost = scanCost;
+        for (LogicalFilterNode lf : filters) {
+            if (!lf.tableAlias.equals(table.alias) || !lf.fieldPureName.equals(keyName)
+                    || lf.p == Predicate.Op.LIKE || lf.p == Predicate.Op.NOT_EQUALS) {
+                continue;
+            }
+            double cost = stats.estimateIndexScanCost(
+                    filterSelectivity(lf, stats, keyField, filterConstant(lf, keyType)));
+            if (cost < bestCost) {
+                best = lf;
+                bestCost = cost;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+
+        IndexPredicate ipred = new IndexPredicate(best.p, filterConstant(best, keyType));
+        if (best.parameter >= 0) {
+            parameterIndexPredicates.get(best.parameter).add(ipred);
+        }
+        subplanMap.put(table.alias, new BTreeScan(t, table.t, table.alias, ipred));
+        scanCosts.put(table.alias, bestCost);
+        if (explain) {
+            System.out.println("Index scan of " + table.alias + " on " + best + " (cost " + bestCost
+                    + ", full scan " + scanCost + ")");
+        }
+        return best;
+    }
+
+    /** @return the plan that the producers of an exchange over plan run: the pipeline of a Gather below it */
+    private static OpIterator producerOf(OpIterator plan) {
+        return plan instanceof Gather ? ((Gather) plan).getChildren()[0] : plan;
+    }
+
+    /** @return the number of threads that can produce plan between them */
+    private static int copiesOf(OpIterator plan) {
+        if (plan instanceof Gather) {
+            return ((Gather) plan).getCopies();
+        }
+        return ParallelScan.isParallelizable(plan) ? parallelism : 1;
+    }
+
+    /** @return the estimated cardinality of the input of a join on the table alias, if it is a scan */
+    private int scanCardinality(String alias, OpIterator plan, Map<String, TableStats> statsMap,
+                                Map<String, Double> filterSelectivities) {
+        if (!ParallelScan.isParallelizable(producerOf(plan)) || !filterSelectivities.containsKey(alias)) {
+            return Integer.MAX_VALUE;
+        }
+        TableStats s = statsMap.get(Database.getCatalog().getTableName(getTableId(alias)));
+        return s == null ? Integer.MAX_VALUE : s.estimateTableCardinality(filterSelectivities.get(alias));
+    }
+
+    /** Run a hash join on every thread: over repartitions of both inputs on
+     *  the join keys, or over a broadcast of a small input when the other one
+     *  can be split among the threads.
+     */
+    private static OpIterator parallelJoin(HashEquiJoin j, int card1, int card2) {
+        OpIterator left = j.getChildren()[0];
+        OpIterator right = j.getChildren()[1];
+        JoinPredicate p = j.getJoinPredicate();
+        // 每个线程只持有哈希表的一部分
+        int memory = Math.max(1, j.getMemoryTuples() / parallelism);
+        OpIterator producer;
+        if (card2 <= BROADCAST_TUPLES && copiesOf(left) == parallelism) {
+            Broadcast[] inner = Broadcast.create(producerOf(right), copiesOf(right), parallelism);
+            producer = new HashEquiJoin(p, producerOf(left), inner[0], memory);
+        } else if (card1 <= BROADCAST_TUPLES && copiesOf(right) == parallelism) {
+            Broadcast[] outer = Broadcast.create(producerOf(left), copiesOf(left), parallelism);
+            producer = new HashEquiJoin(p, outer[0], producerOf(right), memory);
+        } else {
+            HashRepartition[] outer = HashRepartition.create(producerOf(left), copiesOf(left),
+                    new int[]{p.getField1()}, parallelism);
+            HashRepartition[] inner = HashRepartition.create(producerOf(right), copiesOf(right),
+                    new int[]{p.getField2()}, parallelism);
+            producer = new HashEquiJoin(p, outer[0], inner[0], memory);
+        }
+        return new Gather(producer, parallelism);
+    }
+
+    /** Build the inner input of an index nested-loop join: the B+ tree of
+     *  the table read with an EQUALS {@link IndexPredicate} whose value the
+     *  join sets for each probe, below all the filters on the table.
+     */
+    private OpIterator indexProbePlan(TransactionId t, String alias, List<Predicate> predicates) {
+        OpIterator plan = new BTreeScan(t, getTableId(alias), alias, new IndexPredicate(Predicate.Op.EQUALS, null));
+        if (predicates != null) {
+            for (Predicate p : predicates) {
+                plan = new Filter(p, plan);
+            }
+        }
+        return plan;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -288,6 +734,23 @@ public class LogicalPlan {
      *  @return A OpIterator representing this plan.
      */ 
     public OpIterator physicalPlan(TransactionId t, Map<String,TableStats> baseTableStats, boolean explain) throws ParsingException {
+        for (List<Predicate> predicates : parameterPredicates) {
+            predicates.clear();
+        }
+        for (List<IndexPredicate> predicates : parameterIndexPredicates) {
+            predicates.clear();
+        }
+        return physicalPlan(t, baseTableStats, explain, Collections.emptyList());
+    }
+
+    /** Convert this LogicalPlan into a physical plan, applying the filters
+     *  pushed down from an enclosing query in addition to its own.
+     *  @param pushed filters on the fields of this plan implied by the
+     *    enclosing query
+     *  @see #physicalPlan(TransactionId, Map, boolean)
+     */
+    private OpIterator physicalPlan(TransactionId t, Map<String,TableStats> baseTableStats, boolean explain,
+                                    List<LogicalFilterNode> pushed) throws ParsingException {
         Iterator<LogicalScanNode> tableIt = tables.iterator();
         Map<String,String> equivMap = new HashMap<>();
         Map<String,Double> filterSelectivities = new HashMap<>();
@@ -304,12 +767,39 @@ public class LogicalPlan {
             
             subplanMap.put(table.alias,ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
-            statsMap.put(baseTableName, baseTableStats.get(baseTableName));
+            TableStats tableStats = baseTableStats.get(baseTableName);
+            if (tableStats == null) {
+                // 按需从统计文件加载
+                tableStats = TableStats.getTableStats(baseTableName);
+            }
+            statsMap.put(baseTableName, tableStats);
             filterSelectivities.put(table.alias, 1.0);
 
         }
 
-        for (LogicalFilterNode lf : filters) {
+        // 加上由等值join推导出的过滤条件；子查询的在生成其计划时下推
+        Map<LogicalPlan, List<LogicalFilterNode>> subqueryFilters = new IdentityHashMap<>();
+        List<LogicalFilterNode> allFilters = inferFilters(pushed, subqueryFilters);
+        if (explain) {
+            for (int i = filters.size(); i < allFilters.size(); i++) {
+                System.out.println("Inferred filter " + allFilters.get(i));
+            }
+        }
+
+        // 有B+树索引的表，若按某个过滤条件走索引更便宜则改用BTreeScan
+        Map<String, Double> scanCosts = new HashMap<>();
+        Set<LogicalFilterNode> indexFilters = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (LogicalScanNode table : tables) {
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+            LogicalFilterNode lf = chooseAccessPath(t, table, allFilters, s, scanCosts, explain);
+            if (lf != null) {
+                indexFilters.add(lf);
+            }
+        }
+
+        // 每个表上的全部过滤条件，用于重建索引嵌套循环join的内侧
+        Map<String, List<Predicate>> tablePredicates = new HashMap<>();
+        for (LogicalFilterNode lf : allFilters) {
             OpIterator subplan = subplanMap.get(lf.tableAlias);
             if (subplan == null) {
                 throw new ParsingException("Unknown table in WHERE clause " + lf.tableAlias);
@@ -324,10 +814,11 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c));
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            f = filterConstant(lf, ftyp);
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
+            int field = td.fieldNameToIndex(lf.fieldQuantifiedName);
+            double sel = filterSelectivity(lf, s, field, f);
+            filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
             Predicate p = null;
             try {
@@ -335,19 +826,49 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
+            if (lf.parameter >= 0) {
+                parameterPredicates.get(lf.parameter).add(p);
+            }
+            tablePredicates.computeIfAbsent(lf.tableAlias, k -> new ArrayList<>()).add(p);
+            if (indexFilters.contains(lf)) {
+                // 已由索引扫描保证
+                continue;
+            }
             subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
-            TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
-
-            double sel = s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
-            filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
-
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
-        
-        JoinOptimizer jo = new JoinOptimizer(this,joins);
 
-        joins = jo.orderJoins(statsMap,filterSelectivities,explain);
+        // 有过滤条件的堆文件扫描由多个线程按morsel并行执行；没有过滤条件的由聚合自己并行
+        if (parallelism > 1) {
+            for (LogicalScanNode table : tables) {
+                OpIterator subplan = subplanMap.get(table.alias);
+                if (subplan instanceof Filter && ParallelScan.isParallelizable(subplan)) {
+                    subplanMap.put(table.alias, new ParallelScan(subplan, parallelism));
+                }
+            }
+        }
+        
+        // 同样形状的查询直接复用缓存的join顺序
+        QueryPlanCache planCache = Database.getQueryPlanCache();
+        List<LogicalJoinNode> ordered = null;
+        if (planKey != null && !joins.isEmpty()) {
+            ordered = planCache.lookup(planKey, joins, statsMap);
+            if (ordered != null && explain) {
+                System.out.println("Join order from plan cache: " + ordered);
+            }
+        }
+        if (ordered == null) {
+            JoinOptimizer jo = new JoinOptimizer(this,joins);
+            ordered = jo.orderJoins(statsMap,filterSelectivities,scanCosts,explain);
+            if (planKey != null && !joins.isEmpty()) {
+                planCache.put(planKey, joins, ordered, statsMap);
+            }
+        }
+        if (explain && planKey != null) {
+            System.out.println(planCache);
+        }
+        joins = ordered;
 
         for (LogicalJoinNode lj : joins) {
             OpIterator plan1;
@@ -368,9 +889,22 @@ public class LogicalPlan {
             plan1 = subplanMap.get(t1name);
 
             if (isSubqueryJoin) {
-                plan2 = ((LogicalSubplanJoinNode) lj).subPlan;
+                LogicalSubplanJoinNode sj = (LogicalSubplanJoinNode) lj;
+                plan2 = sj.subPlan;
+                if (plan2 == null && sj.subLogicalPlan != null) {
+                    if (explain)
+                        System.out.println("Planning subplan join on " + sj.f1QuantifiedName);
+                    List<LogicalFilterNode> subFilters = subqueryFilters.get(sj.subLogicalPlan);
+                    plan2 = sj.subLogicalPlan.physicalPlan(t, baseTableStats, explain,
+                            subFilters == null ? Collections.emptyList() : subFilters);
+                }
                 if (plan2 == null)
                     throw new ParsingException("Invalid subquery.");
+            } else if (lj.algorithm == LogicalJoinNode.Algorithm.INDEX_NESTED_LOOPS) {
+                if (equivMap.get(lj.t2Alias) != null)
+                    throw new ParsingException("Index nested-loop join needs a base table as inner input: " + lj);
+                plan2 = indexProbePlan(t, lj.t2Alias, tablePredicates.get(lj.t2Alias));
+                subplanMap.put(t2name, plan2);
             } else {
                 plan2 = subplanMap.get(t2name);
             }
@@ -382,6 +916,11 @@ public class LogicalPlan {
 
             OpIterator j;
             j = JoinOptimizer.instantiateJoin(lj, plan1, plan2);
+            if (parallelism > 1 && j instanceof HashEquiJoin) {
+                j = parallelJoin((HashEquiJoin) j,
+                        scanCardinality(t1name, plan1, statsMap, filterSelectivities),
+                        scanCardinality(t2name, plan2, statsMap, filterSelectivities));
+            }
             subplanMap.put(t1name, j);
 
             if (!isSubqueryJoin) {
@@ -408,33 +947,41 @@ public class LogicalPlan {
         OpIterator node = subplanMap.entrySet().iterator().next().getValue();
 
         //walk the select list, to determine order in which to project output fields
+        boolean hasAgg = !aggOps.isEmpty();
         List<Integer> outFields = new ArrayList<>();
         List<Type> outTypes = new ArrayList<>();
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.get(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
+                // 聚合的输出在所有分组字段之后
+                int agg = indexOfAggregate(si.aggOp, si.fname);
+                if (agg < 0) {
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") was not added to the plan");
+                }
+                outFields.add(groupByFields.size() + agg);
                 TupleDesc td = node.getTupleDesc();
 //                int  id;
                 try {
 //                    id = 
-                    td.fieldNameToIndex(si.fname);
+                    if (!si.fname.equals("null.*"))
+                        td.fieldNameToIndex(si.fname);
                 } catch (NoSuchElementException e) {
                     throw new ParsingException("Unknown field " +  si.fname + " in SELECT list");
                 }
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int group = groupByFields.indexOf(si.fname);
+                    if (group < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(group);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -461,18 +1008,47 @@ public class LogicalPlan {
             TupleDesc td = node.getTupleDesc();
             Aggregate aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                int[] aFields = new int[aggOps.size()];
+                Aggregator.Op[] ops = new Aggregator.Op[aggOps.size()];
+                for (int i = 0; i < aFields.length; i++) {
+                    // COUNT(*)数哪个字段都一样
+                    aFields[i] = aggFields.get(i).equals("null.*") ? 0 : td.fieldNameToIndex(aggFields.get(i));
+                    ops[i] = getAggOp(aggOps.get(i));
+                }
+                int[] gFields = new int[groupByFields.size()];
+                for (int i = 0; i < gFields.length; i++) {
+                    gFields[i] = td.fieldNameToIndex(groupByFields.get(i));
+                }
+                if (parallelism > 1 && gFields.length > 0 && node instanceof Gather) {
+                    // 输入已在多个线程上产生时按分组字段重新分区，每个线程聚合一部分分组
+                    HashRepartition[] parts = HashRepartition.create(producerOf(node), copiesOf(node),
+                            gFields, parallelism);
+                    aggNode = new Aggregate(parts[0], aFields, gFields, ops,
+                            Math.max(1, Aggregate.MAP_SIZE / parallelism));
+                    node = new Gather(aggNode, parallelism);
+                } else {
+                    aggNode = new Aggregate(node, aFields, gFields, ops);
+                    aggNode.setParallelism(parallelism);
+                    node = aggNode;
+                }
             } catch (NoSuchElementException | IllegalArgumentException e) {
                 throw new simpledb.ParsingException(e);
             }
-            node = aggNode;
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int field = node.getTupleDesc().fieldNameToIndex(oByField);
+            // 已按该字段升序读出（如扫描以它为键的B+树）时不用排序，LIMIT也能提前停止扫描
+            if (!oByAsc || !JoinOptimizer.isSortedOn(node, field)) {
+                if (hasLimit && limit <= OrderBy.SORT_SIZE) {
+                    node = new TopN(field, oByAsc, limit, node);
+                } else {
+                    node = new OrderBy(field, oByAsc, node);
+                }
+            }
+        }
+        if (hasLimit && !(node instanceof TopN)) {
+            node = new Limit(limit, node);
         }
 
         return new Project(outFields, outTypes, node);
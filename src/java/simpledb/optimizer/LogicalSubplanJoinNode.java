@@ -9,10 +9,24 @@ import simpledb.execution.Predicate;
  */
 public class LogicalSubplanJoinNode extends LogicalJoinNode {
     
-    /** The subplan (used on the inner) of the join */
+    /** The subplan (used on the inner) of the join, or null if it is planned from subLogicalPlan */
     final OpIterator subPlan;
+
+    /** The logical plan of the subquery, or null if the join was created with a physical subplan */
+    final LogicalPlan subLogicalPlan;
     
     public LogicalSubplanJoinNode(String table1, String joinField1, OpIterator sp, Predicate.Op pred) {
+        this(table1, joinField1, sp, null, pred);
+    }
+
+    /** Create a join with a subquery that is planned together with the enclosing query, so that
+     * filters implied by the enclosing query can be pushed into it */
+    public LogicalSubplanJoinNode(String table1, String joinField1, LogicalPlan subquery, Predicate.Op pred) {
+        this(table1, joinField1, null, subquery, pred);
+    }
+
+    private LogicalSubplanJoinNode(String table1, String joinField1, OpIterator sp, LogicalPlan subquery,
+                                   Predicate.Op pred) {
         t1Alias = table1;
         String[] tmps = joinField1.split("[.]");
         if (tmps.length>1)
@@ -21,11 +35,12 @@ public class LogicalSubplanJoinNode extends LogicalJoinNode {
             f1PureName=joinField1;
         f1QuantifiedName=t1Alias+"."+f1PureName;
         subPlan = sp;
+        subLogicalPlan = subquery;
         p = pred;
     }
     
     @Override public int hashCode() {
-        return t1Alias.hashCode() + f1PureName.hashCode() + subPlan.hashCode();
+        return t1Alias.hashCode() + f1PureName.hashCode() + subquery().hashCode();
     }
     
     @Override public boolean equals(Object o) {
@@ -33,11 +48,15 @@ public class LogicalSubplanJoinNode extends LogicalJoinNode {
         if (!(o instanceof LogicalSubplanJoinNode))
             return false;
         
-        return (j2.t1Alias.equals(t1Alias)  && j2.f1PureName.equals(f1PureName) && ((LogicalSubplanJoinNode)o).subPlan.equals(subPlan));
+        return (j2.t1Alias.equals(t1Alias)  && j2.f1PureName.equals(f1PureName) && ((LogicalSubplanJoinNode)o).subquery().equals(subquery()));
+    }
+    
+    private Object subquery() {
+        return subPlan != null ? subPlan : subLogicalPlan;
     }
     
     public LogicalSubplanJoinNode swapInnerOuter() {
-        return new LogicalSubplanJoinNode(t1Alias,f1PureName,subPlan, p);
+        return new LogicalSubplanJoinNode(t1Alias,f1PureName,subPlan,subLogicalPlan, p);
     }
 
 }
@@ -29,8 +29,17 @@ public class OperatorCardinality {
         } else if (o instanceof Join) {
             return updateJoinCardinality((Join) o, tableAliasToId, tableStats);
         } else if (o instanceof HashEquiJoin) {
-            return updateHashEquiJoinCardinality((HashEquiJoin) o,
-                    tableAliasToId, tableStats);
+            HashEquiJoin j = (HashEquiJoin) o;
+            return updateEquiJoinCardinality(j, j.getJoinPredicate(), j.getJoinField1Name(),
+                    j.getJoinField2Name(), tableAliasToId, tableStats);
+        } else if (o instanceof IndexNestedLoopJoin) {
+            IndexNestedLoopJoin j = (IndexNestedLoopJoin) o;
+            return updateEquiJoinCardinality(j, j.getJoinPredicate(), j.getJoinField1Name(),
+                    j.getJoinField2Name(), tableAliasToId, tableStats);
+        } else if (o instanceof SortMergeJoin) {
+            SortMergeJoin j = (SortMergeJoin) o;
+            return updateEquiJoinCardinality(j, j.getJoinPredicate(), j.getJoinField1Name(),
+                    j.getJoinField2Name(), tableAliasToId, tableStats);
         } else if (o instanceof Aggregate) {
             return updateAggregateCardinality((Aggregate) o, tableAliasToId,
                     tableStats);
@@ -49,6 +58,12 @@ public class OperatorCardinality {
                             .estimateTableCardinality(1.0);
                 }
             }
+            // LIMIT最多返回limit个元组
+            if (o instanceof Limit) {
+                childC = Math.min(childC, ((Limit) o).getLimit());
+            } else if (o instanceof TopN) {
+                childC = Math.min(childC, ((TopN) o).getLimit());
+            }
             o.setEstimatedCardinality(childC);
             return hasJoinPK;
         }
@@ -146,9 +161,11 @@ public class OperatorCardinality {
         return child1HasJoinPK || child2HasJoinPK;
     }
 
-    private static boolean updateHashEquiJoinCardinality(HashEquiJoin j,
-                                                         Map<String, Integer> tableAliasToId,
-                                                         Map<String, TableStats> tableStats) {
+    // 哈希join、索引嵌套循环join和归并join共用（归并join的谓词也可以是范围比较）
+    private static boolean updateEquiJoinCardinality(Operator j, JoinPredicate jp,
+                                                     String joinField1Name, String joinField2Name,
+                                                     Map<String, Integer> tableAliasToId,
+                                                     Map<String, TableStats> tableStats) {
 
         OpIterator[] children = j.getChildren();
         OpIterator child1 = children[0];
@@ -156,10 +173,10 @@ public class OperatorCardinality {
         int child1Card = 1;
         int child2Card = 1;
 
-        String[] tmp1 = j.getJoinField1Name().split("[.]");
+        String[] tmp1 = joinField1Name.split("[.]");
         String tableAlias1 = tmp1[0];
         String pureFieldName1 = tmp1[1];
-        String[] tmp2 = j.getJoinField2Name().split("[.]");
+        String[] tmp2 = joinField2Name.split("[.]");
         String tableAlias2 = tmp2[0];
         String pureFieldName2 = tmp2[1];
 
@@ -194,8 +211,7 @@ public class OperatorCardinality {
                     .getTableName()).estimateTableCardinality(1.0);
         }
 
-        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
-                .getJoinPredicate().getOperator(), tableAlias1, tableAlias2,
+        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(jp.getOperator(), tableAlias1, tableAlias2,
                 pureFieldName1, pureFieldName2, child1Card, child2Card,
                 child1HasJoinPK, child2HasJoinPK, tableStats, tableAliasToId));
         return child1HasJoinPK || child2HasJoinPK;
@@ -224,24 +240,25 @@ public class OperatorCardinality {
                     .estimateTableCardinality(1.0);
         }
 
-        String[] tmp = a.groupFieldName().split("[.]");
-        String tableAlias = tmp[0];
-        String pureFieldName = tmp[1];
-        Integer tableId = tableAliasToId.get(tableAlias);
-
-        double groupFieldAvgSelectivity = 1.0;
-        if (tableId != null) {
-            groupFieldAvgSelectivity = tableStats.get(
+        // 分组数不超过各分组字段不同值个数之积
+        double groups = 1.0;
+        for (int i = 0; i < a.groupFields().length; i++) {
+            String[] tmp = a.getTupleDesc().getFieldName(i).split("[.]");
+            Integer tableId = tmp.length == 2 ? tableAliasToId.get(tmp[0]) : null;
+            if (tableId == null) {
+                a.setEstimatedCardinality(childCard);
+                return hasJoinPK;
+            }
+            String pureFieldName = tmp[1];
+            double groupFieldAvgSelectivity = tableStats.get(
                     Database.getCatalog().getTableName(tableId))
                     .avgSelectivity(
                             Database.getCatalog().getTupleDesc(tableId)
                                     .fieldNameToIndex(pureFieldName),
                             Predicate.Op.EQUALS);
-            a.setEstimatedCardinality((int) (Math.min(childCard,
-                    1.0 / groupFieldAvgSelectivity)));
-            return hasJoinPK;
+            groups *= 1.0 / groupFieldAvgSelectivity;
         }
-        a.setEstimatedCardinality(childCard);
+        a.setEstimatedCardinality((int) (Math.min(childCard, groups)));
         return hasJoinPK;
     }
 }
@@ -0,0 +1,232 @@
+package simpledb.optimizer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded LRU cache of join orders, shared by all queries. Entries are
+ * keyed by the text of a query with its literals replaced by placeholders
+ * (see {@link LogicalPlan#setPlanKey}), so queries of the same shape with
+ * different constants reuse the join order, inner/outer orientation and
+ * physical join operators chosen by {@link JoinOptimizer#orderJoins} for
+ * the first of them.
+ * <p>
+ * An entry remembers the {@link TableStats} of every table the query reads
+ * and is dropped when one of them is replaced (after a reanalyze) or its
+ * histograms are rebalanced; small incremental statistics updates do not
+ * invalidate it. Filter selectivities are not part of the key, so the
+ * cached order is the one chosen for the constants of the first query.
+ *
+ * @Threadsafe
+ */
+public class QueryPlanCache {
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /** The join order of one query shape. */
+    private static class Entry {
+        // 非负值为原join列表中的下标，取反表示交换了内外侧
+        final int[] order;
+        final LogicalJoinNode.Algorithm[] algorithms;
+        // 生成计划时各表的统计信息及其版本
+        final String[] tables;
+        final TableStats[] stats;
+        final int[] versions;
+
+        Entry(int[] order, LogicalJoinNode.Algorithm[] algorithms, Map<String, TableStats> statsMap) {
+            this.order = order;
+            this.algorithms = algorithms;
+            this.tables = statsMap.keySet().toArray(new String[0]);
+            this.stats = new TableStats[tables.length];
+            this.versions = new int[tables.length];
+            for (int i = 0; i < tables.length; i++) {
+                stats[i] = statsMap.get(tables[i]);
+                versions[i] = stats[i] == null ? 0 : stats[i].getVersion();
+            }
+        }
+
+        boolean isValid(Map<String, TableStats> statsMap) {
+            for (int i = 0; i < tables.length; i++) {
+                TableStats current = statsMap.get(tables[i]);
+                if (current != stats[i] || current != null && current.getVersion() != versions[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private int capacity;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long invalidations = 0;
+
+    public QueryPlanCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /** @param capacity the largest number of query shapes to keep; 0 disables the cache */
+    public QueryPlanCache(int capacity) {
+        setCapacity(capacity);
+    }
+
+    /** Change the number of query shapes kept, evicting the least recently used ones if necessary. */
+    public synchronized void setCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity must not be negative");
+        }
+        this.capacity = capacity;
+        evict();
+    }
+
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Look up the join order of a query shape and apply it to the joins of a
+     * new plan of that shape.
+     *
+     * @param key the normalized query text
+     * @param joins the joins of the new plan, in the order the parser added them
+     * @param statsMap the statistics the new plan is optimized with, by table name
+     * @return the joins in execution order, with their physical operators
+     *         set, or null if the cache has no valid entry for the key
+     */
+    public synchronized List<LogicalJoinNode> lookup(String key, List<LogicalJoinNode> joins,
+                                                     Map<String, TableStats> statsMap) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (entry.order.length != joins.size() || !entry.isValid(statsMap)) {
+            entries.remove(key);
+            invalidations++;
+            misses++;
+            return null;
+        }
+        hits++;
+        List<LogicalJoinNode> ordered = new ArrayList<>(joins.size());
+        for (int i = 0; i < entry.order.length; i++) {
+            LogicalJoinNode j = entry.order[i] >= 0 ? joins.get(entry.order[i]) : joins.get(~entry.order[i]).swapInnerOuter();
+            j.algorithm = entry.algorithms[i];
+            ordered.add(j);
+        }
+        return ordered;
+    }
+
+    /**
+     * Remember the join order the optimizer chose for a query shape.
+     *
+     * @param key the normalized query text
+     * @param joins the joins of the plan, in the order the parser added them
+     * @param ordered the joins as returned by {@link JoinOptimizer#orderJoins}
+     * @param statsMap the statistics the plan was optimized with, by table name
+     */
+    public synchronized void put(String key, List<LogicalJoinNode> joins, List<LogicalJoinNode> ordered,
+                                 Map<String, TableStats> statsMap) {
+        if (capacity == 0) {
+            return;
+        }
+        int[] order = templateOf(joins, ordered);
+        if (order == null) {
+            return;
+        }
+        LogicalJoinNode.Algorithm[] algorithms = new LogicalJoinNode.Algorithm[ordered.size()];
+        for (int i = 0; i < algorithms.length; i++) {
+            algorithms[i] = ordered.get(i).algorithm;
+        }
+        entries.put(key, new Entry(order, algorithms, statsMap));
+        evict();
+    }
+
+    /**
+     * Express ordered as positions in joins: the same node, or a node with
+     * the inner and outer swapped. Returns null if ordered is not a
+     * permutation of joins.
+     */
+    private static int[] templateOf(List<LogicalJoinNode> joins, List<LogicalJoinNode> ordered) {
+        if (joins.size() != ordered.size()) {
+            return null;
+        }
+        int[] order = new int[ordered.size()];
+        boolean[] used = new boolean[joins.size()];
+        for (int i = 0; i < ordered.size(); i++) {
+            LogicalJoinNode j = ordered.get(i);
+            int position = -1;
+            for (int k = 0; k < joins.size() && position == -1; k++) {
+                if (!used[k] && joins.get(k) == j) {
+                    position = k;
+                }
+            }
+            for (int k = 0; k < joins.size() && position == -1; k++) {
+                if (!used[k] && isSwapOf(joins.get(k), j)) {
+                    position = ~k;
+                }
+            }
+            if (position == -1) {
+                return null;
+            }
+            used[position >= 0 ? position : ~position] = true;
+            order[i] = position;
+        }
+        return order;
+    }
+
+    private static boolean isSwapOf(LogicalJoinNode j, LogicalJoinNode swapped) {
+        return !(j instanceof LogicalSubplanJoinNode)
+                && j.t1Alias.equals(swapped.t2Alias) && j.t2Alias.equals(swapped.t1Alias)
+                && j.f1PureName.equals(swapped.f2PureName) && j.f2PureName.equals(swapped.f1PureName);
+    }
+
+    private void evict() {
+        while (entries.size() > capacity) {
+            String eldest = entries.keySet().iterator().next();
+            entries.remove(eldest);
+            evictions++;
+        }
+    }
+
+    /** Drop every entry; the hit and miss counters are kept. */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /** @return the number of query shapes in the cache */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** @return the number of lookups that found a valid join order */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** @return the number of lookups that had to run the optimizer */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** @return the number of entries dropped to stay within the capacity */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /** @return the number of entries dropped because their statistics changed */
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long lookups = hits + misses;
+        return String.format("Plan cache: %d/%d entries, %d hits, %d misses (%.1f%% hit rate), %d evictions, %d invalidations",
+                entries.size(), capacity, hits, misses, lookups == 0 ? 0.0 : 100.0 * hits / lookups,
+                evictions, invalidations);
+    }
+}
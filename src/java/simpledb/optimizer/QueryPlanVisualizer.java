@@ -5,6 +5,7 @@ import java.util.Arrays;
 import java.util.Iterator;
 
 import simpledb.execution.*;
+import simpledb.index.BTreeScan;
 import simpledb.storage.TupleDesc;
 import simpledb.storage.TupleDesc.TDItem;
 
@@ -12,11 +13,15 @@ public class QueryPlanVisualizer {
 
     static final String JOIN = "⨝";
     static final String HASH_JOIN = "⨝(hash)";
+    static final String INDEX_JOIN = "⨝(index)";
+    static final String MERGE_JOIN = "⨝(merge)";
     static final String SELECT = "σ";
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
+    static final String INDEX_SCAN = "iscan";
     static final String ORDERBY = "o";
+    static final String LIMIT = "limit";
     static final String GROUPBY = "g";
     static final String SPACE = "  ";
 
@@ -29,7 +34,8 @@ public class QueryPlanVisualizer {
         Operator o = (Operator) root;
         OpIterator[] children = o.getChildren();
 
-        if (o instanceof Join || o instanceof HashEquiJoin) {
+        if (o instanceof Join || o instanceof HashEquiJoin || o instanceof IndexNestedLoopJoin
+                || o instanceof SortMergeJoin) {
             int d1 = this.calculateQueryPlanTreeDepth(children[0]);
             int d2 = this.calculateQueryPlanTreeDepth(children[1]);
             return Math.max(d1, d2) + 3;
@@ -67,24 +73,33 @@ public class QueryPlanVisualizer {
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
-            String tableName = s.getTableName();
-            String alias = s.getAlias();
+        if (queryPlan instanceof SeqScan || queryPlan instanceof BTreeScan) {
+            String tableName;
+            String alias;
+            String scan;
+            if (queryPlan instanceof SeqScan) {
+                tableName = ((SeqScan) queryPlan).getTableName();
+                alias = ((SeqScan) queryPlan).getAlias();
+                scan = SCAN;
+            } else {
+                tableName = ((BTreeScan) queryPlan).getTableName();
+                alias = ((BTreeScan) queryPlan).getAlias();
+                scan = INDEX_SCAN;
+            }
 //            TupleDesc td = s.getTupleDesc();
             if (!tableName.equals(alias))
                 alias = " " + alias;
             else
                 alias = "";
             thisNode.text = String
-                    .format("%1$s(%2$s)", SCAN, tableName + alias);
-            if (SCAN.length() / 2 < parentUpperBarStartShift) {
+                    .format("%1$s(%2$s)", scan, tableName + alias);
+            if (scan.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - SCAN.length() / 2;
+                        - scan.length() / 2;
             } else {
-                thisNode.upBarPosition = currentStartPosition + SCAN.length()
+                thisNode.upBarPosition = currentStartPosition + scan.length()
                         / 2;
                 thisNode.textStartPosition = currentStartPosition;
             }
@@ -138,18 +153,29 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = left;
                 thisNode.rightChild = right;
                 thisNode.height = currentDepth;
-            } else if (plan instanceof HashEquiJoin) {
-                HashEquiJoin j = (HashEquiJoin) plan;
-                JoinPredicate jp = j.getJoinPredicate();
-                TupleDesc td = j.getTupleDesc();
+            } else if (plan instanceof HashEquiJoin || plan instanceof IndexNestedLoopJoin
+                    || plan instanceof SortMergeJoin) {
+                JoinPredicate jp;
+                String joinName;
+                if (plan instanceof HashEquiJoin) {
+                    jp = ((HashEquiJoin) plan).getJoinPredicate();
+                    joinName = HASH_JOIN;
+                } else if (plan instanceof SortMergeJoin) {
+                    jp = ((SortMergeJoin) plan).getJoinPredicate();
+                    joinName = MERGE_JOIN;
+                } else {
+                    jp = ((IndexNestedLoopJoin) plan).getJoinPredicate();
+                    joinName = INDEX_JOIN;
+                }
+                TupleDesc td = plan.getTupleDesc();
                 String field1 = td.getFieldName(jp.getField1());
                 String field2 = td.getFieldName(jp.getField2()
                         + children[0].getTupleDesc().numFields());
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", HASH_JOIN, field1
-                        + jp.getOperator() + field2,j.getEstimatedCardinality());
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", joinName, field1
+                        + jp.getOperator() + field2,plan.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
-                if (HASH_JOIN.length() / 2 > parentUpperBarStartShift)
-                    upBarShift = HASH_JOIN.length() / 2;
+                if (joinName.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = joinName.length() / 2;
                 SubTreeDescriptor left = this.buildTree(queryPlanDepth,
                         currentDepth + 3 + adjustDepth, children[0],
                         currentStartPosition, upBarShift);
@@ -158,7 +184,7 @@ public class QueryPlanVisualizer {
                         currentStartPosition + left.width + SPACE.length(), 0);
                 thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - HASH_JOIN.length() / 2;
+                        - joinName.length() / 2;
                 thisNode.width = Math.max(
                         left.width + right.width + SPACE.length(),
                         thisNode.textStartPosition + thisNode.text.length()
@@ -174,14 +200,24 @@ public class QueryPlanVisualizer {
                 TupleDesc td = a.getTupleDesc();
                 int gfield = a.groupField();
 
+                int groups = a.groupFields().length;
+                StringBuilder aggs = new StringBuilder();
+                Aggregator.Op[] ops = a.aggregateOps();
+                for (int i = 0; i < ops.length; i++) {
+                    aggs.append(i > 0 ? ", " : "").append(ops[i]).append("(")
+                            .append(td.getFieldName(groups + i)).append(")");
+                }
                 if (gfield == Aggregator.NO_GROUPING) {
-                    thisNode.text = String.format("%1$s(%2$s),card:%3$d",
-                            a.aggregateOp(), a.aggregateFieldName(),a.getEstimatedCardinality());
+                    thisNode.text = String.format("%1$s,card:%2$d",
+                            aggs, a.getEstimatedCardinality());
                     alignTxt = td.getFieldName(0);
                 } else {
-                    thisNode.text = String.format("%1$s(%2$s), %3$s(%4$s),card:%5$d",
-                            GROUPBY, a.groupFieldName(), a.aggregateOp(),
-                            a.aggregateFieldName(),a.getEstimatedCardinality());
+                    StringBuilder fields = new StringBuilder();
+                    for (int i = 0; i < groups; i++) {
+                        fields.append(i > 0 ? "," : "").append(td.getFieldName(i));
+                    }
+                    thisNode.text = String.format("%1$s(%2$s), %3$s,card:%4$d",
+                            GROUPBY, fields, aggs, a.getEstimatedCardinality());
                     alignTxt = GROUPBY;
                 }
                 if (alignTxt.length() / 2 > parentUpperBarStartShift)
@@ -219,13 +255,24 @@ public class QueryPlanVisualizer {
                                 - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
-            } else if (plan instanceof OrderBy) {
-                OrderBy o = (OrderBy) plan;
-                thisNode.text = String.format(
-                        "%1$s(%2$s),card:%3$d",
-                        ORDERBY,
-                        children[0].getTupleDesc().getFieldName(
-                                o.getOrderByField()),o.getEstimatedCardinality());
+            } else if (plan instanceof OrderBy || plan instanceof TopN || plan instanceof Limit) {
+                if (plan instanceof OrderBy) {
+                    thisNode.text = String.format(
+                            "%1$s(%2$s),card:%3$d",
+                            ORDERBY,
+                            children[0].getTupleDesc().getFieldName(
+                                    ((OrderBy) plan).getOrderByField()),plan.getEstimatedCardinality());
+                } else if (plan instanceof TopN) {
+                    TopN t = (TopN) plan;
+                    thisNode.text = String.format(
+                            "%1$s(%2$s),%3$s(%4$d),card:%5$d",
+                            ORDERBY,
+                            children[0].getTupleDesc().getFieldName(
+                                    t.getOrderByField()), LIMIT, t.getLimit(), plan.getEstimatedCardinality());
+                } else {
+                    thisNode.text = String.format("%1$s(%2$d),card:%3$d", LIMIT,
+                            ((Limit) plan).getLimit(), plan.getEstimatedCardinality());
+                }
                 int upBarShift = parentUpperBarStartShift;
                 if (ORDERBY.length() / 2 > parentUpperBarStartShift)
                     upBarShift = ORDERBY.length() / 2;
@@ -263,15 +310,9 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
             }
-            else if (plan.getClass().getSuperclass().getSuperclass().getSimpleName().equals("Exchange")) {
-                String name="Exchange";
-                int card=0;
-                try {
-                    name = (String) plan.getClass().getMethod("getName").invoke(plan);
-                    card = (Integer) plan.getClass().getMethod("getEstimatedCardinality").invoke(plan);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                } 
+            else if (plan instanceof Exchange) {
+                String name = ((Exchange) plan).getName();
+                int card = ((Exchange) plan).getEstimatedCardinality();
 
                 thisNode.text = String.format("%1$s,card:%2$d", name,card);
                 int upBarShift = parentUpperBarStartShift;
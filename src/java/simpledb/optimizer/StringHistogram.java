@@ -22,6 +22,11 @@ public class StringHistogram {
         hist = new IntHistogram(buckets, minVal(), maxVal());
     }
 
+    /** Wrap an IntHistogram over the string-to-int mapping of this class. */
+    StringHistogram(IntHistogram hist) {
+        this.hist = hist;
+    }
+
     /**
      * Convert a string to an integer, with the property that if the return
      * value(s1) < return value(s2), then s1 < s2
@@ -67,6 +72,31 @@ public class StringHistogram {
         hist.addValue(val);
     }
 
+    /** Remove a value previously added to the histogram */
+    public void removeValue(String s) {
+        hist.removeValue(stringToInt(s));
+    }
+
+    /** @return an empty histogram with the buckets of this one */
+    StringHistogram emptyCopy() {
+        return new StringHistogram(hist.emptyCopy());
+    }
+
+    /** @see IntHistogram#countRemoved */
+    void countRemoved(String s) {
+        hist.countRemoved(stringToInt(s));
+    }
+
+    /** @see IntHistogram#merge */
+    boolean merge(StringHistogram added, StringHistogram removed) {
+        return hist.merge(added.hist, removed.hist);
+    }
+
+    /** @see IntHistogram#reapply */
+    void reapply(StringHistogram added, StringHistogram removed) {
+        hist.reapply(added.hist, removed.hist);
+    }
+
     /**
      * Estimate the selectivity (as a double between 0 and 1) of the specified
      * predicate over the specified string
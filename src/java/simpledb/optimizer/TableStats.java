@@ -4,18 +4,32 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.execution.Predicate;
-import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
 import simpledb.storage.*;
-import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
-import javax.xml.crypto.Data;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * TableStats represents statistics (e.g., histograms) about base tables in a
@@ -29,8 +43,82 @@ public class TableStats {
 
     static final int IOCOSTPERPAGE = 1000;
 
+    /**
+     * Histograms are rebalanced once more than this fraction of the values
+     * added to them fell outside their range.
+     */
+    static final double REBALANCE_THRESHOLD = 0.05;
+
+    private static volatile double reanalyzeThreshold = 0.2;
+
+    // 在后台线程中重新平衡直方图和重新统计
+    private static final ExecutorService maintenanceExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "TableStats-maintenance");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static volatile TableStatsFile statsFile = null;
+    private static volatile int statsFileSampleTuples = 0;
+
+    /**
+     * Return the statistics of a table. If a stats file has been configured
+     * with {@link #setStatsFile} and the table has no statistics in memory
+     * yet, they are loaded from the file, or computed and written to it if
+     * the file has none or the table has changed since they were written.
+     */
     public static TableStats getTableStats(String tablename) {
-        return statsMap.get(tablename);
+        TableStats stats = statsMap.get(tablename);
+        if (stats == null && statsFile != null) {
+            stats = loadTableStats(tablename);
+        }
+        return stats;
+    }
+
+    /**
+     * Persist statistics in the given file and load them lazily from it.
+     *
+     * @param file
+     *            the stats file, or null to keep statistics in memory only
+     * @param sampleTuples
+     *            the sample size used when statistics have to be recomputed,
+     *            or {@link #FULL_SCAN}
+     */
+    public static void setStatsFile(File file, int sampleTuples) {
+        statsFileSampleTuples = sampleTuples;
+        statsFile = file == null ? null : new TableStatsFile(file);
+    }
+
+    private static synchronized TableStats loadTableStats(String tablename) {
+        TableStats stats = statsMap.get(tablename);
+        TableStatsFile file = statsFile;
+        if (stats != null || file == null) {
+            return stats;
+        }
+        int tableId;
+        try {
+            tableId = Database.getCatalog().getTableId(tablename);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
+        try {
+            stats = file.get(tablename, tableId, dbFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (stats == null) {
+            stats = new TableStats(tableId, IOCOSTPERPAGE, statsFileSampleTuples);
+            try {
+                file.put(tablename, dbFile, stats);
+                file.save();
+            } catch (IOException e) {
+                // 写统计文件失败不影响本次查询
+                e.printStackTrace();
+            }
+        }
+        statsMap.put(tablename, stats);
+        return stats;
     }
 
     public static void setTableStats(String tablename, TableStats stats) {
@@ -39,14 +127,9 @@ public class TableStats {
     
     public static void setStatsMap(Map<String,TableStats> s)
     {
-        try {
-            java.lang.reflect.Field statsMapF = TableStats.class.getDeclaredField("statsMap");
-            statsMapF.setAccessible(true);
-            statsMapF.set(null, s);
-        } catch (NoSuchFieldException | IllegalAccessException | IllegalArgumentException | SecurityException e) {
-            e.printStackTrace();
-        }
-
+        // statsMap是final的，替换其内容而不是字段本身
+        statsMap.clear();
+        statsMap.putAll(s);
     }
 
     public static Map<String, TableStats> getStatsMap() {
@@ -54,17 +137,227 @@ public class TableStats {
     }
 
     public static void computeStatistics() {
+        computeStatistics(FULL_SCAN);
+    }
+
+    /**
+     * Compute statistics for every table in the catalog, analyzing several
+     * tables in parallel.
+     *
+     * @param sampleTuples
+     *            the number of tuples to sample from each table, or
+     *            {@link #FULL_SCAN} to read every tuple
+     * @see #sampleSizeFor(double, double)
+     */
+    public static void computeStatistics(int sampleTuples) {
+        List<Integer> tableIds = new ArrayList<>();
         Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+        while (tableIt.hasNext()) {
+            tableIds.add(tableIt.next());
+        }
 
         System.out.println("Computing table stats.");
-        while (tableIt.hasNext()) {
-            int tableid = tableIt.next();
-            TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
-            setTableStats(Database.getCatalog().getTableName(tableid), s);
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(tableIds.size(), Runtime.getRuntime().availableProcessors())));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int tableid : tableIds) {
+                futures.add(executor.submit(() -> {
+                    TableStats s = new TableStats(tableid, IOCOSTPERPAGE, sampleTuples);
+                    setTableStats(Database.getCatalog().getTableName(tableid), s);
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            saveStatistics(tableIds);
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("Failed to compute table stats", e);
+        } finally {
+            executor.shutdown();
         }
         System.out.println("Done.");
     }
 
+    /**
+     * Set the fraction of a table's tuples that may be inserted or deleted
+     * after its statistics were computed before they are recomputed in the
+     * background.
+     */
+    public static void setReanalyzeThreshold(double fraction) {
+        if (fraction <= 0) {
+            throw new IllegalArgumentException("fraction must be positive");
+        }
+        reanalyzeThreshold = fraction;
+    }
+
+    public static double getReanalyzeThreshold() {
+        return reanalyzeThreshold;
+    }
+
+    /**
+     * The changes a transaction made to tables whose statistics are in
+     * memory, applied to those statistics by {@link #applyChanges} once it
+     * commits. Each inserted or deleted tuple is folded into per-column
+     * deltas and is not kept. Tables without statistics in memory are
+     * skipped; they are computed from the current contents when first
+     * needed.
+     */
+    public static class Changes {
+        private final Map<Integer, Delta> deltas = new HashMap<>();
+
+        public synchronized void tupleInserted(int tableId, Tuple t) {
+            Delta delta = deltaOf(tableId);
+            if (delta != null) {
+                delta.insert(t);
+            }
+        }
+
+        public synchronized void tupleDeleted(int tableId, Tuple t) {
+            Delta delta = deltaOf(tableId);
+            if (delta != null) {
+                delta.delete(t);
+            }
+        }
+
+        private Delta deltaOf(int tableId) {
+            Delta delta = deltas.get(tableId);
+            if (delta == null) {
+                TableStats stats = loadedStats(tableId);
+                if (stats == null) {
+                    return null;
+                }
+                delta = stats.newDelta();
+                deltas.put(tableId, delta);
+            }
+            return delta;
+        }
+    }
+
+    /** @return the statistics of the table if they are in memory, else null */
+    private static TableStats loadedStats(int tableId) {
+        String tablename;
+        try {
+            tablename = Database.getCatalog().getTableName(tableId);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        TableStats stats = statsMap.get(tablename);
+        return stats != null && stats.tableId == tableId ? stats : null;
+    }
+
+    /**
+     * Update the statistics of the tables a committed transaction modified.
+     */
+    public static void applyChanges(Changes changes) {
+        synchronized (changes) {
+            for (Map.Entry<Integer, Delta> e : changes.deltas.entrySet()) {
+                // 统计信息在事务期间可能被重新计算替换，改到当前的上
+                TableStats stats = loadedStats(e.getKey());
+                if (stats != null) {
+                    stats.apply(e.getValue());
+                }
+            }
+        }
+    }
+
+    // 一个事务对一个表的改变：增删的tuple数，各字段直方图中增删的值，插入值的sketch
+    // （没有sketch的字段记录插入时估计为新的distinct值的个数）
+    private static class Delta {
+        private final TableStats stats;
+        private int inserted;
+        private int deleted;
+        private final IntHistogram[] addedInts;
+        private final IntHistogram[] removedInts;
+        private final StringHistogram[] addedStrings;
+        private final StringHistogram[] removedStrings;
+        private final HyperLogLog[] sketches;
+        private final int[] newDistinct;
+
+        Delta(TableStats stats, int numFields) {
+            this.stats = stats;
+            this.addedInts = new IntHistogram[numFields];
+            this.removedInts = new IntHistogram[numFields];
+            this.addedStrings = new StringHistogram[numFields];
+            this.removedStrings = new StringHistogram[numFields];
+            this.sketches = new HyperLogLog[numFields];
+            this.newDistinct = new int[numFields];
+        }
+
+        void insert(Tuple tuple) {
+            for (int i = 0; i < newDistinct.length; i++) {
+                Field field = tuple.getField(i);
+                if (addedInts[i] != null) {
+                    addedInts[i].addValue(((IntField) field).getValue());
+                } else {
+                    addedStrings[i].addValue(((StringField) field).getValue());
+                }
+                if (sketches[i] != null) {
+                    sketches[i].add(field);
+                } else if (stats.isNewValue(i, field)) {
+                    newDistinct[i]++;
+                }
+            }
+            inserted++;
+        }
+
+        void delete(Tuple tuple) {
+            for (int i = 0; i < newDistinct.length; i++) {
+                Field field = tuple.getField(i);
+                if (removedInts[i] != null) {
+                    removedInts[i].countRemoved(((IntField) field).getValue());
+                } else {
+                    removedStrings[i].countRemoved(((StringField) field).getValue());
+                }
+            }
+            deleted++;
+        }
+    }
+
+    private static void saveStatistics(List<Integer> tableIds) {
+        TableStatsFile file = statsFile;
+        if (file == null) {
+            return;
+        }
+        try {
+            for (int tableid : tableIds) {
+                String tablename = Database.getCatalog().getTableName(tableid);
+                file.put(tablename, Database.getCatalog().getDatabaseFile(tableid), statsMap.get(tablename));
+            }
+            file.save();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Number of tuples to sample so that, with the given confidence, the
+     * fraction of sampled values below any constant is within maxError of
+     * the true fraction (Dvoretzky-Kiefer-Wolfowitz bound). Histogram
+     * bucketing adds its own error on top of this.
+     *
+     * @param maxError
+     *            the maximum absolute error of a selectivity estimate, e.g. 0.01
+     * @param confidence
+     *            the probability that the bound holds, e.g. 0.95
+     */
+    public static int sampleSizeFor(double maxError, double confidence) {
+        if (maxError <= 0 || confidence <= 0 || confidence >= 1) {
+            throw new IllegalArgumentException("maxError must be positive and confidence in (0, 1)");
+        }
+        return (int) Math.ceil(Math.log(2 / (1 - confidence)) / (2 * maxError * maxError));
+    }
+
+    /** Passed as sampleTuples to read the whole table. */
+    public static final int FULL_SCAN = 0;
+
+    /**
+     * Sampling reads this many times the number of pages that would be
+     * needed to hold the sample, so that the reservoir draws from more
+     * pages and is less affected by how tuples are clustered on pages.
+     */
+    static final int PAGE_OVERSAMPLING = 2;
+
     /**
      * Number of bins for the histogram. Feel free to increase this value over
      * 100, though our tests assume that you have at least 100 bins in your
@@ -72,10 +365,25 @@ public class TableStats {
      */
     static final int NUM_HIST_BINS = 100;
 
-    private int tableId;
-    private int ioCostPerPage;
-    private TransactionId tid;
-    private DbFile dbFile;
+    private final int tableId;
+    private final int ioCostPerPage;
+    private final DbFile dbFile;
+    private final int sampleTuples;
+    private int numPages;
+    private int numTuples;
+    // 计算统计信息时的tuple数，及之后增删的tuple数
+    private int analyzedTuples;
+    private int modifications;
+    private boolean maintenancePending;
+    // 直方图每次重新划分后加一，用于判断缓存的计划是否过期
+    private volatile int version;
+    // 每个字段的直方图，按字段类型只有一个非null
+    private final IntHistogram[] intHistograms;
+    private final StringHistogram[] stringHistograms;
+    // 每个字段的distinct值个数
+    private final int[] distinctCounts;
+    // 每个字段的HyperLogLog，抽样统计时为null
+    private final HyperLogLog[] sketches;
 
     /**
      * Create a new TableStats object, that keeps track of statistics on each
@@ -88,6 +396,26 @@ public class TableStats {
      *            sequential-scan IO and disk seeks.
      */
     public TableStats(int tableId, int ioCostPerPage) {
+        this(tableId, ioCostPerPage, FULL_SCAN);
+    }
+
+    /**
+     * Create a new TableStats object from a random sample of the table.
+     * <p>
+     * A random subset of pages is read directly from the DbFile (bypassing
+     * the buffer pool), and a reservoir sample of sampleTuples tuples is
+     * taken from them. Histograms are built from the sample, the tuple count
+     * is scaled up from the pages read, and distinct counts are extrapolated
+     * from the sample. Tables too small to benefit are scanned in full.
+     *
+     * @param tableId
+     *            The table over which to compute statistics
+     * @param ioCostPerPage
+     *            The cost per page of IO.
+     * @param sampleTuples
+     *            The number of tuples to sample, or {@link #FULL_SCAN}
+     */
+    public TableStats(int tableId, int ioCostPerPage, int sampleTuples) {
         // For this function, you'll have to get the
         // DbFile for the table in question,
         // then scan through its tuples and calculate
@@ -98,8 +426,426 @@ public class TableStats {
         // some code goes here
         this.tableId = tableId;
         this.ioCostPerPage = ioCostPerPage;
-        this.tid = new TransactionId();
+        this.sampleTuples = sampleTuples;
+        this.dbFile = Database.getCatalog().getDatabaseFile(tableId);
+        this.numPages = numPages(dbFile, 0);
+
+        TupleDesc td = dbFile.getTupleDesc();
+        int numFields = td.numFields();
+        this.intHistograms = new IntHistogram[numFields];
+        this.stringHistograms = new StringHistogram[numFields];
+        this.distinctCounts = new int[numFields];
+        this.sketches = new HyperLogLog[numFields];
+
+        int samplePages = numPages;
+        if (sampleTuples > 0 && dbFile instanceof HeapFile) {
+            int tuplesPerPage = tuplesPerPage(td);
+            long pagesForSample = ((long) sampleTuples + tuplesPerPage - 1) / tuplesPerPage;
+            samplePages = (int) Math.min(numPages, pagesForSample * PAGE_OVERSAMPLING);
+        }
+
+        if (samplePages < numPages) {
+            try {
+                computeSampledHistograms(td, sampleTuples, samplePages);
+            } catch (TransactionAbortedException | DbException e) {
+                e.printStackTrace();
+                throw new IllegalArgumentException(e);
+            }
+            this.analyzedTuples = numTuples;
+            return;
+        }
+
+        TransactionId tid = new TransactionId();
+        try {
+            computeHistograms(dbFile.iterator(tid), td);
+        } catch (TransactionAbortedException | DbException e) {
+            e.printStackTrace();
+            throw new IllegalArgumentException(e);
+        } finally {
+            // 释放统计扫描拿到的读锁
+            Database.getBufferPool().transactionComplete(tid);
+        }
+        // 不知道页数的文件按扫描到的tuple数估计
+        this.numPages = numPages(dbFile, numTuples);
+        this.analyzedTuples = numTuples;
+    }
+
+    /** Create a TableStats object from statistics written by {@link #writeTo}. */
+    private TableStats(int tableId, DataInputStream in) throws IOException {
+        this.tableId = tableId;
+        this.sampleTuples = statsFileSampleTuples;
         this.dbFile = Database.getCatalog().getDatabaseFile(tableId);
+        this.ioCostPerPage = in.readInt();
+        this.numPages = in.readInt();
+        this.numTuples = in.readInt();
+        this.analyzedTuples = numTuples;
+        int numFields = in.readInt();
+        TupleDesc td = dbFile.getTupleDesc();
+        if (numFields != td.numFields()) {
+            throw new IOException("Stats do not match the schema of table " + tableId);
+        }
+        this.intHistograms = new IntHistogram[numFields];
+        this.stringHistograms = new StringHistogram[numFields];
+        this.distinctCounts = new int[numFields];
+        this.sketches = new HyperLogLog[numFields];
+        for (int i = 0; i < numFields; i++) {
+            distinctCounts[i] = in.readInt();
+            IntHistogram histogram = IntHistogram.readFrom(in);
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                intHistograms[i] = histogram;
+            } else {
+                stringHistograms[i] = new StringHistogram(histogram);
+            }
+            if (in.readBoolean()) {
+                sketches[i] = HyperLogLog.readFrom(in);
+            }
+        }
+    }
+
+    static TableStats readFrom(int tableId, DataInputStream in) throws IOException {
+        return new TableStats(tableId, in);
+    }
+
+    /**
+     * Write these statistics to out. The schema is not written; it is taken
+     * from the catalog when the statistics are read back.
+     */
+    synchronized void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(ioCostPerPage);
+        out.writeInt(numPages);
+        out.writeInt(numTuples);
+        out.writeInt(distinctCounts.length);
+        for (int i = 0; i < distinctCounts.length; i++) {
+            out.writeInt(distinctCounts[i]);
+            (intHistograms[i] != null ? intHistograms[i] : stringHistograms[i].hist).writeTo(out);
+            out.writeBoolean(sketches[i] != null);
+            if (sketches[i] != null) {
+                sketches[i].writeTo(out);
+            }
+        }
+    }
+
+    /** @return an empty delta over the current histograms of these statistics */
+    private synchronized Delta newDelta() {
+        Delta delta = new Delta(this, distinctCounts.length);
+        for (int i = 0; i < distinctCounts.length; i++) {
+            if (intHistograms[i] != null) {
+                delta.addedInts[i] = intHistograms[i].emptyCopy();
+                delta.removedInts[i] = intHistograms[i].emptyCopy();
+            } else {
+                delta.addedStrings[i] = stringHistograms[i].emptyCopy();
+                delta.removedStrings[i] = stringHistograms[i].emptyCopy();
+            }
+            if (sketches[i] != null) {
+                delta.sketches[i] = new HyperLogLog();
+            }
+        }
+        return delta;
+    }
+
+    /** @return true if value would be a new distinct value of the field */
+    private synchronized boolean isNewValue(int field, Field value) {
+        // 唯一列保持唯一，落在空bucket或超出范围的值视为新的distinct值
+        return distinctCounts[field] == numTuples || !(selectivity(field, Predicate.Op.EQUALS, value) > 0);
+    }
+
+    /**
+     * Apply committed inserts and deletes to the tuple count, the histograms
+     * and the distinct counts, and schedule a histogram rebalance or a full
+     * re-analyze in the background when they have drifted too far.
+     */
+    private void apply(Delta delta) {
+        boolean reanalyze;
+        synchronized (this) {
+            int remaining = Math.max(numTuples - delta.deleted, 0);
+            for (int i = 0; i < distinctCounts.length; i++) {
+                // 直方图在事务期间被重建时bucket对不上，按每个bucket的中间值逐个加减
+                if (intHistograms[i] != null && delta.addedInts[i] != null) {
+                    if (!intHistograms[i].merge(delta.addedInts[i], delta.removedInts[i])) {
+                        intHistograms[i].reapply(delta.addedInts[i], delta.removedInts[i]);
+                    }
+                } else if (stringHistograms[i] != null && delta.addedStrings[i] != null) {
+                    if (!stringHistograms[i].merge(delta.addedStrings[i], delta.removedStrings[i])) {
+                        stringHistograms[i].reapply(delta.addedStrings[i], delta.removedStrings[i]);
+                    }
+                }
+                if (sketches[i] != null) {
+                    if (delta.sketches[i] != null) {
+                        sketches[i].merge(delta.sketches[i]);
+                    }
+                    distinctCounts[i] = (int) Math.min(sketches[i].estimate(), remaining + delta.inserted);
+                } else {
+                    int distinct = Math.min(distinctCounts[i], remaining);
+                    int added = delta.sketches[i] != null
+                            ? (int) Math.min(delta.sketches[i].estimate(), delta.inserted) : delta.newDistinct[i];
+                    distinctCounts[i] = distinct == remaining ? distinct + delta.inserted : distinct + added;
+                }
+            }
+            numTuples = remaining + delta.inserted;
+            numPages = numPages(dbFile, numTuples);
+            modifications += delta.inserted + delta.deleted;
+            if (maintenancePending) {
+                return;
+            }
+            reanalyze = modifications >= NUM_HIST_BINS && modifications > reanalyzeThreshold * analyzedTuples;
+            if (!reanalyze && !needsRebalance()) {
+                return;
+            }
+            maintenancePending = true;
+        }
+        maintenanceExecutor.submit(() -> {
+            try {
+                if (reanalyze) {
+                    reanalyze();
+                } else {
+                    rebalanceHistograms();
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                synchronized (this) {
+                    maintenancePending = false;
+                }
+            }
+        });
+    }
+
+    private boolean needsRebalance() {
+        for (IntHistogram histogram : intHistograms) {
+            if (histogram != null && histogram.outOfRangeFraction() > REBALANCE_THRESHOLD) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Widen the int histograms whose range no longer covers the values
+     * inserted since they were built.
+     */
+    public synchronized void rebalanceHistograms() {
+        for (int i = 0; i < intHistograms.length; i++) {
+            if (intHistograms[i] != null && intHistograms[i].outOfRangeFraction() > 0) {
+                intHistograms[i] = intHistograms[i].rebalance();
+            }
+        }
+        version++;
+    }
+
+    /**
+     * @return a counter that changes whenever the estimates of these
+     *         statistics change substantially (when the histograms are
+     *         rebalanced); small incremental updates leave it unchanged
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Recompute the statistics of the table and replace these ones with the
+     * result, unless they have been replaced in the meantime.
+     */
+    private void reanalyze() {
+        String tablename = Database.getCatalog().getTableName(tableId);
+        TableStats stats = new TableStats(tableId, ioCostPerPage, sampleTuples);
+        TableStatsFile file = statsFile;
+        if (statsMap.replace(tablename, this, stats) && file != null) {
+            try {
+                file.put(tablename, dbFile, stats);
+                file.save();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Read samplePages random pages, keep a reservoir of sampleTuples tuples
+     * from them and derive the statistics from the reservoir.
+     */
+    private void computeSampledHistograms(TupleDesc td, int sampleTuples, int samplePages)
+            throws TransactionAbortedException, DbException {
+        Random random = new Random();
+        // Floyd算法随机选取samplePages个不重复的page，按页号顺序读取
+        Set<Integer> chosen = new HashSet<>();
+        for (int j = numPages - samplePages; j < numPages; j++) {
+            int pageNo = random.nextInt(j + 1);
+            chosen.add(chosen.contains(pageNo) ? j : pageNo);
+        }
+        List<Integer> pageNos = new ArrayList<>(chosen);
+        Collections.sort(pageNos);
+
+        List<Tuple> reservoir = new ArrayList<>(sampleTuples);
+        long seen = 0;
+        for (int pageNo : pageNos) {
+            HeapPage page = (HeapPage) dbFile.readPage(new HeapPageId(tableId, pageNo));
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext()) {
+                Tuple tuple = it.next();
+                seen++;
+                if (reservoir.size() < sampleTuples) {
+                    reservoir.add(tuple);
+                } else {
+                    long r = (long) (random.nextDouble() * seen);
+                    if (r < sampleTuples) {
+                        reservoir.set((int) r, tuple);
+                    }
+                }
+            }
+        }
+
+        computeHistograms(new ReservoirIterator(reservoir), td);
+        // 样本上的sketch只反映样本，distinct值个数改用外推估计
+        Arrays.fill(sketches, null);
+        numTuples = (int) Math.round((double) seen * numPages / samplePages);
+        for (int i = 0; i < td.numFields(); i++) {
+            distinctCounts[i] = estimateDistinct(reservoir, i, numTuples);
+        }
+    }
+
+    /**
+     * Extrapolate the number of distinct values of a column from a sample
+     * with the GEE estimator: values seen once in the sample are scaled by
+     * sqrt(N/n), values seen more often are counted once.
+     */
+    private static int estimateDistinct(List<Tuple> sample, int field, int totalTuples) {
+        if (sample.isEmpty()) {
+            return 0;
+        }
+        Map<Field, Integer> frequencies = new HashMap<>();
+        for (Tuple tuple : sample) {
+            frequencies.merge(tuple.getField(field), 1, Integer::sum);
+        }
+        int singletons = 0;
+        for (int count : frequencies.values()) {
+            if (count == 1) {
+                singletons++;
+            }
+        }
+        int repeated = frequencies.size() - singletons;
+        double estimate = Math.sqrt((double) totalTuples / sample.size()) * singletons + repeated;
+        return (int) Math.max(frequencies.size(), Math.min(totalTuples, Math.round(estimate)));
+    }
+
+    /** A DbFileIterator over the in-memory reservoir sample. */
+    private static class ReservoirIterator extends AbstractDbFileIterator {
+        private final List<Tuple> tuples;
+        private Iterator<Tuple> it;
+
+        ReservoirIterator(List<Tuple> tuples) {
+            this.tuples = tuples;
+        }
+
+        @Override
+        public void open() {
+            it = tuples.iterator();
+        }
+
+        @Override
+        public void rewind() {
+            close();
+            open();
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            it = null;
+        }
+
+        @Override
+        protected Tuple readNext() {
+            if (it != null && it.hasNext()) {
+                return it.next();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Scan the table once to collect the tuple count, distinct counts, the
+     * string histograms and the value range of each int column, then once
+     * more to fill the int histograms (their bucket boundaries depend on the
+     * range). Estimates never touch the table afterwards.
+     */
+    private void computeHistograms(DbFileIterator iterator, TupleDesc td)
+            throws TransactionAbortedException, DbException {
+        int numFields = td.numFields();
+        int[] mins = new int[numFields];
+        int[] maxs = new int[numFields];
+        boolean hasIntField = false;
+        for (int i = 0; i < numFields; i++) {
+            mins[i] = Integer.MAX_VALUE;
+            maxs[i] = Integer.MIN_VALUE;
+            sketches[i] = new HyperLogLog();
+            if (td.getFieldType(i) == Type.STRING_TYPE) {
+                stringHistograms[i] = new StringHistogram(NUM_HIST_BINS);
+            } else {
+                hasIntField = true;
+            }
+        }
+
+        iterator.open();
+        numTuples = 0;
+        while (iterator.hasNext()) {
+            Tuple tuple = iterator.next();
+            numTuples++;
+            for (int i = 0; i < numFields; i++) {
+                Field field = tuple.getField(i);
+                sketches[i].add(field);
+                if (field.getType() == Type.INT_TYPE) {
+                    int value = ((IntField) field).getValue();
+                    mins[i] = Math.min(value, mins[i]);
+                    maxs[i] = Math.max(value, maxs[i]);
+                } else {
+                    stringHistograms[i].addValue(((StringField) field).getValue());
+                }
+            }
+        }
+        for (int i = 0; i < numFields; i++) {
+            distinctCounts[i] = (int) Math.min(sketches[i].estimate(), numTuples);
+        }
+
+        if (hasIntField) {
+            // 确定了最大最小值后构造int直方图
+            for (int i = 0; i < numFields; i++) {
+                if (td.getFieldType(i) == Type.INT_TYPE) {
+                    intHistograms[i] = numTuples == 0 ? new IntHistogram(NUM_HIST_BINS, 0, 0)
+                            : new IntHistogram(NUM_HIST_BINS, mins[i], maxs[i]);
+                }
+            }
+            iterator.rewind();
+            while (iterator.hasNext()) {
+                Tuple tuple = iterator.next();
+                for (int i = 0; i < numFields; i++) {
+                    if (intHistograms[i] != null) {
+                        intHistograms[i].addValue(((IntField) tuple.getField(i)).getValue());
+                    }
+                }
+            }
+        }
+        iterator.close();
+    }
+
+    /**
+     * @return the number of pages of dbFile, or for a file that does not
+     *         report it, the number of HeapPages its numTuples tuples
+     *         would fill
+     */
+    private static int numPages(DbFile dbFile, int numTuples) {
+        if (dbFile instanceof HeapFile) {
+            return ((HeapFile) dbFile).numPages();
+        }
+        if (dbFile instanceof BTreeFile) {
+            return ((BTreeFile) dbFile).numPages();
+        }
+        int tuplesPerPage = tuplesPerPage(dbFile.getTupleDesc());
+        return (numTuples + tuplesPerPage - 1) / tuplesPerPage;
+    }
+
+    private static int tuplesPerPage(TupleDesc td) {
+        // 与HeapPage中计算每页tuple数的方式一致
+        return Math.max(1, (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1));
     }
 
     /**
@@ -114,10 +860,41 @@ public class TableStats {
      * 
      * @return The estimated cost of scanning the table.
      */
-    public double estimateScanCost() {
+    public synchronized double estimateScanCost() {
         // some code goes here
-        HeapFile heapFile = (HeapFile) dbFile;
-        return heapFile.numPages() * ioCostPerPage;
+        return numPages * ioCostPerPage;
+    }
+
+    /**
+     * Estimates the cost of reading, through the B+ tree of the table, the
+     * tuples whose key satisfies a predicate with the specified selectivity.
+     * BTreeFiles keep their tuples in the leaf pages, in key order, so
+     * the tuples matching an equality or range predicate on the key lie on
+     * consecutive leaves. Reading them costs one descent from the root
+     * pointer to the first of those leaves (the height of the tree, at the
+     * minimum fanout of half-full internal pages) plus the fraction
+     * selectivity of the leaf pages.
+     *
+     * @param selectivity
+     *            the selectivity of the predicate on the key field
+     * @return The estimated cost of the index scan, in the units of
+     *         {@link #estimateScanCost()}, or infinity if the table is not
+     *         a BTreeFile
+     */
+    public synchronized double estimateIndexScanCost(double selectivity) {
+        if (!(dbFile instanceof BTreeFile)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        BTreeFile file = (BTreeFile) dbFile;
+        // 内部节点相对叶子很少，近似认为所有page都是叶子
+        int leafPages = Math.max(1, numPages);
+        int fanout = Math.max(2, file.maxFanout() / 2);
+        int height = 1;
+        for (long pages = leafPages; pages > 1; pages = (pages + fanout - 1) / fanout) {
+            height++;
+        }
+        double leavesRead = Math.max(1, Math.ceil(Math.min(1.0, Math.max(0.0, selectivity)) * leafPages));
+        return (height + leavesRead) * ioCostPerPage;
     }
 
     /**
@@ -129,7 +906,7 @@ public class TableStats {
      * @return The estimated cardinality of the scan with the specified
      *         selectivityFactor
      */
-    public int estimateTableCardinality(double selectivityFactor) {
+    public synchronized int estimateTableCardinality(double selectivityFactor) {
         // some code goes here
         return (int) (totalTuples() * selectivityFactor);
     }
@@ -144,9 +921,20 @@ public class TableStats {
      * tuple, of which we do not know the value of the field, return the
      * expected selectivity. You may estimate this value from the histograms.
      * */
-    public double avgSelectivity(int field, Predicate.Op op) {
+    public synchronized double avgSelectivity(int field, Predicate.Op op) {
         // some code goes here
-        return 1.0;
+        int distinct = numDistinctValues(field);
+        if (distinct == 0) {
+            return 1.0;
+        }
+        switch (op) {
+            case EQUALS:
+                return 1.0 / distinct;
+            case NOT_EQUALS:
+                return 1.0 - 1.0 / distinct;
+            default:
+                return 1.0;
+        }
     }
 
     /**
@@ -162,83 +950,64 @@ public class TableStats {
      * @return The estimated selectivity (fraction of tuples that satisfy) the
      *         predicate
      */
-    public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
+    public synchronized double estimateSelectivity(int field, Predicate.Op op, Field constant) {
         // some code goes here
+        return selectivity(field, op, constant);
+    }
+
+    private double selectivity(int field, Predicate.Op op, Field constant) {
         Type fieldType = dbFile.getTupleDesc().getFieldType(field);
-        try {
-            switch (fieldType) {
-                case INT_TYPE:
-                    IntHistogram intHistogram = buildIntHistogram(field);
-                    return intHistogram.estimateSelectivity(op, ((IntField) constant).getValue());
-                case STRING_TYPE:
-                    StringHistogram stringHistogram = buildStringHistogram(field);
-                    return stringHistogram.estimateSelectivity(op, ((StringField) constant).getValue());
-                default:
-                    throw new UnsupportedOperationException("Only support int and string");
-            }
-        } catch (TransactionAbortedException | DbException e) {
-            e.printStackTrace();
-            throw new IllegalArgumentException(e);
+        switch (fieldType) {
+            case INT_TYPE:
+                return intHistograms[field].estimateSelectivity(op, ((IntField) constant).getValue());
+            case STRING_TYPE:
+                return stringHistograms[field].estimateSelectivity(op, ((StringField) constant).getValue());
+            default:
+                throw new UnsupportedOperationException("Only support int and string");
         }
     }
 
-    private IntHistogram buildIntHistogram(int field) throws TransactionAbortedException, DbException {
-        DbFileIterator iterator = dbFile.iterator(tid);
-        int max = Integer.MIN_VALUE;
-        int min = Integer.MAX_VALUE;
-        iterator.open();
-        // 确定该字段最大最小值
-        while (iterator.hasNext()) {
-            Tuple tuple = iterator.next();
-            int value = ((IntField) tuple.getField(field)).getValue();
-            max = Math.max(value, max);
-            min = Math.min(value, min);
-        }
-        // 重置iterator
-        iterator.rewind();
-        IntHistogram intHistogram = new IntHistogram(NUM_HIST_BINS, min, max);
-        // 构造直方图
-        while (iterator.hasNext()) {
-            Tuple tuple = iterator.next();
-            int value = ((IntField) tuple.getField(field)).getValue();
-            intHistogram.addValue(value);
+    /**
+     * Estimate the selectivity of the join predicate <tt>field op
+     * other.otherField</tt> over the cross product of this table and other,
+     * from the histograms of the two fields.
+     *
+     * @return the estimated selectivity, or -1 if the fields have no
+     *         comparable histograms
+     */
+    public double estimateJoinSelectivity(int field, Predicate.Op op, TableStats other, int otherField) {
+        IntHistogram histogram;
+        IntHistogram otherHistogram;
+        synchronized (this) {
+            histogram = histogram(field);
+        }
+        synchronized (other) {
+            otherHistogram = other.histogram(otherField);
         }
-        return intHistogram;
+        if (histogram == null || otherHistogram == null
+                || dbFile.getTupleDesc().getFieldType(field) != other.dbFile.getTupleDesc().getFieldType(otherField)) {
+            return -1;
+        }
+        return histogram.estimateJoinSelectivity(op, otherHistogram);
     }
 
-    private StringHistogram buildStringHistogram(int field) throws TransactionAbortedException, DbException {
-        DbFileIterator iterator = dbFile.iterator(tid);
-        iterator.open();
-        StringHistogram stringHistogram = new StringHistogram(NUM_HIST_BINS);
-        while (iterator.hasNext()) {
-            Tuple tuple = iterator.next();
-            String value = ((StringField) tuple.getField(field)).getValue();
-            stringHistogram.addValue(value);
-        }
-        return stringHistogram;
+    private IntHistogram histogram(int field) {
+        return intHistograms[field] != null ? intHistograms[field] : stringHistograms[field].hist;
+    }
+
+    /**
+     * @return the number of distinct values of the specified field
+     */
+    public synchronized int numDistinctValues(int field) {
+        return distinctCounts[field];
     }
 
     /**
      * return the total number of tuples in this table
      * */
-    public int totalTuples() {
+    public synchronized int totalTuples() {
         // some code goes here
-        DbFileIterator iterator = dbFile.iterator(tid);
-        try {
-            int tupleNum = 0;
-            iterator.open();
-            while (iterator.hasNext()) {
-                iterator.next();
-                tupleNum++;
-            }
-            iterator.close();
-            return tupleNum;
-        } catch (DbException e) {
-            e.printStackTrace();
-        } catch (TransactionAbortedException e) {
-            throw new RuntimeException(e);
-        }
-        return -1;
+        return numTuples;
     }
 
 }
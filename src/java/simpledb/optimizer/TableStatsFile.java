@@ -0,0 +1,163 @@
+package simpledb.optimizer;
+
+import simpledb.index.BTreeFile;
+import simpledb.storage.DbFile;
+import simpledb.storage.HeapFile;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * TableStatsFile persists {@link TableStats} in a compact binary file so that
+ * they do not have to be recomputed every time the database starts.
+ * <p>
+ * Each entry remembers the length and modification time of the table's data
+ * file when the statistics were computed; an entry whose data file has
+ * changed since is treated as missing.
+ * <p>
+ * The format of the file is a magic number, a version and the number of
+ * entries, followed by, for each entry, the table name, the data file length,
+ * the data file modification time, and the length and bytes of the encoded
+ * statistics (see TableStats#writeTo).
+ *
+ * @Threadsafe
+ */
+public class TableStatsFile {
+
+    private static final int MAGIC = 0x53444253; // "SDBS"
+    private static final int VERSION = 3;
+
+    private final File file;
+    // 表名 -> 编码后的统计信息
+    private final Map<String, Entry> entries = new HashMap<>();
+    private boolean loaded = false;
+
+    private static class Entry {
+        final long fileLength;
+        final long lastModified;
+        final byte[] data;
+
+        Entry(long fileLength, long lastModified, byte[] data) {
+            this.fileLength = fileLength;
+            this.lastModified = lastModified;
+            this.data = data;
+        }
+    }
+
+    /**
+     * @param file the file statistics are read from and written to; it does
+     *             not need to exist yet
+     */
+    public TableStatsFile(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Return the persisted statistics of a table, or null if there are none
+     * or the table's data file has changed since they were written.
+     *
+     * @param tableName the name of the table in the catalog
+     * @param tableId   the id of the table in the catalog
+     * @param dbFile    the DbFile of the table
+     */
+    public synchronized TableStats get(String tableName, int tableId, DbFile dbFile) throws IOException {
+        load();
+        Entry entry = entries.get(tableName);
+        File dataFile = dataFile(dbFile);
+        if (entry == null || dataFile == null
+                || entry.fileLength != dataFile.length() || entry.lastModified != dataFile.lastModified()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry.data))) {
+            return TableStats.readFrom(tableId, in);
+        }
+    }
+
+    /**
+     * Remember the statistics of a table; they are written out by the next
+     * call to {@link #save}. Tables whose data file cannot be checked for
+     * changes are not persisted.
+     */
+    public synchronized void put(String tableName, DbFile dbFile, TableStats stats) throws IOException {
+        load();
+        File dataFile = dataFile(dbFile);
+        if (dataFile == null) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            stats.writeTo(out);
+        }
+        entries.put(tableName, new Entry(dataFile.length(), dataFile.lastModified(), bytes.toByteArray()));
+    }
+
+    /** Write all entries to disk, replacing the previous file atomically. */
+    public synchronized void save() throws IOException {
+        load();
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.fileLength);
+                out.writeLong(entry.lastModified);
+                out.writeInt(entry.data.length);
+                out.write(entry.data);
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            // renameTo不能覆盖已存在文件的平台上先删除
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Unable to replace stats file " + file);
+            }
+        }
+    }
+
+    // 第一次使用时读入整个文件，损坏或版本不符的文件被忽略
+    private void load() throws IOException {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                System.out.println("Ignoring stats file " + file + " with unknown format");
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String tableName = in.readUTF();
+                long fileLength = in.readLong();
+                long lastModified = in.readLong();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                entries.put(tableName, new Entry(fileLength, lastModified, data));
+            }
+        } catch (EOFException e) {
+            System.out.println("Ignoring truncated stats file " + file);
+            entries.clear();
+        }
+    }
+
+    private static File dataFile(DbFile dbFile) {
+        if (dbFile instanceof HeapFile) {
+            return ((HeapFile) dbFile).getFile();
+        }
+        if (dbFile instanceof BTreeFile) {
+            return ((BTreeFile) dbFile).getFile();
+        }
+        return null;
+    }
+}
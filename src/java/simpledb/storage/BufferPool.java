@@ -4,6 +4,7 @@ import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.common.DbException;
 import simpledb.common.DeadlockException;
+import simpledb.optimizer.TableStats;
 import simpledb.transaction.LockManager;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
@@ -42,6 +43,8 @@ public class BufferPool {
     // 利用LRU缓存队列实现BufferPool
     private final LruCache<PageId, Page> lruCache;
     private final LockManager lockManager;
+    // 事务插入和删除的tuple，提交时用于更新统计信息
+    private final ConcurrentHashMap<TransactionId, TableStats.Changes> statsChanges = new ConcurrentHashMap<>();
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -108,9 +111,17 @@ public class BufferPool {
     private Page loadPage(PageId pid) throws DbException {
         DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
         Page page = dbFile.readPage(pid);
-        if (page != null) {
+        if (page == null) {
+            return null;
+        }
+        synchronized (this) {
+            // 并行扫描的其他线程可能已先加载了这个page，不能用磁盘上的旧版本替换
+            Page cached = lruCache.get(pid);
+            if (cached != null) {
+                return cached;
+            }
             // 如果buffer pool已经满了，需要删除一个page
-            if (lruCache.getCacheSize() == lruCache.getCapacity()) {
+            if (lruCache.getCacheSize() >= lruCache.getCapacity()) {
                 evictPage();
             }
             lruCache.put(pid, page);
@@ -187,6 +198,10 @@ public class BufferPool {
         readPages.forEach(pageId -> {
             lockManager.releaseLock(pageId, tid);
         });
+        TableStats.Changes changes = statsChanges.remove(tid);
+        if (commit && changes != null) {
+            TableStats.applyChanges(changes);
+        }
     }
 
     /**
@@ -214,6 +229,7 @@ public class BufferPool {
             page.markDirty(true, tid);
             lruCache.put(page.getId(), page);
         }
+        statsChanges.computeIfAbsent(tid, k -> new TableStats.Changes()).tupleInserted(tableId, t);
     }
 
     /**
@@ -233,12 +249,14 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        DbFile dbFile = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
+        int tableId = t.getRecordId().getPageId().getTableId();
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
         List<Page> dirtyPageList = dbFile.deleteTuple(tid, t);
         for (Page page : dirtyPageList) {
             page.markDirty(true, tid);
             lruCache.put(page.getId(), page);
         }
+        statsChanges.computeIfAbsent(tid, k -> new TableStats.Changes()).tupleDeleted(tableId, t);
     }
 
     /**
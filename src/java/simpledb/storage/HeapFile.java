@@ -159,5 +159,14 @@ public class HeapFile implements DbFile {
         return new HeapFileIterator(getId(), tid, numPages());
     }
 
+    /**
+     * Returns an iterator over the tuples of the pages fromPage (inclusive)
+     * to toPage (exclusive) of this file, so that ranges of pages can be
+     * scanned by different threads of the same transaction.
+     */
+    public DbFileIterator iterator(TransactionId tid, int fromPage, int toPage) {
+        return new HeapFileIterator(getId(), tid, fromPage, Math.min(toPage, numPages()));
+    }
+
 }
 
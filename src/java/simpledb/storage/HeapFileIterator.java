@@ -6,6 +6,7 @@ import simpledb.common.Permissions;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
@@ -13,19 +14,34 @@ public class HeapFileIterator implements DbFileIterator {
 
     private final int tableId;
     private final TransactionId tid;
+    private final int startPage;
     private final int totalPageNum;
     private int pgNum;
     private Iterator<Tuple> iterator;
 
     public HeapFileIterator(int tableId, TransactionId tid, int totalPageNum) {
+        this(tableId, tid, 0, totalPageNum);
+    }
+
+    /**
+     * Iterate over the tuples of the pages startPage (inclusive) to
+     * endPage (exclusive) only, e.g. one range of pages of a parallel scan.
+     */
+    public HeapFileIterator(int tableId, TransactionId tid, int startPage, int endPage) {
         this.tableId = tableId;
         this.tid = tid;
-        this.totalPageNum = totalPageNum;
-        this.pgNum = -1;
+        this.startPage = startPage;
+        this.totalPageNum = endPage;
+        this.pgNum = startPage - 1;
     }
 
     @Override
     public void open() throws DbException, TransactionAbortedException {
+        if (startPage >= totalPageNum) {
+            // 范围内没有page
+            iterator = Collections.emptyIterator();
+            return;
+        }
         openNextPage();
     }
 
@@ -60,7 +76,7 @@ public class HeapFileIterator implements DbFileIterator {
     @Override
     public void rewind() throws DbException, TransactionAbortedException {
         // 重置
-        pgNum = -1;
+        pgNum = startPage - 1;
         close();
         open();
     }
@@ -95,6 +95,15 @@ public class LogFile {
 
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
 
+    /** Default upper bound (in milliseconds) on how long the commit record
+        of an asynchronous commit may stay in the OS cache before it is
+        forced to disk. */
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 10;
+
+    long flushedOffset = -1; // log is durable up to here //protected by this
+    private long flushIntervalMs = DEFAULT_FLUSH_INTERVAL_MS; //protected by this
+    private Thread flusher = null; //protected by this
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -175,7 +184,22 @@ public class LogFile {
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
+    public void logCommit(TransactionId tid) throws IOException {
+        logCommit(tid, true);
+    }
+
+    /** Write a commit record to the log for the specified tid.
+        If force is false the record is only appended and the call returns
+        immediately; a background flusher forces it to disk within
+        {@link #getFlushInterval()} milliseconds.  A crash before that
+        happens loses the commit, so recovery treats the transaction as
+        if it never committed (everything up to {@link #getFlushedOffset()}
+        is still recovered correctly).
+
+        @param tid The committing transaction.
+        @param force whether to wait for the log to reach disk
+    */
+    public synchronized void logCommit(TransactionId tid, boolean force) throws IOException {
         preAppend();
         Debug.log("COMMIT " + tid.getId());
         //should we verify that this is a live transaction?
@@ -184,10 +208,68 @@ public class LogFile {
         raf.writeLong(tid.getId());
         raf.writeLong(currentOffset);
         currentOffset = raf.getFilePointer();
-        force();
+        if (force) {
+            force();
+        } else {
+            scheduleFlush();
+        }
         tidToFirstLogRecord.remove(tid.getId());
     }
 
+    /** Return the offset up to which the log is known to be on disk. */
+    public synchronized long getFlushedOffset() {
+        return flushedOffset;
+    }
+
+    /** Return the maximum delay (in milliseconds) between an asynchronous
+        commit and the forcing of its commit record. */
+    public synchronized long getFlushInterval() {
+        return flushIntervalMs;
+    }
+
+    /** Set the maximum delay (in milliseconds) between an asynchronous
+        commit and the forcing of its commit record. */
+    public synchronized void setFlushInterval(long flushIntervalMs) {
+        if (flushIntervalMs < 0) {
+            throw new IllegalArgumentException("flush interval must be non-negative");
+        }
+        this.flushIntervalMs = flushIntervalMs;
+    }
+
+    // start a flusher thread unless one is already waiting; the thread
+    // forces whatever has been appended by the time it wakes up, so one
+    // fsync covers every asynchronous commit in the interval
+    private void scheduleFlush() {
+        if (flusher != null) {
+            return;
+        }
+        flusher = new Thread(this::backgroundFlush, "LogFile-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    private void backgroundFlush() {
+        long delay;
+        synchronized (this) {
+            delay = flushIntervalMs;
+        }
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            // flush right away
+        }
+        synchronized (this) {
+            flusher = null;
+            try {
+                if (flushedOffset < currentOffset && raf.getChannel().isOpen()) {
+                    force();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     /** Write an UPDATE record to disk for the specified tid and page
         (with provided         before and after images.)
         @param tid The transaction performing the write
@@ -443,6 +525,8 @@ public class LogFile {
         newFile.delete();
 
         currentOffset = raf.getFilePointer();
+        // offsets changed, so make the rewritten log durable as a whole
+        force();
         //print();
     }
 
@@ -569,6 +653,7 @@ public class LogFile {
 
     public  synchronized void force() throws IOException {
         raf.getChannel().force(true);
+        flushedOffset = currentOffset;
     }
 
 }
@@ -0,0 +1,158 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.NoSuchElementException;
+
+/**
+ * A temporary file that operators write tuples to when their working state
+ * does not fit in memory, and read back later. Tuples are appended with
+ * {@link #add} and read back in the same order by any number of
+ * {@link Reader}s once writing is finished. The file is deleted by
+ * {@link #delete}, or when the JVM exits.
+ * <p>
+ * Rows are stored compactly, unlike on pages: an int field takes 4 bytes,
+ * and a string field a 2-byte length followed by its characters, without
+ * padding to {@link Type#STRING_LEN}.
+ */
+public class TupleSpillFile {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private long size;
+    private long bytes;
+
+    /**
+     * Create an empty spill file for tuples of the given type.
+     *
+     * @throws DbException if the temporary file cannot be created
+     */
+    public TupleSpillFile(TupleDesc td) throws DbException {
+        this.td = td;
+        try {
+            this.file = File.createTempFile("spill", ".dat");
+            this.file.deleteOnExit();
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+        } catch (IOException e) {
+            throw new DbException("Cannot create spill file: " + e.getMessage());
+        }
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of tuples written to the file */
+    public long size() {
+        return size;
+    }
+
+    /** @return the number of bytes written to the file */
+    public long bytes() {
+        return bytes;
+    }
+
+    /** Append a tuple; must not be called after a reader has been opened */
+    public void add(Tuple t) throws DbException {
+        if (out == null) {
+            throw new IllegalStateException("spill file is already being read");
+        }
+        try {
+            for (int i = 0; i < td.numFields(); i++) {
+                Field f = t.getField(i);
+                if (td.getFieldType(i) == Type.INT_TYPE) {
+                    out.writeInt(((IntField) f).getValue());
+                    bytes += 4;
+                } else {
+                    String value = ((StringField) f).getValue();
+                    // 与页面上的格式一样每个字符只保留低8位
+                    out.writeShort(value.length());
+                    out.writeBytes(value);
+                    bytes += 2 + value.length();
+                }
+            }
+        } catch (IOException e) {
+            throw new DbException("Cannot write spill file: " + e.getMessage());
+        }
+        size++;
+    }
+
+    /** Finish writing, and return a reader over the tuples of the file */
+    public Reader reader() throws DbException {
+        try {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+            return new Reader(new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE)));
+        } catch (IOException e) {
+            throw new DbException("Cannot read spill file: " + e.getMessage());
+        }
+    }
+
+    /** Close and remove the file */
+    public void delete() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ignored) {
+                // 文件马上就删除了
+            }
+            out = null;
+        }
+        file.delete();
+    }
+
+    /**
+     * Sequential reader of a spill file.
+     */
+    public class Reader implements Closeable {
+        private final DataInputStream in;
+        private long read;
+
+        private Reader(DataInputStream in) {
+            this.in = in;
+        }
+
+        public boolean hasNext() {
+            return read < size;
+        }
+
+        public Tuple next() throws DbException {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++) {
+                    if (td.getFieldType(i) == Type.INT_TYPE) {
+                        t.setField(i, new IntField(in.readInt()));
+                    } else {
+                        byte[] value = new byte[in.readUnsignedShort()];
+                        in.readFully(value);
+                        t.setField(i, new StringField(new String(value, StandardCharsets.ISO_8859_1), Type.STRING_LEN));
+                    }
+                }
+            } catch (IOException e) {
+                throw new DbException("Cannot read spill file: " + e.getMessage());
+            }
+            read++;
+            return t;
+        }
+
+        @Override
+        public void close() {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+                // 只读的流，关闭失败不影响结果
+            }
+        }
+    }
+}
@@ -12,6 +12,7 @@ import java.io.*;
 public class Transaction {
     private final TransactionId tid;
     volatile boolean started = false;
+    private volatile boolean asyncCommit = false;
 
     public Transaction() {
         tid = new TransactionId();
@@ -31,6 +32,22 @@ public class Transaction {
         return tid;
     }
 
+    /**
+     * Choose whether {@link #commit()} waits for the commit record to be
+     * forced to disk. An asynchronous commit is visible to other
+     * transactions as soon as commit returns, but may be lost if the system
+     * crashes before the log flusher runs.
+     *
+     * @see simpledb.storage.LogFile#setFlushInterval(long)
+     */
+    public void setAsyncCommit(boolean asyncCommit) {
+        this.asyncCommit = asyncCommit;
+    }
+
+    public boolean isAsyncCommit() {
+        return asyncCommit;
+    }
+
     /** Finish the transaction */
     public void commit() throws IOException {
         transactionComplete(false);
@@ -55,7 +72,7 @@ public class Transaction {
 
             // write commit log record
             if (!abort) {
-            	Database.getLogFile().logCommit(tid);
+            	Database.getLogFile().logCommit(tid, !asyncCommit);
             }
 
             //setting this here means we could possibly write multiple abort records -- OK?
@@ -0,0 +1,174 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.Filter;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.Predicate;
+import simpledb.execution.Query;
+import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.index.BTreeUtility;
+import simpledb.optimizer.QueryPlanVisualizer;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class AccessPathTest extends SimpleDbTestBase {
+    private static final int ROWS = 20000;
+    private static final int MAX_VALUE = 10000;
+
+    private List<List<Integer>> tuples;
+    private TableStats stats;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<>();
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, ROWS, MAX_VALUE, null, tuples, 0);
+        // 给字段命名以便按SQL查询
+        BTreeFile named = new BTreeFile(f.getFile(), 0, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(named, "bt");
+        stats = new TableStats(named.getId(), 1000);
+        TableStats.setTableStats("bt", stats);
+
+        HeapFile h = SystemTestUtil.createRandomHeapFile(2, 100, MAX_VALUE, null, new ArrayList<>(), "c");
+        Database.getCatalog().addTable(h, "ht");
+        TableStats.setTableStats("ht", new TableStats(h.getId(), 1000));
+    }
+
+    private OpIterator plan(String query) throws Exception {
+        TransactionId tid = new TransactionId();
+        return new Parser().generateLogicalPlan(tid, query).physicalPlan(tid, TableStats.getStatsMap(), false);
+    }
+
+    private static int count(OpIterator it) throws Exception {
+        int count = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    private int countWhere(java.util.function.IntPredicate p) {
+        int count = 0;
+        for (List<Integer> t : tuples) {
+            if (p.test(t.get(0))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** @return the scans and filters of the plan, leaves first */
+    private static List<OpIterator> accessOperators(OpIterator it) {
+        List<OpIterator> result = new ArrayList<>();
+        if (it instanceof Operator) {
+            for (OpIterator child : ((Operator) it).getChildren()) {
+                result.addAll(accessOperators(child));
+            }
+        }
+        if (it instanceof SeqScan || it instanceof BTreeScan || it instanceof Filter) {
+            result.add(it);
+        }
+        return result;
+    }
+
+    /**
+     * Reading a few leaves through the index is cheaper than a full scan;
+     * reading all of them is not
+     */
+    @Test public void indexScanCost() {
+        Assert.assertTrue(stats.estimateIndexScanCost(1.0 / MAX_VALUE) < stats.estimateScanCost() / 10);
+        Assert.assertTrue(stats.estimateIndexScanCost(1.0) > stats.estimateScanCost());
+        Assert.assertTrue(stats.estimateIndexScanCost(0.1) < stats.estimateIndexScanCost(0.5));
+        Assert.assertEquals(Double.POSITIVE_INFINITY,
+                TableStats.getTableStats("ht").estimateIndexScanCost(0.001), 0);
+    }
+
+    /**
+     * A point query on the key reads the B+ tree instead of scanning the table
+     */
+    @Test public void pointQuery() throws Exception {
+        OpIterator it = plan("SELECT * FROM bt WHERE bt.c0 = 1234;");
+        List<OpIterator> access = accessOperators(it);
+        Assert.assertEquals(1, access.size());
+        BTreeScan scan = (BTreeScan) access.get(0);
+        Assert.assertEquals(Predicate.Op.EQUALS, scan.getIndexPredicate().getOp());
+        Assert.assertEquals(countWhere(k -> k == 1234), count(it));
+
+        // 所选谓词之外的条件仍由Filter检查
+        it = plan("SELECT * FROM bt WHERE bt.c0 <= 50 AND bt.c1 > 5000;");
+        access = accessOperators(it);
+        Assert.assertEquals(2, access.size());
+        Assert.assertTrue(access.get(0) instanceof BTreeScan);
+        Assert.assertTrue(access.get(1) instanceof Filter);
+        int expected = 0;
+        for (List<Integer> t : tuples) {
+            if (t.get(0) <= 50 && t.get(1) > 5000) {
+                expected++;
+            }
+        }
+        Assert.assertEquals(expected, count(it));
+    }
+
+    /**
+     * Selective ranges use the index, unselective ones and filters on other
+     * fields scan the table
+     */
+    @Test public void rangeQuery() throws Exception {
+        OpIterator it = plan("SELECT * FROM bt WHERE bt.c0 > 9900;");
+        Assert.assertTrue(accessOperators(it).get(0) instanceof BTreeScan);
+        Assert.assertEquals(countWhere(k -> k > 9900), count(it));
+
+        it = plan("SELECT * FROM bt WHERE bt.c0 > 100 AND bt.c0 < 200;");
+        Assert.assertTrue(accessOperators(it).get(0) instanceof BTreeScan);
+        Assert.assertEquals(countWhere(k -> k > 100 && k < 200), count(it));
+
+        it = plan("SELECT * FROM bt WHERE bt.c0 > 100;");
+        Assert.assertTrue(accessOperators(it).get(0) instanceof SeqScan);
+        Assert.assertEquals(countWhere(k -> k > 100), count(it));
+
+        it = plan("SELECT * FROM bt WHERE bt.c1 = 100;");
+        Assert.assertTrue(accessOperators(it).get(0) instanceof SeqScan);
+
+        new QueryPlanVisualizer().getQueryPlanTree(plan("SELECT * FROM bt, ht WHERE bt.c0 = 7 AND bt.c0 = ht.c0;"));
+    }
+
+    /**
+     * A parameter compared with the key is bound into the index predicate
+     */
+    @Test public void preparedPointQuery() throws Exception {
+        PreparedStatement ps = new Parser().prepare("SELECT * FROM bt WHERE bt.c0 = ?;");
+        for (int v : new int[]{17, 4242, 9999}) {
+            ps.setInt(1, v);
+            TransactionId tid = new TransactionId();
+            Query q = ps.execute(tid);
+            Assert.assertTrue(accessOperators(q.getPhysicalPlan()).get(0) instanceof BTreeScan);
+            Assert.assertEquals(countWhere(k -> k == v), count(q.getPhysicalPlan()));
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(AccessPathTest.class);
+    }
+}
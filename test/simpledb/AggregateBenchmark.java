@@ -0,0 +1,107 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import simpledb.common.Utility;
+import simpledb.execution.Aggregate;
+import simpledb.execution.Aggregator;
+import simpledb.execution.OpIterator;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+/**
+ * Benchmark of a grouped Aggregate on a fixed number of rows with 0.1, 1,
+ * 10 and 100 times as many groups as its memory budget, against the same
+ * aggregate with an unbounded budget. The input is generated as it is
+ * read. Not run as part of the tests; run it with
+ * <pre>
+ * java -cp bin/src:bin/test simpledb.AggregateBenchmark [memoryGroups [rows]]
+ * </pre>
+ */
+public class AggregateBenchmark {
+
+    /** Random (group, value) tuples, generated from a fixed seed on every open */
+    private static class RandomTuples implements OpIterator {
+        private static final long serialVersionUID = 1L;
+
+        private final TupleDesc td = Utility.getTupleDesc(2);
+        private final int rows;
+        private final int groups;
+        private Random rand;
+        private int read;
+
+        RandomTuples(int rows, int groups) {
+            this.rows = rows;
+            this.groups = groups;
+        }
+
+        public void open() {
+            rand = new Random(groups);
+            read = 0;
+        }
+
+        public boolean hasNext() {
+            return read < rows;
+        }
+
+        public Tuple next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(rand.nextInt(groups)));
+            t.setField(1, new IntField(rand.nextInt(1000)));
+            read++;
+            return t;
+        }
+
+        public void rewind() {
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            rand = null;
+        }
+    }
+
+    private static long sink;
+
+    private static void aggregate(String name, int rows, int groups, int memoryGroups) throws Exception {
+        long t0 = System.nanoTime();
+        Aggregate op = new Aggregate(new RandomTuples(rows, groups), 1, 0, Aggregator.Op.AVG, memoryGroups);
+        op.open();
+        int results = 0;
+        while (op.hasNext()) {
+            sink += ((IntField) op.next().getField(1)).getValue();
+            results++;
+        }
+        long spilled = op.getSpilledTuples();
+        op.close();
+        System.out.printf("%-10s %8d groups %8.1f ms %9d results %9d partial aggregates spilled%n",
+                name, groups, (System.nanoTime() - t0) / 1e6, results, spilled);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int memoryGroups = args.length > 0 ? Integer.parseInt(args[0]) : Aggregate.MAP_SIZE;
+        int rows = args.length > 1 ? Integer.parseInt(args[1]) : 100 * memoryGroups;
+        System.out.println("memory budget " + memoryGroups + " groups, " + rows + " rows");
+        // 前几轮用于预热JIT，只看最后一轮
+        for (int round = 0; round < 3; round++) {
+            System.out.println("round " + round);
+            for (int factor : new int[]{-10, 1, 10, 100}) {
+                int groups = factor < 0 ? memoryGroups / -factor : memoryGroups * factor;
+                aggregate("budget", rows, groups, memoryGroups);
+                aggregate("unbounded", rows, groups, Integer.MAX_VALUE);
+            }
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+}
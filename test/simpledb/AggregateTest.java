@@ -3,6 +3,12 @@ package simpledb;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
 import junit.framework.JUnit4TestAdapter;
 
 import org.junit.Before;
@@ -12,8 +18,13 @@ import simpledb.common.Type;
 import simpledb.common.Utility;
 import simpledb.execution.Aggregate;
 import simpledb.execution.Aggregator;
+import simpledb.execution.IntegerAggregator;
 import simpledb.execution.OpIterator;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleIterator;
 import simpledb.systemtest.SimpleDbTestBase;
 
 public class AggregateTest extends SimpleDbTestBase {
@@ -191,6 +202,99 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(min, op);
   }
 
+  /** @return rows tuples (group, value), taking each of groups values of group in turn */
+  private static List<Tuple> randomTuples(TupleDesc td, int rows, int groups) {
+    Random rand = new Random(rows + groups);
+    List<Tuple> tuples = new ArrayList<>();
+    for (int i = 0; i < rows; i++) {
+      Tuple t = new Tuple(td);
+      int group = (i * 7919) % groups;
+      t.setField(0, td.getFieldType(0) == Type.INT_TYPE ? new IntField(group)
+          : new StringField("g" + group, Type.STRING_LEN));
+      t.setField(1, new IntField(rand.nextInt(2000) - 1000));
+      tuples.add(t);
+    }
+    return tuples;
+  }
+
+  /** @return the tuples of an open iterator, as sorted strings */
+  private static List<String> drain(OpIterator it) throws Exception {
+    List<String> result = new ArrayList<>();
+    while (it.hasNext()) {
+      result.add(it.next().toString());
+    }
+    Collections.sort(result);
+    return result;
+  }
+
+  /**
+   * With more groups than the memory budget, partial aggregates are
+   * partitioned to disk, and partitions with too many groups partitioned
+   * again, giving the same groups as aggregating in memory
+   */
+  @Test public void spillGroups() throws Exception {
+    TupleDesc[] tds = { Utility.getTupleDesc(2),
+        new TupleDesc(new Type[]{ Type.STRING_TYPE, Type.INT_TYPE }) };
+    for (TupleDesc td : tds) {
+      List<Tuple> tuples = randomTuples(td, 5000, 1000);
+      Aggregator.Op[] ops = td.getFieldType(0) == Type.INT_TYPE ? Aggregator.Op.values()
+          : new Aggregator.Op[]{ Aggregator.Op.COUNT, Aggregator.Op.SUM, Aggregator.Op.AVG };
+      for (Aggregator.Op op : ops) {
+        if (op == Aggregator.Op.SUM_COUNT || op == Aggregator.Op.SC_AVG) {
+          continue;
+        }
+        Aggregate expected = new Aggregate(new TupleIterator(td, tuples), 1, 0, op);
+        expected.open();
+        List<String> groups = drain(expected);
+        assertEquals(1000, groups.size());
+        expected.close();
+
+        // 1000个分组分到16个分区仍超过预算，需要再分一层
+        Aggregate spilled = new Aggregate(new TupleIterator(td, tuples), 1, 0, op, 10);
+        spilled.open();
+        assertEquals(op.toString(), groups, drain(spilled));
+        assertTrue(spilled.getSpilledTuples() > 1000);
+        spilled.rewind();
+        assertEquals(op.toString(), groups, drain(spilled));
+        spilled.close();
+      }
+    }
+  }
+
+  /**
+   * Sums and counts computed separately by SUM_COUNT combine with SC_AVG
+   * to the average of all values
+   */
+  @Test public void sumCountAverage() throws Exception {
+    TupleDesc td = Utility.getTupleDesc(2);
+    List<Tuple> tuples = randomTuples(td, 3000, 50);
+    IntegerAggregator[] halves = {
+        new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM_COUNT),
+        new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG) };
+    IntegerAggregator avg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG);
+    for (int i = 0; i < tuples.size(); i++) {
+      halves[i % 2].mergeTupleIntoGroup(tuples.get(i));
+      avg.mergeTupleIntoGroup(tuples.get(i));
+    }
+    IntegerAggregator combined = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SC_AVG);
+    // AVG的部分结果与SUM_COUNT相同
+    OpIterator[] partials = { halves[0].iterator(), halves[1].partialIterator() };
+    for (OpIterator partial : partials) {
+      assertEquals(3, partial.getTupleDesc().numFields());
+      partial.open();
+      while (partial.hasNext()) {
+        combined.mergeTupleIntoGroup(partial.next());
+      }
+      partial.close();
+    }
+    OpIterator expected = avg.iterator();
+    OpIterator actual = combined.iterator();
+    expected.open();
+    actual.open();
+    assertEquals(drain(expected), drain(actual));
+    assertEquals(50, combined.numGroups());
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,79 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.execution.Gather;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.HashRepartition;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Benchmark of a hash join of two heap files, serial and by a Gather of
+ * joins over HashRepartitions of both inputs on 1, 2, 4 and 8 threads,
+ * with a buffer pool holding both files so that the join is bound by the
+ * CPU. Not run as part of the tests; run it with
+ * <pre>
+ * java -cp bin/src:bin/test:lib/* simpledb.ExchangeBenchmark [rows]
+ * </pre>
+ */
+public class ExchangeBenchmark {
+
+    private static final JoinPredicate ON_C0 = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+
+    private static long sink;
+
+    private static void join(String name, HeapFile outer, HeapFile inner, int threads) throws Exception {
+        TransactionId tid = new TransactionId();
+        long t0 = System.nanoTime();
+        OpIterator op;
+        if (threads == 0) {
+            op = new HashEquiJoin(ON_C0, new SeqScan(tid, outer.getId()), new SeqScan(tid, inner.getId()));
+        } else {
+            HashRepartition[] left = HashRepartition.create(new SeqScan(tid, outer.getId()), threads,
+                    new int[]{0}, threads);
+            HashRepartition[] right = HashRepartition.create(new SeqScan(tid, inner.getId()), threads,
+                    new int[]{0}, threads);
+            op = new Gather(new HashEquiJoin(ON_C0, left[0], right[0],
+                    Math.max(1, HashEquiJoin.MAP_SIZE / threads)), threads);
+        }
+        op.open();
+        int results = 0;
+        while (op.hasNext()) {
+            sink += ((IntField) op.next().getField(1)).getValue();
+            results++;
+        }
+        op.close();
+        Database.getBufferPool().transactionComplete(tid);
+        System.out.printf("%-9s %2d threads %8.1f ms %9d tuples%n", name, Math.max(threads, 1),
+                (System.nanoTime() - t0) / 1e6, results);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        // 外侧能放进哈希表，不写磁盘
+        HeapFile outer = SystemTestUtil.createRandomHeapFile(2, HashEquiJoin.MAP_SIZE / 2, rows, null, null, "c");
+        HeapFile inner = SystemTestUtil.createRandomHeapFile(2, rows, rows, null, null, "c");
+        Database.getCatalog().addTable(outer, "outer");
+        Database.getCatalog().addTable(inner, "inner");
+        Database.resetBufferPool(outer.numPages() + inner.numPages() + 16);
+        System.out.println(HashEquiJoin.MAP_SIZE / 2 + " x " + rows + " rows, "
+                + Runtime.getRuntime().availableProcessors() + " processors");
+        // 前几轮用于预热JIT与buffer pool，只看最后一轮
+        for (int round = 0; round < 3; round++) {
+            System.out.println("round " + round);
+            join("serial", outer, inner, 0);
+            for (int threads : new int[]{1, 2, 4, 8}) {
+                join("exchange", outer, inner, threads);
+            }
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+}
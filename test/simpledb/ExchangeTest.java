@@ -0,0 +1,259 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.Aggregate;
+import simpledb.execution.Aggregator;
+import simpledb.execution.Broadcast;
+import simpledb.execution.Exchange;
+import simpledb.execution.Filter;
+import simpledb.execution.Gather;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.HashRepartition;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.Limit;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.Predicate;
+import simpledb.execution.Query;
+import simpledb.execution.SeqScan;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.QueryPlanVisualizer;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class ExchangeTest extends SimpleDbTestBase {
+    private static final int THREADS = 4;
+
+    private HeapFile big;
+    private HeapFile mid;
+    private HeapFile small;
+    private TransactionId tid;
+
+    /** Two tables (c0, c1) of many morsels each and a table of a few pages */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        big = SystemTestUtil.createRandomHeapFile(2, 10000, 1000, null, new ArrayList<>(), "c");
+        mid = SystemTestUtil.createRandomHeapFile(2, 5000, 1000, null, new ArrayList<>(), "c");
+        small = SystemTestUtil.createRandomHeapFile(2, 200, 1000, null, new ArrayList<>(), "c");
+        Database.getCatalog().addTable(big, "eb");
+        Database.getCatalog().addTable(mid, "em");
+        Database.getCatalog().addTable(small, "es");
+        TableStats.setTableStats("eb", new TableStats(big.getId(), 1000));
+        TableStats.setTableStats("em", new TableStats(mid.getId(), 1000));
+        TableStats.setTableStats("es", new TableStats(small.getId(), 1000));
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+        LogicalPlan.setParallelism(1);
+    }
+
+    /** @return the tuples of an open iterator, as sorted strings */
+    private static List<String> drain(OpIterator it) throws Exception {
+        List<String> result = new ArrayList<>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            StringBuilder s = new StringBuilder();
+            for (int i = 0; i < t.getTupleDesc().numFields(); i++) {
+                s.append(t.getField(i)).append(' ');
+            }
+            result.add(s.toString());
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /** @return the sorted tuples of a plan, read twice with a rewind in between */
+    private static List<String> run(OpIterator plan) throws Exception {
+        plan.open();
+        List<String> result = drain(plan);
+        plan.rewind();
+        Assert.assertEquals(result, drain(plan));
+        plan.close();
+        return result;
+    }
+
+    private SeqScan scan(HeapFile file) {
+        return new SeqScan(tid, file.getId());
+    }
+
+    private static final JoinPredicate ON_C0 = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+
+    /**
+     * A join run on every thread over repartitions of both inputs on the
+     * join keys gives the tuples of the serial join
+     */
+    @Test public void repartitionJoin() throws Exception {
+        List<String> serial = run(new HashEquiJoin(ON_C0, scan(big), scan(mid)));
+        Assert.assertFalse(serial.isEmpty());
+
+        HashRepartition[] outer = HashRepartition.create(scan(big), THREADS, new int[]{0}, THREADS);
+        HashRepartition[] inner = HashRepartition.create(scan(mid), 2, new int[]{0}, THREADS);
+        Gather gather = new Gather(new HashEquiJoin(ON_C0, outer[0], inner[0]), THREADS);
+        Assert.assertEquals(serial, run(gather));
+        Assert.assertEquals(0, Exchange.liveProducers());
+    }
+
+    /**
+     * A small input broadcast to every thread joins with the morsels of a
+     * scan split among them, on either side of the join
+     */
+    @Test public void broadcastJoin() throws Exception {
+        Predicate below = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(500));
+        List<String> serial = run(new HashEquiJoin(ON_C0, new Filter(below, scan(big)), scan(small)));
+        Assert.assertFalse(serial.isEmpty());
+
+        Broadcast[] inner = Broadcast.create(scan(small), 1, THREADS);
+        Assert.assertEquals(serial, run(new Gather(
+                new HashEquiJoin(ON_C0, new Filter(below, scan(big)), inner[0]), THREADS)));
+        Broadcast[] outer = Broadcast.create(new Filter(below, scan(big)), 2, THREADS);
+        Assert.assertEquals(run(new HashEquiJoin(ON_C0, scan(small), new Filter(below, scan(big)))),
+                run(new Gather(new HashEquiJoin(ON_C0, scan(small), outer[0]), THREADS)));
+    }
+
+    /**
+     * An aggregate run on every thread over a repartition on the group by
+     * fields gives the groups of the serial aggregate; a repartition of the
+     * output of parallel joins feeds it without gathering them first
+     */
+    @Test public void repartitionAggregate() throws Exception {
+        int[] a = {0, 1};
+        int[] g = {1};
+        Aggregator.Op[] ops = {Aggregator.Op.COUNT, Aggregator.Op.AVG};
+        Assert.assertEquals(run(new Aggregate(scan(big), a, g, ops)),
+                run(new Gather(new Aggregate(
+                        HashRepartition.create(scan(big), THREADS, g, THREADS)[0], a, g, ops), THREADS)));
+
+        int[] joined = {3};
+        List<String> serial = run(new Aggregate(new HashEquiJoin(ON_C0, scan(big), scan(mid)), a, joined, ops));
+        HashRepartition[] outer = HashRepartition.create(scan(big), THREADS, new int[]{0}, THREADS);
+        HashRepartition[] inner = HashRepartition.create(scan(mid), THREADS, new int[]{0}, THREADS);
+        HashRepartition[] groups = HashRepartition.create(new HashEquiJoin(ON_C0, outer[0], inner[0]),
+                THREADS, joined, THREADS);
+        Assert.assertEquals(serial, run(new Gather(new Aggregate(groups[0], a, joined, ops), THREADS)));
+    }
+
+    /**
+     * Plans whose copies would not produce the result between them are
+     * refused
+     */
+    @Test public void invalidPlans() throws Exception {
+        OpIterator[] invalid = {
+                // 两侧都按morsel切分
+                new HashEquiJoin(ON_C0, scan(big), scan(mid)),
+                // 连接键以外的字段分区
+                new HashEquiJoin(ON_C0, HashRepartition.create(scan(big), 1, new int[]{1}, THREADS)[0],
+                        HashRepartition.create(scan(mid), 1, new int[]{0}, THREADS)[0]),
+                // 消费者数与副本数不同
+                new HashEquiJoin(ON_C0, scan(big), Broadcast.create(scan(small), 1, 2)[0]),
+                // 每个副本都得到全部分组
+                new Aggregate(Broadcast.create(scan(small), 1, THREADS)[0], 0, 1, Aggregator.Op.SUM),
+                new Limit(1, scan(big)),
+        };
+        for (OpIterator plan : invalid) {
+            try {
+                new Gather(plan, THREADS);
+                Assert.fail(plan.getClass().getSimpleName() + " cannot be copied");
+            } catch (IllegalArgumentException e) {
+                // 预期
+            }
+        }
+        // 只有一个副本时按原样运行
+        Assert.assertEquals(1, run(new Gather(new Limit(1, scan(big)), 1)).size());
+    }
+
+    /**
+     * Closing a parallel join before it is read to the end stops the
+     * producers of every exchange in it
+     */
+    @Test public void earlyClose() throws Exception {
+        HashRepartition[] outer = HashRepartition.create(scan(big), THREADS, new int[]{0}, THREADS);
+        HashRepartition[] inner = HashRepartition.create(scan(mid), THREADS, new int[]{0}, THREADS);
+        Limit limit = new Limit(10, new Gather(new HashEquiJoin(ON_C0, outer[0], inner[0]), THREADS));
+        limit.open();
+        Assert.assertEquals(10, drain(limit).size());
+        limit.close();
+        Assert.assertEquals(0, Exchange.liveProducers());
+    }
+
+    /** @return true if the plan has an operator of the class */
+    private static boolean contains(OpIterator it, Class<?> c) {
+        if (c.isInstance(it)) {
+            return true;
+        }
+        if (it instanceof Operator) {
+            for (OpIterator child : ((Operator) it).getChildren()) {
+                if (child != null && contains(child, c)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static List<String> sql(String sql, Class<?> exchange) throws Exception {
+        TransactionId tid = new TransactionId();
+        Query q = new Parser().prepare(sql).execute(tid);
+        Assert.assertEquals(LogicalPlan.getParallelism() > 1, contains(q.getPhysicalPlan(), exchange));
+        new QueryPlanVisualizer().getQueryPlanTree(q.getPhysicalPlan());
+        q.start();
+        List<String> result = new ArrayList<>();
+        while (q.hasNext()) {
+            Tuple t = q.next();
+            StringBuilder s = new StringBuilder();
+            for (int i = 0; i < t.getTupleDesc().numFields(); i++) {
+                s.append(t.getField(i)).append(' ');
+            }
+            result.add(s.toString());
+        }
+        q.close();
+        Database.getBufferPool().transactionComplete(tid);
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * With a parallelism set, hash joins of large tables are planned over
+     * repartitions, joins with a small table over a broadcast, and grouped
+     * aggregates over them on every thread, with the same results
+     */
+    @Test public void sqlPlans() throws Exception {
+        String[] queries = {
+                "SELECT eb.c1, COUNT(em.c1), SUM(em.c1) FROM eb, em WHERE eb.c0 = em.c0 GROUP BY eb.c1;",
+                "SELECT eb.c0, es.c1 FROM eb, es WHERE eb.c0 = es.c0 AND eb.c1 < 800;",
+        };
+        Class<?>[] exchanges = {HashRepartition.class, Broadcast.class};
+        for (int i = 0; i < queries.length; i++) {
+            List<String> serial = sql(queries[i], exchanges[i]);
+            Assert.assertFalse(serial.isEmpty());
+            LogicalPlan.setParallelism(THREADS);
+            Assert.assertEquals(serial, sql(queries[i], exchanges[i]));
+            LogicalPlan.setParallelism(1);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ExchangeTest.class);
+    }
+}
@@ -0,0 +1,119 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import simpledb.common.Utility;
+import simpledb.execution.OpIterator;
+import simpledb.execution.OrderBy;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+/**
+ * Benchmark of OrderBy on inputs of 1, 10 and 100 times its memory
+ * budget, against sorting the whole input in memory. The input is
+ * generated as it is read, so only the sort holds tuples in memory. Not
+ * run as part of the tests; run it with
+ * <pre>
+ * java -cp bin/src:bin/test simpledb.ExternalSortBenchmark [memoryTuples]
+ * </pre>
+ */
+public class ExternalSortBenchmark {
+
+    /** Random two-column tuples, generated from a fixed seed on every open */
+    private static class RandomTuples implements OpIterator {
+        private static final long serialVersionUID = 1L;
+
+        private final TupleDesc td = Utility.getTupleDesc(2);
+        private final int rows;
+        private Random rand;
+        private int read;
+
+        RandomTuples(int rows) {
+            this.rows = rows;
+        }
+
+        public void open() {
+            rand = new Random(rows);
+            read = 0;
+        }
+
+        public boolean hasNext() {
+            return read < rows;
+        }
+
+        public Tuple next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(rand.nextInt()));
+            t.setField(1, new IntField(read++));
+            return t;
+        }
+
+        public void rewind() {
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            rand = null;
+        }
+    }
+
+    private static long sink;
+
+    private static void orderBy(int rows, int memoryTuples) throws Exception {
+        long t0 = System.nanoTime();
+        OrderBy op = new OrderBy(0, true, new RandomTuples(rows), memoryTuples);
+        op.open();
+        long t1 = System.nanoTime();
+        while (op.hasNext()) {
+            sink += ((IntField) op.next().getField(1)).getValue();
+        }
+        long t2 = System.nanoTime();
+        long spilled = op.getSpilledTuples();
+        op.close();
+        System.out.printf("%-10s %9d rows %8.1f ms (%6.1f ms to first row) %9d tuples spilled%n",
+                "OrderBy", rows, (t2 - t0) / 1e6, (t1 - t0) / 1e6, spilled);
+    }
+
+    private static void inMemory(int rows) throws Exception {
+        long t0 = System.nanoTime();
+        RandomTuples input = new RandomTuples(rows);
+        input.open();
+        List<Tuple> tuples = new ArrayList<>();
+        while (input.hasNext()) {
+            tuples.add(input.next());
+        }
+        tuples.sort((a, b) -> Integer.compare(((IntField) a.getField(0)).getValue(),
+                ((IntField) b.getField(0)).getValue()));
+        for (Tuple t : tuples) {
+            sink += ((IntField) t.getField(1)).getValue();
+        }
+        System.out.printf("%-10s %9d rows %8.1f ms%n", "List.sort", rows, (System.nanoTime() - t0) / 1e6);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int memoryTuples = args.length > 0 ? Integer.parseInt(args[0]) : OrderBy.SORT_SIZE;
+        System.out.println("memory budget " + memoryTuples + " tuples");
+        // 前几轮用于预热JIT，只看最后一轮
+        for (int round = 0; round < 3; round++) {
+            System.out.println("round " + round);
+            for (int factor : new int[]{1, 10, 100}) {
+                orderBy(memoryTuples * factor, memoryTuples);
+                inMemory(memoryTuples * factor);
+            }
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+}
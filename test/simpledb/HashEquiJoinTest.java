@@ -0,0 +1,111 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+    private List<List<Integer>> outer;
+    private List<List<Integer>> inner;
+    private List<List<Integer>> skewed;
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        outer = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 3000, 500, null, outer, "c");
+        Database.getCatalog().addTable(f, "ho");
+        inner = new ArrayList<>();
+        f = SystemTestUtil.createRandomHeapFile(2, 2000, 500, null, inner, "c");
+        Database.getCatalog().addTable(f, "hi");
+        // 只有两个不同的键，无法通过再分区缩小
+        skewed = new ArrayList<>();
+        f = SystemTestUtil.createRandomHeapFile(2, 1000, 2, null, skewed, "c");
+        Database.getCatalog().addTable(f, "hk");
+        tid = new TransactionId();
+    }
+
+    private HashEquiJoin join(String t1, String t2, int memoryTuples) {
+        return new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, Database.getCatalog().getTableId(t1), t1),
+                new SeqScan(tid, Database.getCatalog().getTableId(t2), t2), memoryTuples);
+    }
+
+    private static int expected(List<List<Integer>> t1, List<List<Integer>> t2) {
+        int count = 0;
+        for (List<Integer> a : t1) {
+            for (List<Integer> b : t2) {
+                if (a.get(0).equals(b.get(0))) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static int drain(HashEquiJoin join) throws Exception {
+        int count = 0;
+        while (join.hasNext()) {
+            join.next();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * An outer input within the memory budget is joined without spilling
+     */
+    @Test public void inMemory() throws Exception {
+        HashEquiJoin join = join("ho", "hi", 5000);
+        join.open();
+        Assert.assertEquals(expected(outer, inner), drain(join));
+        Assert.assertEquals(0, join.getSpilledTuples());
+        join.close();
+    }
+
+    /**
+     * A larger outer input partitions both inputs to disk, and gives the
+     * same result again after a rewind
+     */
+    @Test public void spill() throws Exception {
+        HashEquiJoin join = join("ho", "hi", 300);
+        join.open();
+        Assert.assertEquals(expected(outer, inner), drain(join));
+        Assert.assertTrue(join.getSpilledTuples() >= outer.size() + inner.size());
+        join.rewind();
+        Assert.assertEquals(expected(outer, inner), drain(join));
+        join.close();
+    }
+
+    /**
+     * Partitions of a single key larger than the budget are joined in chunks
+     */
+    @Test public void skewedKeys() throws Exception {
+        HashEquiJoin join = join("hk", "hk", 100);
+        join.open();
+        Assert.assertEquals(expected(skewed, skewed), drain(join));
+        join.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashEquiJoinTest.class);
+    }
+}
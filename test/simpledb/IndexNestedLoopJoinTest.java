@@ -0,0 +1,171 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.IndexNestedLoopJoin;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.index.BTreeUtility;
+import simpledb.optimizer.QueryPlanVisualizer;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+    private static final int MAX_VALUE = 10000;
+
+    private List<List<Integer>> inner;
+    private List<List<Integer>> small;
+    private List<List<Integer>> large;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        inner = new ArrayList<>();
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 20000, MAX_VALUE, null, inner, 0);
+        // 给字段命名以便按SQL查询
+        BTreeFile named = new BTreeFile(f.getFile(), 0, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(named, "bt");
+        TableStats.setTableStats("bt", new TableStats(named.getId(), 1000));
+
+        small = new ArrayList<>();
+        HeapFile h = SystemTestUtil.createRandomHeapFile(2, 10, MAX_VALUE, null, small, "c");
+        Database.getCatalog().addTable(h, "hs");
+        TableStats.setTableStats("hs", new TableStats(h.getId(), 1000));
+
+        // 连接键重复很多、且跨越多个批次的外侧
+        large = new ArrayList<>();
+        h = SystemTestUtil.createRandomHeapFile(2, 5000, 3000, null, large, "c");
+        Database.getCatalog().addTable(h, "hl");
+        TableStats.setTableStats("hl", new TableStats(h.getId(), 1000));
+    }
+
+    private OpIterator plan(String query) throws Exception {
+        TransactionId tid = new TransactionId();
+        return new Parser().generateLogicalPlan(tid, query).physicalPlan(tid, TableStats.getStatsMap(), false);
+    }
+
+    private static int count(OpIterator it) throws Exception {
+        int count = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    private int expected(List<List<Integer>> outer, int minInner) {
+        int count = 0;
+        for (List<Integer> o : outer) {
+            for (List<Integer> i : inner) {
+                if (o.get(0).equals(i.get(0)) && i.get(1) > minInner) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /** @return the first join operator of class c in the plan, or null */
+    private static OpIterator findJoin(OpIterator it, Class<?> c) {
+        if (c.isInstance(it)) {
+            return it;
+        }
+        if (it instanceof Operator) {
+            for (OpIterator child : ((Operator) it).getChildren()) {
+                OpIterator found = findJoin(child, c);
+                if (found != null) {
+                    return found;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Every outer tuple, including duplicate keys spread over several
+     * batches, is matched with all inner tuples with its key
+     */
+    @Test public void operator() throws Exception {
+        TransactionId tid = new TransactionId();
+        IndexPredicate probe = new IndexPredicate(Predicate.Op.EQUALS, null);
+        OpIterator join = new IndexNestedLoopJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, Database.getCatalog().getTableId("hl"), "hl"),
+                new BTreeScan(tid, Database.getCatalog().getTableId("bt"), "bt", probe), probe);
+        int expected = expected(large, Integer.MIN_VALUE);
+        Assert.assertEquals(expected, count(join));
+
+        join.open();
+        join.next();
+        join.rewind();
+        int n = 0;
+        while (join.hasNext()) {
+            join.next();
+            n++;
+        }
+        join.close();
+        Assert.assertEquals(expected, n);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A small outer input probes the index; a large one is hash joined
+     */
+    @Test public void optimizerChoice() throws Exception {
+        OpIterator it = plan("SELECT * FROM hs, bt WHERE hs.c0 = bt.c0;");
+        Assert.assertNotNull(findJoin(it, IndexNestedLoopJoin.class));
+        Assert.assertEquals(expected(small, Integer.MIN_VALUE), count(it));
+        new QueryPlanVisualizer().getQueryPlanTree(it);
+
+        it = plan("SELECT * FROM hl, bt WHERE hl.c0 = bt.c0;");
+        Assert.assertNull(findJoin(it, IndexNestedLoopJoin.class));
+        Assert.assertNotNull(findJoin(it, HashEquiJoin.class));
+        Assert.assertEquals(expected(large, Integer.MIN_VALUE), count(it));
+    }
+
+    /**
+     * Filters on the inner table are applied to the tuples read through the
+     * index, also when they are parameters of a prepared statement
+     */
+    @Test public void innerFilter() throws Exception {
+        OpIterator it = plan("SELECT * FROM hs, bt WHERE hs.c0 = bt.c0 AND bt.c1 > 5000;");
+        Assert.assertNotNull(findJoin(it, IndexNestedLoopJoin.class));
+        Assert.assertEquals(expected(small, 5000), count(it));
+
+        PreparedStatement ps = new Parser().prepare("SELECT * FROM hs, bt WHERE hs.c0 = bt.c0 AND bt.c1 > ?;");
+        for (int v : new int[]{1000, 9000}) {
+            ps.setInt(1, v);
+            TransactionId tid = new TransactionId();
+            it = ps.execute(tid).getPhysicalPlan();
+            Assert.assertNotNull(findJoin(it, IndexNestedLoopJoin.class));
+            Assert.assertEquals(expected(small, v), count(it));
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+    }
+}
@@ -0,0 +1,152 @@
+package simpledb;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.execution.Aggregator;
+import simpledb.execution.IntLongHashMap;
+import simpledb.execution.IntTupleMultiMap;
+import simpledb.execution.IntegerAggregator;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+
+/**
+ * Microbenchmark of the primitive int hash tables against the boxed
+ * HashMaps they replace: build and probe throughput of a hash join table,
+ * and grouping throughput of an aggregation, with the bytes allocated per
+ * operation. Not run as part of the tests; run it with
+ * <pre>
+ * java -cp bin/src:bin/test simpledb.IntHashTableBenchmark [rows] [keys]
+ * </pre>
+ */
+public class IntHashTableBenchmark {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static long allocated() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static long sink;
+
+    private static void report(String name, int ops, long nanos, long bytes) {
+        System.out.printf("%-28s %8.1f Mops/s %8.1f bytes/op%n", name, ops * 1e3 / nanos, (double) bytes / ops);
+    }
+
+    private static void joinBoxed(Tuple[] build, Tuple[] probe) {
+        long t0 = System.nanoTime();
+        long a0 = allocated();
+        Map<Field, List<Tuple>> map = new HashMap<>();
+        for (Tuple t : build) {
+            map.computeIfAbsent(t.getField(0), k -> new ArrayList<>()).add(t);
+        }
+        long t1 = System.nanoTime();
+        long a1 = allocated();
+        long matches = 0;
+        for (Tuple t : probe) {
+            List<Tuple> l = map.get(t.getField(0));
+            if (l != null) {
+                for (Iterator<Tuple> it = l.iterator(); it.hasNext(); it.next()) {
+                    matches++;
+                }
+            }
+        }
+        long t2 = System.nanoTime();
+        sink += matches;
+        report("join build, HashMap", build.length, t1 - t0, a1 - a0);
+        report("join probe, HashMap", probe.length, t2 - t1, allocated() - a1);
+    }
+
+    private static void joinPrimitive(Tuple[] build, Tuple[] probe) {
+        long t0 = System.nanoTime();
+        long a0 = allocated();
+        IntTupleMultiMap map = new IntTupleMultiMap();
+        for (Tuple t : build) {
+            map.put(((IntField) t.getField(0)).getValue(), t);
+        }
+        long t1 = System.nanoTime();
+        long a1 = allocated();
+        long matches = 0;
+        for (Tuple t : probe) {
+            for (int row = map.first(((IntField) t.getField(0)).getValue()); row >= 0; row = map.next(row)) {
+                matches++;
+            }
+        }
+        long t2 = System.nanoTime();
+        sink += matches;
+        report("join build, IntTupleMultiMap", build.length, t1 - t0, a1 - a0);
+        report("join probe, IntTupleMultiMap", probe.length, t2 - t1, allocated() - a1);
+    }
+
+    private static void groupBoxed(Tuple[] rows) {
+        long t0 = System.nanoTime();
+        long a0 = allocated();
+        Map<Field, Integer> groups = new HashMap<>();
+        for (Tuple t : rows) {
+            int value = ((IntField) t.getField(1)).getValue();
+            groups.compute(t.getField(0), (k, v) -> v == null ? value : v + value);
+        }
+        report("SUM group by, HashMap", rows.length, System.nanoTime() - t0, allocated() - a0);
+        sink += groups.size();
+    }
+
+    private static void groupPrimitive(Tuple[] rows) {
+        long t0 = System.nanoTime();
+        long a0 = allocated();
+        IntLongHashMap groups = new IntLongHashMap(1);
+        for (Tuple t : rows) {
+            int key = ((IntField) t.getField(0)).getValue();
+            int slot = groups.find(key);
+            if (slot < 0) {
+                slot = groups.insert(key);
+            }
+            groups.set(slot, 0, groups.get(slot, 0) + ((IntField) t.getField(1)).getValue());
+        }
+        report("SUM group by, IntLongHashMap", rows.length, System.nanoTime() - t0, allocated() - a0);
+        sink += groups.size();
+    }
+
+    private static void aggregator(Tuple[] rows) {
+        long t0 = System.nanoTime();
+        long a0 = allocated();
+        IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM);
+        for (Tuple t : rows) {
+            agg.mergeTupleIntoGroup(t);
+        }
+        report("IntegerAggregator SUM", rows.length, System.nanoTime() - t0, allocated() - a0);
+    }
+
+    public static void main(String[] args) {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int keys = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        Random rand = new Random(0);
+        Tuple[] build = new Tuple[rows];
+        Tuple[] probe = new Tuple[rows];
+        for (int i = 0; i < rows; i++) {
+            build[i] = Utility.getHeapTuple(new int[]{rand.nextInt(keys), i});
+            probe[i] = Utility.getHeapTuple(new int[]{rand.nextInt(keys * 2), i});
+        }
+        System.out.println(rows + " rows, " + keys + " distinct keys");
+        // 前几轮用于预热JIT，只看最后一轮
+        for (int round = 0; round < 5; round++) {
+            System.out.println("round " + round);
+            joinBoxed(build, probe);
+            joinPrimitive(build, probe);
+            groupBoxed(build);
+            groupPrimitive(build);
+            aggregator(build);
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+}
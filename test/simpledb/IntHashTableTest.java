@@ -0,0 +1,91 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import simpledb.common.Utility;
+import simpledb.execution.IntLongHashMap;
+import simpledb.execution.IntTupleMultiMap;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class IntHashTableTest extends SimpleDbTestBase {
+
+    /**
+     * The aggregation table agrees with a HashMap across several resizes,
+     * including for extreme keys
+     */
+    @Test public void intLongHashMap() {
+        IntLongHashMap table = new IntLongHashMap(2);
+        Map<Integer, Long> expected = new HashMap<>();
+        Random rand = new Random(42);
+        for (int i = 0; i < 50000; i++) {
+            int key = i % 10 == 0 ? Integer.MIN_VALUE + rand.nextInt(3) : rand.nextInt(20000) - 10000;
+            int slot = table.find(key);
+            if (slot < 0) {
+                slot = table.insert(key);
+            }
+            table.set(slot, 0, table.get(slot, 0) + i);
+            table.set(slot, 1, table.get(slot, 1) + 1);
+            expected.merge(key, (long) i, Long::sum);
+        }
+        Assert.assertEquals(expected.size(), table.size());
+        int seen = 0;
+        for (int slot = 0; slot < table.capacity(); slot++) {
+            if (table.isUsed(slot)) {
+                Assert.assertEquals(expected.get(table.key(slot)).longValue(), table.get(slot, 0));
+                seen++;
+            }
+        }
+        Assert.assertEquals(expected.size(), seen);
+        Assert.assertEquals(-1, table.find(20000));
+
+        table.clear();
+        Assert.assertEquals(0, table.size());
+        Assert.assertEquals(-1, table.find(0));
+        Assert.assertEquals(0, table.get(table.insert(0), 1));
+    }
+
+    /**
+     * The join table returns every tuple added with a key, and no others
+     */
+    @Test public void intTupleMultiMap() {
+        IntTupleMultiMap table = new IntTupleMultiMap();
+        Map<Integer, List<Tuple>> expected = new HashMap<>();
+        Random rand = new Random(7);
+        for (int i = 0; i < 20000; i++) {
+            int key = rand.nextInt(3000) - 1500;
+            Tuple t = Utility.getHeapTuple(new int[]{key, i});
+            table.put(key, t);
+            expected.computeIfAbsent(key, k -> new ArrayList<>()).add(t);
+        }
+        Assert.assertEquals(20000, table.size());
+        for (int key = -1600; key < 1600; key++) {
+            List<Tuple> found = new ArrayList<>();
+            for (int row = table.first(key); row >= 0; row = table.next(row)) {
+                found.add(table.row(row));
+            }
+            List<Tuple> want = expected.getOrDefault(key, new ArrayList<>());
+            Assert.assertEquals(want.size(), found.size());
+            Assert.assertTrue(found.containsAll(want));
+        }
+
+        table.clear();
+        Assert.assertEquals(0, table.size());
+        Assert.assertEquals(-1, table.first(0));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IntHashTableTest.class);
+    }
+}
@@ -175,4 +175,43 @@ public class IntHistogramTest {
 		Assert.assertTrue(h.estimateSelectivity(Op.NOT_EQUALS, 3) < 0.001);
 		Assert.assertTrue(h.estimateSelectivity(Op.NOT_EQUALS, 8) > 0.01);
 	}
+
+	/**
+	 * Make sure that removed values no longer count.
+	 */
+	@Test public void removeValueTest() {
+		IntHistogram h = new IntHistogram(10, 1, 10);
+		h.addValue(3);
+		h.addValue(3);
+		h.addValue(8);
+		h.removeValue(3);
+		h.removeValue(3);
+
+		Assert.assertTrue(h.estimateSelectivity(Op.EQUALS, 3) < 0.001);
+		Assert.assertTrue(h.estimateSelectivity(Op.EQUALS, 8) > 0.999);
+	}
+
+	/**
+	 * Make sure that rebalancing widens the range to cover values added
+	 * outside of it and keeps the distribution of the old values.
+	 */
+	@Test public void rebalanceTest() {
+		IntHistogram h = new IntHistogram(10, 1, 10);
+		for (int i = 1; i <= 10; i++) {
+			h.addValue(i);
+		}
+		Assert.assertEquals(0.0, h.outOfRangeFraction(), 0.0);
+		for (int i = 11; i <= 20; i++) {
+			h.addValue(i);
+		}
+		Assert.assertEquals(0.5, h.outOfRangeFraction(), 0.001);
+		// Values outside the range are not reflected until the rebalance
+		Assert.assertTrue(h.estimateSelectivity(Op.GREATER_THAN, 10) < 0.001);
+
+		IntHistogram r = h.rebalance();
+		Assert.assertEquals(0.0, r.outOfRangeFraction(), 0.0);
+		Assert.assertEquals(0.5, r.estimateSelectivity(Op.GREATER_THAN, 10), 0.05);
+		Assert.assertEquals(0.25, r.estimateSelectivity(Op.LESS_THAN_OR_EQ, 5), 0.05);
+		Assert.assertTrue(r.estimateSelectivity(Op.GREATER_THAN, 20) < 0.001);
+	}
 }
@@ -11,9 +11,11 @@ import org.junit.Test;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Utility;
+import simpledb.execution.OpIterator;
 import simpledb.execution.Predicate;
 import simpledb.optimizer.JoinOptimizer;
 import simpledb.optimizer.LogicalJoinNode;
+import simpledb.optimizer.LogicalPlan;
 import simpledb.optimizer.TableStats;
 import simpledb.storage.BufferPool;
 import simpledb.storage.HeapFile;
@@ -629,4 +631,168 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(result.get(result.size() - 1).t2Alias.equals("a")
                 || result.get(result.size() - 1).t1Alias.equals("a"));
     }
+
+    /**
+     * Test that a wide star join (every table joined to one fact table) is
+     * planned in reasonable time, and that the plan contains every join
+     */
+    @Test(timeout = 20000)
+    public void wideStarOrderJoinsTest() throws IOException, ParsingException {
+        final int TABLES = 15;
+        TransactionId tid = new TransactionId();
+        Map<String, TableStats> stats = new HashMap<>();
+        Map<String, Double> filterSelectivities = new HashMap<>();
+        List<LogicalJoinNode> nodes = new ArrayList<>();
+        StringBuilder from = new StringBuilder();
+        StringBuilder where = new StringBuilder();
+
+        List<List<Integer>> tuples = new ArrayList<>();
+        for (int i = 0; i < TABLES; i++) {
+            HeapFile f = SystemTestUtil.createRandomHeapFile(2, 100 * (i + 1), 50, null, tuples, "c");
+            String name = "s" + i;
+            Database.getCatalog().addTable(f, name);
+            stats.put(name, new TableStats(f.getId(), 100));
+            filterSelectivities.put(name, 1.0);
+            from.append(i == 0 ? "" : ", ").append(name);
+            if (i > 0) {
+                nodes.add(new LogicalJoinNode("s0", name, "c" + (i % 2), "c0", Predicate.Op.EQUALS));
+                where.append(i == 1 ? "" : " AND ").append("s0.c").append(i % 2).append(" = ").append(name).append(".c0");
+            }
+        }
+        Collections.shuffle(nodes);
+
+        JoinOptimizer j = new JoinOptimizer(new Parser().generateLogicalPlan(tid,
+                "SELECT * FROM " + from + " WHERE " + where + ";"), nodes);
+        List<LogicalJoinNode> result = j.orderJoins(stats, filterSelectivities, false);
+
+        assertValidOrder(nodes, result, TABLES);
+    }
+
+    /**
+     * Test that a join of more tables than the greedy threshold is planned
+     * quickly by the greedy fallback, and that the plan contains every join
+     */
+    @Test(timeout = 5000)
+    public void greedyOrderJoinsTest() throws IOException, ParsingException {
+        final int TABLES = 40;
+        TransactionId tid = new TransactionId();
+        Map<String, TableStats> stats = new HashMap<>();
+        Map<String, Double> filterSelectivities = new HashMap<>();
+        List<LogicalJoinNode> nodes = new ArrayList<>();
+        StringBuilder from = new StringBuilder();
+        StringBuilder where = new StringBuilder();
+
+        List<List<Integer>> tuples = new ArrayList<>();
+        Random random = new Random(7);
+        for (int i = 0; i < TABLES; i++) {
+            HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10 + random.nextInt(500), 100, null, tuples, "c");
+            String name = "g" + i;
+            Database.getCatalog().addTable(f, name);
+            stats.put(name, new TableStats(f.getId(), 100));
+            filterSelectivities.put(name, 1.0);
+            from.append(i == 0 ? "" : ", ").append(name);
+        }
+        // 一条链再加上一些随机的边
+        for (int i = 1; i < TABLES; i++) {
+            int other = random.nextInt(4) == 0 ? random.nextInt(i) : i - 1;
+            nodes.add(new LogicalJoinNode("g" + other, "g" + i, "c1", "c0", Predicate.Op.EQUALS));
+            where.append(i == 1 ? "" : " AND ").append("g").append(other).append(".c1 = g").append(i).append(".c0");
+        }
+        Collections.shuffle(nodes, random);
+        Assert.assertTrue(nodes.size() > JoinOptimizer.getGreedyThreshold());
+
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, "SELECT * FROM " + from + " WHERE " + where + ";");
+        List<LogicalJoinNode> result = new JoinOptimizer(lp, nodes).orderJoins(stats, filterSelectivities, false);
+        assertValidOrder(nodes, result, TABLES);
+
+        // 阈值为0时小查询也走贪心
+        int threshold = JoinOptimizer.getGreedyThreshold();
+        try {
+            JoinOptimizer.setGreedyThreshold(0);
+            List<LogicalJoinNode> small = nodes.subList(0, 3);
+            Set<String> tables = new HashSet<>();
+            for (LogicalJoinNode node : small) {
+                tables.add(node.t1Alias);
+                tables.add(node.t2Alias);
+            }
+            result = new JoinOptimizer(lp, small).orderJoins(stats, filterSelectivities, false);
+            Assert.assertEquals(small.size(), result.size());
+            Assert.assertTrue(result.containsAll(small));
+        } finally {
+            JoinOptimizer.setGreedyThreshold(threshold);
+        }
+    }
+
+    /**
+     * Test that a chain a - b - c - d whose middle join is much larger than
+     * the outer two is planned as (a join b) join (c join d), that every
+     * equality join is planned as a hash join, and that the bushy plan
+     * returns the right number of tuples
+     */
+    @Test
+    public void bushyJoinTest() throws IOException, ParsingException, DbException, TransactionAbortedException {
+        final int ROWS = 300;
+        final int GROUPS = 10;
+        TransactionId tid = new TransactionId();
+        Map<String, TableStats> stats = new HashMap<>();
+        Map<String, Double> filterSelectivities = new HashMap<>();
+        // b.c1 = c.c1 只有GROUPS个不同的值，其余join都在唯一的c0上
+        for (String name : new String[]{"ba", "bb", "bc", "bd"}) {
+            List<List<Integer>> tuples = new ArrayList<>();
+            for (int r = 0; r < ROWS; r++) {
+                tuples.add(Arrays.asList(r, r % GROUPS));
+            }
+            HeapFile f = createDuplicateHeapFile(tuples, 2, "c");
+            Database.getCatalog().addTable(f, name, "c0");
+            stats.put(name, new TableStats(f.getId(), 100));
+            TableStats.setTableStats(name, stats.get(name));
+            filterSelectivities.put(name, 1.0);
+        }
+
+        String query = "SELECT * FROM ba, bb, bc, bd WHERE ba.c0 = bb.c0 AND bb.c1 = bc.c1 AND bc.c0 = bd.c0;";
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, query);
+        List<LogicalJoinNode> nodes = new ArrayList<>();
+        nodes.add(new LogicalJoinNode("bb", "bc", "c1", "c1", Predicate.Op.EQUALS));
+        nodes.add(new LogicalJoinNode("ba", "bb", "c0", "c0", Predicate.Op.EQUALS));
+        nodes.add(new LogicalJoinNode("bc", "bd", "c0", "c0", Predicate.Op.EQUALS));
+        List<LogicalJoinNode> result = new JoinOptimizer(lp, nodes).orderJoins(stats, filterSelectivities, false);
+
+        assertValidOrder(nodes, result, 4);
+        Assert.assertEquals(nodes.get(0), result.get(2));
+        for (LogicalJoinNode node : result) {
+            Assert.assertEquals(LogicalJoinNode.Algorithm.HASH, node.algorithm);
+        }
+
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        plan.open();
+        int count = 0;
+        while (plan.hasNext()) {
+            plan.next();
+            count++;
+        }
+        plan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        Assert.assertEquals(ROWS * ROWS / GROUPS, count);
+    }
+
+    /**
+     * Assert that result contains every join in nodes, and that each join
+     * combines two subplans that do not share a table
+     */
+    private static void assertValidOrder(List<LogicalJoinNode> nodes, List<LogicalJoinNode> result, int tables) {
+        Assert.assertEquals(nodes.size(), result.size());
+        Assert.assertTrue(result.containsAll(nodes));
+        Map<String, Set<String>> subplans = new HashMap<>();
+        for (LogicalJoinNode node : result) {
+            Set<String> left = subplans.getOrDefault(node.t1Alias, Collections.singleton(node.t1Alias));
+            Set<String> right = subplans.getOrDefault(node.t2Alias, Collections.singleton(node.t2Alias));
+            Assert.assertTrue(Collections.disjoint(left, right));
+            Set<String> joined = new HashSet<>(left);
+            joined.addAll(right);
+            for (String alias : joined) {
+                subplans.put(alias, joined);
+            }
+        }
+        Assert.assertEquals(tables, subplans.get(result.get(0).t1Alias).size());
+    }
 }
@@ -112,6 +112,33 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * The inner child is rescanned once per block of outer tuples, and the
+   * first result is returned before the outer child is exhausted
+   */
+  @Test public void blockNestedLoops() throws Exception {
+    final int[] rewinds = new int[1];
+    OpIterator outer = new TestUtil.MockScan(0, 3000, 1);
+    OpIterator inner = new TestUtil.MockScan(0, 100, 1) {
+      @Override public void rewind() {
+        rewinds[0]++;
+        super.rewind();
+      }
+    };
+    int blockSize = Join.blockSize(outer.getTupleDesc());
+    Join op = new Join(new JoinPredicate(0, Predicate.Op.EQUALS, 0), outer, inner);
+    op.open();
+    assertTrue(op.hasNext());
+    assertTrue(outer.hasNext());
+    int count = 0;
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    assertEquals(100, count);
+    assertEquals((3000 + blockSize - 1) / blockSize - 1, rewinds[0]);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,237 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.Limit;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.Query;
+import simpledb.execution.TopN;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.optimizer.QueryPlanVisualizer;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleIterator;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class LimitTest extends SimpleDbTestBase {
+    private static final int ROWS = 2000;
+
+    private List<List<Integer>> tuples;
+    private List<List<Integer>> indexed;
+    private TupleDesc td;
+    private List<Tuple> input;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        // 键的取值范围小，有很多相等的值
+        tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, ROWS, 100, null, tuples, "c");
+        Database.getCatalog().addTable(f, "lt");
+        TableStats.setTableStats("lt", new TableStats(f.getId(), 1000));
+        indexed = new ArrayList<>();
+        BTreeFile b = BTreeUtility.createRandomBTreeFile(2, ROWS, ROWS * 4, null, indexed, 0);
+        // 给字段命名以便按SQL查询
+        BTreeFile named = new BTreeFile(b.getFile(), 0, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(named, "lb");
+        TableStats.setTableStats("lb", new TableStats(named.getId(), 1000));
+
+        td = Utility.getTupleDesc(2);
+        input = new ArrayList<>();
+        for (int i = 0; i < tuples.size(); i++) {
+            input.add(Utility.getHeapTuple(new int[]{tuples.get(i).get(0), i}));
+        }
+    }
+
+    /** Counts the tuples read from it */
+    private static class CountingIterator extends TupleIterator {
+        private static final long serialVersionUID = 1L;
+        int read;
+
+        CountingIterator(TupleDesc td, List<Tuple> tuples) {
+            super(td, tuples);
+        }
+
+        public Tuple next() {
+            read++;
+            return super.next();
+        }
+    }
+
+    private static List<Tuple> drain(OpIterator it) throws Exception {
+        List<Tuple> result = new ArrayList<>();
+        while (it.hasNext()) {
+            result.add(it.next());
+        }
+        return result;
+    }
+
+    private static List<Tuple> run(String sql) throws Exception {
+        return run(new Parser().prepare(sql));
+    }
+
+    private static List<Tuple> run(PreparedStatement ps) throws Exception {
+        TransactionId tid = new TransactionId();
+        Query q = ps.execute(tid);
+        List<Tuple> result = new ArrayList<>();
+        q.start();
+        while (q.hasNext()) {
+            result.add(q.next());
+        }
+        q.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return result;
+    }
+
+    private static OpIterator plan(String sql) throws Exception {
+        TransactionId tid = new TransactionId();
+        return new Parser().generateLogicalPlan(tid, sql).physicalPlan(tid, TableStats.getStatsMap(), false);
+    }
+
+    /** @return true if the plan has an operator of the class */
+    private static boolean contains(OpIterator it, Class<?> c) {
+        if (c.isInstance(it)) {
+            return true;
+        }
+        if (it instanceof Operator) {
+            for (OpIterator child : ((Operator) it).getChildren()) {
+                if (child != null && contains(child, c)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** @return the first n values of column 0 of the rows, sorted */
+    private static List<Integer> first(List<List<Integer>> rows, boolean asc, int n) {
+        List<Integer> keys = new ArrayList<>();
+        for (List<Integer> row : rows) {
+            keys.add(row.get(0));
+        }
+        keys.sort(asc ? Comparator.<Integer>naturalOrder() : Comparator.<Integer>reverseOrder());
+        return keys.subList(0, Math.min(n, keys.size()));
+    }
+
+    private static List<Integer> column(List<Tuple> result, int field) {
+        List<Integer> values = new ArrayList<>();
+        for (Tuple t : result) {
+            values.add(((IntField) t.getField(field)).getValue());
+        }
+        return values;
+    }
+
+    /**
+     * Limit returns the first n tuples and stops reading its child there
+     */
+    @Test public void limitStopsEarly() throws Exception {
+        CountingIterator child = new CountingIterator(td, input);
+        Limit limit = new Limit(10, child);
+        limit.open();
+        Assert.assertEquals(input.subList(0, 10).toString(), drain(limit).toString());
+        Assert.assertEquals(10, child.read);
+        limit.rewind();
+        Assert.assertEquals(10, drain(limit).size());
+        limit.close();
+
+        limit = new Limit(0, new TupleIterator(td, input));
+        limit.open();
+        Assert.assertFalse(limit.hasNext());
+        limit.close();
+    }
+
+    /**
+     * TopN returns the same tuples as a stable OrderBy followed by a Limit,
+     * in both directions, for limits below, at and above the input size
+     */
+    @Test public void topNMatchesOrderBy() throws Exception {
+        for (boolean asc : new boolean[]{true, false}) {
+            for (int n : new int[]{0, 1, 7, 250, ROWS, ROWS + 5}) {
+                Limit expected = new Limit(n, new OrderBy(0, asc, new TupleIterator(td, input)));
+                expected.open();
+                TopN topN = new TopN(0, asc, n, new TupleIterator(td, input));
+                topN.open();
+                // 第二列是读入序号，相等的键也须保持输入顺序
+                Assert.assertEquals(asc + " " + n, drain(expected).toString(), drain(topN).toString());
+                topN.rewind();
+                Assert.assertEquals(Math.min(n, ROWS), drain(topN).size());
+                topN.close();
+                expected.close();
+            }
+        }
+    }
+
+    /**
+     * ORDER BY ... LIMIT n is planned as a TopN, and LIMIT alone as a Limit
+     */
+    @Test public void sqlLimit() throws Exception {
+        OpIterator it = plan("SELECT * FROM lt ORDER BY lt.c0 DESC LIMIT 15;");
+        Assert.assertTrue(contains(it, TopN.class));
+        Assert.assertFalse(contains(it, OrderBy.class));
+        new QueryPlanVisualizer().getQueryPlanTree(it);
+        Assert.assertEquals(first(tuples, false, 15),
+                column(run("SELECT * FROM lt ORDER BY lt.c0 DESC LIMIT 15;"), 0));
+
+        Assert.assertEquals(25, run("SELECT lt.c1 FROM lt WHERE lt.c0 > 10 limit 25;").size());
+        Assert.assertTrue(run("SELECT * FROM lt LIMIT 0;").isEmpty());
+    }
+
+    /**
+     * An ORDER BY on the key of a B+ tree needs no sort, so the scan stops
+     * after the first n tuples
+     */
+    @Test public void indexOrderLimit() throws Exception {
+        OpIterator it = plan("SELECT * FROM lb ORDER BY lb.c0 LIMIT 20;");
+        Assert.assertTrue(contains(it, Limit.class));
+        Assert.assertFalse(contains(it, TopN.class));
+        Assert.assertFalse(contains(it, OrderBy.class));
+        Assert.assertEquals(first(indexed, true, 20),
+                column(run("SELECT * FROM lb ORDER BY lb.c0 LIMIT 20;"), 0));
+        // 降序仍需排序
+        Assert.assertEquals(first(indexed, false, 20),
+                column(run("SELECT * FROM lb ORDER BY lb.c0 DESC LIMIT 20;"), 0));
+    }
+
+    /**
+     * A prepared statement with a LIMIT returns at most n tuples on every
+     * execution
+     */
+    @Test public void preparedLimit() throws Exception {
+        PreparedStatement ps = new Parser().prepare("SELECT * FROM lt WHERE lt.c0 >= ? ORDER BY lt.c0 LIMIT 5;");
+        for (int value : new int[]{0, 50, 99, 1000}) {
+            ps.setInt(1, value);
+            List<Integer> keys = column(run(ps), 0);
+            List<List<Integer>> matching = new ArrayList<>();
+            for (List<Integer> row : tuples) {
+                if (row.get(0) >= value) {
+                    matching.add(row);
+                }
+            }
+            Assert.assertEquals(first(matching, true, 5), keys);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LimitTest.class);
+    }
+}
@@ -0,0 +1,204 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.Aggregate;
+import simpledb.execution.Aggregator;
+import simpledb.execution.MultiAggregator;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Query;
+import simpledb.optimizer.QueryPlanVisualizer;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleIterator;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class MultiAggregatorTest extends SimpleDbTestBase {
+    private static final Aggregator.Op[] OPS = {Aggregator.Op.COUNT, Aggregator.Op.SUM,
+            Aggregator.Op.MAX, Aggregator.Op.MIN, Aggregator.Op.AVG};
+
+    private List<List<Integer>> rows;
+    private TupleDesc td;
+    private List<Tuple> tuples;
+
+    /** A table (c0, c1, c2) with few distinct values in c0 and c1 */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        rows = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, 2000, 10, null, rows, "c");
+        Database.getCatalog().addTable(f, "ma");
+        TableStats.setTableStats("ma", new TableStats(f.getId(), 1000));
+        td = Utility.getTupleDesc(3);
+        tuples = new ArrayList<>();
+        for (List<Integer> row : rows) {
+            tuples.add(Utility.getHeapTuple(new int[]{row.get(0), row.get(1), row.get(2)}));
+        }
+    }
+
+    /**
+     * @return for each group of the columns, the group values followed by
+     *         COUNT, SUM, MAX, MIN and AVG of column 2, as sorted strings
+     */
+    private List<String> expected(int... groupColumns) {
+        Map<List<Integer>, List<Integer>> groups = new HashMap<>();
+        for (List<Integer> row : rows) {
+            List<Integer> key = new ArrayList<>();
+            for (int c : groupColumns) {
+                key.add(row.get(c));
+            }
+            groups.computeIfAbsent(key, k -> new ArrayList<>()).add(row.get(2));
+        }
+        List<String> result = new ArrayList<>();
+        for (Map.Entry<List<Integer>, List<Integer>> e : groups.entrySet()) {
+            List<Integer> values = e.getValue();
+            long sum = 0;
+            for (int v : values) {
+                sum += v;
+            }
+            List<Integer> row = new ArrayList<>(e.getKey());
+            row.add(values.size());
+            row.add((int) sum);
+            row.add(Collections.max(values));
+            row.add(Collections.min(values));
+            row.add((int) (sum / values.size()));
+            result.add(toString(row));
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private static String toString(List<Integer> values) {
+        StringBuilder s = new StringBuilder();
+        for (int v : values) {
+            s.append(v).append(' ');
+        }
+        return s.toString();
+    }
+
+    /** @return the tuples of an open iterator, as sorted strings */
+    private static List<String> drain(OpIterator it) throws Exception {
+        List<String> result = new ArrayList<>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            StringBuilder s = new StringBuilder();
+            for (int i = 0; i < t.getTupleDesc().numFields(); i++) {
+                s.append(t.getField(i)).append(' ');
+            }
+            result.add(s.toString());
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private static int[] aggregateColumns() {
+        int[] fields = new int[OPS.length];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = 2;
+        }
+        return fields;
+    }
+
+    /**
+     * Every aggregate is computed for every group, whether the groups are
+     * keyed on one int field, on two fields, or not at all
+     */
+    @Test public void multipleAggregates() throws Exception {
+        int[][] groupings = {{0}, {0, 1}, {}};
+        for (int[] groups : groupings) {
+            MultiAggregator agg = new MultiAggregator(td, groups, aggregateColumns(), OPS);
+            for (Tuple t : tuples) {
+                agg.mergeTupleIntoGroup(t);
+            }
+            List<String> expected = expected(groups);
+            Assert.assertEquals(expected.size(), agg.numGroups());
+            OpIterator it = agg.iterator();
+            Assert.assertEquals(groups.length + OPS.length, it.getTupleDesc().numFields());
+            it.open();
+            Assert.assertEquals(expected, drain(it));
+        }
+    }
+
+    /**
+     * Aggregate with several aggregates and group-by fields gives the same
+     * results whether the groups fit in memory or are partitioned to disk
+     */
+    @Test public void spill() throws Exception {
+        int[] groups = {1, 0};
+        Aggregate agg = new Aggregate(new TupleIterator(td, tuples), aggregateColumns(), groups, OPS, 7);
+        agg.open();
+        Assert.assertEquals(expected(1, 0), drain(agg));
+        Assert.assertTrue(agg.getSpilledTuples() > 0);
+        agg.close();
+    }
+
+    private static List<String> run(String sql) throws Exception {
+        TransactionId tid = new TransactionId();
+        Query q = new Parser().prepare(sql).execute(tid);
+        new QueryPlanVisualizer().getQueryPlanTree(q.getPhysicalPlan());
+        List<String> result = new ArrayList<>();
+        q.start();
+        while (q.hasNext()) {
+            Tuple t = q.next();
+            StringBuilder s = new StringBuilder();
+            for (int i = 0; i < t.getTupleDesc().numFields(); i++) {
+                s.append(t.getField(i)).append(' ');
+            }
+            result.add(s.toString());
+        }
+        q.close();
+        Database.getBufferPool().transactionComplete(tid);
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * A query with several aggregates and GROUP BY fields is answered in
+     * one pass, with the select list in any order
+     */
+    @Test public void sql() throws Exception {
+        Assert.assertEquals(expected(0, 1), run("SELECT ma.c0, ma.c1, COUNT(*), SUM(ma.c2), MAX(c2), MIN(ma.c2), "
+                + "AVG(ma.c2) FROM ma GROUP BY ma.c0, c1;"));
+
+        // 分组字段在聚合之后，顺序与GROUP BY不同
+        List<String> reordered = new ArrayList<>();
+        Map<List<Integer>, Integer> counts = new HashMap<>();
+        for (List<Integer> row : rows) {
+            counts.merge(java.util.Arrays.asList(row.get(1), row.get(0)), 1, Integer::sum);
+        }
+        for (Map.Entry<List<Integer>, Integer> e : counts.entrySet()) {
+            reordered.add(e.getValue() + " " + e.getKey().get(0) + " " + e.getKey().get(1) + " ");
+        }
+        Collections.sort(reordered);
+        Assert.assertEquals(reordered, run("SELECT COUNT(ma.c2), ma.c1, ma.c0 FROM ma GROUP BY ma.c0, ma.c1;"));
+
+        List<String> total = run("SELECT COUNT(*), SUM(ma.c0) FROM ma;");
+        long sum = 0;
+        for (List<Integer> row : rows) {
+            sum += row.get(0);
+        }
+        Assert.assertEquals(Collections.singletonList(rows.size() + " " + sum + " "), total);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MultiAggregatorTest.class);
+    }
+}
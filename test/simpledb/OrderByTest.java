@@ -0,0 +1,125 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Type;
+import simpledb.execution.OrderBy;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleIterator;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class OrderByTest extends SimpleDbTestBase {
+    private static final int ROWS = 3000;
+
+    private TupleDesc td;
+    private List<Tuple> tuples;
+
+    /**
+     * Tuples with an int key with many duplicates, their position, and a
+     * string of varying length
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.INT_TYPE, Type.STRING_TYPE},
+                new String[]{"key", "pos", "name"});
+        tuples = new ArrayList<>();
+        Random rand = new Random(11);
+        for (int i = 0; i < ROWS; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(rand.nextInt(500) - 250));
+            t.setField(1, new IntField(i));
+            t.setField(2, new StringField(i % 7 == 0 ? "" : "name" + Integer.toString(i, 36), Type.STRING_LEN));
+            tuples.add(t);
+        }
+    }
+
+    private OrderBy orderBy(boolean asc, int memoryTuples) {
+        return new OrderBy(0, asc, new TupleIterator(td, tuples), memoryTuples);
+    }
+
+    /**
+     * Read all tuples, checking that they are sorted, that equal keys keep
+     * their input order, and that no field changed on the way
+     */
+    private void checkSorted(OrderBy op, boolean asc) throws Exception {
+        int count = 0;
+        Tuple last = null;
+        while (op.hasNext()) {
+            Tuple t = op.next();
+            Tuple original = tuples.get(((IntField) t.getField(1)).getValue());
+            for (int i = 0; i < td.numFields(); i++) {
+                Assert.assertEquals(original.getField(i), t.getField(i));
+            }
+            if (last != null) {
+                int prev = ((IntField) last.getField(0)).getValue();
+                int key = ((IntField) t.getField(0)).getValue();
+                Assert.assertTrue(asc ? prev <= key : prev >= key);
+                if (prev == key) {
+                    Assert.assertTrue(((IntField) last.getField(1)).getValue() < ((IntField) t.getField(1)).getValue());
+                }
+            }
+            last = t;
+            count++;
+        }
+        Assert.assertEquals(ROWS, count);
+    }
+
+    /**
+     * Inputs within the memory budget are sorted without writing to disk
+     */
+    @Test public void inMemory() throws Exception {
+        OrderBy op = orderBy(true, ROWS);
+        op.open();
+        checkSorted(op, true);
+        Assert.assertEquals(0, op.getSpilledTuples());
+        op.close();
+    }
+
+    /**
+     * Larger inputs are sorted in runs on disk and merged, in both
+     * directions, and return the same tuples again after a rewind
+     */
+    @Test public void external() throws Exception {
+        for (boolean asc : new boolean[]{true, false}) {
+            OrderBy op = orderBy(asc, 500);
+            op.open();
+            Assert.assertTrue(op.hasNext());
+            op.rewind();
+            checkSorted(op, asc);
+            Assert.assertEquals(ROWS, op.getSpilledTuples());
+            op.rewind();
+            checkSorted(op, asc);
+            op.close();
+        }
+    }
+
+    /**
+     * With more runs than can be merged at once, the runs are merged in
+     * several passes
+     */
+    @Test public void multiPassMerge() throws Exception {
+        OrderBy op = orderBy(true, 20);
+        op.open();
+        checkSorted(op, true);
+        Assert.assertTrue(op.getSpilledTuples() >= 2 * ROWS);
+        op.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OrderByTest.class);
+    }
+}
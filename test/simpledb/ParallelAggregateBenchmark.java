@@ -0,0 +1,60 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.execution.Aggregate;
+import simpledb.execution.Aggregator;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Benchmark of a GROUP BY over a heap file aggregated by 1, 2, 4 and 8
+ * threads, with a buffer pool holding the whole file so that the scan is
+ * bound by the CPU. Not run as part of the tests; run it with
+ * <pre>
+ * java -cp bin/src:bin/test:lib/* simpledb.ParallelAggregateBenchmark [rows [groups]]
+ * </pre>
+ */
+public class ParallelAggregateBenchmark {
+
+    private static long sink;
+
+    private static void aggregate(HeapFile file, int threads) throws Exception {
+        TransactionId tid = new TransactionId();
+        long t0 = System.nanoTime();
+        Aggregate op = new Aggregate(new SeqScan(tid, file.getId()), new int[]{1, 1, 1}, new int[]{0},
+                new Aggregator.Op[]{Aggregator.Op.COUNT, Aggregator.Op.SUM, Aggregator.Op.AVG});
+        op.setParallelism(threads);
+        op.open();
+        int results = 0;
+        while (op.hasNext()) {
+            sink += ((IntField) op.next().getField(3)).getValue();
+            results++;
+        }
+        op.close();
+        Database.getBufferPool().transactionComplete(tid);
+        System.out.printf("%2d threads %8.1f ms %9d groups%n", threads, (System.nanoTime() - t0) / 1e6, results);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int groups = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        HeapFile file = SystemTestUtil.createRandomHeapFile(2, rows, groups, null, null, "c");
+        Database.getCatalog().addTable(file, "bench");
+        Database.resetBufferPool(file.numPages() + 16);
+        System.out.println(rows + " rows, " + file.numPages() + " pages, "
+                + Runtime.getRuntime().availableProcessors() + " processors");
+        // 前几轮用于预热JIT与buffer pool，只看最后一轮
+        for (int round = 0; round < 3; round++) {
+            System.out.println("round " + round);
+            for (int threads : new int[]{1, 2, 4, 8}) {
+                aggregate(file, threads);
+            }
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+}
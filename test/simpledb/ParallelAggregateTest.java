@@ -0,0 +1,164 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.Aggregate;
+import simpledb.execution.Aggregator;
+import simpledb.execution.MorselScan;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.Query;
+import simpledb.execution.SeqScan;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class ParallelAggregateTest extends SimpleDbTestBase {
+    private static final int THREADS = 4;
+
+    private HeapFile file;
+    private TransactionId tid;
+
+    /** A table (c0, c1, c2) spanning many more pages than a morsel */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        file = SystemTestUtil.createRandomHeapFile(3, 30000, 16, null, new ArrayList<>(), "c");
+        Database.getCatalog().addTable(file, "pa");
+        TableStats.setTableStats("pa", new TableStats(file.getId(), 1000));
+        Assert.assertTrue(file.numPages() > 4 * MorselScan.MORSEL_PAGES);
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+        LogicalPlan.setParallelism(1);
+    }
+
+    /** @return the tuples of an open iterator, as sorted strings */
+    private static List<String> drain(OpIterator it) throws Exception {
+        List<String> result = new ArrayList<>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            StringBuilder s = new StringBuilder();
+            for (int i = 0; i < t.getTupleDesc().numFields(); i++) {
+                s.append(t.getField(i)).append(' ');
+            }
+            result.add(s.toString());
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private List<String> aggregate(int[] aFields, int[] gFields, Aggregator.Op[] ops,
+                                   int memoryGroups, int threads) throws Exception {
+        Aggregate agg = new Aggregate(new SeqScan(tid, file.getId(), "pa"), aFields, gFields, ops, memoryGroups);
+        agg.setParallelism(threads);
+        agg.open();
+        List<String> result = drain(agg);
+        agg.rewind();
+        Assert.assertEquals(result, drain(agg));
+        agg.close();
+        return result;
+    }
+
+    /**
+     * Every operator, alone or together with the others, gives the same
+     * groups in parallel as on one thread; SC_AVG takes its counts from c2
+     */
+    @Test public void allOps() throws Exception {
+        Aggregator.Op[] ops = Aggregator.Op.values();
+        int[] fields = new int[ops.length];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = 1;
+        }
+        int[][] groupings = {{}, {0}, {0, 1}};
+        for (int[] groups : groupings) {
+            for (Aggregator.Op op : ops) {
+                int[] a = {1};
+                Aggregator.Op[] o = {op};
+                List<String> serial = aggregate(a, groups, o, Aggregate.MAP_SIZE, 1);
+                Assert.assertFalse(serial.isEmpty());
+                Assert.assertEquals(op + " " + groups.length, serial,
+                        aggregate(a, groups, o, Aggregate.MAP_SIZE, THREADS));
+            }
+            Assert.assertEquals(aggregate(fields, groups, ops, Aggregate.MAP_SIZE, 1),
+                    aggregate(fields, groups, ops, Aggregate.MAP_SIZE, THREADS));
+        }
+    }
+
+    /**
+     * Workers whose tables outgrow their share of the memory budget
+     * partition their partial aggregates to disk, without changing the
+     * result
+     */
+    @Test public void spill() throws Exception {
+        int[] groups = {0, 1};
+        int[] fields = {2, 2, 2};
+        Aggregator.Op[] ops = {Aggregator.Op.AVG, Aggregator.Op.COUNT, Aggregator.Op.MAX};
+        List<String> expected = aggregate(fields, groups, ops, Aggregate.MAP_SIZE, 1);
+
+        Aggregate agg = new Aggregate(new SeqScan(tid, file.getId(), "pa"), fields, groups, ops, 16);
+        agg.setParallelism(THREADS);
+        agg.open();
+        Assert.assertEquals(expected, drain(agg));
+        Assert.assertTrue(agg.getSpilledTuples() > 0);
+        agg.close();
+    }
+
+    private static List<String> run(String sql) throws Exception {
+        TransactionId tid = new TransactionId();
+        Query q = new Parser().prepare(sql).execute(tid);
+        OpIterator plan = q.getPhysicalPlan();
+        while (!(plan instanceof Aggregate)) {
+            plan = ((Operator) plan).getChildren()[0];
+        }
+        Assert.assertEquals(LogicalPlan.getParallelism(), ((Aggregate) plan).getParallelism());
+        q.start();
+        List<String> result = new ArrayList<>();
+        while (q.hasNext()) {
+            Tuple t = q.next();
+            StringBuilder s = new StringBuilder();
+            for (int i = 0; i < t.getTupleDesc().numFields(); i++) {
+                s.append(t.getField(i)).append(' ');
+            }
+            result.add(s.toString());
+        }
+        q.close();
+        Database.getBufferPool().transactionComplete(tid);
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * With a parallelism set, GROUP BY queries over a table are aggregated
+     * in parallel, with the same results
+     */
+    @Test public void sql() throws Exception {
+        String sql = "SELECT pa.c0, COUNT(*), SUM(pa.c1), AVG(pa.c2), MIN(pa.c2) FROM pa GROUP BY pa.c0;";
+        List<String> serial = run(sql);
+        LogicalPlan.setParallelism(THREADS);
+        Assert.assertEquals(serial, run(sql));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ParallelAggregateTest.class);
+    }
+}
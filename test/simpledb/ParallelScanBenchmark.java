@@ -0,0 +1,66 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.execution.Filter;
+import simpledb.execution.OpIterator;
+import simpledb.execution.ParallelScan;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Benchmark of a filtered scan of a heap file, serial and by a
+ * ParallelScan on 1, 2, 4 and 8 threads, with a buffer pool holding the
+ * whole file so that the scan is bound by the CPU. Not run as part of the
+ * tests; run it with
+ * <pre>
+ * java -cp bin/src:bin/test:lib/* simpledb.ParallelScanBenchmark [rows]
+ * </pre>
+ */
+public class ParallelScanBenchmark {
+
+    private static long sink;
+
+    private static void scan(String name, HeapFile file, int threads) throws Exception {
+        TransactionId tid = new TransactionId();
+        long t0 = System.nanoTime();
+        OpIterator op = new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(100)),
+                new SeqScan(tid, file.getId()));
+        if (threads > 0) {
+            op = new ParallelScan(op, threads);
+        }
+        op.open();
+        int results = 0;
+        while (op.hasNext()) {
+            sink += ((IntField) op.next().getField(0)).getValue();
+            results++;
+        }
+        op.close();
+        Database.getBufferPool().transactionComplete(tid);
+        System.out.printf("%-9s %2d threads %8.1f ms %9d tuples%n", name, Math.max(threads, 1),
+                (System.nanoTime() - t0) / 1e6, results);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        HeapFile file = SystemTestUtil.createRandomHeapFile(2, rows, 1000, null, null, "c");
+        Database.getCatalog().addTable(file, "bench");
+        Database.resetBufferPool(file.numPages() + 16);
+        System.out.println(rows + " rows, " + file.numPages() + " pages, "
+                + Runtime.getRuntime().availableProcessors() + " processors, 10% selected");
+        // 前几轮用于预热JIT与buffer pool，只看最后一轮
+        for (int round = 0; round < 3; round++) {
+            System.out.println("round " + round);
+            scan("serial", file, 0);
+            for (int threads : new int[]{1, 2, 4, 8}) {
+                scan("parallel", file, threads);
+            }
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+}
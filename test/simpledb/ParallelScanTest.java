@@ -0,0 +1,220 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.Exchange;
+import simpledb.execution.Filter;
+import simpledb.execution.Limit;
+import simpledb.execution.MorselScan;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.ParallelScan;
+import simpledb.execution.Predicate;
+import simpledb.execution.Project;
+import simpledb.execution.Query;
+import simpledb.execution.SeqScan;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.QueryPlanVisualizer;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class ParallelScanTest extends SimpleDbTestBase {
+    private static final int THREADS = 4;
+
+    private HeapFile file;
+    private List<List<Integer>> rows;
+    private TransactionId tid;
+
+    /** A table (c0, c1, c2) spanning many more pages than a morsel */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        rows = new ArrayList<>();
+        file = SystemTestUtil.createRandomHeapFile(3, 30000, 100, null, rows, "c");
+        Database.getCatalog().addTable(file, "ps");
+        TableStats.setTableStats("ps", new TableStats(file.getId(), 1000));
+        Assert.assertTrue(file.numPages() > 4 * MorselScan.MORSEL_PAGES);
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+        LogicalPlan.setParallelism(1);
+    }
+
+    /** @return the tuples of an open iterator, as sorted strings */
+    private static List<String> drain(OpIterator it) throws Exception {
+        List<String> result = new ArrayList<>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            StringBuilder s = new StringBuilder();
+            for (int i = 0; i < t.getTupleDesc().numFields(); i++) {
+                s.append(t.getField(i)).append(' ');
+            }
+            result.add(s.toString());
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /** @return (c2, c0) of the rows with c0 below 30, as sorted strings */
+    private List<String> expected() {
+        List<String> result = new ArrayList<>();
+        for (List<Integer> row : rows) {
+            if (row.get(0) < 30) {
+                result.add(row.get(2) + " " + row.get(0) + " ");
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /** A projection of (c2, c0) over c0 &lt; 30 */
+    private OpIterator pipeline() {
+        Filter filter = new Filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(30)),
+                new SeqScan(tid, file.getId(), "ps"));
+        return new Project(Arrays.asList(2, 0), new Type[]{Type.INT_TYPE, Type.INT_TYPE}, filter);
+    }
+
+    /**
+     * Each worker runs its own filter and projection over the morsels it
+     * takes, and together they return every matching tuple once, with any
+     * number of threads and after a rewind
+     */
+    @Test public void filterProject() throws Exception {
+        for (int threads : new int[]{1, 2, THREADS}) {
+            ParallelScan scan = new ParallelScan(pipeline(), threads);
+            Assert.assertEquals(pipeline().getTupleDesc(), scan.getTupleDesc());
+            scan.open();
+            Assert.assertEquals(expected(), drain(scan));
+            scan.rewind();
+            Assert.assertEquals(expected(), drain(scan));
+            scan.close();
+        }
+        Assert.assertEquals(0, Exchange.liveProducers());
+
+        try {
+            new ParallelScan(new Limit(1, pipeline()), THREADS);
+            Assert.fail("a Limit cannot be run on several threads");
+        } catch (IllegalArgumentException e) {
+            // 预期
+        }
+    }
+
+    /**
+     * Closing the scan before it is read to the end stops the workers,
+     * which would otherwise wait on the full queue
+     */
+    @Test public void earlyClose() throws Exception {
+        Limit limit = new Limit(10, new ParallelScan(new SeqScan(tid, file.getId(), "ps"), THREADS));
+        limit.open();
+        Assert.assertEquals(10, drain(limit).size());
+        limit.close();
+        Assert.assertEquals(0, Exchange.liveProducers());
+    }
+
+    /**
+     * The workers read the pages as the transaction of the scan: they wait
+     * for a page another transaction has locked for writing, and the scan
+     * holds a read lock on every page afterwards
+     */
+    @Test public void locking() throws Exception {
+        TransactionId writer = new TransactionId();
+        HeapPageId locked = new HeapPageId(file.getId(), file.numPages() / 2);
+        Database.getBufferPool().getPage(writer, locked, Permissions.READ_WRITE);
+        Thread commit = new Thread(() -> {
+            try {
+                Thread.sleep(300);
+                Database.getBufferPool().transactionComplete(writer);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        long start = System.currentTimeMillis();
+        commit.start();
+        ParallelScan scan = new ParallelScan(pipeline(), THREADS);
+        scan.open();
+        Assert.assertEquals(expected(), drain(scan));
+        scan.close();
+        Assert.assertTrue(System.currentTimeMillis() - start >= 300);
+        commit.join();
+        for (int p = 0; p < file.numPages(); p++) {
+            Assert.assertTrue(Database.getBufferPool().holdsLock(tid, new HeapPageId(file.getId(), p)));
+        }
+    }
+
+    /** @return true if the plan has an operator of the class */
+    private static boolean contains(OpIterator it, Class<?> c) {
+        if (c.isInstance(it)) {
+            return true;
+        }
+        if (it instanceof Operator) {
+            for (OpIterator child : ((Operator) it).getChildren()) {
+                if (child != null && contains(child, c)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static List<String> run(String sql) throws Exception {
+        TransactionId tid = new TransactionId();
+        Query q = new Parser().prepare(sql).execute(tid);
+        Assert.assertEquals(LogicalPlan.getParallelism() > 1, contains(q.getPhysicalPlan(), ParallelScan.class));
+        new QueryPlanVisualizer().getQueryPlanTree(q.getPhysicalPlan());
+        q.start();
+        List<String> result = new ArrayList<>();
+        while (q.hasNext()) {
+            Tuple t = q.next();
+            StringBuilder s = new StringBuilder();
+            for (int i = 0; i < t.getTupleDesc().numFields(); i++) {
+                s.append(t.getField(i)).append(' ');
+            }
+            result.add(s.toString());
+        }
+        q.close();
+        Database.getBufferPool().transactionComplete(tid);
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * With a parallelism set, filtered scans of heap files are planned as
+     * parallel scans, with the same results
+     */
+    @Test public void sql() throws Exception {
+        String sql = "SELECT ps.c2, ps.c0 FROM ps WHERE ps.c0 < 30;";
+        List<String> serial = run(sql);
+        Assert.assertEquals(expected(), serial);
+        LogicalPlan.setParallelism(THREADS);
+        Assert.assertEquals(serial, run(sql));
+        Assert.assertEquals(run("SELECT COUNT(ps.c1) FROM ps WHERE ps.c1 > 50;").size(), 1);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ParallelScanTest.class);
+    }
+}
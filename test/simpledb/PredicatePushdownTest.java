@@ -0,0 +1,169 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.Filter;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.SeqScan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class PredicatePushdownTest extends SimpleDbTestBase {
+    private final Map<String, List<List<Integer>>> tuples = new HashMap<>();
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        // 事实表fa、fb引用维表da、db的主键c0
+        addTable("fa", 2000, 100);
+        addTable("fb", 500, 100);
+        addTable("da", 100, 100);
+        addTable("db", 100, 100);
+    }
+
+    private void addTable(String name, int rows, int maxValue) throws Exception {
+        List<List<Integer>> t = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, rows, maxValue, null, t, "c");
+        Database.getCatalog().addTable(f, name);
+        TableStats.setTableStats(name, new TableStats(f.getId(), 100));
+        tuples.put(name, t);
+    }
+
+    private OpIterator plan(String query) throws Exception {
+        TransactionId tid = new TransactionId();
+        return new Parser().generateLogicalPlan(tid, query).physicalPlan(tid, TableStats.getStatsMap(), false);
+    }
+
+    private static int count(OpIterator it) throws Exception {
+        int count = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    /** @return the number of filters applied directly to the scan of alias */
+    private static int filtersOnScan(OpIterator it, String alias) {
+        if (it instanceof Filter) {
+            OpIterator child = ((Filter) it).getChildren()[0];
+            int below = filtersOnScan(child, alias);
+            if (below > 0 || child instanceof SeqScan && ((SeqScan) child).getAlias().equals(alias)) {
+                return below + 1;
+            }
+        }
+        int result = 0;
+        if (it instanceof Operator) {
+            for (OpIterator child : ((Operator) it).getChildren()) {
+                result += filtersOnScan(child, alias);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A constant filter on one side of an equality join is also applied to
+     * the scan of the other side
+     */
+    @Test public void transitiveFilter() throws Exception {
+        OpIterator it = plan("SELECT * FROM fa, da WHERE fa.c0 = da.c0 AND da.c0 < 10;");
+        Assert.assertEquals(1, filtersOnScan(it, "fa"));
+        Assert.assertEquals(1, filtersOnScan(it, "da"));
+
+        int expected = 0;
+        for (List<Integer> f : tuples.get("fa")) {
+            for (List<Integer> d : tuples.get("da")) {
+                if (f.get(0).equals(d.get(0)) && d.get(0) < 10) {
+                    expected++;
+                }
+            }
+        }
+        Assert.assertEquals(expected, count(it));
+    }
+
+    /**
+     * Filters propagate along chains of equality joins, but not across
+     * other join predicates
+     */
+    @Test public void equivalenceClass() throws Exception {
+        OpIterator it = plan("SELECT * FROM fa, fb, da, db WHERE fa.c0 = da.c0 AND fb.c0 = da.c0 "
+                + "AND fb.c1 < db.c1 AND fa.c0 = 5;");
+        Assert.assertEquals(1, filtersOnScan(it, "fa"));
+        Assert.assertEquals(1, filtersOnScan(it, "fb"));
+        Assert.assertEquals(1, filtersOnScan(it, "da"));
+        Assert.assertEquals(0, filtersOnScan(it, "db"));
+
+        // fa.c1 上的条件不属于任何等价类
+        it = plan("SELECT * FROM fa, da WHERE fa.c0 = da.c0 AND fa.c1 > 50;");
+        Assert.assertEquals(1, filtersOnScan(it, "fa"));
+        Assert.assertEquals(0, filtersOnScan(it, "da"));
+    }
+
+    /**
+     * Filters on the join field of a subquery are pushed into it, and
+     * filters of the subquery on its output field are applied to the
+     * enclosing query
+     */
+    @Test public void subquery() throws Exception {
+        OpIterator it = plan("SELECT * FROM fa WHERE fa.c0 = (SELECT da.c0 FROM da WHERE da.c1 < 30) AND fa.c0 < 10;");
+        Assert.assertEquals(1, filtersOnScan(it, "fa"));
+        Assert.assertEquals(2, filtersOnScan(it, "da"));
+
+        it = plan("SELECT * FROM fa WHERE fa.c0 = (SELECT da.c0 FROM da WHERE da.c0 > 90);");
+        Assert.assertEquals(1, filtersOnScan(it, "fa"));
+
+        int expected = 0;
+        for (List<Integer> f : tuples.get("fa")) {
+            for (List<Integer> d : tuples.get("da")) {
+                if (f.get(0).equals(d.get(0)) && d.get(0) > 90) {
+                    expected++;
+                }
+            }
+        }
+        Assert.assertEquals(expected, count(it));
+    }
+
+    /**
+     * A parameter of a prepared statement is bound into the filters
+     * inferred from it as well
+     */
+    @Test public void preparedParameter() throws Exception {
+        PreparedStatement ps = new Parser().prepare("SELECT * FROM fa, da WHERE fa.c0 = da.c0 AND da.c0 = ?;");
+        for (int v : new int[]{3, 42}) {
+            ps.setInt(1, v);
+            TransactionId tid = new TransactionId();
+            int expected = 0;
+            for (List<Integer> f : tuples.get("fa")) {
+                for (List<Integer> d : tuples.get("da")) {
+                    if (f.get(0) == v && d.get(0) == v) {
+                        expected++;
+                    }
+                }
+            }
+            Assert.assertEquals(expected, count(ps.execute(tid).getPhysicalPlan()));
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PredicatePushdownTest.class);
+    }
+}
@@ -0,0 +1,151 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.Query;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class PreparedStatementTest extends SimpleDbTestBase {
+    private List<List<Integer>> tuples;
+    private Parser parser;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 500, 100, null, tuples, "c");
+        Database.getCatalog().addTable(f, "pt");
+        TableStats.setTableStats("pt", new TableStats(f.getId(), 100));
+        parser = new Parser();
+    }
+
+    private List<Tuple> run(PreparedStatement ps) throws Exception {
+        TransactionId tid = new TransactionId();
+        Query q = ps.execute(tid);
+        List<Tuple> result = new ArrayList<>();
+        q.start();
+        while (q.hasNext()) {
+            result.add(q.next());
+        }
+        q.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return result;
+    }
+
+    private int countWhere(int column, Predicate op, int value) {
+        int count = 0;
+        for (List<Integer> t : tuples) {
+            if (op.test(t.get(column), value)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private interface Predicate {
+        boolean test(int field, int value);
+    }
+
+    /**
+     * The same plan answers a point query for every bound value
+     */
+    @Test public void pointQuery() throws Exception {
+        PreparedStatement ps = parser.prepare("SELECT pt.c1 FROM pt WHERE pt.c0 = ?;");
+        Assert.assertEquals(1, ps.getParameterCount());
+        Assert.assertEquals(Type.INT_TYPE, ps.getParameterType(1));
+        for (int v = 0; v < 100; v += 7) {
+            ps.setInt(1, v);
+            Assert.assertEquals(countWhere(0, (a, b) -> a == b, v), run(ps).size());
+        }
+    }
+
+    /**
+     * Several parameters, bound one at a time
+     */
+    @Test public void rangeQuery() throws Exception {
+        PreparedStatement ps = parser.prepare("SELECT * FROM pt WHERE pt.c0 > ? AND pt.c1 <= ?;");
+        Assert.assertEquals(2, ps.getParameterCount());
+        int[][] bindings = {{10, 50}, {90, 99}, {-1, 100}, {50, 10}};
+        for (int[] b : bindings) {
+            ps.setInt(1, b[0]);
+            ps.setParameter(2, Integer.toString(b[1]));
+            int expected = 0;
+            for (List<Integer> t : tuples) {
+                if (b[0] < t.get(0) && t.get(1) <= b[1]) {
+                    expected++;
+                }
+            }
+            Assert.assertEquals(expected, run(ps).size());
+        }
+    }
+
+    /**
+     * An aggregate over a prepared filter is recomputed on each execution
+     */
+    @Test public void aggregateQuery() throws Exception {
+        PreparedStatement ps = parser.prepare("SELECT COUNT(pt.c1) FROM pt WHERE pt.c0 > ?;");
+        for (int v : new int[]{20, 80, 20}) {
+            ps.setInt(1, v);
+            List<Tuple> result = run(ps);
+            Assert.assertEquals(1, result.size());
+            Assert.assertEquals(new IntField(countWhere(0, (a, b) -> a > b, v)), result.get(0).getField(0));
+        }
+    }
+
+    @Test(expected = DbException.class)
+    public void unboundParameter() throws Exception {
+        PreparedStatement ps = parser.prepare("SELECT * FROM pt WHERE pt.c0 = ? AND pt.c1 = ?;");
+        ps.setInt(1, 3);
+        ps.execute(new TransactionId());
+    }
+
+    @Test(expected = ParsingException.class)
+    public void wrongType() throws Exception {
+        PreparedStatement ps = parser.prepare("SELECT * FROM pt WHERE pt.c0 = ?;");
+        ps.setString(1, "abc");
+    }
+
+    @Test(expected = ParsingException.class)
+    public void placeholderOutsideComparison() throws Exception {
+        parser.prepare("SELECT * FROM pt WHERE pt.c0 = ? + 1;");
+    }
+
+    /**
+     * PREPARE and EXECUTE from the command line
+     */
+    @Test public void commandLine() throws Exception {
+        parser.processNextStatement("PREPARE q AS SELECT * FROM pt WHERE pt.c0 = ?;");
+        parser.processNextStatement("EXECUTE q(5);");
+        parser.processNextStatement("EXECUTE q(6);");
+        parser.processNextStatement("DEALLOCATE q;");
+    }
+
+    @Test public void splitArguments() throws Exception {
+        Assert.assertEquals(Arrays.asList("1", "abc", "it's", " x "),
+                Parser.splitArguments(" 1, 'abc','it''s' , ' x '"));
+        Assert.assertEquals(new ArrayList<String>(), Parser.splitArguments(""));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PreparedStatementTest.class);
+    }
+}
@@ -0,0 +1,156 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.OpIterator;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.QueryPlanCache;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+public class QueryPlanCacheTest extends SimpleDbTestBase {
+    private static final String JOIN_QUERY =
+            "SELECT * FROM pa, pb, pc WHERE pa.c0 = pb.c0 AND pb.c1 = pc.c1 AND pa.c1 > %d;";
+
+    private final Map<String, TableStats> stats = new HashMap<>();
+    private final Map<String, List<List<Integer>>> tuples = new HashMap<>();
+    private QueryPlanCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        for (String name : new String[]{"pa", "pb", "pc"}) {
+            List<List<Integer>> t = new ArrayList<>();
+            HeapFile f = SystemTestUtil.createRandomHeapFile(2, 200, 50, null, t, "c");
+            Database.getCatalog().addTable(f, name);
+            stats.put(name, new TableStats(f.getId(), 100));
+            TableStats.setTableStats(name, stats.get(name));
+            tuples.put(name, t);
+        }
+        cache = Database.getQueryPlanCache();
+    }
+
+    private LogicalPlan plan(String query) throws ParsingException, IOException {
+        return new Parser().generateLogicalPlan(new TransactionId(), query);
+    }
+
+    private int run(String query) throws ParsingException, IOException, DbException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        OpIterator it = new Parser().generateLogicalPlan(tid, query).physicalPlan(tid, stats, false);
+        int count = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return count;
+    }
+
+    private int expectedCount(int min) {
+        int count = 0;
+        for (List<Integer> a : tuples.get("pa")) {
+            for (List<Integer> b : tuples.get("pb")) {
+                for (List<Integer> c : tuples.get("pc")) {
+                    if (a.get(0).equals(b.get(0)) && b.get(1).equals(c.get(1)) && a.get(1) > min) {
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Queries that differ only in their constants share a key; queries that
+     * differ in anything else do not
+     */
+    @Test public void normalizedKey() throws Exception {
+        String key = plan(String.format(JOIN_QUERY, 10)).getPlanKey();
+        Assert.assertEquals(key, plan(String.format(JOIN_QUERY, 40)).getPlanKey());
+        Assert.assertFalse(key.contains("10"));
+        Assert.assertNotEquals(key, plan("SELECT * FROM pa, pb, pc WHERE pa.c0 = pb.c0 AND pb.c1 = pc.c1 AND pa.c0 > 10;")
+                .getPlanKey());
+        Assert.assertNotEquals(key, plan("SELECT * FROM pa, pb, pc WHERE pa.c0 = pb.c0 AND pb.c1 = pc.c1 AND pa.c1 < 10;")
+                .getPlanKey());
+    }
+
+    /**
+     * The second query of the same shape reuses the cached join order and
+     * still computes its own answer
+     */
+    @Test public void hitReusesJoinOrder() throws Exception {
+        Assert.assertEquals(expectedCount(10), run(String.format(JOIN_QUERY, 10)));
+        Assert.assertEquals(0, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals(1, cache.size());
+
+        Assert.assertEquals(expectedCount(30), run(String.format(JOIN_QUERY, 30)));
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+    }
+
+    /**
+     * Replacing the statistics of a table or rebalancing its histograms
+     * invalidates the cached plans that read it
+     */
+    @Test public void statsChangeInvalidates() throws Exception {
+        run(String.format(JOIN_QUERY, 10));
+        stats.get("pb").rebalanceHistograms();
+        run(String.format(JOIN_QUERY, 10));
+        Assert.assertEquals(0, cache.getHits());
+        Assert.assertEquals(1, cache.getInvalidations());
+
+        stats.put("pc", new TableStats(Database.getCatalog().getTableId("pc"), 100));
+        run(String.format(JOIN_QUERY, 10));
+        Assert.assertEquals(0, cache.getHits());
+        Assert.assertEquals(2, cache.getInvalidations());
+
+        run(String.format(JOIN_QUERY, 20));
+        Assert.assertEquals(1, cache.getHits());
+    }
+
+    /**
+     * The cache keeps only the most recently used query shapes
+     */
+    @Test public void lruEviction() throws Exception {
+        cache.setCapacity(2);
+        String q1 = "SELECT * FROM pa, pb WHERE pa.c0 = pb.c0;";
+        String q2 = "SELECT * FROM pb, pc WHERE pb.c1 = pc.c1;";
+        String q3 = "SELECT * FROM pa, pc WHERE pa.c1 = pc.c0;";
+        run(q1);
+        run(q2);
+        run(q1);
+        run(q3);
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(1, cache.getEvictions());
+        // q2最久未使用，已被淘汰
+        run(q1);
+        run(q2);
+        Assert.assertEquals(2, cache.getHits());
+        Assert.assertEquals(4, cache.getMisses());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(QueryPlanCacheTest.class);
+    }
+}
@@ -0,0 +1,242 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.execution.SortMergeJoin;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.optimizer.QueryPlanVisualizer;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+    private List<List<Integer>> outer;
+    private List<List<Integer>> inner;
+    private List<List<Integer>> skewed;
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        outer = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 600, 300, null, outer, "c");
+        Database.getCatalog().addTable(f, "so");
+        TableStats.setTableStats("so", new TableStats(f.getId(), 1000));
+        inner = new ArrayList<>();
+        f = SystemTestUtil.createRandomHeapFile(2, 400, 300, null, inner, "c");
+        Database.getCatalog().addTable(f, "si");
+        TableStats.setTableStats("si", new TableStats(f.getId(), 1000));
+        // 只有两个不同的键，每段重复键都超过内存预算
+        skewed = new ArrayList<>();
+        f = SystemTestUtil.createRandomHeapFile(2, 500, 2, null, skewed, "c");
+        Database.getCatalog().addTable(f, "sk");
+        tid = new TransactionId();
+    }
+
+    private SortMergeJoin join(String t1, Predicate.Op op, String t2, int memoryTuples) {
+        return new SortMergeJoin(new JoinPredicate(0, op, 0),
+                new SeqScan(tid, Database.getCatalog().getTableId(t1), t1),
+                new SeqScan(tid, Database.getCatalog().getTableId(t2), t2), false, false, memoryTuples);
+    }
+
+    private static int expected(List<List<Integer>> t1, Predicate.Op op, List<List<Integer>> t2) {
+        int count = 0;
+        for (List<Integer> a : t1) {
+            for (List<Integer> b : t2) {
+                if (new IntField(a.get(0)).compare(op, new IntField(b.get(0)))) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /** Read all tuples, checking that each satisfies the predicate */
+    private static int drain(OpIterator join, Predicate.Op op) throws Exception {
+        return drain(join, 0, op, 2);
+    }
+
+    /** Read all tuples, checking that field1 op field2 holds for each */
+    private static int drain(OpIterator join, int field1, Predicate.Op op, int field2) throws Exception {
+        int count = 0;
+        while (join.hasNext()) {
+            Tuple t = join.next();
+            Assert.assertTrue(t.getField(field1).compare(op, t.getField(field2)));
+            count++;
+        }
+        return count;
+    }
+
+    private static OpIterator plan(String query) throws Exception {
+        TransactionId tid = new TransactionId();
+        return new Parser().generateLogicalPlan(tid, query).physicalPlan(tid, TableStats.getStatsMap(), false);
+    }
+
+    /** @return the first sort-merge join in the plan, or null */
+    private static SortMergeJoin findJoin(OpIterator it) {
+        if (it instanceof SortMergeJoin) {
+            return (SortMergeJoin) it;
+        }
+        if (it instanceof Operator) {
+            for (OpIterator child : ((Operator) it).getChildren()) {
+                SortMergeJoin found = findJoin(child);
+                if (found != null) {
+                    return found;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * An equi-join returns every pair of tuples with the same key, ordered
+     * by the key, whether the inputs are sorted in memory or on disk
+     */
+    @Test public void equiJoin() throws Exception {
+        int expected = expected(outer, Predicate.Op.EQUALS, inner);
+        SortMergeJoin join = join("so", Predicate.Op.EQUALS, "si", 5000);
+        join.open();
+        int count = 0;
+        int last = Integer.MIN_VALUE;
+        while (join.hasNext()) {
+            int key = ((IntField) join.next().getField(0)).getValue();
+            Assert.assertTrue(key >= last);
+            last = key;
+            count++;
+        }
+        Assert.assertEquals(expected, count);
+        Assert.assertEquals(0, join.getSpilledTuples());
+        join.close();
+
+        join = join("so", Predicate.Op.EQUALS, "si", 50);
+        join.open();
+        Assert.assertEquals(expected, drain(join, Predicate.Op.EQUALS));
+        Assert.assertTrue(join.getSpilledTuples() >= outer.size() + inner.size());
+        join.rewind();
+        Assert.assertEquals(expected, drain(join, Predicate.Op.EQUALS));
+        join.close();
+    }
+
+    /**
+     * Runs of duplicate inner keys longer than the memory budget are
+     * buffered on disk
+     */
+    @Test public void duplicateRuns() throws Exception {
+        SortMergeJoin join = join("sk", Predicate.Op.EQUALS, "sk", 100);
+        join.open();
+        Assert.assertEquals(expected(skewed, Predicate.Op.EQUALS, skewed), drain(join, Predicate.Op.EQUALS));
+        join.close();
+    }
+
+    /**
+     * Range predicates in both directions, with the sorted input in memory
+     * and on disk
+     */
+    @Test public void rangeJoin() throws Exception {
+        Predicate.Op[] ops = {Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+                Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ};
+        for (Predicate.Op op : ops) {
+            int expected = expected(outer, op, inner);
+            for (int memory : new int[]{5000, 64}) {
+                SortMergeJoin join = join("so", op, "si", memory);
+                join.open();
+                Assert.assertEquals(op + " " + memory, expected, drain(join, op));
+                join.rewind();
+                Assert.assertEquals(op + " " + memory, expected, drain(join, op));
+                join.close();
+            }
+        }
+    }
+
+    /**
+     * A range join over an input that is already sorted reads it once into
+     * a buffer, spilled beyond the memory budget, instead of rewinding it
+     * for every tuple of the other input
+     */
+    @Test public void sortedRangeJoin() throws Exception {
+        Predicate.Op[] ops = {Predicate.Op.LESS_THAN, Predicate.Op.GREATER_THAN_OR_EQ};
+        for (Predicate.Op op : ops) {
+            int expected = expected(outer, op, inner);
+            boolean byOuter = op == Predicate.Op.GREATER_THAN_OR_EQ;
+            for (int memory : new int[]{5000, 64}) {
+                OpIterator so = new SeqScan(tid, Database.getCatalog().getTableId("so"), "so");
+                OpIterator si = new SeqScan(tid, Database.getCatalog().getTableId("si"), "si");
+                SortMergeJoin join = new SortMergeJoin(new JoinPredicate(0, op, 0),
+                        byOuter ? so : new OrderBy(0, true, so), byOuter ? new OrderBy(0, true, si) : si,
+                        !byOuter, byOuter, memory);
+                join.open();
+                Assert.assertEquals(op + " " + memory, expected, drain(join, op));
+                join.rewind();
+                Assert.assertEquals(op + " " + memory, expected, drain(join, op));
+                Assert.assertEquals(memory < 5000 ? (byOuter ? inner : outer).size() : 0, join.getSpilledTuples());
+                join.close();
+            }
+        }
+    }
+
+    /**
+     * Range joins are merged instead of compared pair by pair, and
+     * B+ tree tables, which are read in key order, are merged without
+     * sorting when hashing them would spill
+     */
+    @Test public void optimizerChoice() throws Exception {
+        OpIterator it = plan("SELECT * FROM so, si WHERE so.c0 < si.c0;");
+        Assert.assertNotNull(findJoin(it));
+        it.open();
+        // 优化器可能交换两侧，按名字找连接字段
+        Assert.assertEquals(expected(outer, Predicate.Op.LESS_THAN, inner), drain(it,
+                it.getTupleDesc().fieldNameToIndex("so.c0"), Predicate.Op.LESS_THAN,
+                it.getTupleDesc().fieldNameToIndex("si.c0")));
+        it.close();
+
+        int rows = SortMergeJoin.SORT_SIZE + 2000;
+        List<List<Integer>> left = new ArrayList<>();
+        List<List<Integer>> right = new ArrayList<>();
+        String[] names = {"ba", "bb"};
+        List<List<List<Integer>>> tuples = new ArrayList<>();
+        tuples.add(left);
+        tuples.add(right);
+        for (int i = 0; i < 2; i++) {
+            BTreeFile f = BTreeUtility.createRandomBTreeFile(2, rows, rows * 4, null, tuples.get(i), 0);
+            // 给字段命名以便按SQL查询
+            BTreeFile named = new BTreeFile(f.getFile(), 0, Utility.getTupleDesc(2, "c"));
+            Database.getCatalog().addTable(named, names[i]);
+            TableStats.setTableStats(names[i], new TableStats(named.getId(), 1000));
+        }
+        it = plan("SELECT * FROM ba, bb WHERE ba.c0 = bb.c0;");
+        SortMergeJoin join = findJoin(it);
+        Assert.assertNotNull(join);
+        new QueryPlanVisualizer().getQueryPlanTree(it);
+        it.open();
+        Assert.assertEquals(expected(left, Predicate.Op.EQUALS, right), drain(it, Predicate.Op.EQUALS));
+        // 两侧都已按键有序，不需要外部排序
+        Assert.assertEquals(0, join.getSpilledTuples());
+        it.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SortMergeJoinTest.class);
+    }
+}
@@ -1,5 +1,6 @@
 package simpledb;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -12,12 +13,15 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.execution.Predicate;
 import simpledb.optimizer.TableStats;
+import simpledb.optimizer.TableStatsFile;
 import simpledb.storage.Field;
 import simpledb.storage.HeapFile;
 import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
 
 public class TableStatsTest extends SimpleDbTestBase {
 	public static final int IO_COST = 71;
@@ -160,4 +164,149 @@ public class TableStatsTest extends SimpleDbTestBase {
 			Assert.assertEquals(0.0, s.estimateSelectivity(col, Predicate.Op.LESS_THAN_OR_EQ, belowMin), 0.001);
 		}
 	}
+
+	/**
+	 * Verify that statistics built from a sample of the pages are close to
+	 * the ones built from a full scan.
+	 */
+	@Test public void sampledStatsTest() {
+		final int maxCellVal = 32;
+		TableStats full = new TableStats(this.tableId, IO_COST);
+		TableStats sampled = new TableStats(this.tableId, IO_COST, 2000);
+
+		Assert.assertEquals(full.estimateScanCost(), sampled.estimateScanCost(), 0.001);
+		Assert.assertEquals(full.totalTuples(), sampled.totalTuples(), full.totalTuples() * 0.05);
+		for (int col = 0; col < 10; col++) {
+			Assert.assertEquals(1.0/32.0, sampled.estimateSelectivity(col, Predicate.Op.EQUALS, new IntField(maxCellVal/2)), 0.015);
+			Assert.assertEquals(0.5, sampled.estimateSelectivity(col, Predicate.Op.GREATER_THAN, new IntField(maxCellVal/2)), 0.1);
+			Assert.assertEquals(full.numDistinctValues(col), sampled.numDistinctValues(col));
+		}
+	}
+
+	@Test public void sampleSizeForTest() {
+		Assert.assertEquals(18445, TableStats.sampleSizeFor(0.01, 0.95));
+		Assert.assertTrue(TableStats.sampleSizeFor(0.05, 0.95) < TableStats.sampleSizeFor(0.01, 0.95));
+	}
+
+	/**
+	 * Verify that statistics survive a round trip through the stats file and
+	 * are ignored once the table's data file changes.
+	 */
+	@Test public void statsFileTest() throws IOException {
+		File file = File.createTempFile("table", ".stats");
+		file.delete();
+		file.deleteOnExit();
+		TableStats stats = new TableStats(this.tableId, IO_COST);
+
+		TableStatsFile statsFile = new TableStatsFile(file);
+		Assert.assertNull(statsFile.get(tableName, tableId, f));
+		statsFile.put(tableName, f, stats);
+		statsFile.save();
+		Assert.assertTrue(file.exists());
+
+		TableStats loaded = new TableStatsFile(file).get(tableName, tableId, f);
+		Assert.assertNotNull(loaded);
+		Assert.assertEquals(stats.estimateScanCost(), loaded.estimateScanCost(), 0.001);
+		Assert.assertEquals(stats.totalTuples(), loaded.totalTuples());
+		for (int col = 0; col < 10; col++) {
+			Assert.assertEquals(stats.numDistinctValues(col), loaded.numDistinctValues(col));
+			Assert.assertEquals(stats.estimateSelectivity(col, Predicate.Op.GREATER_THAN, new IntField(16)),
+					loaded.estimateSelectivity(col, Predicate.Op.GREATER_THAN, new IntField(16)), 0.0);
+		}
+
+		// 数据文件变化后旧的统计信息失效
+		Assert.assertTrue(f.getFile().setLastModified(f.getFile().lastModified() - 10000));
+		Assert.assertNull(new TableStatsFile(file).get(tableName, tableId, f));
+	}
+
+	/**
+	 * Verify that getTableStats computes and persists missing statistics when
+	 * a stats file is configured.
+	 */
+	@Test public void lazyStatsFileTest() throws IOException {
+		File file = File.createTempFile("table", ".stats");
+		file.delete();
+		file.deleteOnExit();
+		TableStats.setStatsFile(file, TableStats.FULL_SCAN);
+		try {
+			TableStats.getStatsMap().remove(tableName);
+			TableStats stats = TableStats.getTableStats(tableName);
+			Assert.assertNotNull(stats);
+			Assert.assertEquals(10200, stats.totalTuples());
+			Assert.assertTrue(file.exists());
+			Assert.assertNotNull(new TableStatsFile(file).get(tableName, tableId, f));
+		} finally {
+			TableStats.setStatsFile(null, TableStats.FULL_SCAN);
+			TableStats.getStatsMap().remove(tableName);
+		}
+	}
+
+	/**
+	 * Verify that committed inserts and deletes update the statistics, and
+	 * that aborted ones do not.
+	 */
+	@Test public void incrementalUpdateTest() throws Exception {
+		TableStats stats = new TableStats(this.tableId, IO_COST);
+		TableStats.setTableStats(tableName, stats);
+		try {
+			// 插入超出原直方图范围的值
+			TransactionId tid = new TransactionId();
+			for (int i = 0; i < 1000; i++) {
+				Database.getBufferPool().insertTuple(tid, tableId, tupleWithValue(1000 + i));
+			}
+			Database.getBufferPool().transactionComplete(tid, false);
+			Assert.assertEquals(10200, stats.totalTuples());
+
+			tid = new TransactionId();
+			for (int i = 0; i < 1000; i++) {
+				Database.getBufferPool().insertTuple(tid, tableId, tupleWithValue(1000 + i));
+			}
+			Database.getBufferPool().transactionComplete(tid);
+			Assert.assertEquals(11200, stats.totalTuples());
+			Assert.assertEquals(32 + 1000, stats.numDistinctValues(0), (32 + 1000) * 0.05);
+
+			stats.rebalanceHistograms();
+			Assert.assertEquals(1000.0 / 11200, stats.estimateSelectivity(0, Predicate.Op.GREATER_THAN, new IntField(999)), 0.01);
+			Assert.assertEquals(10200.0 / 11200, stats.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(1000)), 0.01);
+		} finally {
+			TableStats.getStatsMap().remove(tableName);
+		}
+	}
+
+	/**
+	 * Verify that inserts committed after the histograms were rebalanced
+	 * during the transaction still count.
+	 */
+	@Test public void updateAcrossRebalanceTest() throws Exception {
+		TableStats stats = new TableStats(this.tableId, IO_COST);
+		TableStats.setTableStats(tableName, stats);
+		try {
+			// 超出范围的值少到不会触发后台的rebalance
+			TransactionId tid = new TransactionId();
+			for (int i = 0; i < 100; i++) {
+				Database.getBufferPool().insertTuple(tid, tableId, tupleWithValue(1000 + 10 * i));
+			}
+			Database.getBufferPool().transactionComplete(tid);
+
+			tid = new TransactionId();
+			for (int i = 0; i < 1000; i++) {
+				Database.getBufferPool().insertTuple(tid, tableId, tupleWithValue(1000 + i));
+			}
+			// 事务提交前直方图换了bucket
+			stats.rebalanceHistograms();
+			Database.getBufferPool().transactionComplete(tid);
+			Assert.assertEquals(11300, stats.totalTuples());
+			Assert.assertEquals(1100.0 / 11300, stats.estimateSelectivity(0, Predicate.Op.GREATER_THAN, new IntField(999)), 0.01);
+		} finally {
+			TableStats.getStatsMap().remove(tableName);
+		}
+	}
+
+	private Tuple tupleWithValue(int value) {
+		Tuple tuple = new Tuple(f.getTupleDesc());
+		for (int i = 0; i < f.getTupleDesc().numFields(); i++) {
+			tuple.setField(i, new IntField(value));
+		}
+		return tuple;
+	}
 }
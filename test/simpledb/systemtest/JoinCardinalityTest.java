@@ -0,0 +1,125 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.Join;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.optimizer.JoinOptimizer;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapFileEncoder;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Plan-quality benchmark for join cardinality estimation: compares the
+ * estimates of JoinOptimizer.estimateTableJoinCardinality on a small star
+ * schema with the actual join sizes, and with the estimates of the
+ * primary-key heuristics used when no statistics are available.
+ */
+public class JoinCardinalityTest extends SimpleDbTestBase {
+    private static final int FACT_ROWS = 20000;
+    private static final int DIM_ROWS = 1000;
+
+    private final Random random = new Random(42);
+    private final Map<String, Integer> tableAliasToId = new HashMap<>();
+    private final Map<String, TableStats> stats = new HashMap<>();
+
+    /**
+     * Create a table whose column i holds random values in
+     * [mins[i], mins[i] + ranges[i]), or 0, 1, 2, ... when ranges[i] is 0.
+     */
+    private HeapFile createTable(String alias, int rows, int[] mins, int[] ranges) throws IOException {
+        List<List<Integer>> tuples = new ArrayList<>(rows);
+        for (int r = 0; r < rows; r++) {
+            List<Integer> tuple = new ArrayList<>();
+            for (int c = 0; c < mins.length; c++) {
+                tuple.add(mins[c] + (ranges[c] == 0 ? r : random.nextInt(ranges[c])));
+            }
+            tuples.add(tuple);
+        }
+        File temp = File.createTempFile("table", ".dat");
+        temp.deleteOnExit();
+        HeapFileEncoder.convert(tuples, temp, BufferPool.getPageSize(), mins.length);
+        HeapFile file = Utility.openHeapFile(mins.length, "c", temp);
+        tableAliasToId.put(alias, file.getId());
+        stats.put(Database.getCatalog().getTableName(file.getId()), new TableStats(file.getId(), 1000));
+        return file;
+    }
+
+    private int actualCardinality(HeapFile f1, int field1, Predicate.Op op, HeapFile f2, int field2)
+            throws DbException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(field1, op, field2);
+        SeqScan ss1 = new SeqScan(tid, f1.getId(), "");
+        SeqScan ss2 = new SeqScan(tid, f2.getId(), "");
+        OpIterator join = op == Predicate.Op.EQUALS ? new HashEquiJoin(p, ss1, ss2) : new Join(p, ss1, ss2);
+        int count = 0;
+        join.open();
+        while (join.hasNext()) {
+            join.next();
+            count++;
+        }
+        join.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return count;
+    }
+
+    private static double qError(double estimate, double actual) {
+        estimate = Math.max(estimate, 1);
+        actual = Math.max(actual, 1);
+        return Math.max(estimate / actual, actual / estimate);
+    }
+
+    private void validate(String alias1, HeapFile f1, int field1, boolean pkey1, Predicate.Op op,
+                          String alias2, HeapFile f2, int field2, boolean pkey2, double maxQError)
+            throws DbException, TransactionAbortedException {
+        int card1 = stats.get(Database.getCatalog().getTableName(f1.getId())).totalTuples();
+        int card2 = stats.get(Database.getCatalog().getTableName(f2.getId())).totalTuples();
+        int estimate = JoinOptimizer.estimateTableJoinCardinality(op, alias1, alias2, "c" + field1, "c" + field2,
+                card1, card2, pkey1, pkey2, stats, tableAliasToId);
+        int heuristic = JoinOptimizer.estimateTableJoinCardinality(op, alias1, alias2, "c" + field1, "c" + field2,
+                card1, card2, pkey1, pkey2, new HashMap<>(), tableAliasToId);
+        int actual = actualCardinality(f1, field1, op, f2, field2);
+
+        System.out.printf("%s.c%d %s %s.c%d: actual %d, estimated %d (q-error %.2f), heuristic %d (q-error %.2f)%n",
+                alias1, field1, op, alias2, field2, actual, estimate, qError(estimate, actual),
+                heuristic, qError(heuristic, actual));
+        Assert.assertTrue(qError(estimate, actual) <= maxQError);
+        Assert.assertTrue(qError(estimate, actual) <= qError(heuristic, actual) + 0.01);
+    }
+
+    @Test public void starSchemaJoins() throws IOException, DbException, TransactionAbortedException {
+        // fact(c0: dim key, c1: low-cardinality attribute, c2: measure)
+        HeapFile fact = createTable("fact", FACT_ROWS, new int[]{0, 0, 0}, new int[]{DIM_ROWS, 100, 1 << 16});
+        // dim(c0: key, c1: attribute)
+        HeapFile dim = createTable("dim", DIM_ROWS, new int[]{0, 0}, new int[]{0, 50});
+        // other(c0: attribute sharing the domain of fact.c1, c1: attribute overlapping half of dim.c1)
+        HeapFile other = createTable("other", DIM_ROWS, new int[]{0, 25}, new int[]{100, 50});
+
+        // Foreign key to primary key
+        validate("fact", fact, 0, false, Predicate.Op.EQUALS, "dim", dim, 0, true, 1.1);
+        // Many-to-many equi-join on a low-cardinality attribute
+        validate("fact", fact, 1, false, Predicate.Op.EQUALS, "other", other, 0, false, 1.2);
+        // Range joins
+        validate("dim", dim, 1, false, Predicate.Op.LESS_THAN, "other", other, 1, false, 1.2);
+        validate("dim", dim, 1, false, Predicate.Op.GREATER_THAN_OR_EQ, "other", other, 1, false, 1.5);
+    }
+}
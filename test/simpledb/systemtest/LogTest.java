@@ -435,6 +435,41 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestAsyncCommit()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        setup();
+        LogFile log = Database.getLogFile();
+        log.setFlushInterval(50);
+
+        // *** Test:
+        // an asynchronous commit returns before the log is forced,
+        // but its effects are visible to the next transaction right away
+        Transaction t1 = new Transaction();
+        t1.setAsyncCommit(true);
+        t1.start();
+        insertRow(hf1, t1, 1);
+        long before = log.getFlushedOffset();
+        t1.commit();
+        assertEquals(before, log.getFlushedOffset());
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        look(hf1, t2, 1, true);
+        t2.commit();
+
+        // *** Test:
+        // the background flusher makes the commit durable
+        t2 = new Transaction();
+        t2.setAsyncCommit(true);
+        t2.start();
+        insertRow(hf1, t2, 2);
+        t2.commit();
+        Thread.sleep(500);
+        long durable = log.getFlushedOffset();
+        assertTrue(durable > before);
+        assertEquals(new File("log").length(), durable);
+    }
+
 
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {